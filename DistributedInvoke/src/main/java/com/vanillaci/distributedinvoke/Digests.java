@@ -0,0 +1,67 @@
+package com.vanillaci.distributedinvoke;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes, for anything stored or looked up by what it contains.
+ */
+public final class Digests {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The length of a digest returned by {@link #sha256(byte[])}.
+	 */
+	public static final int SHA256_LENGTH = 64;
+
+	private Digests() {}
+
+	/**
+	 * @return The SHA-256 of the given bytes, in lower case hex.
+	 */
+	@NotNull
+	public static String sha256(@NotNull byte[] bytes) {
+		return toHex(newSha256().digest(bytes));
+	}
+
+	/**
+	 * For hashing something too big to hold in memory at once. Pass what it returns to {@link #toHex(byte[])}.
+	 */
+	@NotNull
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every JVM is required to support SHA-256", e);
+		}
+	}
+
+	@NotNull
+	public static String toHex(@NotNull byte[] hash) {
+		char[] hex = new char[hash.length * 2];
+		for(int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return True if the string could have come from {@link #sha256(byte[])}.
+	 * 	Anything that comes from another machine has to pass this before it's used as a file name.
+	 */
+	public static boolean isSha256(@NotNull String digest) {
+		if(digest.length() != SHA256_LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < digest.length(); i++) {
+			char c = digest.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,65 @@
+package com.vanillaci.distributedinvoke.artifacts;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+
+/**
+ * A file in an {@link ArtifactStore}, referred to by the SHA-256 of its contents.
+ *
+ * This is what a task returns instead of the file itself. It's a few dozen bytes however big the file is,
+ * 	and the master fetches the contents afterwards, only if it wants them,
+ * 	with {@link com.vanillaci.distributedinvoke.machines.RemoteMachine#fetchArtifact(Artifact, ArtifactStore)}.
+ */
+public final class Artifact implements Serializable {
+	@NotNull private final String digest;
+	private final long size;
+	@NotNull private final String name;
+
+	/**
+	 * @param digest The SHA-256 of the contents, in lower case hex.
+	 * @param size The length of the contents in bytes.
+	 * @param name What the file was called when it was stored. Only for people to read; two artifacts with the same contents are the same artifact.
+	 */
+	public Artifact(@NotNull String digest, long size, @NotNull String name) {
+		this.digest = digest;
+		this.size = size;
+		this.name = name;
+	}
+
+	@NotNull
+	public String getDigest() {
+		return digest;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@NotNull
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(this == o) {
+			return true;
+		}
+		if(o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		Artifact artifact = (Artifact) o;
+		return size == artifact.size && digest.equals(artifact.digest) && name.equals(artifact.name);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * digest.hashCode() + name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "Artifact " + name + " " + digest + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,579 @@
+package com.vanillaci.distributedinvoke.artifacts;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.channels.HashedWheelTimer;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Moves artifacts between an {@link ArtifactStore} and masters, on a port of its own.
+ *
+ * Artifacts are kept off the connection requests and responses go over, so moving a big one never holds up anything else.
+ * 	The master finds out the port, and whether the artifact is there, by asking over that connection first
+ * 	(see {@link com.vanillaci.distributedinvoke.channels.Transport.ArtifactRequest}).
+ *
+ * The contents never pass through the heap on either side. They're sent with {@link FileChannel#transferTo} and
+ * 	received with {@link FileChannel#transferFrom}, so the operating system copies them between the file and the socket itself.
+ *
+ * Each connection moves one artifact, either way. The master writes a magic number, which way, and the digest.
+ * 	To fetch, it adds the offset to start from, and gets back the total length, or -1 if it isn't in the store,
+ * 	followed by the contents from that offset. To push, it adds the total length, and gets back the offset to start from,
+ * 	followed after the contents by whether they were stored.
+ * 	Contents are sent in chunks of up to {@value #CHUNK_SIZE} bytes, each prefixed by its length and CRC-32,
+ * 	which the receiving side checks as soon as the chunk is on disk. Whatever arrived intact is kept in a
+ * 	{@link ArtifactStore#partial(String) partial file}, so a transfer that's cut off, or gets a bad chunk,
+ * 	carries on from the last good chunk rather than starting again. The whole thing is checked against the digest before it goes in the store.
+ * 	Only one transfer writes an artifact's partial file at a time (see {@link ArtifactStore#beginReceive(String)}), and only for as long as
+ * 	that one transfer lasts, so a retry, or another transfer of the same artifact, can pick up from it.
+ *
+ * Connecting, and every read, write and chunk after that, has to finish within {@value #TIMEOUT_MILLIS}ms, or the connection is closed
+ * 	and the transfer fails (and is retried, if there are tries left). Blocking socket channels don't honour SO_TIMEOUT,
+ * 	so the timeouts are kept on a {@link HashedWheelTimer} shared by every transfer.
+ */
+public class ArtifactServer implements Closeable {
+	private static final Logger LOGGER = Logger.forClass(ArtifactServer.class);
+
+	private static final Counter SERVED = MetricsRegistry.getDefault().counter("artifacts.served");
+	private static final Counter BYTES_SERVED = MetricsRegistry.getDefault().counter("artifacts.bytesServed");
+	private static final Counter FETCHED = MetricsRegistry.getDefault().counter("artifacts.fetched");
+	private static final Counter PUSHED = MetricsRegistry.getDefault().counter("artifacts.pushed");
+	private static final Counter BYTES_PUSHED = MetricsRegistry.getDefault().counter("artifacts.bytesPushed");
+	/**
+	 * Whichever way they're going.
+	 */
+	private static final Counter BYTES_RECEIVED = MetricsRegistry.getDefault().counter("artifacts.bytesReceived");
+	private static final Counter RESUMED = MetricsRegistry.getDefault().counter("artifacts.resumed");
+	private static final Counter BAD_CHUNKS = MetricsRegistry.getDefault().counter("artifacts.badChunks");
+
+	public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	/**
+	 * How many times a transfer is tried before giving up. Every try after the first carries on from where the last one stopped.
+	 */
+	public static final int TRANSFER_ATTEMPTS = 3;
+	/**
+	 * How long connecting, or moving one read's, write's or chunk's worth of data, can take before the transfer is given up on.
+	 */
+	public static final int TIMEOUT_MILLIS = 60 * 1000;
+
+	/**
+	 * Shared by every transfer. Closes connections that have stopped making progress.
+	 */
+	private static final HashedWheelTimer TIMEOUTS = HashedWheelTimer.start(ArtifactServer.class.getSimpleName() + " timeouts");
+
+	private static final int MAGIC = 0x56434132; //"VCA2"
+	private static final byte OP_FETCH = 1;
+	private static final byte OP_PUSH = 2;
+	private static final int STATUS_STORED = 0;
+	private static final int STATUS_FAILED = 1;
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	@NotNull private final ArtifactStore store;
+	@NotNull private final ServerSocketChannel serverChannel;
+	@NotNull private final Thread acceptThread;
+	private volatile boolean closed;
+
+	/**
+	 * Starts serving the given store on any free port of the given address.
+	 * @see #getPort()
+	 */
+	@NotNull
+	public static ArtifactServer start(@NotNull ArtifactStore store, @NotNull InetAddress bindAddress) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(bindAddress, 0));
+		return new ArtifactServer(store, serverChannel);
+	}
+
+	private ArtifactServer(@NotNull ArtifactStore store, @NotNull ServerSocketChannel serverChannel) {
+		this.store = store;
+		this.serverChannel = serverChannel;
+		this.acceptThread = new Thread(new Acceptor(), getClass().getSimpleName() + " " + getPort());
+		this.acceptThread.setDaemon(true);
+		this.acceptThread.start();
+		LOGGER.infop("Serving artifacts from %s on port %d", store.getDirectory(), getPort());
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@NotNull
+	public ArtifactStore getStore() {
+		return store;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverChannel.close();
+	}
+
+	/**
+	 * Fetches an artifact from the machine at the given address into the given store, unless the store already has it.
+	 * Picks up from whatever an earlier, interrupted fetch left behind, and retries from the last good chunk
+	 * 	up to {@value #TRANSFER_ATTEMPTS} times in all.
+	 * @param port The port the machine's {@link ArtifactServer} is on.
+	 * @param size How big the machine said the artifact is.
+	 * @throws FileNotFoundException If the machine no longer has the artifact.
+	 * @throws IOException If every try failed, or what arrived doesn't match the digest.
+	 */
+	public static void fetch(@NotNull InetAddress address, int port, @NotNull String digest, long size, @NotNull ArtifactStore destination) throws IOException {
+		File partial = destination.partial(digest);
+		IOException failure = null;
+		for(int attempt = 1; attempt <= TRANSFER_ATTEMPTS; attempt++) {
+			destination.beginReceive(digest);
+			try {
+				if(destination.contains(digest)) {
+					return; //Fetched by someone else while we were waiting.
+				}
+				fetchOnce(address, port, digest, size, partial);
+				destination.commitPartial(digest, size);
+				FETCHED.increment();
+				return;
+			} catch (FileNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				failure = e;
+				if(attempt < TRANSFER_ATTEMPTS) {
+					LOGGER.warn("Fetching " + digest + " from " + address + " failed. Resuming from " + partial.length() + " of " + size + " bytes.", e);
+					RESUMED.increment();
+				}
+			} finally {
+				destination.endReceive(digest);
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Sends an artifact from the given store to the machine at the given address, such as a workspace for its tasks to use.
+	 * The machine keeps whatever arrived intact if the connection is cut off, so retries (up to {@value #TRANSFER_ATTEMPTS} tries in all)
+	 * 	and later pushes of the same artifact carry on from there. Nothing is sent if the machine turns out to have it already.
+	 * @param port The port the machine's {@link ArtifactServer} is on.
+	 * @throws FileNotFoundException If the given store doesn't have the artifact.
+	 * @throws IOException If every try failed.
+	 */
+	public static void push(@NotNull InetAddress address, int port, @NotNull Artifact artifact, @NotNull ArtifactStore source) throws IOException {
+		File stored = source.get(artifact.getDigest());
+		FileChannel file;
+		try {
+			file = stored == null ? null : FileChannel.open(stored.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException evicted) {
+			file = null;
+		}
+		if(file == null) {
+			throw new FileNotFoundException(artifact + " isn't in " + source);
+		}
+
+		try {
+			IOException failure = null;
+			for(int attempt = 1; attempt <= TRANSFER_ATTEMPTS; attempt++) {
+				try {
+					pushOnce(address, port, artifact.getDigest(), file);
+					return;
+				} catch (IOException e) {
+					failure = e;
+					if(attempt < TRANSFER_ATTEMPTS) {
+						LOGGER.warn("Pushing " + artifact + " to " + address + " failed. Resuming.", e);
+						RESUMED.increment();
+					}
+				}
+			}
+			throw failure;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Fetches whatever the partial file doesn't have yet.
+	 */
+	private static void fetchOnce(@NotNull InetAddress address, int port, @NotNull String digest, long size, @NotNull File partial) throws IOException {
+		FileChannel file = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long offset = file.size();
+			if(offset > size) {
+				file.truncate(0);
+				offset = 0;
+			}
+
+			SocketChannel socket = connect(address, port);
+			try {
+				writeFully(socket, request(OP_FETCH, digest, offset));
+				long length = readFully(socket, ByteBuffer.allocate(8)).getLong();
+				if(length < 0) {
+					throw new FileNotFoundException("Artifact " + digest + " is no longer on " + address);
+				}
+				if(length != size) {
+					throw new IOException("Artifact " + digest + " on " + address + " is " + length + " bytes, not " + size);
+				}
+				receiveChunks(socket, file, offset, size, digest);
+			} finally {
+				socket.close();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void pushOnce(@NotNull InetAddress address, int port, @NotNull String digest, @NotNull FileChannel file) throws IOException {
+		long size = file.size();
+		SocketChannel socket = connect(address, port);
+		try {
+			writeFully(socket, request(OP_PUSH, digest, size));
+			long offset = readFully(socket, ByteBuffer.allocate(8)).getLong();
+			if(offset < 0 || offset > size) {
+				throw new StreamCorruptedException(address + " asked for " + digest + " from offset " + offset + ", but it's only " + size + " bytes");
+			}
+			if(offset == size) {
+				return; //It already had it, or all of it had arrived and only the answer was lost.
+			}
+			sendChunks(socket, file, offset, size);
+			int status = readFully(socket, ByteBuffer.allocate(4)).getInt();
+			if(status != STATUS_STORED) {
+				throw new IOException(address + " couldn't store " + digest + ". See its log for why.");
+			}
+			BYTES_PUSHED.add(size - offset);
+			PUSHED.increment();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private class Acceptor implements Runnable {
+		@Override
+		public void run() {
+			while(!closed) {
+				final SocketChannel socket;
+				try {
+					socket = serverChannel.accept();
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (IOException e) {
+					if(!closed) {
+						LOGGER.error("Stopped accepting artifact connections.", e);
+					}
+					return;
+				}
+
+				final String remoteAddress = String.valueOf(socket.socket().getRemoteSocketAddress());
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(socket);
+						} catch (EOFException e) {
+							LOGGER.infop("%s hung up during an artifact transfer", remoteAddress);
+						} catch (IOException e) {
+							LOGGER.error("Couldn't transfer an artifact with " + remoteAddress, e);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								LOGGER.warn("Couldn't close connection with " + remoteAddress, e);
+							}
+						}
+					}
+				}, ArtifactServer.class.getSimpleName() + " " + remoteAddress);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	private void serve(@NotNull SocketChannel socket) throws IOException {
+		socket.socket().setKeepAlive(true);
+		socket.socket().setSoTimeout(TIMEOUT_MILLIS);
+		ByteBuffer prefix = readFully(socket, ByteBuffer.allocate(7));
+		int magic = prefix.getInt();
+		if(magic != MAGIC) {
+			throw new StreamCorruptedException("Unexpected artifact request: " + Integer.toHexString(magic));
+		}
+		byte op = prefix.get();
+		int digestLength = prefix.getShort() & 0xffff;
+		if(digestLength != Digests.SHA256_LENGTH) {
+			throw new StreamCorruptedException("Unexpected digest length: " + digestLength);
+		}
+		ByteBuffer rest = readFully(socket, ByteBuffer.allocate(digestLength + 8));
+		byte[] digestBytes = new byte[digestLength];
+		rest.get(digestBytes);
+		String digest = new String(digestBytes, US_ASCII);
+		if(!Digests.isSha256(digest)) {
+			throw new StreamCorruptedException("Not a SHA-256: " + digest);
+		}
+		long argument = rest.getLong();
+
+		switch (op) {
+			case OP_FETCH:
+				serveFetch(socket, digest, argument);
+				break;
+			case OP_PUSH:
+				servePush(socket, digest, argument);
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown artifact operation: " + op);
+		}
+	}
+
+	private void serveFetch(@NotNull SocketChannel socket, @NotNull String digest, long offset) throws IOException {
+		File stored = store.get(digest);
+		FileChannel file;
+		try {
+			file = stored == null ? null : FileChannel.open(stored.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException evicted) {
+			file = null;
+		}
+		if(file == null) {
+			writeFully(socket, (ByteBuffer) ByteBuffer.allocate(8).putLong(-1).flip());
+			return;
+		}
+
+		try {
+			//The length is taken from the open file, so it's right even if the file was evicted in between.
+			long length = file.size();
+			writeFully(socket, (ByteBuffer) ByteBuffer.allocate(8).putLong(length).flip());
+			if(offset < 0 || offset > length) {
+				throw new StreamCorruptedException("Asked for " + digest + " from offset " + offset + ", but it's only " + length + " bytes");
+			}
+			sendChunks(socket, file, offset, length);
+			SERVED.increment();
+			BYTES_SERVED.add(length - offset);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void servePush(@NotNull SocketChannel socket, @NotNull String digest, long size) throws IOException {
+		if(size < 0) {
+			throw new StreamCorruptedException("Negative size pushed for " + digest);
+		}
+		int status = STATUS_STORED;
+		store.beginReceive(digest);
+		try {
+			if(store.contains(digest)) {
+				writeFully(socket, (ByteBuffer) ByteBuffer.allocate(8).putLong(size).flip());
+				return;
+			}
+
+			File partial = store.partial(digest);
+			FileChannel file = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				long offset = file.size();
+				if(offset > size) {
+					file.truncate(0);
+					offset = 0;
+				}
+				writeFully(socket, (ByteBuffer) ByteBuffer.allocate(8).putLong(offset).flip());
+				receiveChunks(socket, file, offset, size, digest);
+			} finally {
+				file.close();
+			}
+
+			try {
+				store.commitPartial(digest, size);
+			} catch (IOException e) {
+				LOGGER.error("Couldn't store pushed artifact " + digest, e);
+				status = STATUS_FAILED;
+			}
+		} finally {
+			store.endReceive(digest);
+		}
+		//Answered after letting go, so a master that's slow to read it doesn't hold up the next transfer of the artifact.
+		writeFully(socket, (ByteBuffer) ByteBuffer.allocate(4).putInt(status).flip());
+	}
+
+	/**
+	 * Sends the given part of the file as checksummed chunks, straight from the file to the socket.
+	 */
+	private static void sendChunks(@NotNull SocketChannel socket, @NotNull FileChannel file, long position, long end) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+		while(position < end) {
+			int chunkLength = (int) Math.min(CHUNK_SIZE, end - position);
+			header.clear();
+			header.putInt(chunkLength).putInt(crc32(file, position, chunkLength, scratch)).flip();
+			writeFully(socket, header);
+
+			HashedWheelTimer.Timeout timeout = watch(socket);
+			try {
+				long transferred = 0;
+				while(transferred < chunkLength) {
+					long count = file.transferTo(position + transferred, chunkLength - transferred, socket);
+					if(count <= 0) {
+						throw new EOFException("File ended early at offset " + (position + transferred));
+					}
+					transferred += count;
+				}
+			} catch (ClosedChannelException e) {
+				throw timedOut(timeout, e);
+			} finally {
+				timeout.cancel();
+			}
+			position += chunkLength;
+		}
+	}
+
+	/**
+	 * Receives checksummed chunks straight from the socket into the file, until it's the given size.
+	 * A chunk that doesn't match its checksum is cut off again, so what's left in the file can always be resumed from.
+	 */
+	private static void receiveChunks(@NotNull SocketChannel socket, @NotNull FileChannel file, long offset, long size, @NotNull String digest) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+		while(offset < size) {
+			header.clear();
+			readFully(socket, header);
+			int chunkLength = header.getInt();
+			int checksum = header.getInt();
+			if(chunkLength <= 0 || chunkLength > CHUNK_SIZE || offset + chunkLength > size) {
+				throw new StreamCorruptedException("Unexpected chunk of " + chunkLength + " bytes at offset " + offset + " of " + digest);
+			}
+
+			HashedWheelTimer.Timeout timeout = watch(socket);
+			try {
+				long transferred = 0;
+				while(transferred < chunkLength) {
+					long count = file.transferFrom(socket, offset + transferred, chunkLength - transferred);
+					if(count <= 0) {
+						throw new EOFException("Connection closed " + (chunkLength - transferred) + " bytes into a chunk of " + digest);
+					}
+					transferred += count;
+				}
+			} catch (ClosedChannelException e) {
+				throw timedOut(timeout, e);
+			} finally {
+				timeout.cancel();
+			}
+			BYTES_RECEIVED.add(chunkLength);
+
+			if(crc32(file, offset, chunkLength, scratch) != checksum) {
+				BAD_CHUNKS.increment();
+				file.truncate(offset);
+				throw new IOException("Chunk at offset " + offset + " of " + digest + " doesn't match its checksum");
+			}
+			offset += chunkLength;
+		}
+	}
+
+	@NotNull
+	private static SocketChannel connect(@NotNull InetAddress address, int port) throws IOException {
+		SocketChannel socket = SocketChannel.open();
+		try {
+			socket.socket().setKeepAlive(true);
+			socket.socket().setSoTimeout(TIMEOUT_MILLIS);
+			socket.socket().connect(new InetSocketAddress(address, port), TIMEOUT_MILLIS);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Closes the socket if it's still in use after {@value #TIMEOUT_MILLIS}ms, which fails whatever is blocked on it.
+	 * @return To be cancelled as soon as the work it's watching is done.
+	 */
+	@NotNull
+	private static HashedWheelTimer.Timeout watch(@NotNull final SocketChannel socket) {
+		return TIMEOUTS.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					LOGGER.warn("Couldn't close stalled artifact connection", e);
+				}
+			}
+		}, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return A {@link SocketTimeoutException} if the socket was closed because the given timeout expired, otherwise the given exception.
+	 */
+	@NotNull
+	private static IOException timedOut(@NotNull HashedWheelTimer.Timeout timeout, @NotNull ClosedChannelException e) {
+		if(!timeout.isExpired()) {
+			return e;
+		}
+		SocketTimeoutException timedOut = new SocketTimeoutException("Artifact transfer made no progress for " + TIMEOUT_MILLIS + "ms");
+		timedOut.initCause(e);
+		return timedOut;
+	}
+
+	@NotNull
+	private static ByteBuffer request(byte op, @NotNull String digest, long argument) {
+		byte[] digestBytes = digest.getBytes(US_ASCII);
+		ByteBuffer request = ByteBuffer.allocate(4 + 1 + 2 + digestBytes.length + 8);
+		request.putInt(MAGIC).put(op).putShort((short) digestBytes.length).put(digestBytes).putLong(argument).flip();
+		return request;
+	}
+
+	/**
+	 * Reads the checksum through the given direct buffer. The part of the file it covers was just written, or is about to be sent,
+	 * 	so it's almost always already in the page cache.
+	 */
+	private static int crc32(@NotNull FileChannel file, long position, int length, @NotNull ByteBuffer scratch) throws IOException {
+		CRC32 crc = new CRC32();
+		long end = position + length;
+		while(position < end) {
+			scratch.clear();
+			scratch.limit((int) Math.min(scratch.capacity(), end - position));
+			int read = file.read(scratch, position);
+			if(read < 0) {
+				throw new EOFException("File ended at offset " + position + " while checksumming");
+			}
+			scratch.flip();
+			crc.update(scratch);
+			position += read;
+		}
+		return (int) crc.getValue();
+	}
+
+	@NotNull
+	private static ByteBuffer readFully(@NotNull SocketChannel socket, @NotNull ByteBuffer buffer) throws IOException {
+		HashedWheelTimer.Timeout timeout = watch(socket);
+		try {
+			while(buffer.hasRemaining()) {
+				if(socket.read(buffer) < 0) {
+					throw new EOFException();
+				}
+			}
+		} catch (ClosedChannelException e) {
+			throw timedOut(timeout, e);
+		} finally {
+			timeout.cancel();
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(@NotNull SocketChannel socket, @NotNull ByteBuffer buffer) throws IOException {
+		HashedWheelTimer.Timeout timeout = watch(socket);
+		try {
+			while(buffer.hasRemaining()) {
+				socket.write(buffer);
+			}
+		} catch (ClosedChannelException e) {
+			throw timedOut(timeout, e);
+		} finally {
+			timeout.cancel();
+		}
+	}
+}
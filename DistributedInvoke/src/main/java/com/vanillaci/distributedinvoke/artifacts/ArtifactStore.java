@@ -0,0 +1,439 @@
+package com.vanillaci.distributedinvoke.artifacts;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Files stored by the SHA-256 of their contents, in a directory with a limit in bytes.
+ *
+ * Storing the same contents twice only keeps one copy. Once the directory is over its limit,
+ * 	the least recently stored or read files are deleted to make room. The directory outlives the process,
+ * 	and a reopened store picks up where the last one left off, using the files' modification times as the order they were last used in.
+ *
+ * Every {@link com.vanillaci.distributedinvoke.machines.RemoteMachineListener} runs one, which the tasks it executes
+ * 	can get at through {@link #current()}. The master keeps one too, which is where fetched artifacts end up
+ * 	and pushed ones come from. An artifact that's already where it's going is never sent again.
+ */
+public class ArtifactStore {
+	private static final Logger LOGGER = Logger.forClass(ArtifactStore.class);
+
+	private static final Counter STORED = MetricsRegistry.getDefault().counter("artifacts.stored");
+	private static final Counter DEDUPLICATED = MetricsRegistry.getDefault().counter("artifacts.deduplicated");
+	private static final Counter EVICTED = MetricsRegistry.getDefault().counter("artifacts.evicted");
+
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+
+	private static final String SUFFIX = ".blob";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String PARTIAL_SUFFIX = ".partial";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * How old a temp or partial file has to be before it's taken to be left over from a crash or an abandoned fetch,
+	 * 	rather than being written by another store in the same directory.
+	 */
+	private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+	private static final ThreadLocal<ArtifactStore> CURRENT = new ThreadLocal<ArtifactStore>();
+	private static final AtomicLong NEXT_TEMP = new AtomicLong();
+
+	@NotNull private final File directory;
+	private final long maxBytes;
+
+	private final Lock lock = new Lock();
+	/**
+	 * The size of every file in the directory, least recently used first.
+	 */
+	@LockedBy("lock") @NotNull private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	@LockedBy("lock") private long used;
+
+	private final Lock receivingLock = new Lock();
+	/**
+	 * The artifacts whose partial files are being written, so two transfers of the same artifact don't write it at once.
+	 */
+	@LockedBy("receivingLock") @NotNull private final Set<String> receiving = new HashSet<String>();
+
+	/**
+	 * Opens the store in the given directory with the default limit, creating it if it doesn't exist.
+	 */
+	@NotNull
+	public static ArtifactStore open(@NotNull File directory) throws IOException {
+		return open(directory, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if it doesn't exist.
+	 * @param maxBytes How many bytes of files to keep.
+	 * @throws IOException If the directory can't be created.
+	 */
+	@NotNull
+	public static ArtifactStore open(@NotNull File directory, long maxBytes) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create " + directory);
+		}
+		ArtifactStore store = new ArtifactStore(directory, maxBytes);
+		store.load();
+		return store;
+	}
+
+	/**
+	 * @return The store of the machine running the current task, or null if this thread isn't running one.
+	 */
+	@Nullable
+	public static ArtifactStore current() {
+		return CURRENT.get();
+	}
+
+	private ArtifactStore(@NotNull File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Indexes whatever an earlier store left in the directory, oldest first, and cleans up after any that didn't finish writing.
+	 */
+	private void load() {
+		File[] files = directory.listFiles();
+		if(files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+
+		long stale = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		int count;
+		long used;
+		synchronized (lock) {
+			for (File file : files) {
+				String name = file.getName();
+				if((name.endsWith(TEMP_SUFFIX) || name.endsWith(PARTIAL_SUFFIX)) && file.lastModified() < stale) {
+					delete(file);
+				} else if(name.endsWith(SUFFIX) && Digests.isSha256(name.substring(0, name.length() - SUFFIX.length()))) {
+					blobs.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+					this.used += file.length();
+				}
+			}
+			evict();
+			count = blobs.size();
+			used = this.used;
+		}
+		LOGGER.infop("Opened artifact store in %s with %d artifacts (%d bytes).", directory, count, used);
+	}
+
+	/**
+	 * Runs the given task with this as its {@link #current()} store.
+	 */
+	public <T> T callWithin(@NotNull Callable<T> callable) throws Exception {
+		ArtifactStore previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return callable.call();
+		} finally {
+			if(previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Copies the given file into the store.
+	 * @return What to hand back to the master in its place.
+	 * @throws IOException If the file can't be read, or is bigger than the store.
+	 */
+	@NotNull
+	public Artifact put(@NotNull File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return put(in, file.getName());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies everything left in the given stream into the store. The stream isn't closed.
+	 * @param name What to call the artifact. Only for people to read.
+	 * @throws IOException If the stream can't be read, or holds more than the store.
+	 */
+	@NotNull
+	public Artifact put(@NotNull InputStream in, @NotNull String name) throws IOException {
+		File temp = newTempFile();
+		try {
+			MessageDigest sha256 = Digests.newSha256();
+			long size = copy(in, Long.MAX_VALUE, temp, sha256);
+			String digest = Digests.toHex(sha256.digest());
+			commit(temp, digest, size);
+			return new Artifact(digest, size, name);
+		} finally {
+			deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Copies exactly the given number of bytes from the stream into the store, as long as they have the given digest.
+	 * Used for fetching an artifact from another machine, so what arrived is checked before anyone can read it.
+	 * @throws IOException If the stream ends early, or the bytes don't match the digest.
+	 */
+	public void receive(@NotNull String digest, long size, @NotNull InputStream in) throws IOException {
+		File temp = newTempFile();
+		try {
+			MessageDigest sha256 = Digests.newSha256();
+			long copied = copy(in, size, temp, sha256);
+			if(copied != size) {
+				throw new EOFException("Expected " + size + " bytes of " + digest + " but the stream ended after " + copied);
+			}
+			String actual = Digests.toHex(sha256.digest());
+			if(!actual.equals(digest)) {
+				throw new IOException("Received " + actual + " instead of " + digest);
+			}
+			commit(temp, digest, size);
+		} finally {
+			deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Where a fetch of the given artifact keeps what has arrived so far, so an interrupted one can carry on where it stopped,
+	 * 	even after a restart. Only to be written between {@link #beginReceive(String)} and {@link #endReceive(String)}.
+	 * @throws IllegalArgumentException If the digest isn't a SHA-256.
+	 */
+	@NotNull
+	public File partial(@NotNull String digest) {
+		if(!Digests.isSha256(digest)) {
+			throw new IllegalArgumentException("Not a SHA-256: " + digest);
+		}
+		return new File(directory, digest + PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * Claims the given artifact's {@link #partial(String)} file for one transfer, waiting while another transfer of the same artifact has it.
+	 * 	Transfers of other artifacts never wait on it. Has to be followed by {@link #endReceive(String)}.
+	 * @throws InterruptedIOException If the thread is interrupted while waiting.
+	 */
+	public void beginReceive(@NotNull String digest) throws InterruptedIOException {
+		synchronized (receivingLock) {
+			while(receiving.contains(digest)) {
+				try {
+					receivingLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for another transfer of " + digest);
+				}
+			}
+			receiving.add(digest);
+		}
+	}
+
+	/**
+	 * Lets the next transfer of the given artifact have its partial file.
+	 */
+	public void endReceive(@NotNull String digest) {
+		synchronized (receivingLock) {
+			receiving.remove(digest);
+			receivingLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Checks a completely fetched {@link #partial(String)} file against its digest and moves it into the store.
+	 * The partial file is gone afterwards either way, so a fetch that fails the check starts again from scratch.
+	 * @throws IOException If the file doesn't have the given size and digest.
+	 */
+	public void commitPartial(@NotNull String digest, long size) throws IOException {
+		File partial = partial(digest);
+		try {
+			FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.READ);
+			String actual;
+			long actualSize;
+			try {
+				actualSize = channel.size();
+				MessageDigest sha256 = Digests.newSha256();
+				//Read through a direct buffer, so even a multi-gigabyte artifact doesn't go through the heap.
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				long position = 0;
+				int read;
+				while((read = channel.read(buffer, position)) > 0) {
+					buffer.flip();
+					sha256.update(buffer);
+					buffer.clear();
+					position += read;
+				}
+				actual = Digests.toHex(sha256.digest());
+			} finally {
+				channel.close();
+			}
+			if(actualSize != size || !actual.equals(digest)) {
+				throw new IOException("Fetched " + actual + " (" + actualSize + " bytes) instead of " + digest + " (" + size + " bytes)");
+			}
+			commit(partial, digest, size);
+		} finally {
+			deleteIfExists(partial);
+		}
+	}
+
+	/**
+	 * Looks up a stored file, counting as a use of it.
+	 * @param digest Can be anything, including something another machine sent. Only a SHA-256 will ever be found.
+	 * @return The file, or null if it isn't in the store. Only to be read.
+	 */
+	@Nullable
+	public File get(@NotNull String digest) {
+		if(!Digests.isSha256(digest)) {
+			return null;
+		}
+		synchronized (lock) {
+			if(blobs.get(digest) == null) { //Also marks it as just used.
+				return null;
+			}
+		}
+		File file = file(digest);
+		if(!file.setLastModified(System.currentTimeMillis())) {
+			LOGGER.warn("Couldn't touch " + file + ". It may be evicted early after a restart.");
+		}
+		return file;
+	}
+
+	/**
+	 * Doesn't count as a use of the file.
+	 */
+	public boolean contains(@NotNull String digest) {
+		synchronized (lock) {
+			return blobs.containsKey(digest);
+		}
+	}
+
+	/**
+	 * @return The number of files in the store.
+	 */
+	public int getCount() {
+		synchronized (lock) {
+			return blobs.size();
+		}
+	}
+
+	/**
+	 * @return The total size of the files in the store.
+	 */
+	public long getUsedBytes() {
+		synchronized (lock) {
+			return used;
+		}
+	}
+
+	@NotNull
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Moves a fully written temp file into place under its digest, unless it's already there.
+	 */
+	private void commit(@NotNull File temp, @NotNull String digest, long size) throws IOException {
+		if(size > maxBytes) {
+			throw new IOException("Artifact " + digest + " is " + size + " bytes, which is more than the store's limit of " + maxBytes);
+		}
+		File file = file(digest);
+		//Moved and evicted under the lock, so a file is never deleted out from under one that was just stored with the same digest.
+		synchronized (lock) {
+			if(blobs.get(digest) != null) {
+				DEDUPLICATED.increment();
+			} else {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				blobs.put(digest, size);
+				used += size;
+				STORED.increment();
+				evict();
+				return;
+			}
+		}
+		if(!file.setLastModified(System.currentTimeMillis())) {
+			LOGGER.warn("Couldn't touch " + file + ". It may be evicted early after a restart.");
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files until the directory is back under its limit.
+	 */
+	@LockedBy("lock")
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> eldest = blobs.entrySet().iterator();
+		while(used > maxBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			used -= entry.getValue();
+			eldest.remove();
+			EVICTED.increment();
+			delete(file(entry.getKey()));
+		}
+	}
+
+	/**
+	 * @return The number of bytes copied, which is less than the limit if the stream ended first.
+	 */
+	private static long copy(@NotNull InputStream in, long limit, @NotNull File to, @NotNull MessageDigest sha256) throws IOException {
+		OutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long copied = 0;
+			int read;
+			while(copied < limit && (read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied))) >= 0) {
+				sha256.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				copied += read;
+			}
+			return copied;
+		} finally {
+			out.close();
+		}
+	}
+
+	@NotNull
+	private File file(@NotNull String digest) {
+		return new File(directory, digest + SUFFIX);
+	}
+
+	@NotNull
+	private File newTempFile() {
+		return new File(directory, "incoming-" + NEXT_TEMP.incrementAndGet() + "-" + System.nanoTime() + TEMP_SUFFIX);
+	}
+
+	private static void deleteIfExists(@NotNull File file) {
+		if(file.exists()) {
+			delete(file);
+		}
+	}
+
+	private static void delete(@NotNull File file) {
+		if(!file.delete() && file.exists()) {
+			LOGGER.warn("Couldn't delete " + file);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ArtifactStore{" +
+				"directory=" + directory +
+				'}';
+	}
+}
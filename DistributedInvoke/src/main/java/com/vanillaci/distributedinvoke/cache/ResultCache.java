@@ -0,0 +1,39 @@
+package com.vanillaci.distributedinvoke.cache;
+
+import com.vanillaci.distributedinvoke.jobs.CacheableTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Plugin endpoint.
+ *
+ * Remembers the results of {@link CacheableTask}s, so a task that has already run with the same inputs
+ * 	can be answered without taking up any executors. See {@link TieredResultCache}.
+ */
+public interface ResultCache {
+	/**
+	 * Doesn't remember anything. Every task runs.
+	 */
+	public static final ResultCache NONE = new ResultCache() {
+		@Nullable
+		@Override
+		public <T> T get(@NotNull CacheableTask<T> task) {
+			return null;
+		}
+
+		@Override
+		public <T> void put(@NotNull CacheableTask<T> task, @Nullable T result) {
+		}
+	};
+
+	/**
+	 * @return The result of an earlier task with the same class and key, or null if there isn't one.
+	 */
+	@Nullable
+	<T> T get(@NotNull CacheableTask<T> task);
+
+	/**
+	 * Offers the result of a task that ran to completion. The cache is free to not keep it.
+	 */
+	<T> void put(@NotNull CacheableTask<T> task, @Nullable T result);
+}
@@ -0,0 +1,332 @@
+package com.vanillaci.distributedinvoke.cache;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.jobs.CacheableTask;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ResultCache} kept in memory, backed by a directory.
+ *
+ * Results are stored serialized, under the SHA-256 of the task's class name and {@link CacheableTask#getCacheKey() key},
+ * 	so every hit hands back a fresh copy that the caller is free to change.
+ * 	The most recently used results are kept in memory up to a limit in bytes. Every result is also written to the directory,
+ * 	one file per key, which has its own limit: once it's over, the least recently used files are deleted.
+ * 	The directory outlives the process, and a reopened cache picks up where the last one left off,
+ * 	using the files' modification times as the order they were last used in.
+ *
+ * Only results worth reusing are kept: null results and {@link Result}s other than {@link Result#SUCCESS} aren't,
+ * 	so a failed build always runs again.
+ */
+public class TieredResultCache implements ResultCache {
+	private static final Logger LOGGER = Logger.forClass(TieredResultCache.class);
+
+	private static final Counter HITS = MetricsRegistry.getDefault().counter("resultcache.hits");
+	private static final Counter DISK_HITS = MetricsRegistry.getDefault().counter("resultcache.diskHits");
+	private static final Counter MISSES = MetricsRegistry.getDefault().counter("resultcache.misses");
+	private static final Counter EVICTIONS = MetricsRegistry.getDefault().counter("resultcache.evictions");
+
+	public static final long DEFAULT_MEMORY_BYTES = 64 * 1024 * 1024;
+	public static final long DEFAULT_DISK_BYTES = 4L * 1024 * 1024 * 1024;
+
+	private static final String SUFFIX = ".result";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final long memoryBytes;
+	@Nullable private final File directory;
+	private final long diskBytes;
+
+	private final Lock memoryLock = new Lock();
+	@LockedBy("memoryLock") @NotNull private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	@LockedBy("memoryLock") private long memoryUsed;
+
+	private final Lock diskLock = new Lock();
+	/**
+	 * The size of every file in the directory, least recently used first.
+	 */
+	@LockedBy("diskLock") @NotNull private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	@LockedBy("diskLock") private long diskUsed;
+
+	@NotNull private final AtomicLong hits = new AtomicLong();
+	@NotNull private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a cache that only keeps results in memory.
+	 * @param memoryBytes How many bytes of serialized results to keep.
+	 */
+	@NotNull
+	public static TieredResultCache inMemory(long memoryBytes) {
+		return new TieredResultCache(memoryBytes, null, 0);
+	}
+
+	/**
+	 * Opens the cache in the given directory with the default limits, creating it if it doesn't exist.
+	 */
+	@NotNull
+	public static TieredResultCache open(@NotNull File directory) throws IOException {
+		return open(directory, DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES);
+	}
+
+	/**
+	 * Opens the cache in the given directory, creating it if it doesn't exist.
+	 * @param memoryBytes How many bytes of serialized results to keep in memory.
+	 * @param diskBytes How many bytes of serialized results to keep in the directory.
+	 * @throws IOException If the directory can't be created.
+	 */
+	@NotNull
+	public static TieredResultCache open(@NotNull File directory, long memoryBytes, long diskBytes) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create " + directory);
+		}
+		TieredResultCache cache = new TieredResultCache(memoryBytes, directory, diskBytes);
+		cache.load();
+		return cache;
+	}
+
+	private TieredResultCache(long memoryBytes, @Nullable File directory, long diskBytes) {
+		this.memoryBytes = memoryBytes;
+		this.directory = directory;
+		this.diskBytes = diskBytes;
+	}
+
+	/**
+	 * Indexes whatever an earlier cache left in the directory, oldest first.
+	 */
+	private void load() {
+		assert directory != null;
+		File[] files = directory.listFiles();
+		if(files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+
+		int count;
+		long used;
+		synchronized (diskLock) {
+			for (File file : files) {
+				String name = file.getName();
+				if(name.endsWith(SUFFIX) && Digests.isSha256(name.substring(0, name.length() - SUFFIX.length()))) {
+					disk.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+					diskUsed += file.length();
+				}
+			}
+			evictFromDisk();
+			count = disk.size();
+			used = diskUsed;
+		}
+		LOGGER.infop("Opened result cache in %s with %d results (%d bytes).", directory, count, used);
+	}
+
+	@Nullable
+	@Override
+	public <T> T get(@NotNull CacheableTask<T> task) {
+		String digest = digest(task);
+
+		byte[] bytes;
+		synchronized (memoryLock) {
+			bytes = memory.get(digest);
+		}
+		if(bytes == null) {
+			bytes = readFromDisk(digest);
+			if(bytes != null) {
+				DISK_HITS.increment();
+				remember(digest, bytes);
+			}
+		}
+
+		if(bytes != null) {
+			try {
+				//noinspection unchecked
+				T result = (T) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+				hits.incrementAndGet();
+				HITS.increment();
+				return result;
+			} catch (IOException e) {
+				LOGGER.warn("Couldn't read the cached result of " + task + ". Running it again.", e);
+			} catch (ClassNotFoundException e) {
+				LOGGER.warn("Couldn't read the cached result of " + task + ". Running it again.", e);
+			}
+		}
+
+		misses.incrementAndGet();
+		MISSES.increment();
+		return null;
+	}
+
+	@Override
+	public <T> void put(@NotNull CacheableTask<T> task, @Nullable T result) {
+		if(result == null || (result instanceof Result && result != Result.SUCCESS)) {
+			return;
+		}
+
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(result);
+			out.flush();
+			bytes = buffer.toByteArray();
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't serialize the result of " + task + ", so it wasn't cached.", e);
+			return;
+		}
+
+		String digest = digest(task);
+		remember(digest, bytes);
+		writeToDisk(digest, bytes);
+	}
+
+	/**
+	 * @return How many lookups found a result.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return How many lookups didn't find a result.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The fraction of lookups that found a result, between 0 and 1. Zero if nothing has been looked up.
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return The number of results kept in memory.
+	 */
+	public int getMemoryCount() {
+		synchronized (memoryLock) {
+			return memory.size();
+		}
+	}
+
+	/**
+	 * @return The number of bytes of results kept in the directory.
+	 */
+	public long getDiskBytes() {
+		synchronized (diskLock) {
+			return diskUsed;
+		}
+	}
+
+	private void remember(@NotNull String digest, @NotNull byte[] bytes) {
+		if(bytes.length > memoryBytes) {
+			return;
+		}
+		synchronized (memoryLock) {
+			byte[] previous = memory.put(digest, bytes);
+			if(previous != null) {
+				memoryUsed -= previous.length;
+			}
+			memoryUsed += bytes.length;
+
+			Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+			while(memoryUsed > memoryBytes && eldest.hasNext()) {
+				memoryUsed -= eldest.next().getValue().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	@Nullable
+	private byte[] readFromDisk(@NotNull String digest) {
+		if(directory == null) {
+			return null;
+		}
+		synchronized (diskLock) {
+			if(disk.get(digest) == null) { //Also marks it as just used.
+				return null;
+			}
+		}
+
+		File file = new File(directory, digest + SUFFIX);
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			if(!file.setLastModified(System.currentTimeMillis())) {
+				LOGGER.warn("Couldn't touch " + file + ". It may be evicted early after a restart.");
+			}
+			return bytes;
+		} catch (IOException e) {
+			//Most likely evicted in between.
+			return null;
+		}
+	}
+
+	private void writeToDisk(@NotNull String digest, @NotNull byte[] bytes) {
+		if(directory == null || bytes.length > diskBytes) {
+			return;
+		}
+
+		File file = new File(directory, digest + SUFFIX);
+		//Written under another name and moved into place, so a reader never sees half a file.
+		File temp = new File(directory, digest + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			Files.write(temp.toPath(), bytes);
+			//Moved and evicted under the lock, so a file is never deleted out from under one that was just written with the same digest.
+			synchronized (diskLock) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				Long previous = disk.put(digest, (long) bytes.length);
+				if(previous != null) {
+					diskUsed -= previous;
+				}
+				diskUsed += bytes.length;
+				evictFromDisk();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't write cached result " + digest + " to disk.", e);
+			if(temp.exists() && !temp.delete()) {
+				LOGGER.warn("Couldn't delete " + temp);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files until the directory is back under its limit.
+	 */
+	@LockedBy("diskLock")
+	private void evictFromDisk() {
+		assert directory != null;
+		Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+		while(diskUsed > diskBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			diskUsed -= entry.getValue();
+			eldest.remove();
+			EVICTIONS.increment();
+			File file = new File(directory, entry.getKey() + SUFFIX);
+			if(!file.delete() && file.exists()) {
+				LOGGER.warn("Couldn't delete evicted result " + file);
+			}
+		}
+	}
+
+	@NotNull
+	private static String digest(@NotNull CacheableTask<?> task) {
+		return Digests.sha256((task.getClass().getName() + '\n' + task.getCacheKey()).getBytes(UTF_8));
+	}
+}
@@ -1,18 +1,37 @@
 package com.vanillaci.distributedinvoke.channels;
 
+import com.google.common.collect.ImmutableList;
 import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
 import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.Socket;
-import java.net.SocketException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * An abstract class that wraps {@link Socket#getInputStream()} and {@link java.net.Socket#getOutputStream()}
  * 	and reconnects the socket if anything goes wrong.
  *
+ * Everything sent over the channel is a {@link Transport}, written as a length-prefixed frame.
+ * 	When a connection is established, both sides agree on a {@link TransportCodec} (see {@link #negotiateCodec}).
+ * 	The codec and its state (a session) are kept for as long as the socket is connected,
+ * 	and are only rebuilt when the connection has to be re-established.
+ * 	Right after a connection is re-established and negotiated, whatever {@link #transportsToReplay()} returns is written first,
+ * 	so a subclass can resend anything the other side may have missed while the connection was down.
+ *
+ * Each channel orders its own reads and writes; channels never wait on each other.
+ * 	Transports given to {@link #send(Transport, SendListener)} are queued and written by a single writer thread owned by the channel,
+ * 	so any number of threads can submit objects without blocking on the socket.
+ *
  * To implement, provide a {@link #reconnect()} method that returns the new socket.
  * That method is called whenever the connection needs to be recreated.
  *
@@ -23,99 +42,302 @@ import java.net.SocketException;
 public abstract class AutoReconnectingChannel implements Closeable {
 	private static final Logger LOGGER = Logger.forClass(AutoReconnectingChannel.class);
 
+	private static final int RECONNECT_BACKOFF = 1000;
+	private static final int SEND_ATTEMPTS = 3;
+
+	private static final Counter BYTES_WRITTEN = MetricsRegistry.getDefault().counter("channel.bytesWritten");
+	private static final Counter BYTES_READ = MetricsRegistry.getDefault().counter("channel.bytesRead");
+	private static final Histogram SERIALIZE_NANOS = MetricsRegistry.getDefault().histogram("channel.serializeNanos");
+	private static final Histogram FRAME_BYTES = MetricsRegistry.getDefault().histogram("channel.frameBytes");
+
 	@NotNull private final String machineName;
-	@Nullable private Socket socket;
+	@NotNull private final List<TransportCodec> codecs;
 
-	private static final Lock writeLock = new Lock();
-	private static final Lock readLock = new Lock();
+	@LockedBy("sessionLock")
+	@Nullable private Session session;
+	@LockedBy("sessionLock")
+	private boolean reconnecting; //True once the first session has been opened.
+	@LockedBy("sessionLock")
+	private boolean connecting; //True while a thread is opening a session, without holding the lock.
+	@LockedBy("sessionLock")
+	@Nullable private Socket initialSocket;
+	private final Lock sessionLock = new Lock();
 
-	protected AutoReconnectingChannel(@NotNull String machineName, @Nullable Socket socket) throws IOException {
+	private final Lock writeLock = new Lock();
+	private final Lock readLock = new Lock();
+
+	@NotNull private final BlockingQueue<Outbound> outbound = new LinkedBlockingQueue<Outbound>();
+	@NotNull private final Thread writerThread;
+	private volatile boolean shutdown;
+
+	protected AutoReconnectingChannel(@NotNull String machineName, @Nullable Socket socket, @NotNull List<TransportCodec> codecs) throws IOException {
+		if(codecs.isEmpty()) {
+			throw new IllegalArgumentException("At least one codec is required.");
+		}
 		this.machineName = machineName;
-		this.socket = socket;
+		this.codecs = ImmutableList.copyOf(codecs);
+		this.initialSocket = socket;
+
+		this.writerThread = new Thread(new Writer(), machineName + " writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * Queues the given transport to be written by this channel's writer thread and returns immediately.
+	 * Transports are written in the order they were queued.
+	 * If the connection is lost while writing, the write is retried on the new connection a few times before giving up.
+	 *
+	 * @param transport The transport to write. Cannot be null.
+	 * @param listener Notified once the transport has been written or couldn't be written. Can be null.
+	 */
+	public void send(@NotNull Transport<?> transport, @Nullable SendListener listener) {
+		if(shutdown) {
+			if(listener != null) {
+				listener.failed(new IOException("Channel to " + machineName + " is closed."));
+			}
+			return;
+		}
+		outbound.add(new Outbound(transport, listener));
 	}
 
-	public void writeObject(@Nullable Object object) throws IOException, InterruptedException {
+	/**
+	 * @return The number of transports waiting to be written.
+	 */
+	public int getOutboundCount() {
+		return outbound.size();
+	}
+
+	/**
+	 * Writes the given transport on the calling thread.
+	 * Prefer {@link #send(Transport, SendListener)}, which doesn't make the caller wait on the socket.
+	 */
+	public void writeTransport(@NotNull Transport<?> transport) throws IOException, InterruptedException {
 		synchronized (writeLock) {
-			ObjectOutputStream outputStream = getOutputStream();
-			outputStream.writeObject(object);
-			outputStream.flush();
+			Session current = getSession();
+			FrameBuffer frame;
+			long encodeStart = System.nanoTime();
+			try {
+				frame = current.framer.encode(transport);
+				SERIALIZE_NANOS.recordSince(encodeStart);
+			} catch (IOException e) {
+				//Encoding problems aren't connection problems, so the session is still good.
+				throw new EncodingException(e);
+			}
+
+			try {
+				current.outputStream.write(frame.getBuffer(), 0, frame.size());
+				current.outputStream.flush();
+				BYTES_WRITTEN.add(frame.size());
+				FRAME_BYTES.record(frame.size());
+			} catch (IOException e) {
+				invalidate(current, e);
+				throw e;
+			}
 		}
 	}
 
-	public Object readObject() throws ClassNotFoundException, IOException, InterruptedException {
+	/**
+	 * Blocks until the next transport arrives.
+	 * @throws ClassNotFoundException When the transport contains an object that isn't on the local class path.
+	 * 		The rest of the stream is still usable.
+	 */
+	@NotNull
+	public Transport<?> readTransport() throws ClassNotFoundException, IOException, InterruptedException {
 		synchronized (readLock) {
-			ObjectInputStream inputStream = getInputStream();
-			return inputStream.readObject();
+			Session current = getSession();
+			try {
+				Transport<?> transport = current.framer.read(current.inputStream);
+				BYTES_READ.add(current.framer.getLastReadSize());
+				return transport;
+			} catch (IOException e) {
+				invalidate(current, e);
+				throw e;
+			}
 		}
 	}
 
 	/**
-	 * Gets the output stream from the socket.
-	 * If there are any problems obtaining the stream (such as the socket has been closed),
-	 * 	then it will attempt to reconnect until the thread is interrupted or until the stream has been obtained.
-	 * @return The output stream for the current connection to the remote socket. Never will be null.
+	 * Gets the current session, establishing a new one if there isn't one or if the last one was lost.
+	 * If there are any problems setting up the streams (such as the socket has been closed),
+	 * 	then it will attempt to reconnect until the thread is interrupted or until the session has been established.
+	 *
+	 * Only one thread connects at a time, and it doesn't hold the lock while it connects or backs off,
+	 * 	so {@link #close()} and {@link #getCodec()} never wait on the network. Other threads wait for it to finish instead.
+	 * @return The session for the current connection to the remote socket. Never will be null.
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	@NotNull
-	private ObjectOutputStream getOutputStream() throws IOException, InterruptedException {
-		OutputStream outputStream = null;
-		while(outputStream == null) {
-			if(socket == null) {
-				socket = reconnect();
+	private Session getSession() throws IOException, InterruptedException {
+		while(true) {
+			Socket socket;
+			boolean replay;
+			synchronized (sessionLock) {
+				while(true) {
+					if(Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					if(shutdown) {
+						throw new IOException("Channel to " + machineName + " is closed.");
+					}
+					if(session != null) {
+						return session;
+					}
+					if(!connecting) {
+						break;
+					}
+					sessionLock.wait();
+				}
+				connecting = true;
+				socket = initialSocket;
+				initialSocket = null;
+				replay = reconnecting;
 			}
+
+			Session opened = null;
+			boolean closedMeanwhile = false;
 			try {
-				outputStream = socket.getOutputStream();
-			} catch (SocketException e) {
-				LOGGER.error("Lost connection with " + machineName + ". Retrying.", e);
-				outputStream = null;
-				socket = reconnect();
+				if(socket == null || socket.isClosed()) {
+					socket = reconnect();
+				}
+				try {
+					opened = openSession(socket, replay);
+				} catch (IOException e) {
+					LOGGER.error("Lost connection with " + machineName + ". Retrying.", e);
+					closeQuietly(socket);
+				}
+			} finally {
+				synchronized (sessionLock) {
+					connecting = false;
+					if(opened != null) {
+						//close() may have been called while we were connecting, in which case the new connection is thrown away.
+						closedMeanwhile = shutdown;
+						if(!closedMeanwhile) {
+							session = opened;
+							reconnecting = true;
+						}
+					}
+					sessionLock.notifyAll();
+				}
+			}
+
+			if(closedMeanwhile) {
+				closeQuietly(opened.socket);
+			} else if(opened == null) {
+				synchronized (sessionLock) {
+					if(!shutdown) {
+						sessionLock.wait(RECONNECT_BACKOFF); //Cut short by close().
+					}
+				}
 			}
-			Thread.sleep(1000);
 		}
-		return new ObjectOutputStream(outputStream);
 	}
 
 	/**
-	 * Gets the input stream from the socket.
-	 * If there are any problems obtaining the stream (such as the socket has been closed),
-	 * 	then it will attempt to reconnect until the thread is interrupted or until the stream has been obtained.
-	 * @return The output stream for the current connection to the remote socket. Never will be null.
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Called without holding the lock, by the one thread that's connecting.
+	 * @param replay Whether to write {@link #transportsToReplay()} first. Nothing can have gone missing before the first connection.
 	 */
 	@NotNull
-	private ObjectInputStream getInputStream() throws IOException, InterruptedException {
-		InputStream inputStream = null;
-		while(inputStream == null) {
-			if(socket == null) {
-				socket = reconnect();
-			}
+	private Session openSession(@NotNull Socket socket, boolean replay) throws IOException {
+		DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		TransportCodec codec = negotiateCodec(codecs, inputStream, outputStream);
+		TransportFramer framer = new TransportFramer(codec);
+
+		//Nothing can have gone missing before the first connection; anything waiting is still in the outbound queue.
+		List<Transport<?>> replayed = replay ? transportsToReplay() : Collections.<Transport<?>>emptyList();
+		for (Transport<?> transport : replayed) {
+			FrameBuffer frame;
 			try {
-				inputStream = socket.getInputStream();
-			} catch (SocketException e) {
-				LOGGER.error("Lost connection with " + machineName + ". Retrying.", e);
-				inputStream = null;
-				socket = reconnect();
+				frame = framer.encode(transport);
+			} catch (IOException e) {
+				LOGGER.error("Couldn't encode " + transport + " to replay it. Skipping it.", e);
+				continue;
+			}
+			outputStream.write(frame.getBuffer(), 0, frame.size());
+			BYTES_WRITTEN.add(frame.size());
+		}
+		if(!replayed.isEmpty()) {
+			outputStream.flush();
+			LOGGER.infop("Replayed %d transports to %s", replayed.size(), machineName);
+		}
+		return new Session(socket, outputStream, inputStream, framer);
+	}
+
+	/**
+	 * Drops the given session if it's still the current one, so the next read or write reconnects.
+	 */
+	private void invalidate(@NotNull Session lost, @NotNull IOException cause) {
+		synchronized (sessionLock) {
+			if(session == lost) {
+				LOGGER.error("Lost connection with " + machineName + ". Will reconnect on next use.", cause);
+				session = null;
+				closeQuietly(lost.socket);
 			}
-			Thread.sleep(1000);
 		}
-		return new ObjectInputStream(inputStream);
+	}
+
+	private static void closeQuietly(@NotNull Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOGGER.warn("Exception thrown while closing socket", e);
+		}
 	}
 
 	/**
 	 * Reconnects the socket.
-	 * This is called when calling {@link #getOutputStream()} or {@link #getInputStream()} and there is a problem obtaining the stream.
+	 * This is called whenever the session needs to be established and there is no usable connection.
 	 * @throws IOException
 	 */
 	@NotNull
 	protected abstract Socket reconnect() throws IOException;
 
+	/**
+	 * Agrees on a codec with the other side of a freshly opened socket. Nothing else has been sent on the socket yet.
+	 * One side of the connection must offer (see {@link CodecHandshake#offer}) and the other must accept (see {@link CodecHandshake#accept}).
+	 * @param codecs The codecs this channel may use, in order of preference.
+	 */
+	@NotNull
+	protected abstract TransportCodec negotiateCodec(@NotNull List<TransportCodec> codecs, @NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException;
+
+	/**
+	 * Called every time a connection is established, right after {@link #negotiateCodec}.
+	 * Whatever is returned is written on the new connection, in order, before anything else.
+	 * @return The transports to write again. Never null.
+	 */
+	@NotNull
+	protected List<Transport<?>> transportsToReplay() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return The codec used by the current connection, or null if there isn't a connection right now.
+	 */
+	@Nullable
+	public TransportCodec getCodec() {
+		synchronized (sessionLock) {
+			return session == null ? null : session.framer.getCodec();
+		}
+	}
+
 	/**
 	 * Closes the underlying connection to the remote machine.
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
+		shutdown = true;
+		writerThread.interrupt();
+
+		Socket socket;
+		synchronized (sessionLock) {
+			socket = session != null ? session.socket : initialSocket;
+			session = null;
+			initialSocket = null;
+			sessionLock.notifyAll(); //Wakes anyone waiting on a connect or backing off.
+		}
+
 		if(socket != null) {
 			LOGGER.infop("Closing connection with %s", machineName);
 			socket.close();
@@ -138,4 +360,111 @@ public abstract class AutoReconnectingChannel implements Closeable {
 				"machineName='" + machineName + '\'' +
 				'}';
 	}
+
+	/**
+	 * Notified by the writer thread once a queued transport has been dealt with.
+	 * Called on the writer thread, so implementations should return quickly.
+	 */
+	public static interface SendListener {
+		void sent();
+
+		void failed(@NotNull IOException e);
+	}
+
+	private static class Outbound {
+		@NotNull private final Transport<?> transport;
+		@Nullable private final SendListener listener;
+
+		public Outbound(@NotNull Transport<?> transport, @Nullable SendListener listener) {
+			this.transport = transport;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Drains the outbound queue. There is exactly one per channel, so writes never interleave.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while(!shutdown) {
+					Outbound next = outbound.take();
+					write(next);
+				}
+			} catch (InterruptedException e) {
+				LOGGER.infop("Writer for %s interrupted.", machineName);
+			} finally {
+				failRemaining();
+			}
+		}
+
+		private void write(@NotNull Outbound next) throws InterruptedException {
+			IOException lastException = null;
+			for(int attempt = 1; attempt <= SEND_ATTEMPTS && !shutdown; attempt++) {
+				try {
+					writeTransport(next.transport);
+					if(next.listener != null) {
+						next.listener.sent();
+					}
+					return;
+				} catch (EncodingException e) {
+					//Retrying won't make the object serializable.
+					lastException = e.getCause();
+					break;
+				} catch (IOException e) {
+					lastException = e;
+					if(attempt < SEND_ATTEMPTS) {
+						LOGGER.warn("Couldn't write to " + machineName + ". Retrying.", e);
+						Thread.sleep(RECONNECT_BACKOFF);
+					}
+				}
+			}
+
+			if(next.listener != null) {
+				next.listener.failed(lastException != null ? lastException : new IOException("Channel to " + machineName + " is closed."));
+			}
+		}
+
+		private void failRemaining() {
+			Outbound remaining;
+			while((remaining = outbound.poll()) != null) {
+				if(remaining.listener != null) {
+					remaining.listener.failed(new IOException("Channel to " + machineName + " is closed."));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thrown when a transport couldn't be encoded. Nothing was written, so the connection is still usable.
+	 */
+	private static class EncodingException extends IOException {
+		public EncodingException(@NotNull IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+
+		@NotNull
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/**
+	 * The streams and codec state for one connected socket.
+	 */
+	private static class Session {
+		@NotNull private final Socket socket;
+		@NotNull private final DataOutputStream outputStream;
+		@NotNull private final DataInputStream inputStream;
+		@NotNull private final TransportFramer framer;
+
+		public Session(@NotNull Socket socket, @NotNull DataOutputStream outputStream, @NotNull DataInputStream inputStream, @NotNull TransportFramer framer) {
+			this.socket = socket;
+			this.outputStream = outputStream;
+			this.inputStream = inputStream;
+			this.framer = framer;
+		}
+	}
 }
@@ -0,0 +1,274 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.classloading.ShippedCallable;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Compact codec for the common case.
+ * Writes the request ID and sequence number as longs and a one byte type tag, followed by the value.
+ * Strings, {@link Result}s, boxed primitives, {@link Transport.TransportError}s, {@link Transport.Heartbeat}s, {@link Transport.Ack}s
+ * 	and the class loading, artifact and chunk messages are written without any Java serialization.
+ * 	A {@link Transport.Chunk} is written as its tag followed by its value, so a log line costs no more than a plain string.
+ * 	A {@link ShippedCallable} (the request being sent) is written as its already serialized bytes.
+ * Anything else falls back to Java serialization in a self-contained block, so a frame never depends on an earlier one.
+ */
+public class BinaryTransportCodec implements TransportCodec {
+	public static final String NAME = "binary";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_RESULT = 2;
+	private static final byte TAG_INTEGER = 3;
+	private static final byte TAG_LONG = 4;
+	private static final byte TAG_BOOLEAN = 5;
+	private static final byte TAG_DOUBLE = 6;
+	private static final byte TAG_ERROR = 7;
+	private static final byte TAG_SERIALIZED = 8;
+	private static final byte TAG_HEARTBEAT = 9;
+	private static final byte TAG_ACK = 10;
+	private static final byte TAG_SHIPPED = 11;
+	private static final byte TAG_CLASS_REQUEST = 12;
+	private static final byte TAG_CLASS_DEFINITION = 13;
+	private static final byte TAG_ARTIFACT_REQUEST = 14;
+	private static final byte TAG_ARTIFACT_LOCATION = 15;
+	private static final byte TAG_CHUNK = 16;
+	private static final byte TAG_CHUNK_CREDIT = 17;
+
+	private static final Result[] RESULTS = Result.values();
+
+	@NotNull
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@NotNull
+	@Override
+	public Encoder newEncoder() {
+		return new BinaryEncoder();
+	}
+
+	@NotNull
+	@Override
+	public Decoder newDecoder() {
+		return new BinaryDecoder();
+	}
+
+	private static class BinaryEncoder implements Encoder {
+		@NotNull private final FrameBuffer serialized = new FrameBuffer(1024);
+
+		@Override
+		public void encode(@NotNull Transport<?> transport, @NotNull DataOutputStream out) throws IOException {
+			out.writeLong(transport.getId());
+			out.writeLong(transport.getSequence());
+			writeValue(transport.getObject(), out);
+		}
+
+		private void writeValue(@Nullable Object object, @NotNull DataOutputStream out) throws IOException {
+			if(object == null) {
+				out.writeByte(TAG_NULL);
+			} else if(object instanceof String) {
+				out.writeByte(TAG_STRING);
+				writeString((String) object, out);
+			} else if(object instanceof Result) {
+				out.writeByte(TAG_RESULT);
+				out.writeByte(((Result) object).ordinal());
+			} else if(object instanceof Integer) {
+				out.writeByte(TAG_INTEGER);
+				out.writeInt((Integer) object);
+			} else if(object instanceof Long) {
+				out.writeByte(TAG_LONG);
+				out.writeLong((Long) object);
+			} else if(object instanceof Boolean) {
+				out.writeByte(TAG_BOOLEAN);
+				out.writeBoolean((Boolean) object);
+			} else if(object instanceof Double) {
+				out.writeByte(TAG_DOUBLE);
+				out.writeDouble((Double) object);
+			} else if(object instanceof Transport.TransportError) {
+				out.writeByte(TAG_ERROR);
+				writeString(((Transport.TransportError) object).getMessage(), out);
+			} else if(object instanceof Transport.Heartbeat) {
+				out.writeByte(TAG_HEARTBEAT);
+			} else if(object instanceof Transport.Ack) {
+				out.writeByte(TAG_ACK);
+				out.writeLong(((Transport.Ack) object).getAcknowledged());
+			} else if(object instanceof ShippedCallable) {
+				byte[] bytes = ((ShippedCallable) object).getBytes();
+				out.writeByte(TAG_SHIPPED);
+				writeBytes(bytes, out);
+			} else if(object instanceof Transport.ClassRequest) {
+				Transport.ClassRequest request = (Transport.ClassRequest) object;
+				out.writeByte(TAG_CLASS_REQUEST);
+				writeString(request.getClassName(), out);
+				out.writeBoolean(request.isBytesWanted());
+			} else if(object instanceof Transport.ClassDefinition) {
+				Transport.ClassDefinition definition = (Transport.ClassDefinition) object;
+				out.writeByte(TAG_CLASS_DEFINITION);
+				writeString(definition.getClassName(), out);
+				writeString(definition.getDigest(), out);
+				writeBytes(definition.getBytes(), out);
+			} else if(object instanceof Transport.ArtifactRequest) {
+				out.writeByte(TAG_ARTIFACT_REQUEST);
+				writeString(((Transport.ArtifactRequest) object).getDigest(), out);
+			} else if(object instanceof Transport.ArtifactLocation) {
+				Transport.ArtifactLocation location = (Transport.ArtifactLocation) object;
+				out.writeByte(TAG_ARTIFACT_LOCATION);
+				writeString(location.getDigest(), out);
+				out.writeLong(location.getSize());
+				out.writeInt(location.getPort());
+			} else if(object instanceof Transport.Chunk) {
+				out.writeByte(TAG_CHUNK);
+				writeValue(((Transport.Chunk) object).getValue(), out);
+			} else if(object instanceof Transport.ChunkCredit) {
+				out.writeByte(TAG_CHUNK_CREDIT);
+				out.writeInt(((Transport.ChunkCredit) object).getCredits());
+			} else {
+				serialized.reset();
+				ObjectOutputStream objectOutputStream = new ObjectOutputStream(serialized);
+				objectOutputStream.writeObject(object);
+				objectOutputStream.flush();
+
+				out.writeByte(TAG_SERIALIZED);
+				out.writeInt(serialized.size());
+				out.write(serialized.getBuffer(), 0, serialized.size());
+			}
+		}
+	}
+
+	private static class BinaryDecoder implements Decoder {
+		@NotNull
+		@Override
+		public Transport<?> decode(@NotNull DataInputStream in) throws IOException, ClassNotFoundException {
+			long id = in.readLong();
+			long sequence = in.readLong();
+			return Transport.decoded(readValue(in), id, sequence);
+		}
+
+		@Nullable
+		private static Object readValue(@NotNull DataInputStream in) throws IOException, ClassNotFoundException {
+			Object object;
+			byte tag = in.readByte();
+			switch (tag) {
+				case TAG_NULL:
+					object = null;
+					break;
+				case TAG_STRING:
+					object = readString(in);
+					break;
+				case TAG_RESULT:
+					int ordinal = in.readUnsignedByte();
+					if(ordinal >= RESULTS.length) {
+						throw new StreamCorruptedException("Unknown " + Result.class.getSimpleName() + " ordinal: " + ordinal);
+					}
+					object = RESULTS[ordinal];
+					break;
+				case TAG_INTEGER:
+					object = in.readInt();
+					break;
+				case TAG_LONG:
+					object = in.readLong();
+					break;
+				case TAG_BOOLEAN:
+					object = in.readBoolean();
+					break;
+				case TAG_DOUBLE:
+					object = in.readDouble();
+					break;
+				case TAG_ERROR:
+					object = new Transport.TransportError(readString(in));
+					break;
+				case TAG_HEARTBEAT:
+					object = Transport.Heartbeat.INSTANCE;
+					break;
+				case TAG_ACK:
+					object = new Transport.Ack(in.readLong());
+					break;
+				case TAG_SHIPPED:
+					object = ShippedCallable.fromBytes(readBytes(in));
+					break;
+				case TAG_CLASS_REQUEST:
+					object = new Transport.ClassRequest(readNotNullString(in), in.readBoolean());
+					break;
+				case TAG_CLASS_DEFINITION:
+					object = new Transport.ClassDefinition(readNotNullString(in), readString(in), readBytes(in));
+					break;
+				case TAG_ARTIFACT_REQUEST:
+					object = new Transport.ArtifactRequest(readNotNullString(in));
+					break;
+				case TAG_ARTIFACT_LOCATION:
+					object = new Transport.ArtifactLocation(readNotNullString(in), in.readLong(), in.readInt());
+					break;
+				case TAG_CHUNK:
+					object = new Transport.Chunk(readValue(in));
+					break;
+				case TAG_CHUNK_CREDIT:
+					object = new Transport.ChunkCredit(in.readInt());
+					break;
+				case TAG_SERIALIZED:
+					int length = in.readInt();
+					TransportFramer.checkLength(length);
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					object = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+					break;
+				default:
+					throw new StreamCorruptedException("Unknown type tag: " + tag);
+			}
+			return object;
+		}
+	}
+
+	private static void writeBytes(@Nullable byte[] bytes, @NotNull DataOutputStream out) throws IOException {
+		if(bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	@Nullable
+	private static byte[] readBytes(@NotNull DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length == -1) {
+			return null;
+		}
+		TransportFramer.checkLength(length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeString(@Nullable String string, @NotNull DataOutputStream out) throws IOException {
+		if(string == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = string.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	@Nullable
+	private static String readString(@NotNull DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, UTF_8);
+	}
+
+	@NotNull
+	private static String readNotNullString(@NotNull DataInputStream in) throws IOException {
+		String string = readString(in);
+		if(string == null) {
+			throw new StreamCorruptedException("Unexpected null string");
+		}
+		return string;
+	}
+}
@@ -0,0 +1,185 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds the {@link Transport.Chunk}s of one request until its {@link ChunkSubscriber} asks for them,
+ * 	and decides when the remote machine can be credited with room for more.
+ *
+ * Until something subscribes, the buffer only keeps the latest {@link Transport.Chunk#WINDOW} chunks, like the tail of a log,
+ * 	and credits every chunk as soon as it arrives, so a task nobody is watching is never held up.
+ * 	Once subscribed, a chunk is only credited when it has been delivered, so the remote machine can't get more than a window ahead.
+ * 	Either way the master holds at most a couple of windows per request, however much the task emits.
+ */
+/*package*/ final class ChunkBuffer implements ChunkSubscriber.Subscription {
+	private static final Logger LOGGER = Logger.forClass(ChunkBuffer.class);
+
+	private static final Counter RECEIVED = MetricsRegistry.getDefault().counter("channel.chunksReceived");
+	private static final Counter DROPPED = MetricsRegistry.getDefault().counter("channel.chunksDropped");
+
+	/**
+	 * Stands in for null chunks, which {@link ArrayDeque} can't hold.
+	 */
+	private static final Object NULL_CHUNK = new Object();
+
+	/**
+	 * Credits are sent back in batches this big, rather than one message per chunk.
+	 */
+	private static final int CREDIT_BATCH = Transport.Chunk.WINDOW / 2;
+
+	@NotNull private final CreditSink creditSink;
+
+	private final Lock bufferLock = new Lock();
+	@LockedBy("bufferLock") @NotNull private final ArrayDeque<Object> buffered = new ArrayDeque<Object>();
+	@LockedBy("bufferLock") @Nullable private ChunkSubscriber subscriber;
+	@LockedBy("bufferLock") private long demand;
+	@LockedBy("bufferLock") private long uncredited;
+	@LockedBy("bufferLock") private boolean delivering;
+	@LockedBy("bufferLock") private boolean cancelled;
+	@LockedBy("bufferLock") private boolean finished;
+	@LockedBy("bufferLock") private boolean completeDelivered;
+
+	/*package*/ ChunkBuffer(@NotNull CreditSink creditSink) {
+		this.creditSink = creditSink;
+	}
+
+	/**
+	 * Called on the thread reading from the remote machine with each chunk, in order.
+	 */
+	/*package*/ void offer(@Nullable Object chunk) {
+		RECEIVED.increment();
+		synchronized (bufferLock) {
+			uncredited++;
+			if(cancelled) {
+				DROPPED.increment();
+			} else if(!finished) {
+				if(subscriber == null && buffered.size() >= Transport.Chunk.WINDOW) {
+					buffered.poll();
+					DROPPED.increment();
+				}
+				buffered.add(chunk == null ? NULL_CHUNK : chunk);
+			}
+		}
+		drain();
+		credit();
+	}
+
+	/**
+	 * Called once the request's future is completed, however that happened. Chunks already buffered are still delivered.
+	 */
+	/*package*/ void finish() {
+		synchronized (bufferLock) {
+			finished = true;
+		}
+		drain();
+	}
+
+	/*package*/ void subscribe(@NotNull ChunkSubscriber subscriber) {
+		synchronized (bufferLock) {
+			if(this.subscriber != null) {
+				throw new IllegalStateException("Only one subscriber is allowed");
+			}
+			this.subscriber = subscriber;
+		}
+		subscriber.onSubscribe(this);
+		drain();
+	}
+
+	@Override
+	public void request(long n) {
+		if(n <= 0) {
+			throw new IllegalArgumentException("'n' must be positive");
+		}
+		synchronized (bufferLock) {
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		}
+		drain();
+		credit();
+	}
+
+	@Override
+	public void cancel() {
+		synchronized (bufferLock) {
+			cancelled = true;
+			buffered.clear();
+		}
+		credit();
+	}
+
+	/**
+	 * Delivers whatever has been asked for, one call at a time. Whichever thread finds there's something to deliver does the delivering.
+	 */
+	private void drain() {
+		while(true) {
+			ChunkSubscriber target;
+			Object next = null;
+			synchronized (bufferLock) {
+				if(delivering || subscriber == null || cancelled || completeDelivered) {
+					return;
+				}
+				if(demand > 0 && !buffered.isEmpty()) {
+					next = buffered.poll();
+					demand--;
+				} else if(finished && buffered.isEmpty()) {
+					completeDelivered = true;
+				} else {
+					return;
+				}
+				delivering = true;
+				target = subscriber;
+			}
+
+			try {
+				if(next == null) {
+					target.onComplete();
+					return;
+				}
+				target.onNext(next == NULL_CHUNK ? null : next);
+			} catch (RuntimeException e) {
+				LOGGER.error("Subscriber " + target + " failed, cancelling its subscription", e);
+				cancel();
+				return;
+			} finally {
+				synchronized (bufferLock) {
+					delivering = false;
+				}
+			}
+			credit();
+		}
+	}
+
+	/**
+	 * Gives the remote machine room for the chunks that are no longer taking up room here, once there are enough of them.
+	 */
+	private void credit() {
+		int credits;
+		synchronized (bufferLock) {
+			if(finished) {
+				return; //The task is done emitting.
+			}
+			long held = subscriber != null && !cancelled ? buffered.size() : 0;
+			long creditable = uncredited - held;
+			if(creditable < CREDIT_BATCH) {
+				return;
+			}
+			credits = (int) creditable;
+			uncredited -= credits;
+		}
+		creditSink.grant(credits);
+	}
+
+	/**
+	 * Sends credits back to the remote machine.
+	 */
+	/*package*/ static interface CreditSink {
+		void grant(int credits);
+	}
+}
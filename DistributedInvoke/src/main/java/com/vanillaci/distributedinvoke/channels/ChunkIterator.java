@@ -0,0 +1,124 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.exceptions.UnexpectedException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Blocking iterator over the chunks a remote task emits, for callers that would rather have a thread wait on them
+ * 	than implement a {@link ChunkSubscriber}. Returned by {@link ResultFuture#chunks()}.
+ *
+ * Chunks are asked for one at a time as they're taken, so a caller that stops iterating holds the task up
+ * 	just like a subscriber that stops requesting. {@link #close()} it to let the task carry on without it.
+ */
+public final class ChunkIterator implements Iterator<Object>, Closeable {
+	/**
+	 * Stands in for null chunks, which {@link ArrayDeque} can't hold.
+	 */
+	private static final Object NULL_CHUNK = new Object();
+
+	private final Lock chunkLock = new Lock();
+	@LockedBy("chunkLock") @NotNull private final ArrayDeque<Object> ready = new ArrayDeque<Object>(1);
+	@LockedBy("chunkLock") @Nullable private ChunkSubscriber.Subscription subscription;
+	@LockedBy("chunkLock") private boolean complete;
+
+	/*package*/ ChunkIterator() {
+	}
+
+	/*package*/ ChunkSubscriber asSubscriber() {
+		return new ChunkSubscriber() {
+			@Override
+			public void onSubscribe(@NotNull Subscription subscription) {
+				synchronized (chunkLock) {
+					ChunkIterator.this.subscription = subscription;
+				}
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(@Nullable Object chunk) {
+				synchronized (chunkLock) {
+					ready.add(chunk == null ? NULL_CHUNK : chunk);
+					chunkLock.notifyAll();
+				}
+			}
+
+			@Override
+			public void onComplete() {
+				synchronized (chunkLock) {
+					complete = true;
+					chunkLock.notifyAll();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until there's another chunk or the task has finished.
+	 * @throws UnexpectedException If the thread is interrupted while waiting. The thread's interrupted flag is left set.
+	 */
+	@Override
+	public boolean hasNext() {
+		synchronized (chunkLock) {
+			while(ready.isEmpty() && !complete) {
+				try {
+					chunkLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UnexpectedException(e);
+				}
+			}
+			return !ready.isEmpty();
+		}
+	}
+
+	/**
+	 * @return The next chunk, in the order the task emitted them. Can be null if the task emitted null.
+	 */
+	@Nullable
+	@Override
+	public Object next() {
+		Object next;
+		ChunkSubscriber.Subscription toRequest;
+		synchronized (chunkLock) {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			next = ready.poll();
+			toRequest = subscription;
+		}
+		if(toRequest != null) {
+			toRequest.request(1);
+		}
+		return next == NULL_CHUNK ? null : next;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops taking chunks. Anything not yet taken is thrown away and {@link #hasNext()} returns false from now on.
+	 */
+	@Override
+	public void close() {
+		ChunkSubscriber.Subscription toCancel;
+		synchronized (chunkLock) {
+			toCancel = subscription;
+			complete = true;
+			ready.clear();
+			chunkLock.notifyAll();
+		}
+		if(toCancel != null) {
+			toCancel.cancel();
+		}
+	}
+}
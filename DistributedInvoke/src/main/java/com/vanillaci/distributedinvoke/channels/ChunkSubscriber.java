@@ -0,0 +1,45 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives the chunks a remote task emits while it runs (see {@link com.vanillaci.distributedinvoke.jobs.TaskOutput}),
+ * 	such as the lines of a build log. Subscribed with {@link ResultFuture#subscribe(ChunkSubscriber)}.
+ *
+ * Works like a reactive streams subscriber: nothing is delivered until it's asked for with {@link Subscription#request(long)},
+ * 	and until then the chunks wait in a small buffer. Once that's full the remote task is held up until there's room,
+ * 	so a slow subscriber slows the task down rather than running the master out of memory.
+ *
+ * Calls are never made concurrently, but can be made on any thread, including the one reading from the remote machine,
+ * 	so implementations should return quickly.
+ */
+public interface ChunkSubscriber {
+	/**
+	 * Called first, once.
+	 */
+	void onSubscribe(@NotNull Subscription subscription);
+
+	/**
+	 * Called with each chunk, in the order they were emitted, no more times than have been requested.
+	 */
+	void onNext(@Nullable Object chunk);
+
+	/**
+	 * Called once every chunk has been delivered and the task has finished, or its future was otherwise completed.
+	 * 	The result, or why there isn't one, comes from the future as usual.
+	 */
+	void onComplete();
+
+	public static interface Subscription {
+		/**
+		 * Asks for up to the given number of chunks more. Must be positive.
+		 */
+		void request(long n);
+
+		/**
+		 * Stops delivering chunks. Anything buffered is thrown away, and the task is no longer held up waiting for room.
+		 */
+		void cancel();
+	}
+}
@@ -0,0 +1,124 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.List;
+
+/**
+ * The first thing sent on every new connection.
+ * The side that connected offers the names of the codecs it can use, in order of preference,
+ * 	and the side that accepted answers with the first one it also has.
+ *
+ * The offer also names the session the connection belongs to, along with the last numbered response that arrived on an earlier connection,
+ * 	so the accepting side can pick up where the session left off (see {@link Transport#getSequence()}).
+ * 	An empty session ID means the connecting side doesn't resume sessions.
+ */
+/*package*/ final class CodecHandshake {
+	private static final Logger LOGGER = Logger.forClass(CodecHandshake.class);
+
+	private static final int MAGIC = 0x56434936; //"VCI6"
+	private static final String NO_CODEC = "";
+
+	private CodecHandshake() {}
+
+	/**
+	 * Called by the side that opened the connection.
+	 * @param sessionId The session to resume, or empty for none. Cannot be null.
+	 * @param acknowledged The sequence number of the last response received in the session, or zero.
+	 * @return The codec the remote machine picked.
+	 * @throws IOException If the remote machine doesn't support any of the given codecs.
+	 */
+	@NotNull
+	public static TransportCodec offer(@NotNull List<TransportCodec> codecs, @NotNull String sessionId, long acknowledged, @NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(codecs.size());
+		for (TransportCodec codec : codecs) {
+			out.writeUTF(codec.getName());
+		}
+		out.writeUTF(sessionId);
+		out.writeLong(acknowledged);
+		out.flush();
+
+		checkMagic(in.readInt());
+		String chosen = in.readUTF();
+		TransportCodec codec = TransportCodecs.find(codecs, chosen);
+		if(codec == null) {
+			throw new IOException("Remote machine doesn't support any of the offered codecs.");
+		}
+		LOGGER.infop("Using codec %s", chosen);
+		return codec;
+	}
+
+	/**
+	 * Called by the side that accepted the connection.
+	 * @return The first offered codec that is also in the given list, and the session being resumed.
+	 * @throws IOException If none of the offered codecs are supported.
+	 */
+	@NotNull
+	public static Accepted accept(@NotNull List<TransportCodec> codecs, @NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
+		checkMagic(in.readInt());
+		int count = in.readUnsignedShort();
+		TransportCodec chosen = null;
+		for(int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			if(chosen == null) {
+				chosen = TransportCodecs.find(codecs, name);
+			}
+		}
+		String sessionId = in.readUTF();
+		long acknowledged = in.readLong();
+
+		out.writeInt(MAGIC);
+		out.writeUTF(chosen == null ? NO_CODEC : chosen.getName());
+		out.flush();
+
+		if(chosen == null) {
+			throw new IOException("None of the offered codecs are supported.");
+		}
+		LOGGER.infop("Using codec %s", chosen.getName());
+		return new Accepted(chosen, sessionId, acknowledged);
+	}
+
+	/**
+	 * What the accepting side learned from the offer.
+	 */
+	public static final class Accepted {
+		@NotNull private final TransportCodec codec;
+		@NotNull private final String sessionId;
+		private final long acknowledged;
+
+		private Accepted(@NotNull TransportCodec codec, @NotNull String sessionId, long acknowledged) {
+			this.codec = codec;
+			this.sessionId = sessionId;
+			this.acknowledged = acknowledged;
+		}
+
+		@NotNull
+		public TransportCodec getCodec() {
+			return codec;
+		}
+
+		/**
+		 * @return Empty if the other side doesn't resume sessions.
+		 */
+		@NotNull
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		public long getAcknowledged() {
+			return acknowledged;
+		}
+	}
+
+	private static void checkMagic(int magic) throws StreamCorruptedException {
+		if(magic != MAGIC) {
+			throw new StreamCorruptedException("Unexpected handshake: " + Integer.toHexString(magic));
+		}
+	}
+}
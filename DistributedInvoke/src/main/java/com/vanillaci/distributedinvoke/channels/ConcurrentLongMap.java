@@ -0,0 +1,276 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread safe map from {@code long} keys to objects, without boxing the keys.
+ * Used to find the future waiting on each request ID, once per response.
+ *
+ * The keys are spread over a number of segments, each guarded by its own lock, so threads working on different keys rarely meet.
+ * 	Each segment is an open-addressing table: keys and values live in two parallel arrays and collisions probe the next slot,
+ * 	so a lookup touches one or two cache lines and a put allocates nothing until the table has to grow.
+ * 	Removal shifts the entries after it back instead of leaving tombstones, so tables don't clog up as requests come and go.
+ * 	Keys are scrambled before use, since request IDs count up one at a time and would otherwise all land next to each other.
+ *
+ * Zero is used to mark empty slots, so it can't be a key. Null can't be a value.
+ */
+public final class ConcurrentLongMap<V> {
+	public static final int DEFAULT_CONCURRENCY = 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+	@NotNull private final Segment<V>[] segments;
+	private final int segmentMask;
+
+	@NotNull
+	public static <V> ConcurrentLongMap<V> create() {
+		return create(DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * @param concurrency Roughly how many threads are expected to use the map at once. Rounded up to a power of two. Must be positive.
+	 */
+	@NotNull
+	public static <V> ConcurrentLongMap<V> create(int concurrency) {
+		if(concurrency <= 0 || concurrency > (1 << 16)) {
+			throw new IllegalArgumentException("'concurrency' must be between 1 and 65536");
+		}
+		int segmentCount = Integer.highestOneBit(concurrency);
+		if(segmentCount < concurrency) {
+			segmentCount <<= 1;
+		}
+		return new ConcurrentLongMap<V>(segmentCount);
+	}
+
+	private ConcurrentLongMap(int segmentCount) {
+		//noinspection unchecked
+		this.segments = new Segment[segmentCount];
+		for(int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<V>();
+		}
+		this.segmentMask = segmentCount - 1;
+	}
+
+	/**
+	 * @return The previous value for the key, or null if there wasn't one.
+	 */
+	@Nullable
+	public V put(long key, @NotNull V value) {
+		if(key == 0) {
+			throw new IllegalArgumentException("'key' cannot be zero");
+		}
+		//noinspection ConstantConditions
+		if(value == null) {
+			throw new NullPointerException("value");
+		}
+		long hash = hash(key);
+		return segmentFor(hash).put(key, value, (int) (hash >>> 32));
+	}
+
+	@Nullable
+	public V get(long key) {
+		long hash = hash(key);
+		return segmentFor(hash).get(key, (int) (hash >>> 32));
+	}
+
+	/**
+	 * @return The value that was removed, or null if there wasn't one.
+	 */
+	@Nullable
+	public V remove(long key) {
+		long hash = hash(key);
+		return segmentFor(hash).remove(key, null, (int) (hash >>> 32));
+	}
+
+	/**
+	 * Removes the key only if it's mapped to the given value (compared by identity).
+	 * @return True if it was removed.
+	 */
+	public boolean remove(long key, @NotNull V value) {
+		long hash = hash(key);
+		return segmentFor(hash).remove(key, value, (int) (hash >>> 32)) != null;
+	}
+
+	/**
+	 * @return The number of entries. Not a snapshot: puts and removes happening at the same time may or may not be counted.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return A copy of the values, in no particular order. Each segment is copied at a single point in time, but not all of them at once.
+	 */
+	@NotNull
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size());
+		for (Segment<V> segment : segments) {
+			segment.copyValuesTo(values);
+		}
+		return values;
+	}
+
+	@NotNull
+	private Segment<V> segmentFor(long hash) {
+		return segments[(int) hash & segmentMask];
+	}
+
+	/**
+	 * The finalizer from MurmurHash3. Every bit of the key affects every bit of the hash.
+	 */
+	/*package*/ static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static final class Segment<V> {
+		private final Lock lock = new Lock();
+		@LockedBy("lock") @NotNull private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+		@LockedBy("lock") @NotNull private Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+		/**
+		 * Written under the lock, read without it by {@link ConcurrentLongMap#size()}.
+		 */
+		private volatile int size;
+
+		@Nullable
+		V put(long key, @NotNull V value, int hash) {
+			synchronized (lock) {
+				int mask = keys.length - 1;
+				int slot = hash & mask;
+				while(keys[slot] != 0) {
+					if(keys[slot] == key) {
+						//noinspection unchecked
+						V previous = (V) values[slot];
+						values[slot] = value;
+						return previous;
+					}
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				values[slot] = value;
+				size = size + 1;
+				if(size * 2 > keys.length) {
+					grow();
+				}
+				return null;
+			}
+		}
+
+		@Nullable
+		V get(long key, int hash) {
+			synchronized (lock) {
+				int slot = find(key, hash);
+				//noinspection unchecked
+				return slot < 0 ? null : (V) values[slot];
+			}
+		}
+
+		/**
+		 * @param expected If not null, only remove the entry if it's this value.
+		 */
+		@Nullable
+		V remove(long key, @Nullable V expected, int hash) {
+			synchronized (lock) {
+				int slot = find(key, hash);
+				if(slot < 0) {
+					return null;
+				}
+				//noinspection unchecked
+				V value = (V) values[slot];
+				if(expected != null && value != expected) {
+					return null;
+				}
+				shiftBack(slot);
+				size = size - 1;
+				return value;
+			}
+		}
+
+		void copyValuesTo(@NotNull List<V> copy) {
+			synchronized (lock) {
+				for(int i = 0; i < keys.length; i++) {
+					if(keys[i] != 0) {
+						//noinspection unchecked
+						copy.add((V) values[i]);
+					}
+				}
+			}
+		}
+
+		@LockedBy("lock")
+		private int find(long key, int hash) {
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			while(keys[slot] != 0) {
+				if(keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Empties the given slot, then moves back any entry further along the run that could no longer be found past the gap.
+		 */
+		@LockedBy("lock")
+		private void shiftBack(int gap) {
+			int mask = keys.length - 1;
+			int slot = gap;
+			while(true) {
+				slot = (slot + 1) & mask;
+				long key = keys[slot];
+				if(key == 0) {
+					break;
+				}
+				int home = (int) (hash(key) >>> 32) & mask;
+				//Only move it if its home slot isn't between the gap and where it is now (cyclically).
+				boolean reachable = gap <= slot ? (gap < home && home <= slot) : (gap < home || home <= slot);
+				if(!reachable) {
+					keys[gap] = key;
+					values[gap] = values[slot];
+					gap = slot;
+				}
+			}
+			keys[gap] = 0;
+			values[gap] = null;
+		}
+
+		@LockedBy("lock")
+		private void grow() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new Object[oldValues.length * 2];
+			int mask = keys.length - 1;
+			for(int i = 0; i < oldKeys.length; i++) {
+				long key = oldKeys[i];
+				if(key != 0) {
+					int slot = (int) (hash(key) >>> 32) & mask;
+					while(keys[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = key;
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that lets the owner get at the backing array and throw away a partially written frame,
+ * 	so frames can be built and sent without copying them.
+ */
+/*package*/ final class FrameBuffer extends ByteArrayOutputStream {
+	public FrameBuffer(int size) {
+		super(size);
+	}
+
+	/**
+	 * @return The backing array. Only the first {@link #size()} bytes are valid.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Discards everything written after the given position.
+	 */
+	public void truncate(int size) {
+		if(size < 0 || size > count) {
+			throw new IllegalArgumentException("Can't truncate " + count + " bytes to " + size);
+		}
+		count = size;
+	}
+}
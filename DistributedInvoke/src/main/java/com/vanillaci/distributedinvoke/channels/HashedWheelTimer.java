@@ -0,0 +1,313 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Runs tasks after a delay, for when there are a great many of them and most get cancelled before they're due.
+ * Request deadlines are the typical example.
+ *
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick. A timeout goes into the bucket for the tick it's due in,
+ * 	along with the number of full turns of the wheel left before then. Scheduling and cancelling are O(1) and lock-free
+ * 	no matter how many timeouts are pending. The single worker thread moves new timeouts into their buckets once per tick,
+ * 	and then expires the timeouts in the current bucket.
+ * 	The trade-off is precision: a timeout fires up to one tick late, and never early.
+ *
+ * Tasks run on the worker thread, so they should be quick.
+ */
+public class HashedWheelTimer implements Closeable {
+	private static final Logger LOGGER = Logger.forClass(HashedWheelTimer.class);
+
+	public static final long DEFAULT_TICK_MILLIS = 10;
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	/**
+	 * The most new timeouts moved into buckets in a single tick, so a burst of scheduling doesn't stall expiry.
+	 */
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final long tickNanos;
+	@NotNull private final Bucket[] wheel;
+	private final int mask;
+
+	@NotNull private final Queue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+	@NotNull private final Queue<Timeout> cancellations = new ConcurrentLinkedQueue<Timeout>();
+	@NotNull private final AtomicInteger pendingCount = new AtomicInteger();
+
+	private final long startTime;
+	@NotNull private final Thread worker;
+	private volatile boolean stopped;
+
+	/**
+	 * Starts a timer with a {@value #DEFAULT_TICK_MILLIS}ms tick and {@value #DEFAULT_TICKS_PER_WHEEL} buckets.
+	 * @param name Used to name the worker thread. Cannot be null.
+	 */
+	@NotNull
+	public static HashedWheelTimer start(@NotNull String name) {
+		return start(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * @param name Used to name the worker thread. Cannot be null.
+	 * @param tickDuration How far apart the ticks are. Timeouts fire up to this late. Must be positive.
+	 * @param unit The unit of the tick duration. Cannot be null.
+	 * @param ticksPerWheel The number of buckets. Rounded up to a power of two. Must be positive.
+	 */
+	@NotNull
+	public static HashedWheelTimer start(@NotNull String name, long tickDuration, @NotNull TimeUnit unit, int ticksPerWheel) {
+		if(tickDuration <= 0) {
+			throw new IllegalArgumentException("'tickDuration' must be a positive integer");
+		}
+		if(ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("'ticksPerWheel' must be between 1 and 2^30");
+		}
+		return new HashedWheelTimer(name, unit.toNanos(tickDuration), ticksPerWheel);
+	}
+
+	private HashedWheelTimer(@NotNull String name, long tickNanos, int ticksPerWheel) {
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if(size < ticksPerWheel) {
+			size <<= 1;
+		}
+
+		this.tickNanos = tickNanos;
+		this.wheel = new Bucket[size];
+		for(int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Worker(), name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedules the given task to run once the delay has passed.
+	 * @param task Run on the timer's worker thread. Cannot be null.
+	 * @param delay How long to wait. Zero or less means at the next tick.
+	 * @return Handle that can be used to cancel the task. Never null.
+	 * @throws IllegalStateException If the timer has been closed.
+	 */
+	@NotNull
+	public Timeout schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+		if(stopped) {
+			throw new IllegalStateException("Timer has been closed.");
+		}
+
+		long deadline = System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0);
+		Timeout timeout = new Timeout(this, task, deadline);
+		pendingCount.incrementAndGet();
+		additions.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return The number of timeouts that have been scheduled but haven't expired or been cancelled.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts never fire.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public static final class Timeout {
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		@NotNull private final HashedWheelTimer timer;
+		@NotNull private final Runnable task;
+		private final long deadline;
+		private volatile int state = INIT;
+
+		//Only touched by the worker thread.
+		private long remainingRounds;
+		@Nullable private Bucket bucket;
+		@Nullable private Timeout previous;
+		@Nullable private Timeout next;
+
+		private Timeout(@NotNull HashedWheelTimer timer, @NotNull Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Keeps the task from running.
+		 * @return True if this call cancelled it. False if it already ran or was already cancelled.
+		 */
+		public boolean cancel() {
+			if(!STATE.compareAndSet(this, INIT, CANCELLED)) {
+				return false;
+			}
+			timer.pendingCount.decrementAndGet();
+			timer.cancellations.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if(!STATE.compareAndSet(this, INIT, EXPIRED)) {
+				return;
+			}
+			timer.pendingCount.decrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				LOGGER.warn("Timeout task threw an exception.", e);
+			}
+		}
+	}
+
+	/**
+	 * Doubly-linked list of timeouts so a cancelled one can be unlinked in O(1). Only touched by the worker thread.
+	 */
+	private static final class Bucket {
+		@Nullable private Timeout head;
+		@Nullable private Timeout tail;
+
+		public void add(@NotNull Timeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			} else {
+				assert tail != null;
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		@Nullable
+		public Timeout remove(@NotNull Timeout timeout) {
+			Timeout next = timeout.next;
+			if(timeout.previous != null) {
+				timeout.previous.next = next;
+			}
+			if(next != null) {
+				next.previous = timeout.previous;
+			}
+			if(timeout == head) {
+				head = next;
+			}
+			if(timeout == tail) {
+				tail = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+
+		public void expire(long tickDeadline) {
+			Timeout timeout = head;
+			while(timeout != null) {
+				if(timeout.isCancelled()) {
+					timeout = remove(timeout);
+				} else if(timeout.remainingRounds <= 0) {
+					Timeout next = remove(timeout);
+					if(timeout.deadline <= tickDeadline) {
+						timeout.expire();
+					} else {
+						throw new IllegalStateException("Timeout is in the wrong bucket: " + timeout.deadline + " > " + tickDeadline);
+					}
+					timeout = next;
+				} else {
+					timeout.remainingRounds--;
+					timeout = timeout.next;
+				}
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+		private long tick;
+
+		@Override
+		public void run() {
+			try {
+				while(!stopped) {
+					long tickDeadline = waitForNextTick();
+					processCancellations();
+					transferAdditions();
+					wheel[(int) (tick & mask)].expire(tickDeadline);
+					tick++;
+				}
+			} catch (InterruptedException e) {
+				if(!stopped) {
+					LOGGER.error("Timer worker was interrupted.", e);
+				}
+			}
+		}
+
+		/**
+		 * @return The end of the current tick, relative to the start time.
+		 */
+		private long waitForNextTick() throws InterruptedException {
+			long tickDeadline = tickNanos * (tick + 1);
+			while(true) {
+				long sleepNanos = tickDeadline - (System.nanoTime() - startTime);
+				if(sleepNanos <= 0) {
+					return tickDeadline;
+				}
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			}
+		}
+
+		private void processCancellations() {
+			Timeout timeout;
+			while((timeout = cancellations.poll()) != null) {
+				Bucket bucket = timeout.bucket;
+				if(bucket != null) {
+					bucket.remove(timeout);
+				}
+			}
+		}
+
+		private void transferAdditions() {
+			for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+				Timeout timeout = additions.poll();
+				if(timeout == null) {
+					break;
+				}
+				if(timeout.isCancelled()) {
+					continue;
+				}
+
+				long dueTick = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (dueTick - tick) / wheel.length;
+				//Anything already overdue goes in the current bucket so it's expired right away.
+				long bucketTick = Math.max(dueTick, tick);
+				wheel[(int) (bucketTick & mask)].add(timeout);
+			}
+		}
+	}
+}
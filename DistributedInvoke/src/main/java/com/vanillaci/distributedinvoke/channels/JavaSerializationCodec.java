@@ -0,0 +1,158 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+
+/**
+ * Encodes transports with plain Java serialization.
+ * Works with any serializable object, so it's the codec of last resort.
+ *
+ * One {@link ObjectOutputStream}/{@link ObjectInputStream} pair lives for the whole connection,
+ * 	so stream headers and class descriptors are only sent once.
+ * 	To keep the handle tables from growing forever, they're reset every {@link #getResetInterval()} frames.
+ */
+public class JavaSerializationCodec implements TransportCodec {
+	public static final String NAME = "java";
+
+	/**
+	 * The default number of frames written before the handle tables are reset.
+	 */
+	public static final int DEFAULT_RESET_INTERVAL = 1000;
+
+	private final int resetInterval;
+
+	public JavaSerializationCodec() {
+		this(DEFAULT_RESET_INTERVAL);
+	}
+
+	/**
+	 * @param resetInterval Number of frames between handle table resets.
+	 * 		Lower values bound the memory held by the streams, higher values avoid re-sending class descriptors.
+	 * 		Zero or less disables resetting.
+	 */
+	public JavaSerializationCodec(int resetInterval) {
+		this.resetInterval = resetInterval;
+	}
+
+	@NotNull
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	public int getResetInterval() {
+		return resetInterval;
+	}
+
+	@NotNull
+	@Override
+	public Encoder newEncoder() throws IOException {
+		return new JavaEncoder(resetInterval);
+	}
+
+	@NotNull
+	@Override
+	public Decoder newDecoder() {
+		return new JavaDecoder();
+	}
+
+	/**
+	 * Writes into its own buffer and copies each object out as a frame.
+	 * Whatever the stream writes between objects (the header and resets) is sent at the start of the next frame.
+	 */
+	private static class JavaEncoder implements Encoder {
+		private final int resetInterval;
+		@NotNull private final FrameBuffer buffer = new FrameBuffer(4096);
+		@NotNull private final ObjectOutputStream outputStream;
+		private int framesSinceReset;
+
+		public JavaEncoder(int resetInterval) throws IOException {
+			this.resetInterval = resetInterval;
+			this.outputStream = new ObjectOutputStream(buffer);
+			this.outputStream.flush();
+		}
+
+		@Override
+		public void encode(@NotNull Transport<?> transport, @NotNull DataOutputStream out) throws IOException {
+			if(resetInterval > 0 && framesSinceReset >= resetInterval) {
+				outputStream.reset();
+				framesSinceReset = 0;
+			}
+
+			int start = buffer.size();
+			try {
+				outputStream.writeObject(transport);
+				outputStream.flush();
+			} catch (IOException e) {
+				//The stream cleared its handle table when it failed. Drop the partial object
+				//	and have the other side clear its table too before the next object.
+				outputStream.flush();
+				buffer.truncate(start);
+				outputStream.reset();
+				outputStream.flush();
+				framesSinceReset = 0;
+				throw e;
+			}
+
+			framesSinceReset++;
+			out.write(buffer.getBuffer(), 0, buffer.size());
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Reads every frame through the same {@link ObjectInputStream}.
+	 * The stream can't be created until the first frame arrives because its constructor reads the header.
+	 */
+	private static class JavaDecoder implements Decoder {
+		@NotNull private final FrameInputStream frames = new FrameInputStream();
+		@Nullable private ObjectInputStream inputStream;
+
+		@NotNull
+		@Override
+		public Transport<?> decode(@NotNull DataInputStream in) throws IOException, ClassNotFoundException {
+			frames.setFrame(in);
+			try {
+				if(inputStream == null) {
+					inputStream = new ObjectInputStream(frames);
+				}
+
+				Object object = inputStream.readObject();
+				if(object instanceof Transport) {
+					return (Transport<?>) object;
+				}
+				throw new StreamCorruptedException("Expected " + Transport.class.getCanonicalName() + " but was " + (object == null ? "null" : object.getClass().getCanonicalName()));
+			} finally {
+				frames.setFrame(null);
+			}
+		}
+	}
+
+	/**
+	 * Hands the current frame to the long lived {@link ObjectInputStream}.
+	 */
+	private static class FrameInputStream extends InputStream {
+		@Nullable private InputStream frame;
+
+		public void setFrame(@Nullable InputStream frame) {
+			this.frame = frame;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return frame == null ? -1 : frame.read();
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			return frame == null ? -1 : frame.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return frame == null ? 0 : frame.available();
+		}
+	}
+}
@@ -1,22 +1,53 @@
 package com.vanillaci.distributedinvoke.channels;
 
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.classloading.ClassServer;
+import com.vanillaci.distributedinvoke.classloading.ShippedCallable;
 import com.vanillaci.distributedinvoke.exceptions.ClassPathOutOfSyncException;
-import com.vanillaci.distributedinvoke.exceptions.UnexpectedResultException;
+import com.vanillaci.distributedinvoke.exceptions.RemoteInvocationException;
 import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * Represents the connection between the local machine and a remote machine.
  * When it detects that the connection is lost, it will attempt to re-establish the connection.
  *
+ * The channel is one session as far as the remote machine is concerned, however many connections it takes.
+ * 	Requests are numbered, and every request without a response is written again when a connection is re-established,
+ * 	in order, before anything new. The remote machine ignores the ones it already has.
+ * 	Responses are numbered by the remote machine, which holds on to them until they're acknowledged: the channel says
+ * 	where it's up to in the handshake of every new connection, every so often while it's connected, and with every heartbeat.
+ * 	So a request or response caught in a dropped connection is delivered once the connection is back, rather than never.
+ * 	A request's sequence number is also its ID, which is what the response is matched to.
+ *
+ * Requests are sent as {@link ShippedCallable}s, so the remote machine doesn't need their classes on its class path.
+ * 	It asks for any it's missing with a {@link Transport.ClassRequest}, which the channel answers from the class loaders
+ * 	of the requests it has sent (see {@link ClassServer}).
+ *
+ * A request can emit {@link Transport.Chunk}s before its response, which are numbered like responses and passed to its {@link ResultFuture}.
+ * 	The channel credits them back as they're dealt with, so a request never gets more than a window ahead of whoever is reading them.
+ *
+ * Files the remote machine's tasks produced are left in its {@link com.vanillaci.distributedinvoke.artifacts.ArtifactStore}.
+ * 	The channel only finds out where to fetch them from ({@link #locateArtifact(String)}); the contents come over a connection of their own.
+ *
  * User: Joel Johnson
  * Date: 3/2/13
  * Time: 12:09 AM
@@ -24,10 +55,50 @@ import java.util.concurrent.ConcurrentHashMap;
 public class RemoteChannel extends AutoReconnectingChannel {
 	private static final Logger LOGGER = Logger.forClass(RemoteChannel.class);
 
+	private static final Counter REQUESTS = MetricsRegistry.getDefault().counter("channel.requests");
+	private static final Counter TIMEOUTS = MetricsRegistry.getDefault().counter("channel.timeouts");
+	private static final Histogram ROUND_TRIP_NANOS = MetricsRegistry.getDefault().histogram("channel.roundTripNanos");
+
+	/**
+	 * How many responses can arrive before they're acknowledged without waiting for the next heartbeat.
+	 */
+	private static final int ACK_INTERVAL = 64;
+
 	@NotNull private final InetAddress address;
 	private final int port;
 
-	@NotNull private final Map<String, ResultFuture> pendingRequests;
+	/**
+	 * Shared by every channel. Only used to expire requests that were given a timeout.
+	 */
+	private static final HashedWheelTimer DEADLINES = HashedWheelTimer.start(RemoteChannel.class.getSimpleName() + " deadlines");
+
+	/**
+	 * Requests without a response, by ID. Kept for replaying after a reconnect as well as for matching responses.
+	 */
+	@NotNull private final ConcurrentLongMap<PendingRequest> pendingRequests = ConcurrentLongMap.create();
+
+	/**
+	 * Identifies this JVM to remote machines, however many channels it opens to them. Every session ID starts with it (see {@link #getMasterId(String)}),
+	 * 	so a remote machine can keep one class loader for all of a master's sessions.
+	 */
+	@NotNull private static final String MASTER_ID = UUID.randomUUID().toString();
+	private static final char MASTER_ID_SEPARATOR = '/';
+
+	/**
+	 * Shared by every channel, since a remote machine may ask any of a master's channels for a class a request on another one needs.
+	 */
+	@NotNull private static final ClassServer CLASS_SERVER = new ClassServer();
+
+	@NotNull private final String sessionId = MASTER_ID + MASTER_ID_SEPARATOR + UUID.randomUUID().toString();
+	private final Lock sequenceLock = new Lock();
+	@LockedBy("sequenceLock") private long lastRequestSequence;
+	/**
+	 * Only written by the thread reading responses.
+	 */
+	private volatile long lastResponseSequence;
+	@NotNull private final AtomicLong lastAcknowledged = new AtomicLong();
+	@Nullable private volatile HeartbeatListener heartbeatListener;
+	@NotNull private final AtomicBoolean heartbeatQueued = new AtomicBoolean();
 
 	/**
 	 * Creates a new instance of the RemoteChannel.
@@ -40,20 +111,32 @@ public class RemoteChannel extends AutoReconnectingChannel {
 	 */
 	@NotNull
 	public static RemoteChannel create(@NotNull String machineName, @NotNull InetAddress address, int port) throws IOException {
-		return new RemoteChannel(machineName, address, port);
+		return create(machineName, address, port, TransportCodecs.defaults());
 	}
 
-	private RemoteChannel(@NotNull String machineName, @NotNull InetAddress address, int port) throws IOException {
-		super(machineName, new Socket(address, port));
+	/**
+	 * Creates a new instance of the RemoteChannel that only uses the given codecs.
+	 *
+	 * @param codecs The codecs to offer the remote machine, in order of preference. Cannot be null or empty.
+	 * @see #create(String, java.net.InetAddress, int)
+	 */
+	@NotNull
+	public static RemoteChannel create(@NotNull String machineName, @NotNull InetAddress address, int port, @NotNull List<TransportCodec> codecs) throws IOException {
+		return new RemoteChannel(machineName, address, port, codecs);
+	}
+
+	private RemoteChannel(@NotNull String machineName, @NotNull InetAddress address, int port, @NotNull List<TransportCodec> codecs) throws IOException {
+		super(machineName, new Socket(address, port), codecs);
 		LOGGER.infop("Opened connection with %s (%s:%d)", machineName, address.toString(), port);
 
 		this.address = address;
 		this.port = port;
-		this.pendingRequests = new ConcurrentHashMap<String, ResultFuture>();
 	}
 
 	/**
 	 * Sends the given object to the remote machine.
+	 * The request is queued on this channel's writer, so this doesn't wait for the socket.
+	 * If the request can't be written, the future fails with the {@link IOException}.
 	 * @param object Object to send to the remote machine. Can be null.
 	 * @return Future object that allows you to easily wait for a response from the remote machine. Never null.
 	 * @throws IOException Typical IOException. However, if there are any problems with the connection to the remote server,
@@ -62,17 +145,191 @@ public class RemoteChannel extends AutoReconnectingChannel {
 	 */
 	@NotNull
 	public <T> ResultFuture<T> writeRequest(@Nullable Callable<T> object) throws IOException, InterruptedException {
-		Transport<Callable<T>> transport = Transport.wrap(object);
-		writeObject(transport);
+		return writeRequest(object, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the given object to the remote machine, giving up on the response after the given amount of time.
+	 * Once the deadline passes, the future fails with a {@link TimeoutException} and a late response is ignored.
+	 * @param object Object to send to the remote machine. Can be null.
+	 * @param timeout How long to wait for a response. Zero or less means forever.
+	 * @return Future object that allows you to easily wait for a response from the remote machine. Never null.
+	 * @see #writeRequest(java.util.concurrent.Callable)
+	 */
+	@NotNull
+	public <T> ResultFuture<T> writeRequest(@Nullable Callable<T> object, long timeout, @NotNull final TimeUnit unit) throws IOException, InterruptedException {
+		final long id;
+		final ResultFuture<T> future;
+		final PendingRequest pending;
+		ShippedCallable shipped = null;
+		if(object != null) {
+			CLASS_SERVER.addClassLoader(object.getClass().getClassLoader());
+			shipped = ShippedCallable.wrap(object);
+		}
+		synchronized (sequenceLock) {
+			//Numbered and queued together, so requests are written in sequence order.
+			id = ++lastRequestSequence;
+			future = ResultFuture.create(id, new ChunkBuffer.CreditSink() {
+				@Override
+				public void grant(int credits) {
+					send(Transport.wrapWithId(new Transport.ChunkCredit(credits), id), null);
+				}
+			});
+			final Transport<ShippedCallable> transport = Transport.sequenced(shipped, id, id);
+			pending = new PendingRequest(future, transport);
+			pendingRequests.put(id, pending);
+			send(transport, new SendListener() {
+				@Override
+				public void sent() {
+				}
+
+				@Override
+				public void failed(@NotNull IOException e) {
+					LOGGER.error("Couldn't send " + transport + " to " + getMachineName(), e);
+					future.setFailure(e);
+				}
+			});
+		}
+		REQUESTS.increment();
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable throwable) {
+				//Covers responses, failures, cancellation and expiry alike.
+				pendingRequests.remove(id, pending);
+			}
+		});
+
+		if(timeout > 0) {
+			final long timeoutMillis = unit.toMillis(timeout);
+			final HashedWheelTimer.Timeout expiry = DEADLINES.schedule(new Runnable() {
+				@Override
+				public void run() {
+					TIMEOUTS.increment();
+					future.setFailure(new TimeoutException("No response to " + id + " from " + getMachineName() + " after " + timeoutMillis + "ms"));
+				}
+			}, timeout, unit);
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				@Override
+				public void accept(T result, Throwable throwable) {
+					expiry.cancel();
+				}
+			});
+		}
 
-		ResultFuture<T> future = ResultFuture.create(transport.getId());
-		pendingRequests.put(transport.getId(), future);
 		return future;
 	}
 
+	/**
+	 * Asks the remote machine whether it has the given artifact, and where to fetch it from if it does.
+	 * The question takes the next request ID so the answer can be matched up, but isn't numbered as a request:
+	 * 	it's answered straight away on the remote machine, and asking again after a reconnect is harmless.
+	 * @param digest The SHA-256 of the artifact. Cannot be null.
+	 * @return Future for the answer. Never null.
+	 */
+	@NotNull
+	public ResultFuture<Transport.ArtifactLocation> locateArtifact(@NotNull String digest) {
+		final long id;
+		final ResultFuture<Transport.ArtifactLocation> future;
+		final PendingRequest pending;
+		synchronized (sequenceLock) {
+			id = ++lastRequestSequence;
+			future = ResultFuture.create(id);
+			final Transport<Transport.ArtifactRequest> transport = Transport.wrapWithId(new Transport.ArtifactRequest(digest), id);
+			pending = new PendingRequest(future, transport);
+			pendingRequests.put(id, pending);
+			send(transport, new SendListener() {
+				@Override
+				public void sent() {
+				}
+
+				@Override
+				public void failed(@NotNull IOException e) {
+					future.setFailure(e);
+				}
+			});
+		}
+		future.whenComplete(new BiConsumer<Transport.ArtifactLocation, Throwable>() {
+			@Override
+			public void accept(Transport.ArtifactLocation location, Throwable throwable) {
+				pendingRequests.remove(id, pending);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Asks the remote machine to echo a {@link Transport.Heartbeat} back. The echo is passed to the {@link HeartbeatListener}.
+	 * Does nothing if the last heartbeat is still waiting to be written, so they don't pile up while the connection is down.
+	 */
+	public void sendHeartbeat() {
+		acknowledge(0);
+		if(!heartbeatQueued.compareAndSet(false, true)) {
+			return;
+		}
+		send(Transport.wrapWithId(Transport.Heartbeat.INSTANCE, Transport.NO_ID), new SendListener() {
+			@Override
+			public void sent() {
+				heartbeatQueued.set(false);
+			}
+
+			@Override
+			public void failed(@NotNull IOException e) {
+				heartbeatQueued.set(false);
+			}
+		});
+	}
+
+	/**
+	 * @param listener Told every time a heartbeat comes back. Replaces the previous one. Can be null.
+	 */
+	public void setHeartbeatListener(@Nullable HeartbeatListener listener) {
+		this.heartbeatListener = listener;
+	}
+
+	/**
+	 * Fails every request that is still waiting for a response, such as when the remote machine has gone away.
+	 * @return The number of requests that were failed.
+	 */
+	public int failPendingRequests(@NotNull Throwable cause) {
+		int failed = 0;
+		for (PendingRequest pending : pendingRequests.values()) {
+			if(pending.future.setFailure(cause)) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * @return The number of requests that are still waiting for a response.
+	 */
+	public int getPendingRequestCount() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * @return The number of request deadlines that haven't passed or been cancelled yet, across every channel.
+	 */
+	public static int getPendingDeadlineCount() {
+		return DEADLINES.getPendingCount();
+	}
+
+	/**
+	 * @return The master the given session belongs to. Every session a master's channels open has the same one.
+	 * 	Session IDs that don't name a master are taken to be a master of their own.
+	 */
+	@NotNull
+	public static String getMasterId(@NotNull String sessionId) {
+		int separator = sessionId.indexOf(MASTER_ID_SEPARATOR);
+		return separator < 0 ? sessionId : sessionId.substring(0, separator);
+	}
+
 	/**
 	 * Reads a response from the remote machine, and if the resulting request ID matches a local request,
 	 * then all threads waiting for the response will be notified with the value.
+	 * If the remote machine responded with a {@link Transport.TransportError}, the request fails with a {@link RemoteInvocationException}.
+	 * Heartbeats are passed to the {@link HeartbeatListener} instead, requests for classes are answered straight away,
+	 * 	and chunks are passed to the future of the request they belong to without completing it.
 	 *
 	 * @throws IOException Typical IOException. However, if there are any problems with the connection to the remote server,
 	 * 						rather than bubbling up the exception the socket is attempted to be reconnected.
@@ -80,40 +337,120 @@ public class RemoteChannel extends AutoReconnectingChannel {
 	 * @throws ClassPathOutOfSyncException When the response is an object that is not on the local JVM classpath.
 	 */
 	public void readResponse() throws IOException, InterruptedException, ClassPathOutOfSyncException {
-		Object readObject;
+		Transport<?> transport;
 		try {
-			readObject = readObject();
+			transport = readTransport();
 		} catch (ClassNotFoundException e) {
 			throw new ClassPathOutOfSyncException(e);
 		}
 
-		if(readObject != null && readObject instanceof Transport) {
-			Transport transport = (Transport) readObject;
-			String id = transport.getId();
-			ResultFuture resultFuture = pendingRequests.get(id);
-			if(resultFuture == null) {
-				LOGGER.warn("Received response for unknown ID");
-			} else {
-				//noinspection unchecked
-				resultFuture.setResult(transport.getObject());
+		long sequence = transport.getSequence();
+		if(sequence > 0) {
+			if(sequence <= lastResponseSequence) {
+				return; //Replayed, and we already had it.
 			}
+			lastResponseSequence = sequence;
+			acknowledge(ACK_INTERVAL);
+		}
+
+		if(transport.getObject() instanceof Transport.Heartbeat) {
+			HeartbeatListener listener = heartbeatListener;
+			if(listener != null) {
+				listener.heartbeatReceived();
+			}
+			return;
+		}
+		if(transport.getObject() instanceof Transport.ClassRequest) {
+			Transport.ClassDefinition definition = CLASS_SERVER.define((Transport.ClassRequest) transport.getObject());
+			send(Transport.wrapWithId(definition, transport.getId()), null);
+			return;
+		}
+		if(transport.getObject() instanceof Transport.Chunk) {
+			PendingRequest pending = pendingRequests.get(transport.getId());
+			if(pending != null) {
+				pending.future.chunkReceived(((Transport.Chunk) transport.getObject()).getValue());
+			}
+			return;
+		}
+
+		PendingRequest pending = pendingRequests.remove(transport.getId());
+		if(pending == null) {
+			LOGGER.warn("Received response for unknown, cancelled or expired ID");
+			return;
+		}
+		ResultFuture resultFuture = pending.future;
+
+		ROUND_TRIP_NANOS.recordSince(resultFuture.getCreatedNanos());
+		if(transport.getObject() instanceof Transport.TransportError) {
+			resultFuture.setFailure(new RemoteInvocationException(getMachineName() + ": " + ((Transport.TransportError) transport.getObject()).getMessage()));
 		} else {
-			throw new UnexpectedResultException("Expected result of " + Transport.class.getCanonicalName() + " but was " + (readObject == null ? "null" : readObject.getClass().getCanonicalName()));
+			//noinspection unchecked
+			resultFuture.setResult(transport.getObject());
+		}
+	}
+
+	/**
+	 * Tells the remote machine which responses it can forget, if more than the given number have arrived since the last time.
+	 */
+	private void acknowledge(int threshold) {
+		long last = lastResponseSequence;
+		long previous = lastAcknowledged.get();
+		if(last - previous > threshold && lastAcknowledged.compareAndSet(previous, last)) {
+			send(Transport.wrapWithId(new Transport.Ack(last), Transport.NO_ID), null);
 		}
 	}
 
+	/**
+	 * @return Every request that hasn't been answered, in the order they were first sent.
+	 */
 	@NotNull
 	@Override
-	protected Socket reconnect() throws IOException {
-		try {
-			close();
-		} catch (IOException closeException) {
-			LOGGER.warn("Exception thrown while closing socket", closeException);
+	protected List<Transport<?>> transportsToReplay() {
+		List<PendingRequest> pending = pendingRequests.values();
+		Collections.sort(pending, new Comparator<PendingRequest>() {
+			@Override
+			public int compare(PendingRequest a, PendingRequest b) {
+				return Long.compare(a.transport.getSequence(), b.transport.getSequence());
+			}
+		});
+		List<Transport<?>> replay = new ArrayList<Transport<?>>(pending.size());
+		for (PendingRequest request : pending) {
+			replay.add(request.transport);
 		}
+		return replay;
+	}
 
+	@NotNull
+	@Override
+	protected Socket reconnect() throws IOException {
+		//The lost socket has already been closed by the time we're asked to reconnect.
 		return new Socket(address, port);
 	}
 
+	@NotNull
+	@Override
+	protected TransportCodec negotiateCodec(@NotNull List<TransportCodec> codecs, @NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
+		return CodecHandshake.offer(codecs, sessionId, lastResponseSequence, in, out);
+	}
+
+	private static final class PendingRequest {
+		@NotNull final ResultFuture future;
+		@NotNull final Transport<?> transport;
+
+		PendingRequest(@NotNull ResultFuture future, @NotNull Transport<?> transport) {
+			this.future = future;
+			this.transport = transport;
+		}
+	}
+
+	/**
+	 * Told when a heartbeat sent with {@link #sendHeartbeat()} comes back.
+	 * Called on the thread reading responses, so implementations should return quickly.
+	 */
+	public static interface HeartbeatListener {
+		void heartbeatReceived();
+	}
+
 	@Override
 	public String toString() {
 		return "RemoteChannel{" +
@@ -1,98 +1,206 @@
 package com.vanillaci.distributedinvoke.channels;
 
-import com.vanillaci.distributedinvoke.Lock;
-import com.vanillaci.distributedinvoke.exceptions.UnexpectedResultException;
+import com.vanillaci.distributedinvoke.exceptions.RemoteInvocationException;
 import com.vanillaci.ezasync.EzAsync;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 /**
  * Represents an return value that hasn't been populated yet and will be by another thread.
  *
+ * It's a regular {@link CompletableFuture}, so it can be composed with {@link #thenApply}, {@link #thenCompose} and friends
+ * 	instead of parking a thread per call.
+ * 	A future can end in one of three ways: the remote machine responds, it's {@link #cancel cancelled},
+ * 	or it fails (the request couldn't be sent, the remote machine reported an error, or its deadline passed).
+ * 	Either way the owning channel stops tracking it.
+ *
+ * A request can also emit chunks while it's running, such as the lines of a build log (see {@link com.vanillaci.distributedinvoke.jobs.TaskOutput}).
+ * 	They're available with {@link #subscribe(ChunkSubscriber)} or {@link #chunks()}, before and as well as the result.
+ *
  * User: Joel Johnson
  * Date: 3/2/13
  * Time: 11:06 AM
  */
-public final class ResultFuture<T> {
-	private final String requestId;
-	private volatile T result;
-	private volatile boolean set;
-	private final Lock waitLock = new Lock();
-	private final List<EzAsync.Callback<T>> callbacks = new LinkedList<EzAsync.Callback<T>>();
+public final class ResultFuture<T> extends CompletableFuture<T> {
+	private final long requestId;
+	private final long createdNanos = System.nanoTime();
+	@Nullable private final ChunkBuffer chunks;
+
+	@NotNull
+	/* package */ static <T> ResultFuture<T> create(long id) {
+		return new ResultFuture<T>(id, null);
+	}
+
+	/**
+	 * @param creditSink Told when the remote machine can be sent credit for more chunks.
+	 */
+	@NotNull
+	/* package */ static <T> ResultFuture<T> create(long id, @NotNull ChunkBuffer.CreditSink creditSink) {
+		final ChunkBuffer chunks = new ChunkBuffer(creditSink);
+		ResultFuture<T> future = new ResultFuture<T>(id, chunks);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable throwable) {
+				chunks.finish();
+			}
+		});
+		return future;
+	}
 
+	/**
+	 * @return A future that already has the given result, for machines that don't need to go over the network,
+	 * 	such as stand-ins used in tests and benchmarks. Never null.
+	 */
 	@NotNull
-	/* package */ static <T> ResultFuture<T> create(@NotNull String id) {
-		return new ResultFuture<T>(id);
+	public static <T> ResultFuture<T> completed(long id, @Nullable T result) {
+		ResultFuture<T> future = new ResultFuture<T>(id, null);
+		future.setResult(result);
+		return future;
 	}
 
-	private ResultFuture(@NotNull String requestId) {
+	private ResultFuture(long requestId, @Nullable ChunkBuffer chunks) {
 		this.requestId = requestId;
+		this.chunks = chunks;
 	}
 
-	public String getRequestId() {
+	public long getRequestId() {
 		return requestId;
 	}
 
+	/**
+	 * @return The {@link System#nanoTime()} the request was made at.
+	 */
+	/* package */ long getCreatedNanos() {
+		return createdNanos;
+	}
+
 	/**
 	 * Waits for the result to be populated.
 	 * If the resulting value has already been populated, then it will immediately return that value.
 	 * @return The resulting value. Can be null.
 	 * @throws InterruptedException
+	 * @throws CancellationException If the future was cancelled.
+	 * @throws RemoteInvocationException If the request failed.
 	 */
 	@Nullable
 	public T waitForResult() throws InterruptedException {
-		if(!set) {
-			synchronized (waitLock) {
-				if(!set) {
-					waitLock.wait();
-				}
-			}
-		}
-		if(!set) {
-			throw new IllegalStateException("Notified but never set: " + this);
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			throw RemoteInvocationException.wrap(requestId, e.getCause());
 		}
+	}
 
+	/**
+	 * Waits up to the given amount of time for the result to be populated.
+	 * Giving up doesn't cancel the request; call {@link #cancel(boolean)} for that.
+	 * @return The resulting value. Can be null.
+	 * @throws InterruptedException
+	 * @throws TimeoutException If the result wasn't populated in time.
+	 * @throws CancellationException If the future was cancelled.
+	 * @throws RemoteInvocationException If the request failed.
+	 */
+	@Nullable
+	public T waitForResult(long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
 		try {
-			//noinspection unchecked
-			return (T)result;
-		} catch (ClassCastException e) {
-			throw new UnexpectedResultException("Return type was not what was expected. Received: " + result);
+			return get(timeout, unit);
+		} catch (ExecutionException e) {
+			throw RemoteInvocationException.wrap(requestId, e.getCause());
 		}
 	}
 
 	/**
-	 * Sets the result of the future and notifies all callers of {@link #waitForResult()}. Can only be called once.
+	 * Sets the result of the future and notifies all callers of {@link #waitForResult()}.
+	 * Does nothing if the future was already completed, cancelled or expired.
 	 * @param result The value to be set. Can be null.
+	 * @return True if this call completed the future.
 	 */
-	/*package*/ void setResult(@Nullable T result) {
-		if(set) {
-			throw new IllegalStateException("Value already set: " + this + " to " + String.valueOf(result));
-		}
+	/*package*/ boolean setResult(@Nullable T result) {
+		return complete(result);
+	}
 
-		this.result = result;
-		set = true;
+	/**
+	 * Fails the future and notifies all callers of {@link #waitForResult()}.
+	 * Does nothing if the future was already completed, cancelled or expired.
+	 * @return True if this call completed the future.
+	 */
+	/*package*/ boolean setFailure(@NotNull Throwable cause) {
+		return completeExceptionally(cause);
+	}
+
+	/**
+	 * Cancels the future. The remote machine isn't told, so the request may still run there;
+	 * 	its response is simply dropped.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return super.cancel(mayInterruptIfRunning);
+	}
 
-		synchronized (callbacks) {
-			for (EzAsync.Callback<T> callback : callbacks) {
-				callback.done(this.result);
+	/**
+	 * Registers a callback that is called with the result once the remote machine responds successfully.
+	 * If the result has already been populated, the callback is called immediately on the calling thread.
+	 * It is not called if the future fails or is cancelled; use {@link #whenComplete} to hear about every outcome.
+	 */
+	public void registerCallback(@NotNull final EzAsync.Callback<T> callback) {
+		whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable throwable) {
+				if(throwable == null) {
+					callback.done(result);
+				}
 			}
-		}
+		});
+	}
 
-		synchronized (waitLock) {
-			waitLock.notifyAll();
+	/**
+	 * Subscribes to the chunks the request emits while it runs.
+	 * A subscriber that arrives late gets the latest {@link Transport.Chunk#WINDOW} chunks from before it subscribed, then everything after.
+	 * If the request can't emit chunks, or has already finished without any left over, the subscriber is completed straight away.
+	 * @throws IllegalStateException If something has already subscribed. Only one subscriber is allowed.
+	 */
+	public void subscribe(@NotNull ChunkSubscriber subscriber) {
+		if(chunks == null) {
+			subscriber.onSubscribe(new ChunkSubscriber.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onComplete();
+			return;
 		}
+		chunks.subscribe(subscriber);
 	}
 
-	public void registerCallback(EzAsync.Callback<T> callback) {
-		if(set) {
-			callback.done(this.result);
-		} else {
-			synchronized (callbacks) {
-				callbacks.add(callback);
-			}
+	/**
+	 * @return A blocking iterator over the chunks the request emits, which subscribes to them. Never null.
+	 * @see #subscribe(ChunkSubscriber)
+	 */
+	@NotNull
+	public ChunkIterator chunks() {
+		ChunkIterator iterator = new ChunkIterator();
+		subscribe(iterator.asSubscriber());
+		return iterator;
+	}
+
+	/* package */ void chunkReceived(@Nullable Object chunk) {
+		if(chunks != null) {
+			chunks.offer(chunk);
 		}
 	}
+
+	@Override
+	public String toString() {
+		return "ResultFuture{" +
+				"requestId='" + requestId + '\'' +
+				", " + super.toString() +
+				'}';
+	}
 }
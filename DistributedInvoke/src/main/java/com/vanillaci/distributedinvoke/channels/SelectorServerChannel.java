@@ -0,0 +1,559 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.google.common.collect.ImmutableList;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking server side of a channel that serves any number of connections at once.
+ *
+ * One thread accepts connections and hands them out round-robin to a small, fixed set of I/O threads.
+ * 	Each I/O thread owns a {@link Selector} and does all of the reading and writing for its connections.
+ * 	Every connection goes through the same {@link CodecHandshake} and frame format as {@link AutoReconnectingChannel},
+ * 	so {@link RemoteChannel}s can't tell the difference.
+ *
+ * Incoming transports are decoded on the I/O thread and passed to the {@link Handler},
+ * 	which should hand off any real work to another thread.
+ * 	Anything sent through {@link Connection#send(Transport)} is queued on the connection and written by its I/O thread.
+ * 	The queue is bounded by bytes. A client that stops reading fills it up and gets disconnected,
+ * 	rather than holding on to everything sent to it; {@link Connection#send(Transport)} is called on the I/O threads and with locks held,
+ * 	so it can't be made to wait for room instead.
+ */
+public class SelectorServerChannel implements Closeable {
+	private static final Logger LOGGER = Logger.forClass(SelectorServerChannel.class);
+
+	private static final Counter OVERFLOWS = MetricsRegistry.getDefault().counter("channel.writeQueueOverflows");
+
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+	private static final int INITIAL_READ_BUFFER_SIZE = 8192;
+	private static final long ACCEPTOR_SHUTDOWN_TIMEOUT = 5000;
+
+	@NotNull private final ServerSocketChannel serverChannel;
+	@NotNull private final Selector acceptSelector;
+	@NotNull private final List<IoThread> ioThreads;
+	@NotNull private final List<TransportCodec> codecs;
+	@NotNull private final Handler handler;
+	@NotNull private final Thread acceptThread;
+	private final long maxQueuedBytes;
+
+	@NotNull private final AtomicInteger nextIoThread = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * Binds to the given address and starts accepting connections.
+	 *
+	 * @param bindAddress The address to bind to. Cannot be null.
+	 * @param listeningPort The port to listen on.
+	 * @param codecs The codecs clients may pick from. Cannot be null or empty.
+	 * @param ioThreadCount The number of threads doing reads and writes. Must be positive.
+	 * @param handler Called for every transport received. Cannot be null.
+	 */
+	@NotNull
+	public static SelectorServerChannel open(@NotNull InetAddress bindAddress, int listeningPort, @NotNull List<TransportCodec> codecs, int ioThreadCount, @NotNull Handler handler) throws IOException {
+		return open(bindAddress, listeningPort, codecs, ioThreadCount, handler, DEFAULT_MAX_QUEUED_BYTES);
+	}
+
+	/**
+	 * Binds to the given address and starts accepting connections.
+	 *
+	 * @param maxQueuedBytes The most bytes a connection can have waiting to be written before it's closed. Must be positive.
+	 * 		A single frame bigger than this is still sent if nothing else is waiting.
+	 * @see #open(java.net.InetAddress, int, java.util.List, int, Handler)
+	 */
+	@NotNull
+	public static SelectorServerChannel open(@NotNull InetAddress bindAddress, int listeningPort, @NotNull List<TransportCodec> codecs, int ioThreadCount, @NotNull Handler handler, long maxQueuedBytes) throws IOException {
+		if(ioThreadCount <= 0) {
+			throw new IllegalArgumentException("'ioThreadCount' must be a positive integer");
+		}
+		if(maxQueuedBytes <= 0) {
+			throw new IllegalArgumentException("'maxQueuedBytes' must be a positive integer");
+		}
+		if(codecs.isEmpty()) {
+			throw new IllegalArgumentException("At least one codec is required.");
+		}
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(bindAddress, listeningPort));
+			serverChannel.configureBlocking(false);
+			return new SelectorServerChannel(serverChannel, codecs, ioThreadCount, handler, maxQueuedBytes);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+	}
+
+	private SelectorServerChannel(@NotNull ServerSocketChannel serverChannel, @NotNull List<TransportCodec> codecs, int ioThreadCount, @NotNull Handler handler, long maxQueuedBytes) throws IOException {
+		this.serverChannel = serverChannel;
+		this.codecs = ImmutableList.copyOf(codecs);
+		this.handler = handler;
+		this.maxQueuedBytes = maxQueuedBytes;
+
+		this.acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		ImmutableList.Builder<IoThread> ioThreads = ImmutableList.builder();
+		for(int i = 0; i < ioThreadCount; i++) {
+			IoThread ioThread = new IoThread(Selector.open());
+			Thread thread = new Thread(ioThread, getClass().getSimpleName() + " I/O " + i);
+			thread.setDaemon(true);
+			thread.start();
+			ioThreads.add(ioThread);
+		}
+		this.ioThreads = ioThreads.build();
+
+		this.acceptThread = new Thread(new Acceptor(), getClass().getSimpleName() + " acceptor");
+		this.acceptThread.setDaemon(true);
+		this.acceptThread.start();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The port actually bound to.
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections and closes every open connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			serverChannel.close();
+		} finally {
+			acceptSelector.wakeup();
+			for (IoThread ioThread : ioThreads) {
+				ioThread.selector.wakeup();
+			}
+		}
+
+		//The port isn't actually released until the channel is deregistered from the accept selector,
+		//	so wait for the acceptor to close it. Otherwise the port can't be bound again right away.
+		if(Thread.currentThread() != acceptThread) {
+			try {
+				acceptThread.join(ACCEPTOR_SHUTDOWN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Plugin endpoint for whatever is serving requests.
+	 */
+	public static interface Handler {
+		/**
+		 * Called on the I/O thread once the connection's handshake is done, before any of its transports are received.
+		 * {@link Connection#getSessionId()} and {@link Connection#getAcknowledged()} say which session, if any, the client is resuming.
+		 * Must not block.
+		 */
+		void connected(@NotNull Connection connection);
+
+		/**
+		 * Called on an I/O thread for every transport received. Must not block.
+		 */
+		void received(@NotNull Connection connection, @NotNull Transport<?> transport);
+	}
+
+	private class Acceptor implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while(!closed) {
+					acceptSelector.select();
+					acceptSelector.selectedKeys().clear();
+
+					SocketChannel accepted;
+					while((accepted = serverChannel.accept()) != null) {
+						accepted.configureBlocking(false);
+						accepted.socket().setTcpNoDelay(true);
+						IoThread ioThread = ioThreads.get((nextIoThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.size());
+						Connection connection = new Connection(accepted, ioThread);
+						LOGGER.infop("Accepted connection from %s", connection.getRemoteAddress());
+						ioThread.register(connection);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				LOGGER.info("Stopped accepting connections.");
+			} catch (IOException e) {
+				if(!closed) {
+					LOGGER.error("Stopped accepting connections.", e);
+				}
+			} finally {
+				try {
+					acceptSelector.close();
+				} catch (IOException e) {
+					LOGGER.warn("Couldn't close selector.", e);
+				}
+			}
+		}
+	}
+
+	private class IoThread implements Runnable {
+		@NotNull private final Selector selector;
+		@NotNull private final Queue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+		@NotNull private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+		public IoThread(@NotNull Selector selector) {
+			this.selector = selector;
+		}
+
+		public void register(@NotNull Connection connection) {
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+
+		public void requestWrite(@NotNull Connection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!closed) {
+					selector.select();
+
+					Connection connection;
+					while((connection = newConnections.poll()) != null) {
+						try {
+							connection.key = connection.socketChannel.register(selector, SelectionKey.OP_READ, connection);
+						} catch (ClosedChannelException e) {
+							connection.close();
+						}
+					}
+					while((connection = pendingWrites.poll()) != null) {
+						if(connection.key != null && connection.key.isValid()) {
+							connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+						}
+					}
+
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while(selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+
+						connection = (Connection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable()) {
+								connection.readReady();
+							}
+							if(key.isValid() && key.isWritable()) {
+								connection.writeReady();
+							}
+						} catch (IOException e) {
+							LOGGER.info("Lost connection with " + connection.getRemoteAddress(), e);
+							connection.close();
+						} catch (CancelledKeyException e) {
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error("I/O thread died.", e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if(key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					LOGGER.warn("Couldn't close selector.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One client connected to the server.
+	 * Everything except {@link #send(Transport)}, {@link #close()} and the getters is only called by the owning I/O thread.
+	 */
+	public class Connection implements Closeable {
+		@NotNull private final SocketChannel socketChannel;
+		@NotNull private final IoThread ioThread;
+		@Nullable private final SocketAddress remoteAddress;
+		@Nullable private volatile SelectionKey key;
+
+		@NotNull private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+		private final Lock writeLock = new Lock();
+		@NotNull private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		/**
+		 * The bytes in {@link #writeQueue}. Only added to while holding {@link #writeLock}, so it can't be pushed past the limit.
+		 */
+		@NotNull private final AtomicLong queuedBytes = new AtomicLong();
+
+		/**
+		 * Null until the handshake is done.
+		 */
+		@Nullable private volatile TransportFramer framer;
+		private volatile boolean open = true;
+
+		@NotNull private volatile String sessionId = "";
+		private volatile long acknowledged;
+		@Nullable private volatile Object attachment;
+
+		private Connection(@NotNull SocketChannel socketChannel, @NotNull IoThread ioThread) {
+			this.socketChannel = socketChannel;
+			this.ioThread = ioThread;
+			this.remoteAddress = socketChannel.socket().getRemoteSocketAddress();
+		}
+
+		/**
+		 * Queues the given transport to be written by this connection's I/O thread and returns immediately.
+		 * If that would put more than the server's limit of bytes in the queue, the client isn't keeping up,
+		 * 	so the connection is closed instead. A client resuming its session gets anything it missed when it reconnects.
+		 * @throws IOException If the transport couldn't be encoded or the connection is closed. Nothing is sent in that case.
+		 */
+		public void send(@NotNull Transport<?> transport) throws IOException {
+			if(!open) {
+				throw new ClosedChannelException();
+			}
+
+			TransportFramer framer = this.framer;
+			if(framer == null) {
+				throw new IllegalStateException("Can't send before the handshake is done.");
+			}
+
+			long queued;
+			synchronized (writeLock) {
+				FrameBuffer frame = framer.encode(transport);
+				queued = queuedBytes.get();
+				if(queued == 0 || queued + frame.size() <= maxQueuedBytes) {
+					byte[] bytes = new byte[frame.size()];
+					System.arraycopy(frame.getBuffer(), 0, bytes, 0, bytes.length);
+					queuedBytes.addAndGet(bytes.length);
+					writeQueue.add(ByteBuffer.wrap(bytes));
+					queued = -1;
+				}
+			}
+			if(queued >= 0) {
+				OVERFLOWS.increment();
+				LOGGER.warn(remoteAddress + " isn't reading fast enough. " + queued + " bytes are already waiting to be written, so closing the connection.");
+				close();
+				throw new IOException("Write queue for " + remoteAddress + " is full.");
+			}
+			ioThread.requestWrite(this);
+		}
+
+		/**
+		 * @return The number of bytes waiting to be written.
+		 */
+		public long getQueuedBytes() {
+			return queuedBytes.get();
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Nullable
+		public SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		/**
+		 * @return The codec negotiated for this connection, or null if the handshake isn't done.
+		 */
+		@Nullable
+		public TransportCodec getCodec() {
+			TransportFramer framer = this.framer;
+			return framer == null ? null : framer.getCodec();
+		}
+
+		/**
+		 * @return The session the client named in its handshake. Empty if it doesn't resume sessions or the handshake isn't done.
+		 */
+		@NotNull
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		/**
+		 * @return The sequence number of the last response the client had received in its session when it connected.
+		 */
+		public long getAcknowledged() {
+			return acknowledged;
+		}
+
+		/**
+		 * @return Whatever the handler attached to the connection. Can be null.
+		 */
+		@Nullable
+		public Object getAttachment() {
+			return attachment;
+		}
+
+		public void setAttachment(@Nullable Object attachment) {
+			this.attachment = attachment;
+		}
+
+		@Override
+		public void close() {
+			if(!open) {
+				return;
+			}
+			open = false;
+
+			SelectionKey key = this.key;
+			if(key != null) {
+				key.cancel();
+			}
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+				LOGGER.warn("Couldn't close connection with " + remoteAddress, e);
+			}
+			synchronized (writeLock) {
+				writeQueue.clear();
+				queuedBytes.set(0);
+			}
+		}
+
+		private void readReady() throws IOException {
+			int read = socketChannel.read(readBuffer);
+			if(read < 0) {
+				LOGGER.infop("%s disconnected.", remoteAddress);
+				close();
+				return;
+			}
+
+			readBuffer.flip();
+			int required = framer == null ? readHandshake() : readFrames();
+			readBuffer.compact();
+
+			if(required > readBuffer.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(required, readBuffer.capacity() * 2));
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		}
+
+		/**
+		 * @return The number of bytes needed to make progress.
+		 */
+		private int readHandshake() throws IOException {
+			ByteArrayInputStream offer = new ByteArrayInputStream(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+			ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			CodecHandshake.Accepted accepted;
+			try {
+				accepted = CodecHandshake.accept(codecs, new DataInputStream(offer), new DataOutputStream(reply));
+			} catch (EOFException notEnoughYet) {
+				return readBuffer.remaining() + 1;
+			} catch (IOException e) {
+				//Let the client know why before hanging up.
+				socketChannel.write(ByteBuffer.wrap(reply.toByteArray()));
+				throw e;
+			}
+
+			readBuffer.position(readBuffer.limit() - offer.available());
+			sessionId = accepted.getSessionId();
+			acknowledged = accepted.getAcknowledged();
+			synchronized (writeLock) {
+				byte[] bytes = reply.toByteArray();
+				queuedBytes.addAndGet(bytes.length);
+				writeQueue.add(ByteBuffer.wrap(bytes));
+				framer = new TransportFramer(accepted.getCodec());
+			}
+			ioThread.requestWrite(this);
+			handler.connected(this);
+
+			return readFrames();
+		}
+
+		/**
+		 * Decodes every complete frame in the read buffer.
+		 * @return The number of bytes needed to make progress.
+		 */
+		private int readFrames() throws IOException {
+			TransportFramer framer = this.framer;
+			assert framer != null;
+
+			while(open) {
+				if(readBuffer.remaining() < 4) {
+					return 4;
+				}
+
+				int length = readBuffer.getInt(readBuffer.position());
+				TransportFramer.checkLength(length);
+				if(readBuffer.remaining() < 4 + length) {
+					return 4 + length;
+				}
+
+				readBuffer.position(readBuffer.position() + 4);
+				int start = readBuffer.arrayOffset() + readBuffer.position();
+				readBuffer.position(readBuffer.position() + length);
+
+				Transport<?> transport;
+				try {
+					transport = framer.decode(readBuffer.array(), start, length);
+				} catch (ClassNotFoundException e) {
+					LOGGER.error("Class path is out of sync", e);
+					continue;
+				}
+				handler.received(this, transport);
+			}
+			return 0;
+		}
+
+		private void writeReady() throws IOException {
+			ByteBuffer next;
+			while((next = writeQueue.peek()) != null) {
+				socketChannel.write(next);
+				if(next.hasRemaining()) {
+					return; //The socket is full. Wait until it's writable again.
+				}
+				writeQueue.poll();
+				queuedBytes.addAndGet(-next.capacity());
+			}
+
+			SelectionKey key = this.key;
+			if(key != null && key.isValid()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				if(!writeQueue.isEmpty()) {
+					//Something was queued after we checked but before we cleared the interest.
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Connection{" +
+					"remoteAddress=" + remoteAddress +
+					'}';
+		}
+	}
+}
@@ -4,10 +4,13 @@ import com.vanillaci.distributedinvoke.Lock;
 import com.vanillaci.distributedinvoke.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
 
 /**
  * User: Joel Johnson
@@ -22,16 +25,23 @@ public class ServerSocketRemoteChannel extends AutoReconnectingChannel {
 	private final Lock closeLock = new Lock();
 
 	public static ServerSocketRemoteChannel create(InetAddress bindAddress, int listeningPort) {
+		return create(bindAddress, listeningPort, TransportCodecs.defaults());
+	}
+
+	/**
+	 * @param codecs The codecs clients may pick from. Cannot be null or empty.
+	 */
+	public static ServerSocketRemoteChannel create(InetAddress bindAddress, int listeningPort, @NotNull List<TransportCodec> codecs) {
 		try {
 			ServerSocket serverSocket = new ServerSocket(listeningPort, 0, bindAddress);
-			return new ServerSocketRemoteChannel(serverSocket);
+			return new ServerSocketRemoteChannel(serverSocket, codecs);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private ServerSocketRemoteChannel(@NotNull ServerSocket serverSocket) throws IOException {
-		super(ServerSocketRemoteChannel.class.getCanonicalName(), null);
+	private ServerSocketRemoteChannel(@NotNull ServerSocket serverSocket, @NotNull List<TransportCodec> codecs) throws IOException {
+		super(ServerSocketRemoteChannel.class.getCanonicalName(), null, codecs);
 		this.serverSocket = serverSocket;
 	}
 
@@ -44,6 +54,13 @@ public class ServerSocketRemoteChannel extends AutoReconnectingChannel {
 		return accept;
 	}
 
+	@NotNull
+	@Override
+	protected TransportCodec negotiateCodec(@NotNull List<TransportCodec> codecs, @NotNull DataInputStream in, @NotNull DataOutputStream out) throws IOException {
+		//Only ever has the one client, so there's no session to resume.
+		return CodecHandshake.accept(codecs, in, out).getCodec();
+	}
+
 	@Override
 	public void close() throws IOException {
 		if(closed) {
@@ -57,9 +74,10 @@ public class ServerSocketRemoteChannel extends AutoReconnectingChannel {
 
 			closed = true;
 			try {
-				super.close();
-			} finally {
+				//Close the server socket first so a pending accept() gives up the session.
 				serverSocket.close();
+			} finally {
+				super.close();
 			}
 		}
 	}
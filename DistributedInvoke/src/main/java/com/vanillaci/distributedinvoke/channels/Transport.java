@@ -4,41 +4,78 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents an object that has been sent to a remote machine.
- * The Transport has a unique ID that can be used to match up with a response.
+ * The Transport has an ID that can be used to match up with a response. IDs are only unique within the channel that assigned them,
+ * 	which numbers its requests from 1. Transports that aren't requests or responses, like heartbeats, use {@link #NO_ID}.
+ *
+ * Requests and responses that belong to a resumable session also carry a sequence number,
+ * 	numbered from 1 by whichever side sent them, so the other side can tell what it already has when a connection is re-established.
+ * 	Zero means the transport isn't part of the numbering.
  *
  * User: Joel Johnson
  * Date: 3/2/13
  * Time: 10:45 AM
  */
 public class Transport<T> implements Serializable {
-	private final String id;
+	public static final long NO_ID = 0;
+
+	/**
+	 * Only for {@link #wrap(Object)}.
+	 */
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
+	private final long id;
+	private final long sequence;
 	private final T object;
 
+	/**
+	 * Wraps the object with an ID that's unique within this JVM.
+	 */
 	@NotNull
 	public static <T> Transport<T> wrap(@Nullable T object) {
-		String id = UUID.randomUUID().toString();
-		return new Transport<T>(id, object);
+		return new Transport<T>(NEXT_ID.incrementAndGet(), 0, object);
+	}
+
+	@NotNull
+	public static <T> Transport<T> wrapWithId(@Nullable T object, long id) {
+		return new Transport<T>(id, 0, object);
 	}
 
+	/**
+	 * @param sequence The transport's place in its sender's numbering. Must be positive.
+	 */
 	@NotNull
-	public static <T> Transport<T> wrapWithId(@Nullable T object, @NotNull String id) {
-		return new Transport<T>(id, object);
+	public static <T> Transport<T> sequenced(@Nullable T object, long id, long sequence) {
+		if(sequence <= 0) {
+			throw new IllegalArgumentException("'sequence' must be positive");
+		}
+		return new Transport<T>(id, sequence, object);
+	}
+
+	/*package*/ static <T> Transport<T> decoded(@Nullable T object, long id, long sequence) {
+		return new Transport<T>(id, sequence, object);
 	}
 
-	private Transport(@NotNull String id, @Nullable T object) {
+	private Transport(long id, long sequence, @Nullable T object) {
 		this.id = id;
+		this.sequence = sequence;
 		this.object = object;
 	}
 
-	@NotNull
-	public String getId() {
+	public long getId() {
 		return id;
 	}
 
+	/**
+	 * @return The sequence number, or zero if the transport isn't numbered.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
 	@Nullable
 	public T getObject() {
 		return object;
@@ -49,6 +86,231 @@ public class Transport<T> implements Serializable {
 		return "Transport<" + (object == null ? "null" : object.getClass().getCanonicalName()) +"> " + id;
 	}
 
+	/**
+	 * Sent every so often to check the other side is still there, which echoes it straight back.
+	 * 	Never handed to a worker and never matched to a request.
+	 */
+	public static final class Heartbeat implements Serializable {
+		public static final Heartbeat INSTANCE = new Heartbeat();
+
+		private Heartbeat() {
+		}
+
+		private Object readResolve() {
+			return INSTANCE;
+		}
+
+		@Override
+		public String toString() {
+			return "Heartbeat";
+		}
+	}
+
+	/**
+	 * Tells the other side that every numbered transport up to and including the given sequence number has arrived,
+	 * 	so it can stop holding on to them.
+	 */
+	public static final class Ack implements Serializable {
+		private final long acknowledged;
+
+		public Ack(long acknowledged) {
+			this.acknowledged = acknowledged;
+		}
+
+		public long getAcknowledged() {
+			return acknowledged;
+		}
+
+		@Override
+		public String toString() {
+			return "Ack " + acknowledged;
+		}
+	}
+
+	/**
+	 * Sent by a remote machine that needs a class it doesn't have to run a request.
+	 * 	Answered with a {@link ClassDefinition} carrying the same ID.
+	 */
+	public static final class ClassRequest implements Serializable {
+		@NotNull private final String className;
+		private final boolean bytesWanted;
+
+		/**
+		 * @param bytesWanted False to only ask for the digest, so the class doesn't have to be sent if it's already cached.
+		 */
+		public ClassRequest(@NotNull String className, boolean bytesWanted) {
+			this.className = className;
+			this.bytesWanted = bytesWanted;
+		}
+
+		@NotNull
+		public String getClassName() {
+			return className;
+		}
+
+		public boolean isBytesWanted() {
+			return bytesWanted;
+		}
+
+		@Override
+		public String toString() {
+			return "ClassRequest " + className;
+		}
+	}
+
+	/**
+	 * The answer to a {@link ClassRequest}.
+	 */
+	public static final class ClassDefinition implements Serializable {
+		@NotNull private final String className;
+		@Nullable private final String digest;
+		@Nullable private final byte[] bytes;
+
+		/**
+		 * @param digest The SHA-256 of the class file, in hex. Null if the class couldn't be found.
+		 * @param bytes The class file. Null unless it was asked for and found.
+		 */
+		public ClassDefinition(@NotNull String className, @Nullable String digest, @Nullable byte[] bytes) {
+			this.className = className;
+			this.digest = digest;
+			this.bytes = bytes;
+		}
+
+		@NotNull
+		public String getClassName() {
+			return className;
+		}
+
+		@Nullable
+		public String getDigest() {
+			return digest;
+		}
+
+		@Nullable
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return "ClassDefinition " + className + " " + digest;
+		}
+	}
+
+	/**
+	 * Sent by a master that wants to fetch an artifact from a remote machine's store.
+	 * 	Answered straight away with an {@link ArtifactLocation} carrying the same ID. The contents themselves come over a separate connection.
+	 */
+	public static final class ArtifactRequest implements Serializable {
+		@NotNull private final String digest;
+
+		public ArtifactRequest(@NotNull String digest) {
+			this.digest = digest;
+		}
+
+		@NotNull
+		public String getDigest() {
+			return digest;
+		}
+
+		@Override
+		public String toString() {
+			return "ArtifactRequest " + digest;
+		}
+	}
+
+	/**
+	 * The answer to an {@link ArtifactRequest}: where to fetch the artifact from, if the remote machine has it.
+	 */
+	public static final class ArtifactLocation implements Serializable {
+		@NotNull private final String digest;
+		private final long size;
+		private final int port;
+
+		/**
+		 * @param size The length of the artifact in bytes, or -1 if the remote machine doesn't have it.
+		 * @param port The port on the remote machine that serves its artifacts.
+		 */
+		public ArtifactLocation(@NotNull String digest, long size, int port) {
+			this.digest = digest;
+			this.size = size;
+			this.port = port;
+		}
+
+		@NotNull
+		public String getDigest() {
+			return digest;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public boolean isFound() {
+			return size >= 0;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public String toString() {
+			return "ArtifactLocation " + digest + " " + (isFound() ? size + " bytes on port " + port : "not found");
+		}
+	}
+
+	/**
+	 * Something a request emitted while it was still running, like a line of its log or a partial result.
+	 * 	Carries the ID of the request it belongs to and is numbered like a response, so chunks arrive in order and before the response itself.
+	 *
+	 * A remote machine only has {@link #WINDOW} chunks of a request outstanding at a time,
+	 * 	and waits for a {@link ChunkCredit} before sending any more.
+	 */
+	public static final class Chunk implements Serializable {
+		/**
+		 * How many chunks of a single request can be sent before the other side has to credit them back.
+		 */
+		public static final int WINDOW = 64;
+
+		@Nullable private final Object value;
+
+		public Chunk(@Nullable Object value) {
+			this.value = value;
+		}
+
+		@Nullable
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return "Chunk " + (value == null ? "null" : value.getClass().getCanonicalName());
+		}
+	}
+
+	/**
+	 * Sent back for the request with the same ID once some of its {@link Chunk}s have been dealt with,
+	 * 	allowing that many more to be sent.
+	 */
+	public static final class ChunkCredit implements Serializable {
+		private final int credits;
+
+		public ChunkCredit(int credits) {
+			this.credits = credits;
+		}
+
+		public int getCredits() {
+			return credits;
+		}
+
+		@Override
+		public String toString() {
+			return "ChunkCredit " + credits;
+		}
+	}
+
 	public static class TransportError implements Serializable {
 		private final String message;
 
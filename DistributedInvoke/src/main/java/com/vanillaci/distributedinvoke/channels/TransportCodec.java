@@ -0,0 +1,54 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Plugin endpoint.
+ *
+ * Turns {@link Transport}s into frames and back. Both ends of a connection agree on a codec by name when the
+ * connection is established, so every codec must be registered under the same name on both machines.
+ * Additional codecs can be registered through {@link java.util.ServiceLoader}.
+ *
+ * Encoders and decoders belong to a single connection and are only ever used by one thread at a time,
+ * so they're free to keep state between frames.
+ */
+public interface TransportCodec {
+	/**
+	 * @return The name used to negotiate this codec with the remote machine. Must be the same on both machines.
+	 */
+	@NotNull
+	String getName();
+
+	/**
+	 * @return A new encoder for a freshly established connection.
+	 */
+	@NotNull
+	Encoder newEncoder() throws IOException;
+
+	/**
+	 * @return A new decoder for a freshly established connection.
+	 */
+	@NotNull
+	Decoder newDecoder() throws IOException;
+
+	public static interface Encoder {
+		/**
+		 * Writes the body of a single frame. The frame length is written by the channel.
+		 * If this throws, nothing written to {@code out} is sent.
+		 */
+		void encode(@NotNull Transport<?> transport, @NotNull DataOutputStream out) throws IOException;
+	}
+
+	public static interface Decoder {
+		/**
+		 * Reads back a frame body written by the matching {@link Encoder}.
+		 * @throws ClassNotFoundException When the frame contains an object whose class isn't on the local class path.
+		 */
+		@NotNull
+		Transport<?> decode(@NotNull DataInputStream in) throws IOException, ClassNotFoundException;
+	}
+}
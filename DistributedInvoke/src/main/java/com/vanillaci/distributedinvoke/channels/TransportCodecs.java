@@ -0,0 +1,43 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * The codecs a channel is willing to use, in order of preference.
+ */
+public final class TransportCodecs {
+	private TransportCodecs() {}
+
+	/**
+	 * @return Codecs registered through {@link ServiceLoader}, followed by the built in
+	 * 		{@link BinaryTransportCodec} and {@link JavaSerializationCodec}. Never null or empty.
+	 */
+	@NotNull
+	public static List<TransportCodec> defaults() {
+		ImmutableList.Builder<TransportCodec> codecs = ImmutableList.builder();
+		for (TransportCodec codec : ServiceLoader.load(TransportCodec.class)) {
+			codecs.add(codec);
+		}
+		codecs.add(new BinaryTransportCodec());
+		codecs.add(new JavaSerializationCodec());
+		return codecs.build();
+	}
+
+	/**
+	 * @return The codec with the given name, or null if there isn't one.
+	 */
+	@Nullable
+	public static TransportCodec find(@NotNull List<TransportCodec> codecs, @NotNull String name) {
+		for (TransportCodec codec : codecs) {
+			if(codec.getName().equals(name)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+}
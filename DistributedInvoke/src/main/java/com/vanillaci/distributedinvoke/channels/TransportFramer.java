@@ -0,0 +1,109 @@
+package com.vanillaci.distributedinvoke.channels;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+
+/**
+ * Writes and reads length-prefixed frames for one connection using the codec negotiated for that connection.
+ * Each frame is an int length followed by a body produced by {@link TransportCodec.Encoder}.
+ *
+ * Writing and reading are independent of each other, but each side must only be used by one thread at a time.
+ */
+/*package*/ final class TransportFramer {
+	/**
+	 * Anything bigger than this is assumed to be a corrupt stream rather than a real frame.
+	 */
+	public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	@NotNull private final TransportCodec codec;
+	@NotNull private final TransportCodec.Encoder encoder;
+	@NotNull private final TransportCodec.Decoder decoder;
+
+	@NotNull private final FrameBuffer writeBuffer = new FrameBuffer(INITIAL_BUFFER_SIZE);
+	@NotNull private final DataOutputStream writeData = new DataOutputStream(writeBuffer);
+	@NotNull private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private int lastReadSize;
+
+	public TransportFramer(@NotNull TransportCodec codec) throws IOException {
+		this.codec = codec;
+		this.encoder = codec.newEncoder();
+		this.decoder = codec.newDecoder();
+	}
+
+	@NotNull
+	public TransportCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Encodes the transport into a complete frame, length prefix included.
+	 * The returned buffer is reused by the next call.
+	 */
+	@NotNull
+	public FrameBuffer encode(@NotNull Transport<?> transport) throws IOException {
+		writeBuffer.reset();
+		writeData.writeInt(0); //placeholder for the length
+		encoder.encode(transport, writeData);
+		writeData.flush();
+
+		int length = writeBuffer.size() - 4;
+		byte[] buffer = writeBuffer.getBuffer();
+		buffer[0] = (byte) (length >>> 24);
+		buffer[1] = (byte) (length >>> 16);
+		buffer[2] = (byte) (length >>> 8);
+		buffer[3] = (byte) length;
+		return writeBuffer;
+	}
+
+	/**
+	 * Encodes the transport and writes the frame to the given stream.
+	 */
+	public void write(@NotNull Transport<?> transport, @NotNull OutputStream out) throws IOException {
+		FrameBuffer frame = encode(transport);
+		out.write(frame.getBuffer(), 0, frame.size());
+		out.flush();
+	}
+
+	/**
+	 * Blocks until a whole frame has been read from the given stream and decodes it.
+	 */
+	@NotNull
+	public Transport<?> read(@NotNull DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		checkLength(length);
+		if(readBuffer.length < length) {
+			readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+		}
+		in.readFully(readBuffer, 0, length);
+		lastReadSize = length + 4;
+		return decode(readBuffer, 0, length);
+	}
+
+	/**
+	 * @return The size of the last frame read by {@link #read(DataInputStream)}, length prefix included.
+	 */
+	public int getLastReadSize() {
+		return lastReadSize;
+	}
+
+	/**
+	 * Decodes a frame body that has already been read. The array isn't kept after this returns.
+	 */
+	@NotNull
+	public Transport<?> decode(@NotNull byte[] body, int offset, int length) throws IOException, ClassNotFoundException {
+		ByteArrayInputStream bytes = new ByteArrayInputStream(body, offset, length);
+		Transport<?> transport = decoder.decode(new DataInputStream(bytes));
+		if(bytes.available() > 0) {
+			throw new StreamCorruptedException(bytes.available() + " unread bytes left in frame decoded by " + codec.getName());
+		}
+		return transport;
+	}
+
+	public static void checkLength(int length) throws StreamCorruptedException {
+		if(length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+	}
+}
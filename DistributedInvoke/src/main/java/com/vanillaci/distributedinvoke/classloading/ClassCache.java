@@ -0,0 +1,135 @@
+package com.vanillaci.distributedinvoke.classloading;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class files a remote machine has been sent, stored by the SHA-256 of their contents.
+ *
+ * The most recently used ones are kept in memory, up to a limit in bytes, and all of them are kept in a directory,
+ * 	one file per digest. The directory outlives the process, so a class that has been sent once is never sent again,
+ * 	even to a restarted agent. Anything read back from disk is checked against its digest, and dropped if it doesn't match.
+ */
+public class ClassCache {
+	private static final Logger LOGGER = Logger.forClass(ClassCache.class);
+
+	public static final long DEFAULT_MEMORY_BYTES = 16 * 1024 * 1024;
+
+	private static final String SUFFIX = ".class";
+
+	@Nullable private final File directory;
+	private final long memoryBytes;
+
+	private final Lock lock = new Lock();
+	@LockedBy("lock") @NotNull private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	@LockedBy("lock") private long memoryUsed;
+
+	/**
+	 * @param directory Where class files are kept between runs. Created if it doesn't exist. Null to only keep them in memory.
+	 * @param memoryBytes How many bytes of class files to keep in memory.
+	 */
+	public ClassCache(@Nullable File directory, long memoryBytes) {
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			LOGGER.warn("Couldn't create class cache directory " + directory + ". Only caching in memory.");
+			directory = null;
+		}
+		this.directory = directory;
+		this.memoryBytes = memoryBytes;
+	}
+
+	/**
+	 * @return The class file with the given digest, or null if it isn't cached.
+	 */
+	@Nullable
+	public byte[] get(@NotNull String digest) {
+		synchronized (lock) {
+			byte[] bytes = memory.get(digest);
+			if(bytes != null) {
+				return bytes;
+			}
+		}
+
+		File file = file(digest);
+		if(file == null || !file.isFile()) {
+			return null;
+		}
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't read cached class " + file, e);
+			return null;
+		}
+		if(!digest.equals(Digests.sha256(bytes))) {
+			LOGGER.warn("Cached class " + file + " doesn't match its digest. Deleting it.");
+			if(!file.delete()) {
+				LOGGER.warn("Couldn't delete " + file);
+			}
+			return null;
+		}
+		remember(digest, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Caches the given class file. The caller is trusted to have checked the digest.
+	 */
+	public void put(@NotNull String digest, @NotNull byte[] bytes) {
+		remember(digest, bytes);
+
+		File file = file(digest);
+		if(file == null || file.isFile()) {
+			return;
+		}
+		//Written under another name and moved into place, so a reader never sees half a file.
+		File temp = new File(directory, digest + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			Files.write(temp.toPath(), bytes);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't cache class " + digest + " on disk.", e);
+			if(temp.exists() && !temp.delete()) {
+				LOGGER.warn("Couldn't delete " + temp);
+			}
+		}
+	}
+
+	private void remember(@NotNull String digest, @NotNull byte[] bytes) {
+		if(bytes.length > memoryBytes) {
+			return;
+		}
+		synchronized (lock) {
+			byte[] previous = memory.put(digest, bytes);
+			if(previous != null) {
+				memoryUsed -= previous.length;
+			}
+			memoryUsed += bytes.length;
+
+			Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+			while(memoryUsed > memoryBytes && eldest.hasNext()) {
+				memoryUsed -= eldest.next().getValue().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return Null if there's no directory, or the digest isn't one (the master picks it, so it mustn't be trusted as a file name).
+	 */
+	@Nullable
+	private File file(@NotNull String digest) {
+		return directory == null || !Digests.isSha256(digest) ? null : new File(directory, digest + SUFFIX);
+	}
+}
@@ -0,0 +1,173 @@
+package com.vanillaci.distributedinvoke.classloading;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Answers a remote machine's {@link Transport.ClassRequest}s on the master.
+ *
+ * Class files are looked up in the class loaders of the requests that have been sent, the most recently added first,
+ * 	falling back to the thread's context class loader. Each class's digest is worked out once per class loader and remembered,
+ * 	so answering the common question (does the remote machine's cached copy still match?) doesn't read the class file.
+ * 	Digests are remembered for the class loader that has the class file now, so a class loader for a newer build of the same classes
+ * 	gets digests of its own rather than the ones worked out for the last build.
+ *
+ * Class loaders are only weakly held, along with their digests, so a build's classes can be unloaded once nothing else is using them.
+ */
+public class ClassServer {
+	private static final Logger LOGGER = Logger.forClass(ClassServer.class);
+
+	private static final Counter SERVED = MetricsRegistry.getDefault().counter("classserver.served");
+	private static final Counter BYTES_SERVED = MetricsRegistry.getDefault().counter("classserver.bytesServed");
+
+	private final Lock classLoadersLock = new Lock();
+	/**
+	 * Most recently added first. Read without the lock; only changed with it, so nothing is added twice.
+	 */
+	@NotNull private final List<WeakReference<ClassLoader>> classLoaders = new CopyOnWriteArrayList<WeakReference<ClassLoader>>();
+	/**
+	 * By the class loader the class file was read from, then by class name.
+	 */
+	@LockedBy("classLoadersLock") @NotNull private final Map<ClassLoader, ConcurrentMap<String, String>> digests = new WeakHashMap<ClassLoader, ConcurrentMap<String, String>>();
+
+	/**
+	 * Makes the classes the given class loader can see available to remote machines.
+	 * Cheap to call again with one that's already been added.
+	 */
+	public void addClassLoader(@Nullable ClassLoader classLoader) {
+		if(classLoader == null || isAdded(classLoader)) {
+			return;
+		}
+		synchronized (classLoadersLock) {
+			if(!isAdded(classLoader)) {
+				for (WeakReference<ClassLoader> reference : classLoaders) {
+					if(reference.get() == null) {
+						classLoaders.remove(reference);
+					}
+				}
+				classLoaders.add(0, new WeakReference<ClassLoader>(classLoader));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of class loaders that have been added and not yet garbage collected.
+	 */
+	public int getClassLoaderCount() {
+		int count = 0;
+		for (WeakReference<ClassLoader> reference : classLoaders) {
+			if(reference.get() != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private boolean isAdded(@NotNull ClassLoader classLoader) {
+		for (WeakReference<ClassLoader> reference : classLoaders) {
+			if(reference.get() == classLoader) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The answer to the given request. Its digest is null if the class can't be found.
+	 */
+	@NotNull
+	public Transport.ClassDefinition define(@NotNull Transport.ClassRequest request) {
+		String className = request.getClassName();
+		String resource = className.replace('.', '/') + ".class";
+		ClassLoader classLoader = findClassLoader(resource);
+		if(classLoader == null) {
+			LOGGER.warn("Remote machine asked for " + className + ", which isn't on the class path.");
+			return new Transport.ClassDefinition(className, null, null);
+		}
+
+		ConcurrentMap<String, String> classLoaderDigests;
+		synchronized (classLoadersLock) {
+			classLoaderDigests = digests.get(classLoader);
+			if(classLoaderDigests == null) {
+				classLoaderDigests = new ConcurrentHashMap<String, String>();
+				digests.put(classLoader, classLoaderDigests);
+			}
+		}
+		String digest = classLoaderDigests.get(className);
+		if(digest != null && !request.isBytesWanted()) {
+			return new Transport.ClassDefinition(className, digest, null);
+		}
+
+		byte[] bytes = read(classLoader, resource);
+		if(bytes == null) {
+			LOGGER.warn("Couldn't read " + className + " from " + classLoader);
+			return new Transport.ClassDefinition(className, null, null);
+		}
+		digest = Digests.sha256(bytes);
+		classLoaderDigests.put(className, digest);
+		if(!request.isBytesWanted()) {
+			return new Transport.ClassDefinition(className, digest, null);
+		}
+
+		SERVED.increment();
+		BYTES_SERVED.add(bytes.length);
+		return new Transport.ClassDefinition(className, digest, bytes);
+	}
+
+	/**
+	 * @return The first class loader that has the given class file, or null if none do.
+	 */
+	@Nullable
+	private ClassLoader findClassLoader(@NotNull String resource) {
+		for (WeakReference<ClassLoader> reference : classLoaders) {
+			ClassLoader classLoader = reference.get();
+			if(classLoader != null && classLoader.getResource(resource) != null) {
+				return classLoader;
+			}
+		}
+		ClassLoader context = Thread.currentThread().getContextClassLoader();
+		return context != null && context.getResource(resource) != null ? context : null;
+	}
+
+	@Nullable
+	private static byte[] read(@NotNull ClassLoader classLoader, @NotNull String resource) {
+		InputStream in = classLoader.getResourceAsStream(resource);
+		if(in == null) {
+			return null;
+		}
+		try {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+				byte[] buffer = new byte[4096];
+				int read;
+				while((read = in.read(buffer)) >= 0) {
+					bytes.write(buffer, 0, read);
+				}
+				return bytes.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Couldn't read " + resource, e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.vanillaci.distributedinvoke.classloading;
+
+import com.vanillaci.distributedinvoke.Digests;
+import com.vanillaci.distributedinvoke.channels.ConcurrentLongMap;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defines the classes a master sends along with its requests, on the machine running them.
+ *
+ * Classes are looked for in the parent first, so the master is only asked for the ones this machine doesn't have.
+ * 	Asking takes one round trip for the class's digest and, only if the {@link ClassCache} doesn't already have it,
+ * 	a second one for the class file. So once a class has been sent to a machine, it never has to be sent again,
+ * 	even to another master or after a restart.
+ *
+ * Asking blocks the thread loading the class, so classes must never be loaded through this on an I/O thread.
+ * 	The answers arrive on the I/O thread and are passed in through {@link #definitionReceived(long, Transport.ClassDefinition)}.
+ */
+public class RemoteClassLoader extends ClassLoader {
+	private static final Logger LOGGER = Logger.forClass(RemoteClassLoader.class);
+
+	private static final Counter DEFINED = MetricsRegistry.getDefault().counter("classloader.defined");
+	private static final Counter CACHE_HITS = MetricsRegistry.getDefault().counter("classloader.cacheHits");
+	private static final Counter FETCHED = MetricsRegistry.getDefault().counter("classloader.fetched");
+	private static final Counter BYTES_FETCHED = MetricsRegistry.getDefault().counter("classloader.bytesFetched");
+
+	public static final long DEFAULT_FETCH_TIMEOUT_MILLIS = 30000;
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	@NotNull private final ClassCache cache;
+	@NotNull private final Requester requester;
+	@NotNull private final ConcurrentLongMap<CompletableFuture<Transport.ClassDefinition>> pending = ConcurrentLongMap.create();
+	@NotNull private final AtomicLong nextId = new AtomicLong();
+	/**
+	 * Classes the master said it doesn't have either, so they aren't asked for again.
+	 */
+	@NotNull private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param parent Looked in before the master is asked. Cannot be null.
+	 * @param cache Where class files are kept by digest. Can be shared by any number of loaders. Cannot be null.
+	 * @param requester Sends requests for classes to the master. Cannot be null.
+	 */
+	public RemoteClassLoader(@NotNull ClassLoader parent, @NotNull ClassCache cache, @NotNull Requester requester) {
+		super(parent);
+		this.cache = cache;
+		this.requester = requester;
+	}
+
+	@Override
+	protected Class<?> findClass(@NotNull String name) throws ClassNotFoundException {
+		if(missing.contains(name)) {
+			throw new ClassNotFoundException(name);
+		}
+		String digest = fetch(name, false).getDigest();
+		if(digest == null) {
+			missing.add(name);
+			throw new ClassNotFoundException(name);
+		}
+
+		byte[] bytes = cache.get(digest);
+		if(bytes != null) {
+			CACHE_HITS.increment();
+		} else {
+			Transport.ClassDefinition definition = fetch(name, true);
+			bytes = definition.getBytes();
+			if(bytes == null || !digest.equals(Digests.sha256(bytes))) {
+				//Most likely the class was rebuilt on the master in between asking for the digest and the bytes.
+				throw new ClassNotFoundException(name + " changed on the master while it was being fetched.");
+			}
+			FETCHED.increment();
+			BYTES_FETCHED.add(bytes.length);
+			cache.put(digest, bytes);
+		}
+
+		DEFINED.increment();
+		return defineClass(name, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Called with every {@link Transport.ClassDefinition} the master sends back.
+	 */
+	public void definitionReceived(long id, @NotNull Transport.ClassDefinition definition) {
+		CompletableFuture<Transport.ClassDefinition> future = pending.remove(id);
+		if(future == null) {
+			LOGGER.warn("Received " + definition + " for unknown or expired ID");
+			return;
+		}
+		future.complete(definition);
+	}
+
+	@NotNull
+	private Transport.ClassDefinition fetch(@NotNull String name, boolean bytesWanted) throws ClassNotFoundException {
+		long id = nextId.incrementAndGet();
+		CompletableFuture<Transport.ClassDefinition> future = new CompletableFuture<Transport.ClassDefinition>();
+		pending.put(id, future);
+		try {
+			requester.request(Transport.wrapWithId(new Transport.ClassRequest(name, bytesWanted), id));
+			return future.get(DEFAULT_FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			throw new ClassNotFoundException("Couldn't ask the master for " + name, e);
+		} catch (TimeoutException e) {
+			throw new ClassNotFoundException("The master didn't send " + name + " within " + DEFAULT_FETCH_TIMEOUT_MILLIS + "ms", e);
+		} catch (ExecutionException e) {
+			throw new ClassNotFoundException("Couldn't fetch " + name, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClassNotFoundException("Interrupted while fetching " + name, e);
+		} finally {
+			pending.remove(id);
+		}
+	}
+
+	/**
+	 * Plugin endpoint for however the loader reaches the master.
+	 */
+	public static interface Requester {
+		/**
+		 * Sends the given {@link Transport.ClassRequest} to the master. Must not wait for the answer.
+		 * @throws IOException If there's no connection to send it on.
+		 */
+		void request(@NotNull Transport<Transport.ClassRequest> request) throws IOException;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteClassLoader{" +
+				"pending=" + pending.size() +
+				'}';
+	}
+}
@@ -0,0 +1,116 @@
+package com.vanillaci.distributedinvoke.classloading;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+
+/**
+ * A request on its way to a remote machine, kept in its serialized form until the machine is ready to run it.
+ *
+ * Deserializing a request can need classes the remote machine doesn't have yet, which it has to ask for over the
+ * 	same connection the request came in on. So the request is only turned back into a {@link Callable}
+ * 	by {@link #resolve(ClassLoader)} on a worker thread, never while the frame is being decoded.
+ *
+ * The callable is serialized the first time the request is written and the bytes are kept,
+ * 	so replaying it after a reconnect sends exactly what was sent the first time.
+ */
+public final class ShippedCallable implements Serializable {
+	@Nullable private transient Callable<?> callable;
+	@Nullable private transient byte[] bytes;
+
+	private ShippedCallable(@Nullable Callable<?> callable, @Nullable byte[] bytes) {
+		this.callable = callable;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param callable The request to send. Serialized the first time it's written. Cannot be null.
+	 */
+	@NotNull
+	public static ShippedCallable wrap(@NotNull Callable<?> callable) {
+		return new ShippedCallable(callable, null);
+	}
+
+	/**
+	 * @param bytes A request serialized by {@link #getBytes()}. Cannot be null.
+	 */
+	@NotNull
+	public static ShippedCallable fromBytes(@NotNull byte[] bytes) {
+		return new ShippedCallable(null, bytes);
+	}
+
+	/**
+	 * @return The serialized callable. Not copied, so it must not be modified.
+	 * @throws NotSerializableException If the callable, or anything it refers to, can't be serialized.
+	 */
+	@NotNull
+	public synchronized byte[] getBytes() throws IOException {
+		if(bytes == null) {
+			assert callable != null;
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(callable);
+			out.flush();
+			bytes = buffer.toByteArray();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Deserializes the callable, resolving its classes through the given class loader.
+	 * @throws ClassNotFoundException If the class loader can't find one of the classes.
+	 */
+	@NotNull
+	public Callable<?> resolve(@NotNull ClassLoader classLoader) throws IOException, ClassNotFoundException {
+		Object object = new ClassLoaderObjectInputStream(new ByteArrayInputStream(getBytes()), classLoader).readObject();
+		if(!(object instanceof Callable)) {
+			throw new StreamCorruptedException("Expected " + Callable.class.getCanonicalName() + " but was " + (object == null ? "null" : object.getClass().getCanonicalName()));
+		}
+		return (Callable<?>) object;
+	}
+
+	private void writeObject(@NotNull ObjectOutputStream out) throws IOException {
+		byte[] serialized = getBytes();
+		out.writeInt(serialized.length);
+		out.write(serialized);
+	}
+
+	private void readObject(@NotNull ObjectInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			throw new StreamCorruptedException("Negative length: " + length);
+		}
+		byte[] serialized = new byte[length];
+		in.readFully(serialized);
+		bytes = serialized;
+	}
+
+	@Override
+	public String toString() {
+		Callable<?> callable = this.callable;
+		return "ShippedCallable<" + (callable == null ? "serialized" : callable.getClass().getCanonicalName()) + ">";
+	}
+
+	/**
+	 * Looks classes up in the given class loader instead of whichever one loaded the calling code.
+	 */
+	private static class ClassLoaderObjectInputStream extends ObjectInputStream {
+		@NotNull private final ClassLoader classLoader;
+
+		public ClassLoaderObjectInputStream(@NotNull InputStream in, @NotNull ClassLoader classLoader) throws IOException {
+			super(in);
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(@NotNull ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, classLoader);
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc); //Primitive types can't be found by name.
+			}
+		}
+	}
+}
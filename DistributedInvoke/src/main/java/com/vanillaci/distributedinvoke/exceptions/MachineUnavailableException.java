@@ -0,0 +1,11 @@
+package com.vanillaci.distributedinvoke.exceptions;
+
+/**
+ * Fails requests that were in flight on a machine when it stopped answering heartbeats.
+ * 	The request may or may not have run there; there's no way to know.
+ */
+public class MachineUnavailableException extends RemoteInvocationException {
+	public MachineUnavailableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,29 @@
+package com.vanillaci.distributedinvoke.exceptions;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Thrown when waiting on a request that failed instead of producing a result.
+ * The cause says why: the remote machine reported an error, the request couldn't be sent, or it expired.
+ */
+public class RemoteInvocationException extends RuntimeException {
+	public RemoteInvocationException(String message) {
+		super(message);
+	}
+
+	public RemoteInvocationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	/**
+	 * @return The given cause if it already is a RemoteInvocationException, otherwise a new one wrapping it.
+	 */
+	@NotNull
+	public static RemoteInvocationException wrap(long requestId, @Nullable Throwable cause) {
+		if(cause instanceof RemoteInvocationException) {
+			return (RemoteInvocationException) cause;
+		}
+		return new RemoteInvocationException("Request " + requestId + " failed: " + cause, cause);
+	}
+}
@@ -0,0 +1,19 @@
+package com.vanillaci.distributedinvoke.jobs;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A task whose result depends only on its inputs, so running it again with the same inputs can be skipped.
+ * Tasks that don't implement this always run.
+ */
+public interface CacheableTask<T> extends Task<T> {
+	/**
+	 * Two tasks of the same class with the same key are assumed to produce the same result.
+	 * So the key has to cover everything the result depends on (the commit, the inputs' contents, the tool versions...),
+	 * 	and nothing that changes from one submission to the next, like timestamps.
+	 *
+	 * @return The key the result is cached under. Cannot be null.
+	 */
+	@NotNull
+	String getCacheKey();
+}
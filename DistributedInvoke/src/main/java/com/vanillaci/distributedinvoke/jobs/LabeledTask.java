@@ -0,0 +1,16 @@
+package com.vanillaci.distributedinvoke.jobs;
+
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A task that may only run on machines whose labels match its expression.
+ * Tasks that don't implement this can run on any machine.
+ */
+public interface LabeledTask<T> extends Task<T> {
+	/**
+	 * @return The expression a machine's labels have to match. Cannot be null.
+	 */
+	@NotNull
+	Label.Expression getLabelExpression();
+}
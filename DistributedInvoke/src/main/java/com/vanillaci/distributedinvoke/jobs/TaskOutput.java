@@ -0,0 +1,68 @@
+package com.vanillaci.distributedinvoke.jobs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+
+/**
+ * Where a running task sends things the master should see before the task finishes, such as the lines of its log or partial results.
+ * A task gets its output with {@link #current()}. On a remote machine each emitted chunk goes to the master straight away,
+ * 	where it can be read from the task's {@link com.vanillaci.distributedinvoke.channels.ResultFuture}.
+ *
+ * Emitting can block: the master only lets a task get so far ahead of whoever is reading its chunks,
+ * 	so a task that emits a lot is slowed down rather than having its output pile up in memory.
+ */
+public abstract class TaskOutput {
+	/**
+	 * Throws away everything. What tasks get when they aren't running on a remote machine.
+	 */
+	public static final TaskOutput NONE = new TaskOutput() {
+		@Override
+		public void emit(@Nullable Serializable chunk) {
+		}
+	};
+
+	private static final ThreadLocal<TaskOutput> CURRENT = new ThreadLocal<TaskOutput>();
+
+	/**
+	 * @return The output of the task running on the calling thread, or {@link #NONE} if there isn't one. Never null.
+	 */
+	@NotNull
+	public static TaskOutput current() {
+		TaskOutput output = CURRENT.get();
+		return output == null ? NONE : output;
+	}
+
+	/**
+	 * Sends the given chunk to the master, in order with the others the task emits.
+	 * @param chunk The chunk. Can be null.
+	 * @throws InterruptedException If the thread is interrupted while waiting for the master to catch up.
+	 */
+	public abstract void emit(@Nullable Serializable chunk) throws InterruptedException;
+
+	/**
+	 * Emits a line of the task's log.
+	 */
+	public void log(@NotNull String line) throws InterruptedException {
+		emit(line);
+	}
+
+	/**
+	 * Runs the given task with this as its {@link #current()} output.
+	 */
+	public <T> T callWithin(@NotNull Callable<T> callable) throws Exception {
+		TaskOutput previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return callable.call();
+		} finally {
+			if(previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+}
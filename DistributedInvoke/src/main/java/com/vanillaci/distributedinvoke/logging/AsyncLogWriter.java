@@ -0,0 +1,333 @@
+package com.vanillaci.distributedinvoke.logging;
+
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Hands log records to a background thread so the threads doing real work never format a message,
+ * 	render a stack trace or wait on a {@link java.util.logging.Handler}.
+ * 	Started with {@link Logger#startAsync(int, OverflowPolicy)}; until then, and after it's closed, every {@link Logger} writes synchronously.
+ *
+ * Records go into a bounded ring of preallocated slots. Any number of threads can claim a slot at once with a single CAS on the tail,
+ * 	and each slot carries a sequence number that says whether it's free, claimed or ready to be written (Vyukov's bounded queue).
+ * 	Publishing a record copies the format and its arguments into the slot, so the only allocation left on the caller's thread
+ * 	is the varargs array, if there is one. The message is formatted on the writer thread, which means arguments are
+ * 	turned into strings a little later than they were logged; anything passed as an argument should have a thread-safe toString.
+ *
+ * When the ring is full, the {@link OverflowPolicy} decides whether the caller waits for room or the record is thrown away.
+ * 	Dropped records are counted, and the writer reports how many it lost once it catches up.
+ */
+public final class AsyncLogWriter implements Closeable {
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * How long the writer thread sleeps when the ring is empty, if no one wakes it sooner.
+	 */
+	private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * What to do with a record when the ring is full.
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * Throw the record away and count it. Logging never slows the caller down.
+		 */
+		DROP,
+
+		/**
+		 * Wait until the writer thread makes room. Nothing is lost, but the caller runs at the speed of the handlers.
+		 */
+		BLOCK
+	}
+
+	/*package*/ static final int LITERAL = 0;
+	/*package*/ static final int VARARGS = -1;
+
+	@NotNull private final OverflowPolicy policy;
+	@NotNull private final Event[] slots;
+	@NotNull private final AtomicLongArray sequences;
+	private final int mask;
+
+	@NotNull private final AtomicLong tail = new AtomicLong();
+	private long head; //Only touched by the writer thread.
+	@NotNull private final AtomicLong written = new AtomicLong();
+	@NotNull private final AtomicLong dropped = new AtomicLong();
+	@NotNull private final Counter droppedMetric;
+	private long droppedReported; //Only touched by the writer thread.
+
+	@NotNull private final Thread writer;
+	@NotNull private final Thread shutdownHook;
+	private volatile boolean sleeping;
+	private volatile boolean stopped;
+
+	/**
+	 * Use {@link Logger#startAsync(int, OverflowPolicy)}.
+	 */
+	@NotNull
+	/*package*/ static AsyncLogWriter start(int capacity, @NotNull OverflowPolicy policy) {
+		if(capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("'capacity' must be between 1 and 2^30");
+		}
+		return new AsyncLogWriter(capacity, policy);
+	}
+
+	private AsyncLogWriter(int capacity, @NotNull OverflowPolicy policy) {
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) {
+			size <<= 1;
+		}
+
+		this.policy = policy;
+		//Looked up here rather than in a static field: MetricsRegistry logs while it initializes.
+		this.droppedMetric = MetricsRegistry.getDefault().counter("logging.dropped");
+		this.slots = new Event[size];
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			slots[i] = new Event();
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+
+		this.writer = new Thread(new Writer(), getClass().getSimpleName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		this.shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Queues a record for the writer thread.
+	 * @return False if the record has to be written by the caller instead: the writer has been closed,
+	 * 	or the caller is the writer thread itself (a handler that logs). True if it was queued or dropped.
+	 */
+	/*package*/ boolean publish(@NotNull java.util.logging.Logger target, @NotNull Level level, @Nullable String format, int argCount,
+								@Nullable Object arg0, @Nullable Object arg1, @Nullable Object[] args, @Nullable Throwable thrown) {
+		if(stopped || Thread.currentThread() == writer) {
+			return false;
+		}
+
+		long position = claim();
+		if(position < 0) {
+			return position == -1; //-1 means dropped, -2 means closed while waiting.
+		}
+
+		Event event = slots[(int) position & mask];
+		event.target = target;
+		event.level = level;
+		event.format = format;
+		event.argCount = argCount;
+		event.arg0 = arg0;
+		event.arg1 = arg1;
+		event.args = args;
+		event.thrown = thrown;
+		sequences.set((int) position & mask, position + 1); //Volatile, so the writer sees it before it decides to sleep.
+
+		if(sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The position of the claimed slot, -1 if the record was dropped, or -2 if the writer was closed while waiting for room.
+	 */
+	private long claim() {
+		while(true) {
+			long position = tail.get();
+			long difference = sequences.get((int) position & mask) - position;
+			if(difference == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					return position;
+				}
+			} else if(difference < 0) {
+				//Full. The writer hasn't freed the slot from the last time around.
+				if(policy == OverflowPolicy.DROP) {
+					dropped.incrementAndGet();
+					droppedMetric.increment();
+					return -1;
+				}
+				if(stopped) {
+					return -2;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(this, 50000);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every record queued before this call has been handed to its handlers.
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		long target = tail.get();
+		while(written.get() < target && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, 100000);
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of records thrown away because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of records waiting to be written.
+	 */
+	public int getQueuedCount() {
+		return (int) (tail.get() - written.get());
+	}
+
+	/**
+	 * Writes what's already queued, stops the writer thread, and puts every {@link Logger} back to writing synchronously.
+	 */
+	@Override
+	public void close() {
+		if(stopped) {
+			return;
+		}
+		Logger.asyncWriterClosed(this);
+		stopped = true;
+		LockSupport.unpark(writer);
+		if(Thread.currentThread() != writer) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ignore) {
+				//Already shutting down.
+			}
+		}
+	}
+
+	/**
+	 * Formats the message and hands it to the target's handlers.
+	 * The source class is set to the logger's name up front, so {@link java.util.logging} doesn't walk the stack looking for it
+	 * 	(it would only find this class anyway).
+	 */
+	/*package*/ static void write(@NotNull java.util.logging.Logger target, @NotNull Level level, @Nullable String format, int argCount,
+								  @Nullable Object arg0, @Nullable Object arg1, @Nullable Object[] args, @Nullable Throwable thrown) {
+		String message;
+		switch (argCount) {
+			case LITERAL:
+				message = format;
+				break;
+			case 1:
+				message = String.format(format, arg0);
+				break;
+			case 2:
+				message = String.format(format, arg0, arg1);
+				break;
+			default:
+				message = String.format(format, args);
+				break;
+		}
+
+		if(thrown != null) {
+			String stackTrace = ExceptionUtils.getFullStackTrace(thrown);
+			message = message == null ? stackTrace : message + "\n" + stackTrace;
+		}
+		target.logp(level, target.getName(), null, message);
+	}
+
+	private static final class Event {
+		java.util.logging.Logger target;
+		Level level;
+		String format;
+		int argCount;
+		Object arg0;
+		Object arg1;
+		Object[] args;
+		Throwable thrown;
+
+		void writeAndClear() {
+			try {
+				write(target, level, format, argCount, arg0, arg1, args, thrown);
+			} catch (RuntimeException e) {
+				//A bad format string or a broken toString shouldn't take the writer down with it.
+				target.logp(Level.WARNING, target.getName(), null, "Couldn't write log record: " + format + "\n" + ExceptionUtils.getFullStackTrace(e));
+			}
+			target = null;
+			level = null;
+			format = null;
+			arg0 = null;
+			arg1 = null;
+			args = null;
+			thrown = null;
+		}
+	}
+
+	private final class Writer implements Runnable {
+		@Override
+		public void run() {
+			while(true) {
+				if(drain() > 0) {
+					continue;
+				}
+				if(stopped) {
+					drain(); //Anything that got in before the flag was seen.
+					return;
+				}
+
+				sleeping = true;
+				if(isReady(head)) {
+					sleeping = false;
+					continue;
+				}
+				LockSupport.parkNanos(this, MAX_SLEEP_NANOS);
+				sleeping = false;
+			}
+		}
+
+		private int drain() {
+			int count = 0;
+			while(isReady(head)) {
+				int index = (int) head & mask;
+				slots[index].writeAndClear();
+				sequences.set(index, head + slots.length);
+				head++;
+				written.lazySet(head);
+				count++;
+			}
+
+			long lost = dropped.get();
+			if(lost != droppedReported) {
+				java.util.logging.Logger logger = java.util.logging.Logger.getLogger(AsyncLogWriter.class.getCanonicalName());
+				logger.logp(Level.WARNING, logger.getName(), null, "Dropped " + (lost - droppedReported) + " log records because the queue was full.");
+				droppedReported = lost;
+			}
+			return count;
+		}
+
+		private boolean isReady(long position) {
+			return sequences.get((int) position & mask) == position + 1;
+		}
+	}
+}
@@ -2,76 +2,161 @@ package com.vanillaci.distributedinvoke.logging;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.apache.commons.lang.exception.ExceptionUtils;
 
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
+ * Thin wrapper around {@link java.util.logging}.
+ *
+ * Nothing is formatted unless the level is enabled: use the {@code infop} overloads or a {@link Supplier} instead of
+ * 	concatenating on hot paths. Once {@link #startAsync(int, AsyncLogWriter.OverflowPolicy)} has been called,
+ * 	formatting and the handlers run on a background thread as well.
+ *
  * User: Joel Johnson
  * Date: 3/1/13
  * Time: 11:40 PM
  */
 public class Logger {
+	@Nullable private static volatile AsyncLogWriter asyncWriter;
+
 	private final java.util.logging.Logger logger;
 
 	public static Logger forClass(@NotNull Class cls) {
 		return new Logger(java.util.logging.Logger.getLogger(cls.getCanonicalName()));
 	}
 
+	/**
+	 * Moves every logger onto a background writer thread until the returned writer is closed.
+	 * @param capacity How many records can be waiting before the overflow policy kicks in. Rounded up to a power of two.
+	 * @param policy What to do with a record when the writer has fallen that far behind. Cannot be null.
+	 * @return The writer. Close it to flush and go back to logging synchronously. Never null.
+	 * @throws IllegalStateException If logging is already asynchronous.
+	 */
+	@NotNull
+	public static synchronized AsyncLogWriter startAsync(int capacity, @NotNull AsyncLogWriter.OverflowPolicy policy) {
+		if(asyncWriter != null) {
+			throw new IllegalStateException("Logging is already asynchronous.");
+		}
+		AsyncLogWriter writer = AsyncLogWriter.start(capacity, policy);
+		asyncWriter = writer;
+		return writer;
+	}
+
+	/*package*/ static synchronized void asyncWriterClosed(@NotNull AsyncLogWriter writer) {
+		if(asyncWriter == writer) {
+			asyncWriter = null;
+		}
+	}
+
 	private Logger(java.util.logging.Logger logger) {
 		this.logger = logger;
 	}
 
+	public boolean isInfoEnabled() {
+		return logger.isLoggable(Level.INFO);
+	}
+
 	public void error(@NotNull String message, @Nullable Throwable e) {
 		if(logger.isLoggable(Level.SEVERE)) {
-			String stackTrace = e == null ? "" : "\n" + ExceptionUtils.getFullStackTrace(e);
-			logger.severe(message + stackTrace);
+			log(Level.SEVERE, message, AsyncLogWriter.LITERAL, null, null, null, e);
+		}
+	}
+
+	public void error(@NotNull Supplier<String> message, @Nullable Throwable e) {
+		if(logger.isLoggable(Level.SEVERE)) {
+			log(Level.SEVERE, message.get(), AsyncLogWriter.LITERAL, null, null, null, e);
 		}
 	}
 
 	public void error(Throwable e) {
 		if(logger.isLoggable(Level.SEVERE)) {
-			String stackTrace = e == null ? "" : ExceptionUtils.getFullStackTrace(e);
-			logger.severe(stackTrace);
+			log(Level.SEVERE, null, AsyncLogWriter.LITERAL, null, null, null, e);
 		}
 	}
 
 	public void error(String message) {
-		logger.severe(message);
+		if(logger.isLoggable(Level.SEVERE)) {
+			log(Level.SEVERE, message, AsyncLogWriter.LITERAL, null, null, null, null);
+		}
 	}
 
 	public void warn(String s) {
-		logger.warning(s);
+		if(logger.isLoggable(Level.WARNING)) {
+			log(Level.WARNING, s, AsyncLogWriter.LITERAL, null, null, null, null);
+		}
+	}
+
+	public void warn(@NotNull Supplier<String> message) {
+		if(logger.isLoggable(Level.WARNING)) {
+			log(Level.WARNING, message.get(), AsyncLogWriter.LITERAL, null, null, null, null);
+		}
 	}
 
 	public void warn(String message, Throwable e) {
 		if(logger.isLoggable(Level.WARNING)) {
-			String stackTrace = e == null ? "" : "\n" + ExceptionUtils.getFullStackTrace(e);
-			logger.warning(message + "\n" + stackTrace);
+			log(Level.WARNING, message, AsyncLogWriter.LITERAL, null, null, null, e);
 		}
 	}
 
 	public void warn(Throwable e) {
 		if(logger.isLoggable(Level.WARNING)) {
-			String stackTrace = e == null ? "" : ExceptionUtils.getFullStackTrace(e);
-			logger.warning(stackTrace);
+			log(Level.WARNING, null, AsyncLogWriter.LITERAL, null, null, null, e);
 		}
 	}
 
 	public void info(String message) {
-		logger.info(message);
+		if(logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, message, AsyncLogWriter.LITERAL, null, null, null, null);
+		}
+	}
+
+	/**
+	 * The supplier is only called if info is enabled.
+	 */
+	public void info(@NotNull Supplier<String> message) {
+		if(logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, message.get(), AsyncLogWriter.LITERAL, null, null, null, null);
+		}
 	}
 
+	/**
+	 * Same as {@link #infop(String, Object...)}, without allocating an array for the argument.
+	 */
+	public void infop(String format, Object arg) {
+		if(logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, format, 1, arg, null, null, null);
+		}
+	}
+
+	/**
+	 * Same as {@link #infop(String, Object...)}, without allocating an array for the arguments.
+	 */
+	public void infop(String format, Object arg0, Object arg1) {
+		if(logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, format, 2, arg0, arg1, null, null);
+		}
+	}
+
+	/**
+	 * Logs {@link String#format(String, Object...)} of the arguments, formatting only if info is enabled.
+	 */
 	public void infop(String format, Object... args) {
 		if(logger.isLoggable(Level.INFO)) {
-			info(String.format(format, args));
+			log(Level.INFO, format, AsyncLogWriter.VARARGS, null, null, args, null);
 		}
 	}
 
 	public void info(String message, Throwable e) {
 		if(logger.isLoggable(Level.INFO)) {
-			String stackTrace = e == null ? "" : "\n" + ExceptionUtils.getFullStackTrace(e);
-			logger.info(message + "\n" + stackTrace);
+			log(Level.INFO, message, AsyncLogWriter.LITERAL, null, null, null, e);
+		}
+	}
+
+	private void log(@NotNull Level level, @Nullable String format, int argCount, @Nullable Object arg0, @Nullable Object arg1, @Nullable Object[] args, @Nullable Throwable thrown) {
+		AsyncLogWriter writer = asyncWriter;
+		if(writer == null || !writer.publish(logger, level, format, argCount, arg0, arg1, args, thrown)) {
+			AsyncLogWriter.write(logger, level, format, argCount, arg0, arg1, args, thrown);
 		}
 	}
 }
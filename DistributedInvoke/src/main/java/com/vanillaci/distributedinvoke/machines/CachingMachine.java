@@ -0,0 +1,174 @@
+package com.vanillaci.distributedinvoke.machines;
+
+import com.vanillaci.distributedinvoke.cache.ResultCache;
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
+import com.vanillaci.distributedinvoke.jobs.CacheableTask;
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Answers {@link CacheableTask}s from a {@link ResultCache} where it can, and passes everything else on to another machine.
+ *
+ * A cache hit comes back as an already completed {@link ResultFuture} and never reserves any executors.
+ * 	If the caller already holds a reservation, it's released. Results of tasks that do run are offered to the cache.
+ * 	Callables that aren't {@link CacheableTask}s always run.
+ *
+ * Reservations are made on the underlying machine, so {@link Reservation#getMachine()} is that machine, not this one.
+ */
+public class CachingMachine implements Machine {
+	@NotNull private final Machine machine;
+	@NotNull private final ResultCache cache;
+
+	/**
+	 * @param machine Where tasks that aren't cached run. Cannot be null.
+	 * @param cache Where results are looked up and kept. Can be shared by any number of machines. Cannot be null.
+	 */
+	public CachingMachine(@NotNull Machine machine, @NotNull ResultCache cache) {
+		this.machine = machine;
+		this.cache = cache;
+	}
+
+	@NotNull
+	public Machine getMachine() {
+		return machine;
+	}
+
+	@Nullable
+	@Override
+	public <T extends Serializable> T invoke(@NotNull Callable<T> callable, int weight) throws IOException, InterruptedException, NotEnoughExecutorsException {
+		return invokeAsync(callable, weight).waitForResult();
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight) throws IOException, InterruptedException, NotEnoughExecutorsException {
+		return invokeAsync(callable, weight, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException, NotEnoughExecutorsException {
+		T cached = lookUp(callable);
+		if(cached != null) {
+			return ResultFuture.completed(Transport.NO_ID, cached);
+		}
+		return remember(callable, machine.invokeAsync(callable, weight, timeout, unit));
+	}
+
+	@Nullable
+	@Override
+	public Reservation tryReserve(int weight) {
+		return machine.tryReserve(weight);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation) throws IOException, InterruptedException {
+		return invokeAsync(callable, reservation, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException {
+		T cached = lookUp(callable);
+		if(cached != null) {
+			reservation.release();
+			return ResultFuture.completed(Transport.NO_ID, cached);
+		}
+		return remember(callable, machine.invokeAsync(callable, reservation, timeout, unit));
+	}
+
+	@Nullable
+	private <T> T lookUp(@NotNull Callable<T> callable) {
+		if(callable instanceof CacheableTask) {
+			//noinspection unchecked
+			return cache.get((CacheableTask<T>) callable);
+		}
+		return null;
+	}
+
+	@NotNull
+	private <T> ResultFuture<T> remember(@NotNull final Callable<T> callable, @NotNull ResultFuture<T> future) {
+		if(callable instanceof CacheableTask) {
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				@Override
+				public void accept(T result, Throwable throwable) {
+					if(throwable == null) {
+						//noinspection unchecked
+						cache.put((CacheableTask<T>) callable, result);
+					}
+				}
+			});
+		}
+		return future;
+	}
+
+	@Override
+	public int getTotalExecutorCount() {
+		return machine.getTotalExecutorCount();
+	}
+
+	@Override
+	public int getAvailableExecutorCount() {
+		return machine.getAvailableExecutorCount();
+	}
+
+	@Override
+	public int getBusyExecutorCount() {
+		return machine.getBusyExecutorCount();
+	}
+
+	@Override
+	public void addCapacityListener(@NotNull CapacityListener listener) {
+		machine.addCapacityListener(listener);
+	}
+
+	@Override
+	public void removeCapacityListener(@NotNull CapacityListener listener) {
+		machine.removeCapacityListener(listener);
+	}
+
+	@Override
+	public Label.Expression getLabels() {
+		return machine.getLabels();
+	}
+
+	@NotNull
+	@Override
+	public String getName() {
+		return machine.getName();
+	}
+
+	@NotNull
+	@Override
+	public InetAddress getAddress() {
+		return machine.getAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return machine.getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		machine.close();
+	}
+
+	@Override
+	public String toString() {
+		return "CachingMachine{" +
+				"machine=" + machine +
+				'}';
+	}
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: Joel Johnson
@@ -33,9 +34,8 @@ public interface Machine extends Closeable {
 	 * @param weight The number of executors to use. Must be positive. If a non-positive value is given, 1 will be assumed.
 	 * @return The result of the callable. Can be null.
 	 * @throws NotEnoughExecutorsException Thrown if there isn't enough capacity to run the request.
-	 * 	{@link #getAvailableExecutorCount()} can be called to check to see if there is enough capacity, but
-	 * 	because of the multi-threaded environment this is meant to be run in, it cannot be guaranteed that that number
-	 * 	will be accurate by the time this method is called.
+	 * 	The executors are reserved atomically, so concurrent callers can never overbook the machine.
+	 * 	To find out whether there's room without throwing, use {@link #tryReserve(int)}.
 	 * @throws java.io.IOException
 	 * @throws InterruptedException
 	 */
@@ -48,18 +48,91 @@ public interface Machine extends Closeable {
 	 * @param weight The number of executors to use. Must be positive. If a non-positive value is given, 1 will be assumed.
 	 * @return The future that represents the pending results. Cannot be null, but the eventual value may or may not be null.
 	 * @throws NotEnoughExecutorsException Thrown if there isn't enough capacity to run the request.
-	 * 	{@link #getAvailableExecutorCount()} can be called to check to see if there is enough capacity, but
-	 * 	because of the multi-threaded environment this is meant to be run in, it cannot be guaranteed that that number
-	 * 	will be accurate by the time this method is called.
+	 * 	The executors are reserved atomically, so concurrent callers can never overbook the machine.
+	 * 	To find out whether there's room without throwing, use {@link #tryReserve(int)}.
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	@NotNull
 	<T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight) throws IOException, InterruptedException, NotEnoughExecutorsException;
 
+	/**
+	 * Executes the given callable asynchronously, giving up on the result after the given amount of time.
+	 * If the machine doesn't respond in time, the future fails with a {@link java.util.concurrent.TimeoutException}
+	 * 	and the executors are freed up again. The callable may still be running on the remote machine.
+	 * @param callable The callable to execute. Cannot be null.
+	 * @param weight The number of executors to use. Must be positive. If a non-positive value is given, 1 will be assumed.
+	 * @param timeout How long to wait for the result. Zero or less means forever.
+	 * @param unit The unit of the timeout. Cannot be null.
+	 * @see #invokeAsync(java.util.concurrent.Callable, int)
+	 */
+	@NotNull
+	<T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException, NotEnoughExecutorsException;
+
+	/**
+	 * Atomically reserves executors on this machine, if there are enough free.
+	 * Once a reservation is made, nobody else can take those executors until it's released,
+	 * 	either by passing it to {@link #invokeAsync(java.util.concurrent.Callable, Reservation)} or by calling {@link Reservation#release()}.
+	 * @param weight The number of executors to reserve. Must be positive. If a non-positive value is given, 1 will be assumed.
+	 * @return The reservation, or null if there aren't enough free executors.
+	 */
+	@Nullable
+	Reservation tryReserve(int weight);
+
+	/**
+	 * Executes the given callable asynchronously on executors that were already reserved.
+	 * The reservation is released however the future ends, including failure, cancellation and expiry.
+	 * @param callable The callable to execute. Cannot be null.
+	 * @param reservation A reservation made by {@link #tryReserve(int)} on this machine that hasn't been used or released.
+	 * @throws IllegalArgumentException If the reservation is from another machine, or was already used or released.
+	 */
+	@NotNull
+	<T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation) throws IOException, InterruptedException;
+
+	/**
+	 * Executes the given callable asynchronously on executors that were already reserved, giving up on the result after the given amount of time.
+	 * @param timeout How long to wait for the result. Zero or less means forever.
+	 * @param unit The unit of the timeout. Cannot be null.
+	 * @see #invokeAsync(java.util.concurrent.Callable, Reservation)
+	 * @see #invokeAsync(java.util.concurrent.Callable, int, long, java.util.concurrent.TimeUnit)
+	 */
+	@NotNull
+	<T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException;
+
 	int getTotalExecutorCount();
 	int getAvailableExecutorCount();
 	int getBusyExecutorCount();
 
+	/**
+	 * Registers a listener to be told whenever executors on this machine are freed up.
+	 * @param listener Called on whichever thread frees the executors, so it must not block. Cannot be null.
+	 */
+	void addCapacityListener(@NotNull CapacityListener listener);
+
+	void removeCapacityListener(@NotNull CapacityListener listener);
+
 	Label.Expression getLabels();
+
+	/**
+	 * Executors held on a machine by {@link #tryReserve(int)}.
+	 */
+	public static interface Reservation {
+		@NotNull
+		Machine getMachine();
+
+		int getWeight();
+
+		/**
+		 * Gives the executors back to the machine. Only the first call does anything.
+		 * @return True if this call released the executors.
+		 */
+		boolean release();
+	}
+
+	public static interface CapacityListener {
+		/**
+		 * Called after executors on the given machine have been freed up.
+		 */
+		void capacityFreed(@NotNull Machine machine);
+	}
 }
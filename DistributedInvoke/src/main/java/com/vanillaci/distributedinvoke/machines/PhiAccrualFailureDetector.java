@@ -0,0 +1,173 @@
+package com.vanillaci.distributedinvoke.machines;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how likely it is that a machine has gone away, based on when its heartbeats have been arriving.
+ *
+ * Rather than a yes-or-no timeout, it keeps a window of recent gaps between heartbeats and treats them as a normal distribution.
+ * 	The suspicion level, phi, is how unlikely it would be to have waited this long if the machine were fine:
+ * 	phi = -log10(P(gap >= time since the last heartbeat)). A phi of 1 means about a 10% chance of being wrong, 2 about 1%, 3 about 0.1%, and so on.
+ * 	A machine on a jittery network or with a busy JVM builds up a wider distribution, so it gets more slack than a quiet one
+ * 	without anyone tuning a timeout per machine (Hayashibara et al., "The phi accrual failure detector").
+ *
+ * The acceptable pause is added to the mean, to allow for things the history doesn't show, like a long GC.
+ * 	The minimum standard deviation keeps a very regular history from making phi shoot up at the first late heartbeat.
+ *
+ * Thread safe. Heartbeats are normally recorded on one thread and phi checked on another.
+ */
+public class PhiAccrualFailureDetector {
+	public static final double DEFAULT_THRESHOLD = 8;
+	public static final int DEFAULT_WINDOW_SIZE = 1000;
+
+	private final double threshold;
+	private final long acceptablePauseNanos;
+	private final long minStdDeviationNanos;
+	private final long firstHeartbeatEstimateNanos;
+
+	private final Lock lock = new Lock();
+	@LockedBy("lock") @NotNull private final long[] intervals;
+	@LockedBy("lock") private int intervalCount;
+	@LockedBy("lock") private int next;
+	@LockedBy("lock") private double sum;
+	@LockedBy("lock") private double sumOfSquares;
+	@LockedBy("lock") private long lastHeartbeatNanos;
+	@LockedBy("lock") private boolean started;
+
+	/**
+	 * Creates a detector for heartbeats that are sent every {@code heartbeatInterval},
+	 * 	with the default threshold and window, an acceptable pause of three intervals, and a minimum standard deviation of a tenth of one.
+	 */
+	@NotNull
+	public static PhiAccrualFailureDetector create(long heartbeatInterval, @NotNull TimeUnit unit) {
+		long intervalNanos = unit.toNanos(heartbeatInterval);
+		return create(DEFAULT_THRESHOLD, DEFAULT_WINDOW_SIZE, intervalNanos * 3, intervalNanos / 10, intervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param threshold The phi above which the machine is considered unavailable. Must be positive.
+	 * @param windowSize How many of the most recent gaps between heartbeats to base the distribution on. Must be positive.
+	 * @param acceptablePause Extra time to allow on top of the usual gap. Cannot be negative.
+	 * @param minStdDeviation The smallest standard deviation to assume. Must be positive.
+	 * @param firstHeartbeatEstimate The gap to assume before any heartbeats have arrived. Must be positive.
+	 */
+	@NotNull
+	public static PhiAccrualFailureDetector create(double threshold, int windowSize, long acceptablePause, long minStdDeviation, long firstHeartbeatEstimate, @NotNull TimeUnit unit) {
+		if(threshold <= 0) {
+			throw new IllegalArgumentException("'threshold' must be positive");
+		}
+		if(windowSize <= 0) {
+			throw new IllegalArgumentException("'windowSize' must be a positive integer");
+		}
+		if(acceptablePause < 0) {
+			throw new IllegalArgumentException("'acceptablePause' cannot be negative");
+		}
+		if(minStdDeviation <= 0 || firstHeartbeatEstimate <= 0) {
+			throw new IllegalArgumentException("'minStdDeviation' and 'firstHeartbeatEstimate' must be positive");
+		}
+		return new PhiAccrualFailureDetector(threshold, windowSize, unit.toNanos(acceptablePause), unit.toNanos(minStdDeviation), unit.toNanos(firstHeartbeatEstimate));
+	}
+
+	private PhiAccrualFailureDetector(double threshold, int windowSize, long acceptablePauseNanos, long minStdDeviationNanos, long firstHeartbeatEstimateNanos) {
+		this.threshold = threshold;
+		this.acceptablePauseNanos = acceptablePauseNanos;
+		this.minStdDeviationNanos = minStdDeviationNanos;
+		this.firstHeartbeatEstimateNanos = firstHeartbeatEstimateNanos;
+		this.intervals = new long[windowSize];
+	}
+
+	/**
+	 * Records a heartbeat arriving at the given time.
+	 * @param nowNanos From {@link System#nanoTime()}.
+	 */
+	public void heartbeat(long nowNanos) {
+		synchronized (lock) {
+			if(!started) {
+				started = true;
+				//Seed the history so the first few heartbeats aren't judged against nothing.
+				long deviation = firstHeartbeatEstimateNanos / 4;
+				add(firstHeartbeatEstimateNanos - deviation);
+				add(firstHeartbeatEstimateNanos + deviation);
+			} else {
+				add(nowNanos - lastHeartbeatNanos);
+			}
+			lastHeartbeatNanos = nowNanos;
+		}
+	}
+
+	/**
+	 * Starts the clock without recording a gap, as if a heartbeat had just arrived.
+	 * 	Call it when monitoring starts, so a machine that never sends a single heartbeat is still caught.
+	 * 	Also forgets the history, for when a machine comes back after being unavailable and the gap would only skew it.
+	 */
+	public void reset(long nowNanos) {
+		synchronized (lock) {
+			intervalCount = 0;
+			next = 0;
+			sum = 0;
+			sumOfSquares = 0;
+			started = false;
+			heartbeat(nowNanos);
+		}
+	}
+
+	/**
+	 * @param nowNanos From {@link System#nanoTime()}.
+	 * @return How suspicious it is that no heartbeat has arrived since the last one. Zero if none ever has.
+	 */
+	public double phi(long nowNanos) {
+		synchronized (lock) {
+			if(!started) {
+				return 0;
+			}
+
+			double mean = sum / intervalCount;
+			double variance = sumOfSquares / intervalCount - mean * mean;
+			double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviationNanos);
+			return phi(nowNanos - lastHeartbeatNanos, mean + acceptablePauseNanos, stdDeviation);
+		}
+	}
+
+	/**
+	 * @return True while phi is at or below the threshold.
+	 */
+	public boolean isAvailable(long nowNanos) {
+		return phi(nowNanos) <= threshold;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	@LockedBy("lock")
+	private void add(long interval) {
+		if(intervalCount == intervals.length) {
+			long oldest = intervals[next];
+			sum -= oldest;
+			sumOfSquares -= (double) oldest * oldest;
+		} else {
+			intervalCount++;
+		}
+		intervals[next] = interval;
+		next = (next + 1) % intervals.length;
+		sum += interval;
+		sumOfSquares += (double) interval * interval;
+	}
+
+	/**
+	 * Uses a logistic approximation of the normal distribution's tail, which is cheap and accurate to within 0.01%.
+	 */
+	/*package*/ static double phi(long elapsed, double mean, double stdDeviation) {
+		double y = (elapsed - mean) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if(elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		} else {
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+}
@@ -1,22 +1,53 @@
 package com.vanillaci.distributedinvoke.machines;
 
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.artifacts.Artifact;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactServer;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactStore;
+import com.vanillaci.distributedinvoke.channels.HashedWheelTimer;
 import com.vanillaci.distributedinvoke.channels.RemoteChannel;
 import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.Transport;
 import com.vanillaci.distributedinvoke.exceptions.ClassPathOutOfSyncException;
+import com.vanillaci.distributedinvoke.exceptions.MachineUnavailableException;
 import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
 import com.vanillaci.distributedinvoke.exceptions.UnexpectedResultException;
 import com.vanillaci.distributedinvoke.logging.Logger;
 import com.vanillaci.distributedinvoke.machines.labels.Label;
-import com.vanillaci.ezasync.EzAsync;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
+ * A machine on the other end of a {@link RemoteChannel}.
+ *
+ * The machine is sent a heartbeat every so often, which it echoes straight back, and a {@link PhiAccrualFailureDetector}
+ * 	judges from their arrival times whether it's still there. Once the detector gives up on it, the machine is unavailable
+ * 	and no new executors can be reserved. Requests in flight keep their executors for now: the machine is probably still running them,
+ * 	and its session holds their responses until the master reconnects.
+ * 	Only if it stays unavailable for the failover timeout ({@link #DEFAULT_FAILOVER_TIMEOUT_MILLIS} unless given, which is when the
+ * 	machine forgets the session) does every request in flight fail with a {@link MachineUnavailableException}, giving their executors back.
+ * 	Heartbeats keep being sent, and the machine becomes available again as soon as one comes back.
+ *
+ * A machine can be reached over more than one connection, each with its own channel and response reader.
+ * 	Each request goes on the connection with the fewest requests waiting for a response, so one large task or result
+ * 	only holds up the connection it's on, and big agents aren't limited to what one TCP stream can carry.
+ * 	Heartbeats go out on every connection; the first echo back each round counts for the failure detector.
+ *
  * User: Joel Johnson
  * Date: 3/1/13
  * Time: 10:45 PM
@@ -24,17 +55,54 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class RemoteMachine implements Machine {
 	private static final Logger LOGGER = Logger.forClass(RemoteChannel.class);
 
+	/**
+	 * Across every machine. It goes up when executors are reserved and down when they're released.
+	 */
+	private static final Counter BUSY_EXECUTORS = MetricsRegistry.getDefault().counter("machine.busyExecutors");
+	private static final Counter REJECTED = MetricsRegistry.getDefault().counter("machine.rejected");
+	private static final Histogram INVOKE_NANOS = MetricsRegistry.getDefault().histogram("machine.invokeNanos");
+	private static final Counter DECLARED_UNAVAILABLE = MetricsRegistry.getDefault().counter("machine.declaredUnavailable");
+	private static final Counter FAILED_OVER = MetricsRegistry.getDefault().counter("machine.failedOver");
+	private static final Counter ARTIFACTS_ALREADY_PRESENT = MetricsRegistry.getDefault().counter("artifacts.alreadyPresent");
+
+	public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 1000;
+	public static final int DEFAULT_CONNECTION_COUNT = 1;
+	public static final long ARTIFACT_LOCATE_TIMEOUT_MILLIS = 30000;
+	public static final long DEFAULT_FAILOVER_TIMEOUT_MILLIS = com.vanillaci.distributedinvoke.machines.RemoteMachineListener.SESSION_TIMEOUT_MILLIS;
+
+	/**
+	 * How long the response reader waits before trying again after losing the connection.
+	 */
+	private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+
+	/**
+	 * Shared by every machine. Sends the heartbeats and checks on the answers.
+	 */
+	private static final HashedWheelTimer HEARTBEATS = HashedWheelTimer.start(RemoteMachine.class.getSimpleName() + " heartbeats");
+
 	private final String name;
 	private final InetAddress address;
 	private final int port;
 
 	private final int totalExecutorCount;
 	private final AtomicInteger busyExecutorCount;
+	private final List<CapacityListener> capacityListeners;
 
-	private transient final RemoteChannel channel;
-	private transient Thread listenerThread;
+	@NotNull private transient final RemoteChannel[] channels;
+	@NotNull private transient final Thread[] listenerThreads;
+	private final AtomicInteger nextChannel = new AtomicInteger();
 	private final Label.Expression labels;
 
+	private final long heartbeatIntervalNanos;
+	private final long failoverTimeoutNanos;
+	@NotNull private final PhiAccrualFailureDetector failureDetector;
+	private final Lock availabilityLock = new Lock();
+	@LockedBy("availabilityLock") private volatile boolean available = true;
+	@LockedBy("availabilityLock") private long unavailableSinceNanos;
+	@LockedBy("availabilityLock") private boolean failedOver;
+	@NotNull private final AtomicBoolean heartbeatAnswered = new AtomicBoolean();
+	private volatile boolean closed;
+
 	/**
 	 * Connects to the machine at the given address.
 	 *
@@ -57,8 +125,101 @@ public class RemoteMachine implements Machine {
 		if(port <= 0) {
 			throw new IllegalArgumentException("'port' must be a positive integer");
 		}
+		return connectToMachine(name, address, port, executorCount, labels, DEFAULT_CONNECTION_COUNT, DEFAULT_HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Connects to the machine at the given address over the given number of connections.
+	 *
+	 * @param connectionCount How many connections to spread requests across. Must be positive.
+	 * @see #connectToMachine(String, java.net.InetAddress, int, int, String)
+	 */
+	@NotNull
+	public static Machine connectToMachine(
+			@NotNull String name,
+			@NotNull InetAddress address,
+			int port,
+			int executorCount,
+			String labels,
+			int connectionCount
+	) throws IOException {
+		return connectToMachine(name, address, port, executorCount, labels, connectionCount, DEFAULT_HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Connects to the machine at the given address, sending it heartbeats at the given rate.
+	 * With the default detector settings, a machine is given up on a little over four heartbeat intervals after it goes quiet.
+	 *
+	 * @param heartbeatInterval How often to check the machine is still there. Must be positive.
+	 * @see #connectToMachine(String, java.net.InetAddress, int, int, String)
+	 */
+	@NotNull
+	public static Machine connectToMachine(
+			@NotNull String name,
+			@NotNull InetAddress address,
+			int port,
+			int executorCount,
+			String labels,
+			long heartbeatInterval,
+			@NotNull TimeUnit unit
+	) throws IOException {
+		return connectToMachine(name, address, port, executorCount, labels, DEFAULT_CONNECTION_COUNT, heartbeatInterval, unit);
+	}
+
+	/**
+	 * Connects to the machine at the given address over the given number of connections, sending heartbeats at the given rate.
+	 *
+	 * @param connectionCount How many connections to spread requests across. Must be positive.
+	 * @param heartbeatInterval How often to check the machine is still there. Must be positive.
+	 * @see #connectToMachine(String, java.net.InetAddress, int, int, String, long, java.util.concurrent.TimeUnit)
+	 */
+	@NotNull
+	public static Machine connectToMachine(
+			@NotNull String name,
+			@NotNull InetAddress address,
+			int port,
+			int executorCount,
+			String labels,
+			int connectionCount,
+			long heartbeatInterval,
+			@NotNull TimeUnit unit
+	) throws IOException {
+		return connectToMachine(name, address, port, executorCount, labels, connectionCount, heartbeatInterval, unit.convert(DEFAULT_FAILOVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), unit);
+	}
+
+	/**
+	 * Connects to the machine at the given address, giving up on the requests in flight once it has been unavailable for the given time.
+	 *
+	 * @param failoverTimeout How long the machine can be unavailable before the requests in flight fail,
+	 * 	so they can be run somewhere else. Shorter than the machine's session timeout risks running them twice. Must be positive.
+	 * @see #connectToMachine(String, java.net.InetAddress, int, int, String, int, long, java.util.concurrent.TimeUnit)
+	 */
+	@NotNull
+	public static Machine connectToMachine(
+			@NotNull String name,
+			@NotNull InetAddress address,
+			int port,
+			int executorCount,
+			String labels,
+			int connectionCount,
+			long heartbeatInterval,
+			long failoverTimeout,
+			@NotNull TimeUnit unit
+	) throws IOException {
+		if(port <= 0) {
+			throw new IllegalArgumentException("'port' must be a positive integer");
+		}
+		if(connectionCount <= 0) {
+			throw new IllegalArgumentException("'connectionCount' must be a positive integer");
+		}
+		if(heartbeatInterval <= 0) {
+			throw new IllegalArgumentException("'heartbeatInterval' must be a positive integer");
+		}
+		if(failoverTimeout <= 0) {
+			throw new IllegalArgumentException("'failoverTimeout' must be a positive integer");
+		}
 		Label.Expression labelExpression = Label.parse(labels);
-		return new RemoteMachine(name, address, port, executorCount, labelExpression);
+		return new RemoteMachine(name, address, port, executorCount, labelExpression, connectionCount, unit.toNanos(heartbeatInterval), unit.toNanos(failoverTimeout));
 	}
 
 	private RemoteMachine(
@@ -66,25 +227,64 @@ public class RemoteMachine implements Machine {
 			@NotNull InetAddress address,
 			int port,
 			int executorCount,
-			@NotNull Label.Expression labels
+			@NotNull Label.Expression labels,
+			int connectionCount,
+			long heartbeatIntervalNanos,
+			long failoverTimeoutNanos
 	) throws IOException {
 		assert port > 0;
+		assert connectionCount > 0;
 		this.name = name;
 		this.address = address;
 		this.port = port;
-		this.channel = RemoteChannel.create(name, address, port);
+		this.channels = new RemoteChannel[connectionCount];
+		try {
+			for(int i = 0; i < connectionCount; i++) {
+				channels[i] = RemoteChannel.create(name, address, port);
+			}
+		} catch (IOException e) {
+			for (RemoteChannel opened : channels) {
+				if(opened != null) {
+					opened.close();
+				}
+			}
+			throw e;
+		}
 		this.totalExecutorCount = executorCount;
 		this.busyExecutorCount = new AtomicInteger(0);
+		this.capacityListeners = new CopyOnWriteArrayList<CapacityListener>();
 
-		this.listenerThread = new Thread(new RemoteMachineListener());
+		this.listenerThreads = new Thread[connectionCount];
+		for(int i = 0; i < connectionCount; i++) {
+			listenerThreads[i] = new Thread(new RemoteMachineListener(channels[i]));
+		}
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
 			public void run() {
-				listenerThread.interrupt();
+				for (Thread listenerThread : listenerThreads) {
+					listenerThread.interrupt();
+				}
 			}
 		}));
-		this.listenerThread.start();
 		this.labels = labels;
+
+		this.heartbeatIntervalNanos = heartbeatIntervalNanos;
+		this.failoverTimeoutNanos = failoverTimeoutNanos;
+		this.failureDetector = PhiAccrualFailureDetector.create(heartbeatIntervalNanos, TimeUnit.NANOSECONDS);
+		this.failureDetector.reset(System.nanoTime());
+		RemoteChannel.HeartbeatListener heartbeatListener = new RemoteChannel.HeartbeatListener() {
+			@Override
+			public void heartbeatReceived() {
+				RemoteMachine.this.heartbeatReceived();
+			}
+		};
+		for (RemoteChannel channel : channels) {
+			channel.setHeartbeatListener(heartbeatListener);
+		}
+		for (Thread listenerThread : listenerThreads) {
+			listenerThread.start();
+		}
+		HEARTBEATS.schedule(new Heartbeat(), 0, TimeUnit.NANOSECONDS);
 	}
 
 
@@ -98,23 +298,129 @@ public class RemoteMachine implements Machine {
 	@NotNull
 	@Override
 	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> remoteCall, int weight) throws IOException, InterruptedException, NotEnoughExecutorsException {
-		final int normalizedWeight = weight > 0 ? weight : 1;
-		if (normalizedWeight > getAvailableExecutorCount()) {
+		return invokeAsync(remoteCall, weight, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The executors are given back however the future ends, including failure, cancellation and expiry.
+	 */
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> remoteCall, int weight, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException, NotEnoughExecutorsException {
+		Reservation reservation = tryReserve(weight);
+		if (reservation == null) {
+			REJECTED.increment();
 			throw new NotEnoughExecutorsException(this);
 		}
+		return invokeAsync(remoteCall, reservation, timeout, unit);
+	}
+
+	@Nullable
+	@Override
+	public Reservation tryReserve(int weight) {
+		if(!available) {
+			return null;
+		}
+		int normalizedWeight = weight > 0 ? weight : 1;
+		while(true) {
+			int busy = busyExecutorCount.get();
+			if(busy + normalizedWeight > totalExecutorCount) {
+				return null;
+			}
+			if(busyExecutorCount.compareAndSet(busy, busy + normalizedWeight)) {
+				BUSY_EXECUTORS.add(normalizedWeight);
+				return new RemoteReservation(normalizedWeight);
+			}
+		}
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> remoteCall, @NotNull Reservation reservation) throws IOException, InterruptedException {
+		return invokeAsync(remoteCall, reservation, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> remoteCall, @NotNull final Reservation reservation, long timeout, @NotNull TimeUnit unit) throws IOException, InterruptedException {
+		if(!(reservation instanceof RemoteReservation) || reservation.getMachine() != this) {
+			throw new IllegalArgumentException(reservation + " wasn't made on " + name);
+		}
+		if(!((RemoteReservation) reservation).use()) {
+			throw new IllegalArgumentException(reservation + " was already used or released");
+		}
 
-		busyExecutorCount.addAndGet(normalizedWeight);
+		final long start = System.nanoTime();
+		ResultFuture<T> resultFuture;
+		try {
+			resultFuture = pickChannel().writeRequest(remoteCall, timeout, unit);
+		} catch (IOException e) {
+			reservation.release();
+			throw e;
+		} catch (InterruptedException e) {
+			reservation.release();
+			throw e;
+		}
 
-		ResultFuture<T> resultFuture = channel.writeRequest(remoteCall);
-		resultFuture.registerCallback(new EzAsync.Callback<T>() {
+		resultFuture.whenComplete(new BiConsumer<T, Throwable>() {
 			@Override
-			public void done(@Nullable T result) {
-				busyExecutorCount.addAndGet(-normalizedWeight);
+			public void accept(T result, Throwable throwable) {
+				INVOKE_NANOS.recordSince(start);
+				reservation.release();
 			}
 		});
 		return resultFuture;
 	}
 
+	/**
+	 * @return The channel with the fewest requests waiting for a response.
+	 * 	Ties go round-robin, so an idle machine still spreads its requests across every connection.
+	 */
+	@NotNull
+	private RemoteChannel pickChannel() {
+		if(channels.length == 1) {
+			return channels[0];
+		}
+		int start = (nextChannel.getAndIncrement() & Integer.MAX_VALUE) % channels.length;
+		RemoteChannel best = channels[start];
+		int fewest = best.getPendingRequestCount();
+		for(int i = 1; i < channels.length && fewest > 0; i++) {
+			RemoteChannel candidate = channels[(start + i) % channels.length];
+			int pending = candidate.getPendingRequestCount();
+			if(pending < fewest) {
+				best = candidate;
+				fewest = pending;
+			}
+		}
+		return best;
+	}
+
+	private void release(int weight) {
+		busyExecutorCount.addAndGet(-weight);
+		BUSY_EXECUTORS.add(-weight);
+		notifyCapacityListeners();
+	}
+
+	private void notifyCapacityListeners() {
+		for (CapacityListener capacityListener : capacityListeners) {
+			try {
+				capacityListener.capacityFreed(this);
+			} catch (RuntimeException e) {
+				LOGGER.error("Capacity listener failed.", e);
+			}
+		}
+	}
+
+	@Override
+	public void addCapacityListener(@NotNull CapacityListener listener) {
+		capacityListeners.add(listener);
+	}
+
+	@Override
+	public void removeCapacityListener(@NotNull CapacityListener listener) {
+		capacityListeners.remove(listener);
+	}
+
 	@Override
 	public int getTotalExecutorCount() {
 		return totalExecutorCount;
@@ -125,9 +431,158 @@ public class RemoteMachine implements Machine {
 		return busyExecutorCount.intValue();
 	}
 
+	/**
+	 * @return Zero while the machine is unavailable.
+	 */
 	@Override
 	public int getAvailableExecutorCount() {
-		return getTotalExecutorCount() - getBusyExecutorCount();
+		return available ? getTotalExecutorCount() - getBusyExecutorCount() : 0;
+	}
+
+	/**
+	 * @return False once the machine has stopped answering heartbeats, until it starts again.
+	 */
+	public boolean isAvailable() {
+		return available;
+	}
+
+	/**
+	 * @return The failure detector's current phi for this machine. The higher it is, the more likely the machine is gone.
+	 */
+	public double getSuspicion() {
+		return failureDetector.phi(System.nanoTime());
+	}
+
+	/**
+	 * @return The number of connections requests are spread across.
+	 */
+	public int getConnectionCount() {
+		return channels.length;
+	}
+
+	/**
+	 * Copies an artifact one of this machine's tasks stored into the given store, unless it's already there.
+	 * The machine is asked where to get it from over the usual connection, and the contents come over one of their own,
+	 * 	so fetching a big artifact doesn't hold up requests. An interrupted fetch is resumed (see {@link ArtifactServer}).
+	 * @param artifact What the task returned. Cannot be null.
+	 * @param destination Where to put it. Cannot be null.
+	 * @return The artifact's file in the destination store. Only to be read.
+	 * @throws FileNotFoundException If this machine doesn't have the artifact, for example because it was evicted.
+	 * @throws IOException If the machine can't be reached, or what arrived doesn't match the artifact's digest.
+	 */
+	@NotNull
+	public File fetchArtifact(@NotNull Artifact artifact, @NotNull ArtifactStore destination) throws IOException, InterruptedException {
+		File existing = destination.get(artifact.getDigest());
+		if(existing != null) {
+			ARTIFACTS_ALREADY_PRESENT.increment();
+			return existing;
+		}
+
+		Transport.ArtifactLocation location = locateArtifact(artifact);
+		if(!location.isFound()) {
+			throw new FileNotFoundException(name + " doesn't have " + artifact);
+		}
+
+		ArtifactServer.fetch(address, location.getPort(), artifact.getDigest(), location.getSize(), destination);
+		File fetched = destination.get(artifact.getDigest());
+		if(fetched == null) {
+			throw new FileNotFoundException(artifact + " was evicted from " + destination + " as soon as it arrived. Is the store big enough?");
+		}
+		return fetched;
+	}
+
+	/**
+	 * Copies an artifact from the given store to this machine's, unless it's already there,
+	 * 	so its tasks can get at it through {@link ArtifactStore#current()}. For example, a workspace to build in.
+	 * @param artifact An artifact in the given store. Cannot be null.
+	 * @param source The store to send it from. Cannot be null.
+	 * @return True if it was sent, false if this machine already had it.
+	 * @throws FileNotFoundException If the given store doesn't have the artifact.
+	 * @throws IOException If the machine can't be reached.
+	 */
+	public boolean pushArtifact(@NotNull Artifact artifact, @NotNull ArtifactStore source) throws IOException, InterruptedException {
+		Transport.ArtifactLocation location = locateArtifact(artifact);
+		if(location.isFound()) {
+			ARTIFACTS_ALREADY_PRESENT.increment();
+			return false;
+		}
+		ArtifactServer.push(address, location.getPort(), artifact, source);
+		return true;
+	}
+
+	@NotNull
+	private Transport.ArtifactLocation locateArtifact(@NotNull Artifact artifact) throws IOException, InterruptedException {
+		Transport.ArtifactLocation location;
+		try {
+			location = pickChannel().locateArtifact(artifact.getDigest()).waitForResult(ARTIFACT_LOCATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new IOException(name + " didn't say where " + artifact + " is within " + ARTIFACT_LOCATE_TIMEOUT_MILLIS + "ms", e);
+		}
+		if(location == null) {
+			throw new IOException(name + " didn't say where " + artifact + " is");
+		}
+		return location;
+	}
+
+	/**
+	 * Called on a response reader thread.
+	 */
+	private void heartbeatReceived() {
+		if(!heartbeatAnswered.compareAndSet(false, true)) {
+			return; //Another connection already answered this round.
+		}
+		long now = System.nanoTime();
+		synchronized (availabilityLock) {
+			if(available) {
+				failureDetector.heartbeat(now);
+				return;
+			}
+			//The gap while it was gone says nothing about how it usually behaves.
+			failureDetector.reset(now);
+			available = true;
+			failedOver = false;
+		}
+
+		LOGGER.warn(name + " is answering heartbeats again.");
+		notifyCapacityListeners();
+	}
+
+	/**
+	 * Called on the heartbeat timer's thread.
+	 */
+	private void checkAvailability() {
+		long now = System.nanoTime();
+		double phi;
+		boolean failover;
+		synchronized (availabilityLock) {
+			phi = failureDetector.phi(now);
+			if(available) {
+				if(phi <= failureDetector.getThreshold()) {
+					return;
+				}
+				available = false;
+				unavailableSinceNanos = now;
+				failover = false;
+			} else if(failedOver || now - unavailableSinceNanos < failoverTimeoutNanos) {
+				return;
+			} else {
+				failedOver = true;
+				failover = true;
+			}
+		}
+
+		if(!failover) {
+			DECLARED_UNAVAILABLE.increment();
+			LOGGER.error(String.format("%s stopped answering heartbeats (phi %.1f). Not sending it anything new.", name, phi));
+			return;
+		}
+		MachineUnavailableException cause = new MachineUnavailableException(name + " stopped answering heartbeats.");
+		int failed = 0;
+		for (RemoteChannel channel : channels) {
+			failed += channel.failPendingRequests(cause);
+		}
+		FAILED_OVER.increment();
+		LOGGER.error(String.format("%s has been unavailable for %dms. Failed %d requests in flight.", name, TimeUnit.NANOSECONDS.toMillis(failoverTimeoutNanos), failed));
 	}
 
 	@Override
@@ -149,7 +604,21 @@ public class RemoteMachine implements Machine {
 
 	@Override
 	public void close() throws IOException {
-		channel.close();
+		closed = true;
+		for (Thread listenerThread : listenerThreads) {
+			listenerThread.interrupt();
+		}
+		IOException failure = null;
+		for (RemoteChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
 	}
 
 	@Override
@@ -157,10 +626,82 @@ public class RemoteMachine implements Machine {
 		return labels;
 	}
 
+	private class RemoteReservation implements Reservation {
+		private static final int RESERVED = 0;
+		private static final int IN_USE = 1;
+		private static final int RELEASED = 2;
+
+		private final int weight;
+		private final AtomicInteger state = new AtomicInteger(RESERVED);
+
+		public RemoteReservation(int weight) {
+			this.weight = weight;
+		}
+
+		@NotNull
+		@Override
+		public Machine getMachine() {
+			return RemoteMachine.this;
+		}
+
+		@Override
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return True if the reservation hadn't been used or released yet.
+		 */
+		public boolean use() {
+			return state.compareAndSet(RESERVED, IN_USE);
+		}
+
+		@Override
+		public boolean release() {
+			if(state.getAndSet(RELEASED) == RELEASED) {
+				return false;
+			}
+			RemoteMachine.this.release(weight);
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "Reservation{" +
+					"machine=" + name +
+					", weight=" + weight +
+					'}';
+		}
+	}
+
+	/**
+	 * Sends a heartbeat, checks on the machine, and schedules itself again.
+	 */
+	private class Heartbeat implements Runnable {
+		@Override
+		public void run() {
+			if(closed) {
+				return;
+			}
+			heartbeatAnswered.set(false);
+			for (RemoteChannel channel : channels) {
+				channel.sendHeartbeat();
+			}
+			checkAvailability();
+			HEARTBEATS.schedule(this, heartbeatIntervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
 	private class RemoteMachineListener implements Runnable {
+		@NotNull private final RemoteChannel channel;
+
+		public RemoteMachineListener(@NotNull RemoteChannel channel) {
+			this.channel = channel;
+		}
+
 		@Override
 		public void run() {
-			LOGGER.info("started " + this);
+			LOGGER.infop("started %s", this);
 
 			try {
 				Thread thread = Thread.currentThread();
@@ -170,7 +711,16 @@ public class RemoteMachine implements Machine {
 						channel.readResponse();
 						LOGGER.info("Received response");
 					} catch (IOException e) {
-						throw new RuntimeException(e);
+						if(closed) {
+							break;
+						}
+						//The next read reconnects. Anything in flight is failed by the heartbeats if the machine doesn't come back.
+						LOGGER.warn("Lost connection with " + name + ". Reconnecting.", e);
+						try {
+							Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+						} catch (InterruptedException interrupted) {
+							break;
+						}
 					} catch (InterruptedException e) {
 						LOGGER.warn("Waiting for response interrupted. Breaking.");
 						break;
@@ -181,7 +731,7 @@ public class RemoteMachine implements Machine {
 					}
 				}
 			} finally {
-				LOGGER.info("shut down " + this);
+				LOGGER.infop("shut down %s", this);
 			}
 		}
 	}
@@ -1,17 +1,67 @@
 package com.vanillaci.distributedinvoke.machines;
 
-import com.vanillaci.distributedinvoke.channels.ServerSocketRemoteChannel;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactServer;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactStore;
+import com.vanillaci.distributedinvoke.channels.ConcurrentLongMap;
+import com.vanillaci.distributedinvoke.channels.HashedWheelTimer;
+import com.vanillaci.distributedinvoke.channels.RemoteChannel;
+import com.vanillaci.distributedinvoke.channels.SelectorServerChannel;
+import com.vanillaci.distributedinvoke.classloading.ClassCache;
+import com.vanillaci.distributedinvoke.classloading.RemoteClassLoader;
+import com.vanillaci.distributedinvoke.classloading.ShippedCallable;
 import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.channels.TransportCodecs;
+import com.vanillaci.distributedinvoke.jobs.TaskOutput;
 import com.vanillaci.distributedinvoke.logging.Logger;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
 import com.vanillaci.ezasync.EzAsync;
+import com.vanillaci.ezasync.ExecutionStrategies;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.util.concurrent.Callable;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
+ * Serves requests from any number of masters at once.
+ * Connections are handled by a {@link SelectorServerChannel}, and the requests themselves are executed by {@link EzAsync}
+ * 	on a bounded pool of worker threads. Requests that don't fit in the pool's queue are answered with a {@link Transport.TransportError}.
+ *
+ * Each master's {@link com.vanillaci.distributedinvoke.channels.RemoteChannel} is a session that outlives any one connection.
+ * 	Responses are numbered and kept until the master acknowledges them, and sent again when it reconnects.
+ * 	Requests it replays after reconnecting are ignored if they already arrived the first time.
+ * 	A response is never dropped while its session is alive, since the master would wait for it forever.
+ * 	There are never more of them than the master has requests outstanding,
+ * 	and a session nobody has reconnected to for {@value #SESSION_TIMEOUT_MILLIS}ms (unless given another timeout) is forgotten along with its responses.
+ * 	Sessions are checked for that on a timer, every half a timeout, so they're forgotten even if no one connects again.
+ *
+ * Requests don't need their classes to be on this machine's class path. Each master has a {@link RemoteClassLoader},
+ * 	shared by all of its sessions (one per channel it opens), that asks the master for whatever is missing while the request is deserialized on its worker thread.
+ * 	Sessions are matched to their master with {@link com.vanillaci.distributedinvoke.channels.RemoteChannel#getMasterId(String)}.
+ * 	Class files are kept in a {@link ClassCache} shared by every session, so each one is only sent once,
+ * 	and the cache's directory ({@link #defaultClassCacheDirectory(int)} unless given, one per port) keeps them across restarts.
+ *
+ * Files the requests produce go in an {@link ArtifactStore} ({@link #defaultArtifactDirectory(int)} unless given),
+ * 	which the requests get at through {@link ArtifactStore#current()}, and which an {@link ArtifactServer} serves to masters on a port of its own.
+ *
+ * While they run, requests can emit chunks through {@link TaskOutput#current()}, which are sent to the master as they're emitted,
+ * 	numbered along with the session's responses. A request that gets {@link Transport.Chunk#WINDOW} chunks ahead of the master
+ * 	waits for it to send {@link Transport.ChunkCredit}s, for up to {@value #CHUNK_CREDIT_TIMEOUT_MILLIS}ms before giving up on the rest of its chunks.
+ * 	Unacknowledged chunks are kept apart from responses, and unlike responses can be dropped: only the most recent
+ * 	{@value #CHUNK_BUFFER_CAPACITY} are kept per session, so chatty requests can't crowd out the responses during an outage.
+ *
  * User: Joel Johnson
  * Date: 3/2/13
  * Time: 12:36 AM
@@ -19,32 +69,128 @@ import java.util.concurrent.Callable;
 public class RemoteMachineListener implements Closeable {
 	private static final Logger LOGGER = Logger.forClass(RemoteMachineListener.class);
 
+	private static final Histogram EXECUTION_NANOS = MetricsRegistry.getDefault().histogram("listener.executionNanos");
+	private static final Counter FAILED = MetricsRegistry.getDefault().counter("listener.failed");
+	private static final Counter REJECTED = MetricsRegistry.getDefault().counter("listener.rejected");
+
+	public static final int DEFAULT_WORKER_THREADS = 64;
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final long SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	public static final long CHUNK_CREDIT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+	public static final int CHUNK_BUFFER_CAPACITY = 1024;
+
+	private static final Counter REPLAYED = MetricsRegistry.getDefault().counter("listener.replayedResponses");
+	private static final Counter DUPLICATES = MetricsRegistry.getDefault().counter("listener.duplicateRequests");
+	private static final Counter CHUNKS_SENT = MetricsRegistry.getDefault().counter("listener.chunksSent");
+	private static final Counter CHUNKS_DROPPED = MetricsRegistry.getDefault().counter("listener.chunksDropped");
+	private static final Counter SESSIONS_EXPIRED = MetricsRegistry.getDefault().counter("listener.sessionsExpired");
+
+	private static final HashedWheelTimer SESSION_EXPIRY = HashedWheelTimer.start(RemoteMachineListener.class.getSimpleName() + " session expiry");
+
 	private final InetAddress bindAddress;
 	private final int listeningPort;
-	private final transient Thread thread;
+	private final transient SelectorServerChannel channel;
 
 	private final transient EzAsync ezAsync;
+	@NotNull private final ClassCache classCache;
+	@NotNull private final ArtifactServer artifactServer;
+	@NotNull private final ConcurrentMap<String, ClientSession> sessions = new ConcurrentHashMap<String, ClientSession>();
+	private final Lock sessionsLock = new Lock();
+	@LockedBy("sessionsLock") @NotNull private final Map<String, MasterClasses> masters = new HashMap<String, MasterClasses>();
+	private final long sessionTimeoutNanos;
+	private volatile boolean closed;
 
 	/**
 	 * Creates the listener and starts listening.
 	 *
 	 * @param bindAddress   The address to bind to.
 	 * @param listeningPort The port to listen on.
-	 * @return The new instance of RemoteMachineListener that is actively listening for a new connection.
+	 * @return The new instance of RemoteMachineListener that is actively listening for new connections.
 	 */
 	public static RemoteMachineListener start(@NotNull InetAddress bindAddress, int listeningPort) {
-		return new RemoteMachineListener(bindAddress, listeningPort);
+		return start(bindAddress, listeningPort, SelectorServerChannel.DEFAULT_IO_THREADS);
+	}
+
+	/**
+	 * Creates the listener and starts listening.
+	 *
+	 * @param bindAddress   The address to bind to.
+	 * @param listeningPort The port to listen on.
+	 * @param ioThreadCount The number of threads reading and writing for all of the connections. Must be positive.
+	 * @return The new instance of RemoteMachineListener that is actively listening for new connections.
+	 */
+	public static RemoteMachineListener start(@NotNull InetAddress bindAddress, int listeningPort, int ioThreadCount) {
+		return start(bindAddress, listeningPort, ioThreadCount, defaultClassCacheDirectory(listeningPort));
+	}
+
+	/**
+	 * Creates the listener and starts listening.
+	 *
+	 * @param bindAddress   The address to bind to.
+	 * @param listeningPort The port to listen on.
+	 * @param ioThreadCount The number of threads reading and writing for all of the connections. Must be positive.
+	 * @param classCacheDirectory Where classes sent by masters are kept between runs. Null to only keep them in memory.
+	 * @return The new instance of RemoteMachineListener that is actively listening for new connections.
+	 */
+	public static RemoteMachineListener start(@NotNull InetAddress bindAddress, int listeningPort, int ioThreadCount, @Nullable File classCacheDirectory) {
+		ArtifactStore artifactStore;
+		try {
+			artifactStore = ArtifactStore.open(defaultArtifactDirectory(listeningPort));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return start(bindAddress, listeningPort, ioThreadCount, classCacheDirectory, artifactStore);
+	}
+
+	/**
+	 * Creates the listener and starts listening.
+	 *
+	 * @param bindAddress   The address to bind to.
+	 * @param listeningPort The port to listen on.
+	 * @param ioThreadCount The number of threads reading and writing for all of the connections. Must be positive.
+	 * @param classCacheDirectory Where classes sent by masters are kept between runs. Null to only keep them in memory.
+	 * @param artifactStore Where the requests' artifacts are kept, and served to masters from. Cannot be null.
+	 * @return The new instance of RemoteMachineListener that is actively listening for new connections.
+	 */
+	public static RemoteMachineListener start(@NotNull InetAddress bindAddress, int listeningPort, int ioThreadCount, @Nullable File classCacheDirectory, @NotNull ArtifactStore artifactStore) {
+		return start(bindAddress, listeningPort, ioThreadCount, classCacheDirectory, artifactStore, SESSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the listener and starts listening.
+	 *
+	 * @param bindAddress   The address to bind to.
+	 * @param listeningPort The port to listen on.
+	 * @param ioThreadCount The number of threads reading and writing for all of the connections. Must be positive.
+	 * @param classCacheDirectory Where classes sent by masters are kept between runs. Null to only keep them in memory.
+	 * @param artifactStore Where the requests' artifacts are kept, and served to masters from. Cannot be null.
+	 * @param sessionTimeout How long a session is kept after its master disconnects, waiting for it to reconnect. Must be positive.
+	 * @return The new instance of RemoteMachineListener that is actively listening for new connections.
+	 */
+	public static RemoteMachineListener start(@NotNull InetAddress bindAddress, int listeningPort, int ioThreadCount, @Nullable File classCacheDirectory, @NotNull ArtifactStore artifactStore, long sessionTimeout, @NotNull TimeUnit unit) {
+		if(sessionTimeout <= 0) {
+			throw new IllegalArgumentException("'sessionTimeout' must be positive");
+		}
+		return new RemoteMachineListener(bindAddress, listeningPort, ioThreadCount, new ClassCache(classCacheDirectory, ClassCache.DEFAULT_MEMORY_BYTES), artifactStore, unit.toNanos(sessionTimeout));
 	}
 
 	/**
 	 * @param bindAddress   The address to bind to.
 	 * @param listeningPort Must be between 1 and 65535. On some operating systems, if the value is between 1 and 1024 the underlying JVM may need special privileges to open the socket.
 	 */
-	private RemoteMachineListener(@NotNull InetAddress bindAddress, int listeningPort) {
+	private RemoteMachineListener(@NotNull InetAddress bindAddress, int listeningPort, int ioThreadCount, @NotNull ClassCache classCache, @NotNull ArtifactStore artifactStore, long sessionTimeoutNanos) {
 		this.bindAddress = bindAddress;
 		this.listeningPort = listeningPort;
-		thread = new Thread(new ListeningThread(), this.getClass().getSimpleName());
-		thread.start();
+		this.classCache = classCache;
+		this.sessionTimeoutNanos = sessionTimeoutNanos;
+		this.ezAsync = EzAsync.create(ExecutionStrategies.boundedPool(DEFAULT_WORKER_THREADS, DEFAULT_QUEUE_CAPACITY, ExecutionStrategies.RejectionPolicy.REJECT, getClass().getSimpleName() + " worker"));
+		try {
+			this.artifactServer = ArtifactServer.start(artifactStore, bindAddress);
+			this.channel = SelectorServerChannel.open(bindAddress, listeningPort, TransportCodecs.defaults(), ioThreadCount, new RequestHandler());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		SESSION_EXPIRY.schedule(new SessionExpiry(), sessionTimeoutNanos / 2, TimeUnit.NANOSECONDS);
 
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
@@ -52,112 +198,515 @@ public class RemoteMachineListener implements Closeable {
 				close();
 			}
 		}));
-
-		ezAsync = EzAsync.create();
 	}
 
 	@Override
 	public void close() {
-		thread.interrupt();
+		closed = true;
+		ezAsync.shutdown();
+		try {
+			artifactServer.close();
+		} catch (IOException e) {
+			LOGGER.error("Unable to stop serving artifacts.", e);
+		}
+		try {
+			channel.close();
+			LOGGER.info("Listener cleanly shut down.");
+		} catch (IOException e) {
+			LOGGER.error("Unable to do clean shutdown.", e);
+		}
+	}
+
+	/**
+	 * @return Where a listener on the given port keeps the classes masters send it, unless it's given a directory.
+	 * 	One per port, so listeners on the same host never share a cache.
+	 */
+	@NotNull
+	public static File defaultClassCacheDirectory(int listeningPort) {
+		return new File(System.getProperty("java.io.tmpdir"), "vanillaci-class-cache-" + listeningPort);
+	}
+
+	/**
+	 * @return Where a listener on the given port keeps its artifacts, unless it's given a store.
+	 * 	One per port, so listeners on the same host never share a store, or evict each other's artifacts.
+	 */
+	@NotNull
+	public static File defaultArtifactDirectory(int listeningPort) {
+		return new File(System.getProperty("java.io.tmpdir"), "vanillaci-artifacts-" + listeningPort);
 	}
 
-	private class ListeningThread implements Runnable {
+	/**
+	 * @return The number of sessions being kept for masters, connected or not.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return The number of masters with sessions being kept, each of which has a class loader of its own.
+	 */
+	public int getMasterCount() {
+		synchronized (sessionsLock) {
+			return masters.size();
+		}
+	}
+
+	@NotNull
+	public ArtifactStore getArtifactStore() {
+		return artifactServer.getStore();
+	}
+
+	/**
+	 * Forgets the sessions whose masters have been gone for longer than the timeout, and the masters with no sessions left.
+	 */
+	private void expireSessions() {
+		synchronized (sessionsLock) {
+			long now = System.nanoTime();
+			for (ClientSession expired : sessions.values()) {
+				if(expired.isExpired(now, sessionTimeoutNanos) && sessions.remove(expired.id, expired)) {
+					SESSIONS_EXPIRED.increment();
+					expired.master.sessions.remove(expired);
+					if(expired.master.sessions.isEmpty()) {
+						masters.remove(expired.master.id);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Expires sessions, and schedules itself again until the listener is closed.
+	 */
+	private class SessionExpiry implements Runnable {
 		@Override
 		public void run() {
-			ServerSocketRemoteChannel channel = ServerSocketRemoteChannel.create(bindAddress, listeningPort);
+			if(closed) {
+				return;
+			}
+			expireSessions();
+			SESSION_EXPIRY.schedule(this, sessionTimeoutNanos / 2, TimeUnit.NANOSECONDS);
+		}
+	}
 
-			try {
-				while (!Thread.interrupted() && !channel.isClosed()) {
-					Object object;
-
-					try {
-						LOGGER.info("Waiting for request");
-						object = channel.readObject();
-						LOGGER.info("Received request");
-					} catch (ClassNotFoundException e) {
-						LOGGER.error("Class path is out of sync", e);
-						continue;
-					} catch (InterruptedException e) {
-						LOGGER.error(e);
-						break;
-					} catch (IOException e) {
-						LOGGER.error(e);
-						continue;
+	private class RequestHandler implements SelectorServerChannel.Handler {
+		@Override
+		public void connected(@NotNull SelectorServerChannel.Connection connection) {
+			String sessionId = connection.getSessionId();
+			if(sessionId.isEmpty()) {
+				return;
+			}
+
+			ClientSession session;
+			synchronized (sessionsLock) {
+				expireSessions();
+
+				session = sessions.get(sessionId);
+				if(session == null) {
+					String masterId = RemoteChannel.getMasterId(sessionId);
+					MasterClasses master = masters.get(masterId);
+					if(master == null) {
+						master = new MasterClasses(masterId, classCache);
+						masters.put(masterId, master);
 					}
 
-					try {
-						processRequest(channel, object);
-					} catch (InterruptedException e) {
-						LOGGER.error(e);
-						break;
+					//Either this is the first time, or we've restarted or forgotten it since.
+					//	Either way carry on from the master's numbering, so it doesn't mistake new responses for old ones.
+					session = new ClientSession(sessionId, connection.getAcknowledged(), master);
+					sessions.put(sessionId, session);
+					master.sessions.add(session);
+				}
+			}
+			connection.setAttachment(session);
+			session.attach(connection, connection.getAcknowledged());
+		}
+
+		@Override
+		public void received(@NotNull SelectorServerChannel.Connection connection, @NotNull Transport<?> transport) {
+			if(transport.getObject() instanceof Transport.Heartbeat) {
+				//Answered right here on the I/O thread, so a busy worker pool doesn't make the machine look dead.
+				respond(connection, transport);
+				return;
+			}
+
+			ClientSession session = (ClientSession) connection.getAttachment();
+			if(transport.getObject() instanceof Transport.Ack) {
+				if(session != null) {
+					session.acknowledge(((Transport.Ack) transport.getObject()).getAcknowledged());
+				}
+				return;
+			}
+			if(transport.getObject() instanceof Transport.ClassDefinition) {
+				if(session != null) {
+					session.master.classLoader.definitionReceived(transport.getId(), (Transport.ClassDefinition) transport.getObject());
+				}
+				return;
+			}
+			if(transport.getObject() instanceof Transport.ChunkCredit) {
+				if(session != null) {
+					session.creditReceived(transport.getId(), ((Transport.ChunkCredit) transport.getObject()).getCredits());
+				}
+				return;
+			}
+			if(transport.getObject() instanceof Transport.ArtifactRequest) {
+				//Only a lookup, so it's answered right here too. The contents go through the ArtifactServer.
+				String digest = ((Transport.ArtifactRequest) transport.getObject()).getDigest();
+				File file = artifactServer.getStore().get(digest);
+				respond(connection, Transport.wrapWithId(new Transport.ArtifactLocation(digest, file == null ? -1 : file.length(), artifactServer.getPort()), transport.getId()));
+				return;
+			}
+			if(session != null && transport.getSequence() > 0 && !session.firstArrival(transport.getSequence())) {
+				DUPLICATES.increment();
+				return;
+			}
+
+			LOGGER.info("Received request");
+			long requestId = transport.getId();
+			Object requestObject = transport.getObject();
+
+			if (requestObject instanceof Callable || requestObject instanceof ShippedCallable) {
+				LOGGER.info("Scheduling request to be executed");
+				ClassLoader classLoader = session != null ? session.master.classLoader : RemoteMachineListener.class.getClassLoader();
+				TimedRequest request = new TimedRequest(requestObject, classLoader, artifactServer.getStore(), requestId, connection, transport.getSequence() > 0 ? session : null);
+				ezAsync.execute(request, request, request);
+				LOGGER.info("Request execution scheduled");
+			} else {
+				String errorMessage = "Unexpected object type. Expected " + Callable.class.getCanonicalName() + " but was " + (requestObject == null ? "null" : requestObject.getClass().getCanonicalName());
+				LOGGER.error(errorMessage);
+				reply(connection, transport.getSequence() > 0 ? session : null, requestId, new Transport.TransportError(errorMessage));
+			}
+		}
+	}
+
+	/**
+	 * Answers a request: through its session if it came from one, otherwise straight on the connection it came in on.
+	 */
+	private static void reply(@NotNull SelectorServerChannel.Connection connection, @Nullable ClientSession session, long requestId, @Nullable Object response) {
+		if(session != null) {
+			session.reply(requestId, response);
+		} else {
+			respond(connection, Transport.wrapWithId(response, requestId));
+		}
+	}
+
+	/**
+	 * Runs the request, timing how long it takes, and sends back the response.
+	 * One object per request does all three jobs, so timing it doesn't cost an extra allocation.
+	 * A {@link ShippedCallable} is deserialized here on the worker thread, since that may mean waiting on the master for classes.
+	 */
+	private static class TimedRequest implements Callable<Object>, EzAsync.Callback<Object>, EzAsync.ErrorCallback {
+		/**
+		 * Either a {@link Callable} or a {@link ShippedCallable}.
+		 */
+		@NotNull
+		private final Object request;
+
+		@NotNull
+		private final ClassLoader classLoader;
+
+		@NotNull
+		private final ArtifactStore artifactStore;
+
+		private final long id;
+
+		@NotNull
+		private final SelectorServerChannel.Connection connection;
+
+		@Nullable
+		private final ClientSession session;
+
+		public TimedRequest(@NotNull Object request, @NotNull ClassLoader classLoader, @NotNull ArtifactStore artifactStore, long id, @NotNull SelectorServerChannel.Connection connection, @Nullable ClientSession session) {
+			this.request = request;
+			this.classLoader = classLoader;
+			this.artifactStore = artifactStore;
+			this.id = id;
+			this.connection = connection;
+			this.session = session;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			Thread thread = Thread.currentThread();
+			ClassLoader previous = thread.getContextClassLoader();
+			thread.setContextClassLoader(classLoader);
+			try {
+				final Callable<?> callable = request instanceof ShippedCallable ? ((ShippedCallable) request).resolve(classLoader) : (Callable<?>) request;
+				Callable<Object> withStore = new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						return artifactStore.callWithin(callable);
+					}
+				};
+				long start = System.nanoTime();
+				SessionOutput output = session == null ? null : session.openOutput(id);
+				try {
+					return output == null ? withStore.call() : output.callWithin(withStore);
+				} finally {
+					EXECUTION_NANOS.recordSince(start);
+					if(output != null) {
+						session.closeOutput(output);
 					}
 				}
 			} finally {
+				thread.setContextClassLoader(previous);
+			}
+		}
+
+		@Override
+		public void done(@Nullable Object result) {
+			LOGGER.info("Done executing request and received result");
+			reply(connection, session, id, result);
+		}
+
+		@Override
+		public void failed(@NotNull Throwable e) {
+			(e instanceof RejectedExecutionException ? REJECTED : FAILED).increment();
+			String message = e instanceof RejectedExecutionException ? "Machine is too busy to accept the request" : "Request failed: " + e;
+			LOGGER.error(message, e);
+			reply(connection, session, id, new Transport.TransportError(message));
+		}
+	}
+
+	/**
+	 * The classes one master has sent, which all of its sessions share.
+	 */
+	private static class MasterClasses implements RemoteClassLoader.Requester {
+		@NotNull private final String id;
+		@NotNull private final RemoteClassLoader classLoader;
+		@NotNull private final Set<ClientSession> sessions = new CopyOnWriteArraySet<ClientSession>();
+
+		public MasterClasses(@NotNull String id, @NotNull ClassCache classCache) {
+			this.id = id;
+			this.classLoader = new RemoteClassLoader(RemoteMachineListener.class.getClassLoader(), classCache, this);
+		}
+
+		/**
+		 * Sends the class loader's request on whichever of the master's sessions is connected, since any of its channels can answer it.
+		 */
+		@Override
+		public void request(@NotNull Transport<Transport.ClassRequest> request) throws IOException {
+			IOException failure = new ClosedChannelException();
+			for (ClientSession session : sessions) {
 				try {
-					channel.close();
-					LOGGER.info("Listener cleanly shut down.");
+					if(session.send(request)) {
+						return;
+					}
 				} catch (IOException e) {
-					LOGGER.error("Unable to do clean shutdown.", e);
+					failure = e; //The connection went away under us. Another session may still be connected.
 				}
 			}
+			throw failure;
 		}
+	}
+
+	/**
+	 * Everything kept for one of a master's channels between connections.
+	 */
+	private static class ClientSession {
+		@NotNull private final String id;
+		@NotNull private final MasterClasses master;
 
-		private void processRequest(ServerSocketRemoteChannel channel, Object bareRequest) throws InterruptedException {
-			if (bareRequest != null && bareRequest instanceof Transport) {
-				Transport transport = (Transport) bareRequest;
-				String requestId = transport.getId();
-				Object requestObject = transport.getObject();
+		private final Lock lock = new Lock();
+		@LockedBy("lock") @Nullable private SelectorServerChannel.Connection connection;
+		@LockedBy("lock") private long lastRequest;
+		@LockedBy("lock") private long lastResponse;
+		@LockedBy("lock") @NotNull private final Deque<Transport<?>> unacknowledged = new ArrayDeque<Transport<?>>();
+		@LockedBy("lock") @NotNull private final Deque<Transport<?>> unacknowledgedChunks = new ArrayDeque<Transport<?>>();
+		@LockedBy("lock") private long lastActiveNanos = System.nanoTime();
+		/**
+		 * The outputs of the requests that are running, by request ID.
+		 */
+		@NotNull private final ConcurrentLongMap<SessionOutput> outputs = ConcurrentLongMap.create();
 
-				if (requestObject instanceof Callable) {
-					LOGGER.info("Scheduling request to be executed");
-					//noinspection unchecked
-					ezAsync.execute((Callable) requestObject, new RequestCallback(requestId, channel, thread));
-					LOGGER.info("Request execution scheduled");
-				} else {
-					String errorMessage = "Unexpected object type. Expected " + Callable.class.getCanonicalName() + " but was " + (requestObject == null ? "null" : requestObject.getClass().getCanonicalName());
-					LOGGER.error(errorMessage);
+		public ClientSession(@NotNull String id, long lastResponse, @NotNull MasterClasses master) {
+			this.id = id;
+			this.lastResponse = lastResponse;
+			this.master = master;
+		}
 
-					try {
-						channel.writeObject(Transport.wrapWithId(new Transport.TransportError(errorMessage), requestId));
-					} catch (IOException e) {
-						LOGGER.error("Failed to respond with error.");
+		/**
+		 * Sends the given transport on whichever connection the session is on now, without keeping it for replaying.
+		 * @return False if the session isn't connected.
+		 */
+		public boolean send(@NotNull Transport<?> transport) throws IOException {
+			SelectorServerChannel.Connection current;
+			synchronized (lock) {
+				current = connection;
+			}
+			if(current == null || !current.isOpen()) {
+				return false;
+			}
+			current.send(transport);
+			return true;
+		}
+
+		/**
+		 * Makes the given connection the one responses go to, and sends it everything it hasn't acknowledged.
+		 */
+		public void attach(@NotNull SelectorServerChannel.Connection connection, long acknowledged) {
+			synchronized (lock) {
+				this.connection = connection;
+				lastActiveNanos = System.nanoTime();
+				acknowledge(acknowledged);
+				if(!unacknowledged.isEmpty()) {
+					LOGGER.infop("Replaying %d responses to %s", unacknowledged.size(), connection.getRemoteAddress());
+					REPLAYED.add(unacknowledged.size());
+				}
+
+				//In sequence order across both, since the master ignores anything numbered below what it last saw.
+				Iterator<Transport<?>> responses = unacknowledged.iterator();
+				Iterator<Transport<?>> chunks = unacknowledgedChunks.iterator();
+				Transport<?> response = responses.hasNext() ? responses.next() : null;
+				Transport<?> chunk = chunks.hasNext() ? chunks.next() : null;
+				while(response != null || chunk != null) {
+					if(chunk == null || (response != null && response.getSequence() < chunk.getSequence())) {
+						RemoteMachineListener.respond(connection, response);
+						response = responses.hasNext() ? responses.next() : null;
+					} else {
+						RemoteMachineListener.respond(connection, chunk);
+						chunk = chunks.hasNext() ? chunks.next() : null;
 					}
 				}
+			}
+		}
 
-			} else {
-				LOGGER.error("Unexpected object type. Expected " + Transport.class.getCanonicalName() + " but was " + (bareRequest == null ? "null" : bareRequest.getClass().getCanonicalName()));
+		/**
+		 * @return False if the request with the given sequence number has already arrived.
+		 */
+		public boolean firstArrival(long sequence) {
+			synchronized (lock) {
+				lastActiveNanos = System.nanoTime();
+				if(sequence <= lastRequest) {
+					return false;
+				}
+				lastRequest = sequence;
+				return true;
 			}
 		}
-	}
 
-	private static class RequestCallback implements EzAsync.Callback<String> {
-		@NotNull
-		private final String id;
+		public void reply(long requestId, @Nullable Object result) {
+			synchronized (lock) {
+				Transport<?> response = Transport.sequenced(result, requestId, ++lastResponse);
+				unacknowledged.add(response);
 
-		@NotNull
-		private final ServerSocketRemoteChannel channel;
+				SelectorServerChannel.Connection current = connection;
+				if(current != null && current.isOpen()) {
+					RemoteMachineListener.respond(current, response); //Otherwise it goes out when the master reconnects.
+				}
+			}
+		}
+
+		/**
+		 * Sends a chunk numbered along with the responses, but kept in a buffer of its own that drops the oldest when it's full.
+		 * 	A dropped chunk is credited straight back to its request, since the master will never get the chance to.
+		 */
+		public void sendChunk(long requestId, @Nullable Object chunk) {
+			Transport<?> dropped = null;
+			synchronized (lock) {
+				Transport<?> transport = Transport.sequenced(new Transport.Chunk(chunk), requestId, ++lastResponse);
+				unacknowledgedChunks.add(transport);
+				if(unacknowledgedChunks.size() > CHUNK_BUFFER_CAPACITY) {
+					dropped = unacknowledgedChunks.remove();
+				}
+
+				SelectorServerChannel.Connection current = connection;
+				if(current != null && current.isOpen()) {
+					RemoteMachineListener.respond(current, transport);
+				}
+			}
+			if(dropped != null) {
+				CHUNKS_DROPPED.increment();
+				creditReceived(dropped.getId(), 1);
+			}
+		}
 
 		@NotNull
-		private final Thread threadToInterruptOnError;
+		public SessionOutput openOutput(long requestId) {
+			SessionOutput output = new SessionOutput(this, requestId);
+			outputs.put(requestId, output);
+			return output;
+		}
 
-		public RequestCallback(@NotNull String id, @NotNull ServerSocketRemoteChannel channel, @NotNull Thread threadToInterruptOnError) {
-			this.id = id;
-			this.channel = channel;
-			this.threadToInterruptOnError = threadToInterruptOnError;
+		public void closeOutput(@NotNull SessionOutput output) {
+			outputs.remove(output.requestId, output);
+		}
+
+		public void creditReceived(long requestId, int credits) {
+			SessionOutput output = outputs.get(requestId);
+			if(output != null) {
+				output.credits.release(credits);
+			}
+		}
+
+		public void acknowledge(long acknowledged) {
+			synchronized (lock) {
+				while(!unacknowledged.isEmpty() && unacknowledged.peek().getSequence() <= acknowledged) {
+					unacknowledged.remove();
+				}
+				while(!unacknowledgedChunks.isEmpty() && unacknowledgedChunks.peek().getSequence() <= acknowledged) {
+					unacknowledgedChunks.remove();
+				}
+			}
+		}
+
+		public boolean isExpired(long nowNanos, long timeoutNanos) {
+			synchronized (lock) {
+				return (connection == null || !connection.isOpen()) && nowNanos - lastActiveNanos > timeoutNanos;
+			}
+		}
+	}
+
+	/**
+	 * Sends what a request emits to its session as {@link Transport.Chunk}s, a window at a time.
+	 */
+	private static class SessionOutput extends TaskOutput {
+		@NotNull private final ClientSession session;
+		private final long requestId;
+		@NotNull private final Semaphore credits = new Semaphore(Transport.Chunk.WINDOW);
+		/**
+		 * Set once the master has taken too long to make room, after which chunks are only sent if there happens to be room.
+		 * 	Only used by the thread running the request.
+		 */
+		private boolean abandoned;
+
+		public SessionOutput(@NotNull ClientSession session, long requestId) {
+			this.session = session;
+			this.requestId = requestId;
 		}
 
 		@Override
-		public void done(@Nullable String result) {
-			LOGGER.info("Done executing request and received result");
-			Transport<?> response = Transport.wrapWithId(result, id);
+		public void emit(@Nullable Serializable chunk) throws InterruptedException {
+			boolean room = abandoned ? credits.tryAcquire() : credits.tryAcquire(CHUNK_CREDIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if(!room) {
+				if(!abandoned) {
+					LOGGER.warn("Master hasn't made room for more chunks of request " + requestId + " in " + CHUNK_CREDIT_TIMEOUT_MILLIS + "ms. Dropping them until it does.");
+					abandoned = true;
+				}
+				CHUNKS_DROPPED.increment();
+				return;
+			}
+			abandoned = false;
+			session.sendChunk(requestId, chunk);
+			CHUNKS_SENT.increment();
+		}
+	}
+
+	private static void respond(@NotNull SelectorServerChannel.Connection connection, @NotNull Transport<?> response) {
+		try {
+			connection.send(response);
+		} catch (ObjectStreamException e) {
+			LOGGER.error("Couldn't serialize response.", e);
 			try {
-				channel.writeObject(response);
-			} catch (IOException e) {
-				LOGGER.error("Couldn't write response.", e);
-			} catch (InterruptedException e) {
-				LOGGER.error("Writing response interrupted. Interrupting listening loop.", e);
-				threadToInterruptOnError.interrupt();
+				//Let the master know instead of leaving it waiting forever.
+				Object error = new Transport.TransportError("Couldn't serialize response: " + e.getMessage());
+				if(response.getObject() instanceof Transport.Chunk) {
+					error = new Transport.Chunk(error); //Only the chunk is lost, not the request.
+				}
+				connection.send(response.getSequence() > 0 ? Transport.sequenced(error, response.getId(), response.getSequence()) : Transport.wrapWithId(error, response.getId()));
+			} catch (IOException sendException) {
+				LOGGER.error("Couldn't write response.", sendException);
 			}
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write response.", e);
 		}
 	}
 }
@@ -1,10 +1,17 @@
 package com.vanillaci.distributedinvoke.machines.labels;
 
 import com.google.common.collect.ImmutableList;
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Used to give arbitrary metadata to machines and jobs.
@@ -12,11 +19,55 @@ import java.util.List;
  * however, it will be completely dependant on what various plugins
  * do with this data that really define the behavior of the Label.
  *
+ * Labels are interned in a JVM-wide dictionary that gives each distinct name a small integer id,
+ * 	which lets sets of labels be stored as bitsets (see {@link LabelSet}).
+ * 	There is only ever one instance per name, and ids aren't stable across JVMs, so they're never serialized.
+ *
  * User: Joel Johnson
  * Date: 3/4/13
  * Time: 7:25 PM
  */
 public class Label implements Serializable {
+	private static final ConcurrentMap<String, Label> dictionary = new ConcurrentHashMap<String, Label>();
+	private static final Lock dictionaryLock = new Lock();
+	@LockedBy("dictionaryLock") private static final List<Label> labelsById = new ArrayList<Label>();
+
+	/**
+	 * @return The one instance of the label with the given name. Adds it to the dictionary if this is the first time it's been seen.
+	 */
+	@NotNull
+	public static Label intern(@NotNull String name) {
+		Label label = dictionary.get(name);
+		if(label != null) {
+			return label;
+		}
+
+		synchronized (dictionaryLock) {
+			label = dictionary.get(name);
+			if(label == null) {
+				label = new Label(name, labelsById.size());
+				labelsById.add(label);
+				dictionary.put(name, label);
+			}
+			return label;
+		}
+	}
+
+	/**
+	 * @return The label with the given name, or null if it's never been interned. Never adds to the dictionary.
+	 */
+	@Nullable
+	public static Label find(@NotNull String name) {
+		return dictionary.get(name);
+	}
+
+	@NotNull
+	/*package*/ static Label forId(int id) {
+		synchronized (dictionaryLock) {
+			return labelsById.get(id);
+		}
+	}
+
 	@NotNull
 	public static Expression parse(@NotNull String expression) {
 		ImmutableList.Builder<Label> includes = ImmutableList.builder();
@@ -30,10 +81,10 @@ public class Label implements Serializable {
 					//noinspection UnnecessaryContinue
 					continue;
 				} else if(labelString.startsWith("!")) {
-					Label label = new Label(labelString.substring(1));
+					Label label = intern(labelString.substring(1));
 					excludes.add(label);
 				} else {
-					Label label = new Label(labelString);
+					Label label = intern(labelString);
 					includes.add(label);
 				}
 			}
@@ -44,8 +95,11 @@ public class Label implements Serializable {
 	@NotNull
 	private final String name;
 
-	private Label(@NotNull String name) {
+	private final transient int id;
+
+	private Label(@NotNull String name, int id) {
 		this.name = name;
+		this.id = id;
 	}
 
 	@NotNull
@@ -53,6 +107,20 @@ public class Label implements Serializable {
 		return name;
 	}
 
+	/**
+	 * @return The label's position in this JVM's dictionary.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Swaps a deserialized label for the local instance, which has the right id.
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		return intern(name);
+	}
+
 	@Override
 	public String toString() {
 		return "Label{" +
@@ -60,16 +128,27 @@ public class Label implements Serializable {
 				'}';
 	}
 
-	public static class Expression {
+	/**
+	 * Serialized as its labels' names, like {@link Label} itself. The {@link LabelSet}s are rebuilt from the local dictionary's ids when it's read.
+	 */
+	public static class Expression implements Serializable {
 		@NotNull
 		private final List<Label> includes;
 
 		@NotNull
 		private final List<Label> excludes;
 
+		@NotNull
+		private final transient LabelSet includeSet;
+
+		@NotNull
+		private final transient LabelSet excludeSet;
+
 		private Expression(@NotNull List<Label> includes, @NotNull List<Label> excludes) {
 			this.includes = ImmutableList.copyOf(includes);
 			this.excludes = ImmutableList.copyOf(excludes);
+			this.includeSet = LabelSet.of(includes);
+			this.excludeSet = LabelSet.of(excludes);
 		}
 
 		@NotNull
@@ -82,23 +161,45 @@ public class Label implements Serializable {
 			return excludes;
 		}
 
+		@NotNull
+		public LabelSet getIncludeSet() {
+			return includeSet;
+		}
+
+		@NotNull
+		public LabelSet getExcludeSet() {
+			return excludeSet;
+		}
+
+		/**
+		 * Rebuilds the label sets, since the ids they were made of only meant anything in the JVM that wrote them.
+		 * 	The labels have already been swapped for this JVM's instances by {@link Label#readResolve()}.
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			return new Expression(includes, excludes);
+		}
+
 		public boolean matches(@NotNull String labelStr) {
-			for (Label exclude : excludes) {
-				if(exclude.getName().equals(labelStr)) {
-					return false;
-				}
+			Label label = find(labelStr);
+			if(label == null) {
+				return includes.isEmpty(); //Never seen, so it can't be in either list.
 			}
 
-			if(includes.isEmpty()) {
-				return true; //We either have nothing or only excludes
-			}
-			for (Label include : includes) {
-				if(include.getName().equals(labelStr)) {
-					return true;
-				}
+			if(excludeSet.contains(label)) {
+				return false;
 			}
+			return includes.isEmpty() || includeSet.contains(label); //Empty means we either have nothing or only excludes
+		}
 
-			return false;
+		/**
+		 * Matches a whole set of labels, such as a machine's, the same way {@link #matches(String)} matches one:
+		 * 	none of them may be excluded, and if there are any includes, at least one of them has to be included.
+		 */
+		public boolean matches(@NotNull LabelSet labels) {
+			if(excludeSet.intersects(labels)) {
+				return false;
+			}
+			return includes.isEmpty() || includeSet.intersects(labels);
 		}
 
 		@Override
@@ -0,0 +1,168 @@
+package com.vanillaci.distributedinvoke.machines.labels;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Finds the machines whose labels match an {@link Label.Expression} without looking at every machine.
+ *
+ * Every machine gets a slot, and every label keeps a bitset of the slots whose machine has that label.
+ * 	A lookup ORs together the bitsets of the expression's includes, clears the bitsets of its excludes,
+ * 	and then reads off the machines that are left. The cost depends on the number of labels in the expression
+ * 	and the number of machines divided by 64, rather than machines times labels.
+ */
+public class LabelIndex {
+	private final Lock indexLock = new Lock();
+
+	@LockedBy("indexLock") @NotNull private final List<Machine> slots = new ArrayList<Machine>();
+	@LockedBy("indexLock") @NotNull private final Map<Machine, Integer> slotsByMachine = new HashMap<Machine, Integer>();
+	@LockedBy("indexLock") @NotNull private final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+	@LockedBy("indexLock") @NotNull private long[] allSlots = new long[0];
+	@LockedBy("indexLock") @NotNull private long[][] slotsByLabel = new long[0][];
+
+	/**
+	 * Adds the machine to the index, under the labels returned by {@link Machine#getLabels()}.
+	 * Does nothing if it's already in the index.
+	 */
+	public void add(@NotNull final Machine machine) {
+		synchronized (indexLock) {
+			if(slotsByMachine.containsKey(machine)) {
+				return;
+			}
+
+			final int slot;
+			if(freeSlots.isEmpty()) {
+				slot = slots.size();
+				slots.add(machine);
+			} else {
+				slot = freeSlots.pop();
+				slots.set(slot, machine);
+			}
+			slotsByMachine.put(machine, slot);
+
+			allSlots = set(allSlots, slot);
+			labelsOf(machine).forEachId(new LabelSet.IdVisitor() {
+				@Override
+				public void visit(int id) {
+					if(id >= slotsByLabel.length) {
+						slotsByLabel = Arrays.copyOf(slotsByLabel, Math.max(id + 1, slotsByLabel.length * 2));
+					}
+					slotsByLabel[id] = set(slotsByLabel[id] == null ? new long[0] : slotsByLabel[id], slot);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes the machine from the index. Does nothing if it isn't in the index.
+	 */
+	public void remove(@NotNull Machine machine) {
+		synchronized (indexLock) {
+			Integer slot = slotsByMachine.remove(machine);
+			if(slot == null) {
+				return;
+			}
+
+			slots.set(slot, null);
+			freeSlots.push(slot);
+			clear(allSlots, slot);
+			for (long[] labelSlots : slotsByLabel) {
+				if(labelSlots != null) {
+					clear(labelSlots, slot);
+				}
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (indexLock) {
+			return slotsByMachine.size();
+		}
+	}
+
+	/**
+	 * @return Every machine in the index whose labels match the given expression, as defined by {@link Label.Expression#matches(LabelSet)}.
+	 * 	Never null.
+	 */
+	@NotNull
+	public List<Machine> candidates(@NotNull Label.Expression expression) {
+		synchronized (indexLock) {
+			final long[] matching;
+			if(expression.getIncludes().isEmpty()) {
+				matching = allSlots.clone();
+			} else {
+				matching = new long[allSlots.length];
+				expression.getIncludeSet().forEachId(new LabelSet.IdVisitor() {
+					@Override
+					public void visit(int id) {
+						long[] labelSlots = slotsForLabel(id);
+						for(int i = 0; i < Math.min(labelSlots.length, matching.length); i++) {
+							matching[i] |= labelSlots[i];
+						}
+					}
+				});
+			}
+			expression.getExcludeSet().forEachId(new LabelSet.IdVisitor() {
+				@Override
+				public void visit(int id) {
+					long[] labelSlots = slotsForLabel(id);
+					for(int i = 0; i < Math.min(labelSlots.length, matching.length); i++) {
+						matching[i] &= ~labelSlots[i];
+					}
+				}
+			});
+
+			List<Machine> candidates = new ArrayList<Machine>();
+			for(int i = 0; i < matching.length; i++) {
+				long word = matching[i];
+				while(word != 0) {
+					candidates.add(slots.get((i << 6) + Long.numberOfTrailingZeros(word)));
+					word &= word - 1;
+				}
+			}
+			return candidates;
+		}
+	}
+
+	@LockedBy("indexLock")
+	@NotNull
+	private long[] slotsForLabel(int id) {
+		long[] labelSlots = id < slotsByLabel.length ? slotsByLabel[id] : null;
+		return labelSlots == null ? new long[0] : labelSlots;
+	}
+
+	@NotNull
+	private static LabelSet labelsOf(@NotNull Machine machine) {
+		Label.Expression labels = machine.getLabels();
+		return labels == null ? LabelSet.EMPTY : labels.getIncludeSet();
+	}
+
+	@NotNull
+	private static long[] set(@NotNull long[] bits, int index) {
+		int word = index >>> 6;
+		if(word >= bits.length) {
+			bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+		}
+		bits[word] |= 1L << index;
+		return bits;
+	}
+
+	private static void clear(@NotNull long[] bits, int index) {
+		int word = index >>> 6;
+		if(word < bits.length) {
+			bits[word] &= ~(1L << index);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LabelIndex{" +
+				"size=" + size() +
+				'}';
+	}
+}
@@ -0,0 +1,97 @@
+package com.vanillaci.distributedinvoke.machines.labels;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of labels stored as a bitset over their ids in the label dictionary (see {@link Label#intern(String)}),
+ * 	so comparing two sets is a few word-wise ANDs instead of string comparisons.
+ */
+public final class LabelSet {
+	public static final LabelSet EMPTY = new LabelSet(new long[0]);
+
+	/**
+	 * Trailing zero words are trimmed, so equal sets always have equal arrays.
+	 */
+	@NotNull private final long[] words;
+
+	@NotNull
+	public static LabelSet of(@NotNull Collection<Label> labels) {
+		long[] words = new long[0];
+		for (Label label : labels) {
+			int word = label.getId() >>> 6;
+			if(word >= words.length) {
+				words = Arrays.copyOf(words, word + 1);
+			}
+			words[word] |= 1L << label.getId();
+		}
+		return words.length == 0 ? EMPTY : new LabelSet(words);
+	}
+
+	private LabelSet(@NotNull long[] words) {
+		this.words = words;
+	}
+
+	public boolean isEmpty() {
+		return words.length == 0;
+	}
+
+	public boolean contains(@NotNull Label label) {
+		int word = label.getId() >>> 6;
+		return word < words.length && (words[word] & (1L << label.getId())) != 0;
+	}
+
+	/**
+	 * @return True if the two sets have at least one label in common.
+	 */
+	public boolean intersects(@NotNull LabelSet other) {
+		int length = Math.min(words.length, other.words.length);
+		for(int i = 0; i < length; i++) {
+			if((words[i] & other.words[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the given visitor with the id of every label in the set, in ascending order.
+	 */
+	/*package*/ void forEachId(@NotNull IdVisitor visitor) {
+		for(int i = 0; i < words.length; i++) {
+			long word = words[i];
+			while(word != 0) {
+				visitor.visit((i << 6) + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+	}
+
+	/*package*/ static interface IdVisitor {
+		void visit(int id);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return this == o || (o instanceof LabelSet && Arrays.equals(words, ((LabelSet) o).words));
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder names = new StringBuilder();
+		forEachId(new IdVisitor() {
+			@Override
+			public void visit(int id) {
+				names.append(names.length() == 0 ? "" : ", ").append(Label.forId(id).getName());
+			}
+		});
+		return "LabelSet{" + names + '}';
+	}
+}
@@ -0,0 +1,30 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that any number of threads can add to at once without contending on a single memory location.
+ * Can go down as well as up, so it also works for levels like queue depth.
+ */
+public final class Counter {
+	private final LongAdder adder = new LongAdder();
+
+	/*package*/ Counter() {
+	}
+
+	public void increment() {
+		adder.increment();
+	}
+
+	public void decrement() {
+		adder.decrement();
+	}
+
+	public void add(long amount) {
+		adder.add(amount);
+	}
+
+	public long get() {
+		return adder.sum();
+	}
+}
@@ -0,0 +1,11 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+/**
+ * Plugin endpoint.
+ *
+ * A value that's read whenever a snapshot is taken, rather than recorded as it changes.
+ * Called from whatever thread takes the snapshot, so it must be thread safe and quick.
+ */
+public interface Gauge {
+	long getValue();
+}
@@ -0,0 +1,92 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds or sizes in bytes, in a fixed amount of memory.
+ *
+ * Values are counted in log-linear buckets: every power of two is split into {@value #SUB_BUCKETS} equal buckets,
+ * 	so a bucket is never wider than 1/{@value #SUB_BUCKETS} of the values in it and percentiles are accurate to within that.
+ * 	The whole range of a long fits in {@value #BUCKET_COUNT} buckets.
+ *
+ * Recording is a few arithmetic operations and atomic adds. It never locks or allocates.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/*package*/ static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	@NotNull private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	@NotNull private final LongAdder sum = new LongAdder();
+	@NotNull private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+	/*package*/ Histogram() {
+	}
+
+	/**
+	 * @param value Negative values are counted as zero.
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketOf(value));
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Records the time since the given {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * The counts are read one bucket at a time while other threads may still be recording,
+	 * 	so the snapshot can be a few values out of step with itself, but never by more than what was being recorded at the time.
+	 */
+	@NotNull
+	public HistogramSnapshot snapshot() {
+		long[] counts = new long[BUCKET_COUNT];
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new HistogramSnapshot(counts, sum.sum(), max.get());
+	}
+
+	/*package*/ static int bucketOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value that goes in the given bucket.
+	 */
+	/*package*/ static long upperBoundOf(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		long lowerBound = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lowerBound + (width - 1);
+	}
+}
@@ -0,0 +1,75 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The state of a {@link Histogram} at one point in time.
+ */
+public final class HistogramSnapshot {
+	@NotNull private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	/*package*/ HistogramSnapshot(@NotNull long[] counts, long sum, long max) {
+		long count = 0;
+		for (long bucketCount : counts) {
+			count += bucketCount;
+		}
+		this.counts = counts;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return The value that the given percentage of recorded values are at or below, rounded up to the top of its bucket
+	 * 	but never above the largest value recorded. Zero if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		if(percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("'percentile' must be between 0 and 100");
+		}
+		if(count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(Histogram.upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "HistogramSnapshot{" +
+				"count=" + count +
+				", mean=" + Math.round(getMean()) +
+				", p50=" + getPercentile(50) +
+				", p99=" + getPercentile(99) +
+				", max=" + max +
+				'}';
+	}
+}
@@ -0,0 +1,89 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of a {@link MetricsRegistry} for JMX clients.
+ *
+ * Every counter and gauge is an attribute of its own. Every histogram is a group of attributes:
+ * 	{@code <name>.count}, {@code .mean}, {@code .p50}, {@code .p90}, {@code .p99}, {@code .p999} and {@code .max}.
+ * 	The attribute list is rebuilt from the registry each time it's asked for, so metrics created later show up too.
+ */
+/*package*/ class MetricsMBean implements DynamicMBean {
+	@NotNull private final MetricsRegistry registry;
+
+	MetricsMBean(@NotNull MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Object value = attributes(registry.snapshot()).get(attribute);
+		if(value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		Map<String, Object> values = attributes(registry.snapshot());
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Object value = values.get(name);
+			if(value != null) {
+				list.add(new Attribute(name, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> entry : attributes(registry.snapshot()).entrySet()) {
+			infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "DistributedInvoke metrics", infos.toArray(new MBeanAttributeInfo[infos.size()]), null, null, null);
+	}
+
+	@NotNull
+	private static Map<String, Object> attributes(@NotNull MetricsSnapshot snapshot) {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		attributes.putAll(snapshot.getCounters());
+		attributes.putAll(snapshot.getGauges());
+		for (Map.Entry<String, HistogramSnapshot> entry : snapshot.getHistograms().entrySet()) {
+			String name = entry.getKey();
+			HistogramSnapshot histogram = entry.getValue();
+			attributes.put(name + ".count", histogram.getCount());
+			attributes.put(name + ".mean", histogram.getMean());
+			attributes.put(name + ".p50", histogram.getPercentile(50));
+			attributes.put(name + ".p90", histogram.getPercentile(90));
+			attributes.put(name + ".p99", histogram.getPercentile(99));
+			attributes.put(name + ".p999", histogram.getPercentile(99.9));
+			attributes.put(name + ".max", histogram.getMax());
+		}
+		return attributes;
+	}
+}
@@ -0,0 +1,138 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, gauges and histograms.
+ *
+ * Looking a metric up by name is only meant to happen once, typically into a static field.
+ * 	Recording into it after that is lock-free and doesn't allocate, so it's safe on the hot path.
+ *
+ * Everything in the library records into {@link #getDefault()}, which is also published over JMX as {@value #DEFAULT_OBJECT_NAME}.
+ */
+public class MetricsRegistry {
+	private static final Logger LOGGER = Logger.forClass(MetricsRegistry.class);
+
+	public static final String DEFAULT_OBJECT_NAME = "com.vanillaci.distributedinvoke:type=Metrics";
+
+	@NotNull private static final MetricsRegistry DEFAULT = createDefault();
+
+	@NotNull private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	@NotNull private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	@NotNull private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * @return The registry the library records into. Never null.
+	 */
+	@NotNull
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	@NotNull
+	private static MetricsRegistry createDefault() {
+		MetricsRegistry registry = new MetricsRegistry();
+		try {
+			registry.registerMBean(new ObjectName(DEFAULT_OBJECT_NAME));
+		} catch (InstanceAlreadyExistsException e) {
+			//Another copy of the library in the same JVM got there first. Its metrics are published, ours just aren't.
+			LOGGER.info(DEFAULT_OBJECT_NAME + " is already registered, so these metrics won't be published over JMX.");
+		} catch (JMException e) {
+			LOGGER.warn("Couldn't publish metrics over JMX.", e);
+		}
+		return registry;
+	}
+
+	/**
+	 * @return The counter with the given name, created if it doesn't exist yet. Never null.
+	 */
+	@NotNull
+	public Counter counter(@NotNull String name) {
+		Counter counter = counters.get(name);
+		if(counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(name, created);
+			if(counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return The histogram with the given name, created if it doesn't exist yet. Never null.
+	 */
+	@NotNull
+	public Histogram histogram(@NotNull String name) {
+		Histogram histogram = histograms.get(name);
+		if(histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if(histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers the gauge under the given name, replacing any gauge that was already there.
+	 */
+	public void gauge(@NotNull String name, @NotNull Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Removes the gauge with the given name, if it's the given gauge.
+	 */
+	public void removeGauge(@NotNull String name, @NotNull Gauge gauge) {
+		gauges.remove(name, gauge);
+	}
+
+	/**
+	 * @return The current value of every metric. Never null.
+	 */
+	@NotNull
+	public MetricsSnapshot snapshot() {
+		SortedMap<String, Long> counterValues = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			counterValues.put(entry.getKey(), entry.getValue().get());
+		}
+
+		SortedMap<String, Long> gaugeValues = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			try {
+				gaugeValues.put(entry.getKey(), entry.getValue().getValue());
+			} catch (RuntimeException e) {
+				LOGGER.warn("Gauge " + entry.getKey() + " failed.", e);
+			}
+		}
+
+		SortedMap<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+		}
+
+		return new MetricsSnapshot(counterValues, gaugeValues, histogramValues);
+	}
+
+	/**
+	 * Publishes the registry on the platform MBean server under the given name. See {@link MetricsMBean} for the attributes.
+	 */
+	public void registerMBean(@NotNull ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+	}
+
+	public void unregisterMBean(@NotNull ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+}
@@ -0,0 +1,62 @@
+package com.vanillaci.distributedinvoke.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.SortedMap;
+
+/**
+ * Every metric in a {@link MetricsRegistry} at one point in time, sorted by name.
+ */
+public final class MetricsSnapshot {
+	@NotNull private final SortedMap<String, Long> counters;
+	@NotNull private final SortedMap<String, Long> gauges;
+	@NotNull private final SortedMap<String, HistogramSnapshot> histograms;
+
+	/*package*/ MetricsSnapshot(@NotNull SortedMap<String, Long> counters, @NotNull SortedMap<String, Long> gauges, @NotNull SortedMap<String, HistogramSnapshot> histograms) {
+		this.counters = ImmutableSortedMap.copyOfSorted(counters);
+		this.gauges = ImmutableSortedMap.copyOfSorted(gauges);
+		this.histograms = ImmutableSortedMap.copyOfSorted(histograms);
+	}
+
+	@NotNull
+	public SortedMap<String, Long> getCounters() {
+		return counters;
+	}
+
+	@NotNull
+	public SortedMap<String, Long> getGauges() {
+		return gauges;
+	}
+
+	@NotNull
+	public SortedMap<String, HistogramSnapshot> getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * @return The value of the counter with the given name, or zero if there isn't one.
+	 */
+	public long getCounter(@NotNull String name) {
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * @return The histogram with the given name, or null if there isn't one.
+	 */
+	@Nullable
+	public HistogramSnapshot getHistogram(@NotNull String name) {
+		return histograms.get(name);
+	}
+
+	@Override
+	public String toString() {
+		return "MetricsSnapshot{" +
+				"counters=" + counters +
+				", gauges=" + gauges +
+				", histograms=" + histograms +
+				'}';
+	}
+}
@@ -0,0 +1,276 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.jobs.Task;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Queue of tasks ordered by priority class, then by weighted fair share between tenants, as decided by a {@link TaskClassifier}.
+ *
+ * Each tenant has its own FIFO queue. Within a priority class, tenants are kept in a heap ordered by their virtual time:
+ * 	the executor-weight they've been given so far divided by their share. The tenant furthest behind goes next,
+ * 	and a tenant that had nothing queued starts from the class's current virtual time, so sitting idle doesn't earn it a burst later.
+ * 	Picking the next task is O(log tenants), however many tasks are queued.
+ *
+ * Within a tenant, tasks are kept FIFO per weight. Tasks heavier than the dispatcher's capacity are passed over without being offered,
+ * 	so a heavy task waiting at the front for a machine to free up doesn't make every pass walk everything queued behind it.
+ *
+ * Not thread safe.
+ */
+public class FairShareQueue<T extends Task<?>> {
+	@NotNull private final TaskClassifier classifier;
+
+	/**
+	 * Highest priority first.
+	 */
+	@NotNull private final NavigableMap<Integer, PriorityClass> priorityClasses = new TreeMap<Integer, PriorityClass>(Collections.reverseOrder());
+	private long nextTenantSequence;
+	private long nextTaskSequence;
+	private int size;
+
+	public FairShareQueue(@NotNull TaskClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	public void add(@NotNull T task) {
+		int priority = classifier.getPriority(task);
+		PriorityClass priorityClass = priorityClasses.get(priority);
+		if(priorityClass == null) {
+			priorityClass = new PriorityClass(priority);
+			priorityClasses.put(priority, priorityClass);
+		}
+		priorityClass.add(classifier.getTenant(task), task);
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Offers queued tasks to the given dispatcher in scheduling order until it runs out of capacity or nothing more can run.
+	 * A tenant whose queued tasks are all refused is skipped for the rest of the pass, and the pass moves on to the next tenant.
+	 * @return The number of tasks dispatched.
+	 */
+	public int dispatch(@NotNull Dispatcher<T> dispatcher) throws InterruptedException {
+		int dispatched = 0;
+		Iterator<PriorityClass> priorityClassIterator = priorityClasses.values().iterator();
+		while(priorityClassIterator.hasNext() && dispatcher.getCapacity() > 0) {
+			PriorityClass priorityClass = priorityClassIterator.next();
+			dispatched += priorityClass.dispatch(dispatcher);
+			if(priorityClass.tenants.isEmpty()) {
+				priorityClassIterator.remove();
+			}
+		}
+		return dispatched;
+	}
+
+	public static interface Dispatcher<T> {
+		/**
+		 * @return The weight of the heaviest task that could be dispatched right now, such as the most executors free on any one machine.
+		 * 	Tasks heavier than that aren't offered. Zero ends the pass early.
+		 */
+		int getCapacity();
+
+		/**
+		 * Attempts to run the given task.
+		 * @return True if the task was taken and should leave the queue.
+		 */
+		boolean tryDispatch(@NotNull T task) throws InterruptedException;
+	}
+
+	private class PriorityClass {
+		private final int priority;
+		@NotNull private final Map<String, TenantQueue> tenants = new HashMap<String, TenantQueue>();
+		@NotNull private final PriorityQueue<TenantQueue> ready = new PriorityQueue<TenantQueue>();
+		private double virtualTime;
+
+		public PriorityClass(int priority) {
+			this.priority = priority;
+		}
+
+		public void add(@NotNull String tenant, @NotNull T task) {
+			TenantQueue tenantQueue = tenants.get(tenant);
+			if(tenantQueue == null) {
+				int share = classifier.getShare(tenant);
+				if(share <= 0) {
+					throw new IllegalArgumentException("Share of '" + tenant + "' must be positive, but was " + share);
+				}
+				tenantQueue = new TenantQueue(tenant, share, nextTenantSequence++, virtualTime);
+				tenants.put(tenant, tenantQueue);
+				ready.add(tenantQueue);
+			}
+			tenantQueue.add(task);
+		}
+
+		public int dispatch(@NotNull Dispatcher<T> dispatcher) throws InterruptedException {
+			int dispatched = 0;
+			List<TenantQueue> blocked = new ArrayList<TenantQueue>();
+			try {
+				TenantQueue tenantQueue;
+				while(dispatcher.getCapacity() > 0 && (tenantQueue = ready.poll()) != null) {
+					T task = tenantQueue.dispatchFirstRunnable(dispatcher);
+					if(task == null) {
+						blocked.add(tenantQueue);
+						continue;
+					}
+
+					dispatched++;
+					size--;
+					virtualTime = Math.max(virtualTime, tenantQueue.virtualTime);
+					tenantQueue.virtualTime += (double) Math.max(task.getWeight(), 1) / tenantQueue.share;
+
+					if(tenantQueue.isEmpty()) {
+						tenants.remove(tenantQueue.tenant);
+					} else {
+						ready.add(tenantQueue);
+					}
+				}
+			} finally {
+				ready.addAll(blocked);
+			}
+			return dispatched;
+		}
+
+		@Override
+		public String toString() {
+			return "PriorityClass{" +
+					"priority=" + priority +
+					", tenants=" + tenants.keySet() +
+					'}';
+		}
+	}
+
+	private class TenantQueue implements Comparable<TenantQueue> {
+		@NotNull private final String tenant;
+		private final int share;
+		private final long sequence;
+		private double virtualTime;
+		/**
+		 * Keyed by weight. Each one is FIFO.
+		 */
+		@NotNull private final NavigableMap<Integer, Deque<Waiting>> byWeight = new TreeMap<Integer, Deque<Waiting>>();
+		private int size;
+
+		public TenantQueue(@NotNull String tenant, int share, long sequence, double virtualTime) {
+			this.tenant = tenant;
+			this.share = share;
+			this.sequence = sequence;
+			this.virtualTime = virtualTime;
+		}
+
+		public void add(@NotNull T task) {
+			int weight = Math.max(task.getWeight(), 1);
+			Deque<Waiting> tasks = byWeight.get(weight);
+			if(tasks == null) {
+				tasks = new ArrayDeque<Waiting>();
+				byWeight.put(weight, tasks);
+			}
+			tasks.add(new Waiting(task, nextTaskSequence++));
+			size++;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Offers the tasks that fit the dispatcher's capacity in the order they were queued, until one is taken.
+		 * @return The task that was dispatched, or null if the dispatcher refused all of them.
+		 */
+		@Nullable
+		public T dispatchFirstRunnable(@NotNull Dispatcher<T> dispatcher) throws InterruptedException {
+			int capacity = dispatcher.getCapacity();
+
+			//Merges the weights that fit into one FIFO order. There are only ever a handful of distinct weights.
+			PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+			for (Map.Entry<Integer, Deque<Waiting>> entry : byWeight.headMap(capacity, true).entrySet()) {
+				Cursor cursor = new Cursor(entry.getKey(), entry.getValue());
+				if(cursor.advance()) {
+					cursors.add(cursor);
+				}
+			}
+
+			Cursor cursor;
+			while((cursor = cursors.poll()) != null) {
+				if(cursor.weight > capacity) {
+					continue;
+				}
+
+				T task = cursor.current.task;
+				if(dispatcher.tryDispatch(task)) {
+					cursor.remove();
+					return task;
+				}
+
+				capacity = dispatcher.getCapacity();
+				if(capacity <= 0) {
+					return null;
+				}
+				if(cursor.advance()) {
+					cursors.add(cursor);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Walks the tasks of one weight.
+		 */
+		private class Cursor implements Comparable<Cursor> {
+			private final int weight;
+			@NotNull private final Deque<Waiting> tasks;
+			@NotNull private final Iterator<Waiting> iterator;
+			private Waiting current;
+
+			public Cursor(int weight, @NotNull Deque<Waiting> tasks) {
+				this.weight = weight;
+				this.tasks = tasks;
+				this.iterator = tasks.iterator();
+			}
+
+			public boolean advance() {
+				if(!iterator.hasNext()) {
+					return false;
+				}
+				current = iterator.next();
+				return true;
+			}
+
+			public void remove() {
+				iterator.remove();
+				if(tasks.isEmpty()) {
+					byWeight.remove(weight);
+				}
+				size--;
+			}
+
+			@Override
+			public int compareTo(@NotNull Cursor other) {
+				return current.sequence < other.current.sequence ? -1 : (current.sequence == other.current.sequence ? 0 : 1);
+			}
+		}
+
+		@Override
+		public int compareTo(@NotNull TenantQueue other) {
+			int compare = Double.compare(virtualTime, other.virtualTime);
+			return compare != 0 ? compare : (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+		}
+	}
+
+	private class Waiting {
+		@NotNull private final T task;
+		private final long sequence;
+
+		public Waiting(@NotNull T task, long sequence) {
+			this.task = task;
+			this.sequence = sequence;
+		}
+	}
+}
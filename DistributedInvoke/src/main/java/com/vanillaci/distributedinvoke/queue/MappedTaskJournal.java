@@ -0,0 +1,694 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link TaskJournal} kept in a directory of append-only segment files, written through memory mappings.
+ *
+ * Appending is a copy into the mapped segment, so it costs about as much as serializing the task.
+ * 	Once a write is in the mapping it survives the process dying. Surviving the machine dying takes an fsync,
+ * 	which a background thread does for everything written since the last one, every flush interval (group commit).
+ * 	{@link #sync()} waits for the next one. A journal opened with {@code syncAppends} does that in every {@link #append(Task)},
+ * 	so a task is on disk by the time it's queued; appends made at the same time still share one fsync.
+ * 	Removals are never waited for, since losing one only means the task is queued again after a crash.
+ *
+ * Each record is: type (1 byte), payload length (4), CRC32 of the id and payload (4), id (8), payload.
+ * 	An enqueue record's payload is the serialized task, a dequeue record has none and names the task it removes by id.
+ * 	A zero type byte marks the end of a segment. Replay stops reading a segment at the first record that doesn't check out,
+ * 	which is where a crash cut it short.
+ *
+ * Nothing is ever written to a segment again after a restart. Space is reclaimed two ways:
+ * 	the oldest segments are deleted as soon as none of their tasks are still queued,
+ * 	and once less than half of the data in the older segments is still queued, the live tasks are copied into a single
+ * 	compacted segment that replaces them all.
+ */
+public class MappedTaskJournal implements TaskJournal {
+	private static final Logger LOGGER = Logger.forClass(MappedTaskJournal.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_MILLIS = 10;
+
+	/**
+	 * The older segments are compacted once less than this fraction of their bytes belong to queued tasks.
+	 */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String COMPACTION_SUFFIX = ".compacting";
+
+	private static final byte END = 0;
+	private static final byte ENQUEUE = 1;
+	private static final byte DEQUEUE = 2;
+	private static final int HEADER_SIZE = 1 + 4 + 4 + 8;
+	private static final byte[] NO_PAYLOAD = new byte[0];
+
+	@NotNull private final File directory;
+	private final int segmentSize;
+	private final long flushMillis;
+	private final boolean syncAppends;
+
+	private final Lock journalLock = new Lock();
+	@LockedBy("journalLock") @NotNull private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	@LockedBy("journalLock") @NotNull private final TreeMap<Long, Segment> segmentsByFirstId = new TreeMap<Long, Segment>();
+	@LockedBy("journalLock") @NotNull private final List<Segment> unflushed = new ArrayList<Segment>();
+	@LockedBy("journalLock") @NotNull private final CRC32 crc = new CRC32();
+	@LockedBy("journalLock") @NotNull private Segment active;
+	@LockedBy("journalLock") private long nextId = 1;
+	@LockedBy("journalLock") private long appendCount;
+	@LockedBy("journalLock") private long flushedCount;
+	@LockedBy("journalLock") private boolean syncRequested;
+	@LockedBy("journalLock") private boolean compacting;
+	@LockedBy("journalLock") private boolean closed;
+
+	@NotNull private final Thread flusher;
+
+	/**
+	 * Opens the journal in the given directory with {@value #DEFAULT_SEGMENT_SIZE} byte segments,
+	 * 	flushed every {@value #DEFAULT_FLUSH_MILLIS}ms.
+	 * @param directory Created if it doesn't exist. Cannot be null.
+	 */
+	@NotNull
+	public static MappedTaskJournal open(@NotNull File directory) throws IOException {
+		return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens the journal in the given directory, reading whatever segments are already there.
+	 * @param directory Created if it doesn't exist. Cannot be null.
+	 * @param segmentSize The size of each segment file in bytes. A task too big for one gets a segment of its own.
+	 * @param flushInterval How long a write can sit in memory before it's forced to disk. Must be positive.
+	 */
+	@NotNull
+	public static MappedTaskJournal open(@NotNull File directory, int segmentSize, long flushInterval, @NotNull TimeUnit unit) throws IOException {
+		return open(directory, segmentSize, flushInterval, unit, false);
+	}
+
+	/**
+	 * Opens the journal in the given directory, reading whatever segments are already there.
+	 * @param directory Created if it doesn't exist. Cannot be null.
+	 * @param segmentSize The size of each segment file in bytes. A task too big for one gets a segment of its own.
+	 * @param flushInterval How long a write can sit in memory before it's forced to disk. Must be positive.
+	 * @param syncAppends If true, {@link #append(Task)} doesn't return until the task has been forced to disk.
+	 */
+	@NotNull
+	public static MappedTaskJournal open(@NotNull File directory, int segmentSize, long flushInterval, @NotNull TimeUnit unit, boolean syncAppends) throws IOException {
+		if(segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("'segmentSize' must be greater than " + HEADER_SIZE);
+		}
+		if(flushInterval <= 0) {
+			throw new IllegalArgumentException("'flushInterval' must be a positive integer");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create journal directory " + directory.getAbsolutePath());
+		}
+		return new MappedTaskJournal(directory, segmentSize, Math.max(unit.toMillis(flushInterval), 1), syncAppends);
+	}
+
+	private MappedTaskJournal(@NotNull File directory, int segmentSize, long flushMillis, boolean syncAppends) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.flushMillis = flushMillis;
+		this.syncAppends = syncAppends;
+
+		synchronized (journalLock) {
+			recover();
+			active = createSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1, segmentSize);
+		}
+
+		this.flusher = new Thread(new Flusher(), "MappedTaskJournal flusher: " + directory.getName());
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	@Override
+	public long append(@NotNull Task<Result> task) throws IOException {
+		byte[] payload = serialize(task);
+		long id;
+		synchronized (journalLock) {
+			checkOpen();
+			id = nextId++;
+			int offset = write(ENQUEUE, id, payload);
+			active.addEntry(id, offset, HEADER_SIZE + payload.length);
+			if(active.count == 1) {
+				segmentsByFirstId.put(id, active);
+			}
+		}
+
+		if(syncAppends) {
+			try {
+				sync();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for task " + id + " to be forced to disk");
+			}
+		}
+		return id;
+	}
+
+	@Override
+	public void remove(long id) throws IOException {
+		synchronized (journalLock) {
+			checkOpen();
+			Segment segment = findSegment(id);
+			if(segment == null || !segment.kill(id)) {
+				return;
+			}
+			write(DEQUEUE, id, NO_PAYLOAD);
+			deleteDeadSegments();
+		}
+	}
+
+	@Override
+	public void replay(@NotNull Visitor visitor) throws IOException {
+		List<Long> unreadable = new ArrayList<Long>();
+		synchronized (journalLock) {
+			checkOpen();
+			for (Segment segment : segments.values()) {
+				for(int i = segment.live.nextSetBit(0); i >= 0; i = segment.live.nextSetBit(i + 1)) {
+					Task<Result> task = deserialize(segment, segment.offsets[i]);
+					if(task == null) {
+						unreadable.add(segment.ids[i]);
+					} else {
+						visitor.visit(segment.ids[i], task);
+					}
+				}
+			}
+		}
+
+		//Tasks that can't be read now never will be. Drop them, or they'd hold up compaction forever.
+		for (Long id : unreadable) {
+			remove(id);
+		}
+	}
+
+	/**
+	 * Waits until everything appended or removed before the call has been forced to disk.
+	 * Callers that sync at the same time share a single fsync.
+	 */
+	public void sync() throws InterruptedException {
+		synchronized (journalLock) {
+			long target = appendCount;
+			syncRequested = true;
+			journalLock.notifyAll();
+			while(flushedCount < target && !closed) {
+				journalLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of tasks appended and not yet removed.
+	 */
+	public int size() {
+		synchronized (journalLock) {
+			int size = 0;
+			for (Segment segment : segments.values()) {
+				size += segment.liveCount;
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * @return The number of records written since the last time the journal was forced to disk.
+	 */
+	public long getUnsyncedCount() {
+		synchronized (journalLock) {
+			return appendCount - flushedCount;
+		}
+	}
+
+	/**
+	 * @return The number of segment files in the journal directory.
+	 */
+	public int getSegmentCount() {
+		synchronized (journalLock) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Stops the flusher and forces everything to disk.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (journalLock) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			journalLock.notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (journalLock) {
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+				segment.channel.close();
+			}
+		}
+	}
+
+	@LockedBy("journalLock")
+	private void checkOpen() throws IOException {
+		if(closed) {
+			throw new IOException("Journal has been closed.");
+		}
+	}
+
+	/**
+	 * Writes a record to the end of the active segment, starting a new segment if it doesn't fit.
+	 * @return The offset of the record within the active segment.
+	 */
+	@LockedBy("journalLock")
+	private int write(byte type, long id, @NotNull byte[] payload) throws IOException {
+		int size = HEADER_SIZE + payload.length;
+		if(active.buffer.capacity() - active.end < size) {
+			unflushed.add(active);
+			active = createSegment(active.number + 1, Math.max(segmentSize, size + 1));
+		}
+
+		int offset = active.end;
+		ByteBuffer writer = active.writer;
+		writer.limit(writer.capacity());
+		writer.position(offset + 1);
+		writer.putInt(payload.length);
+		writer.putInt(0);
+		writer.putLong(id);
+		writer.put(payload);
+
+		writer.limit(offset + size);
+		writer.position(offset + 9);
+		crc.reset();
+		crc.update(writer);
+		writer.putInt(offset + 5, (int) crc.getValue());
+		//The type goes in last, so a reader never sees a record that's only partly there.
+		writer.put(offset, type);
+
+		active.end += size;
+		appendCount++;
+		return offset;
+	}
+
+	@LockedBy("journalLock")
+	@Nullable
+	private Segment findSegment(long id) {
+		Map.Entry<Long, Segment> entry = segmentsByFirstId.floorEntry(id);
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * Deletes segments from the front of the journal while none of their tasks are queued.
+	 * Only the front, since a segment's dequeue records are what keep the tasks in the segments before it from coming back.
+	 */
+	@LockedBy("journalLock")
+	private void deleteDeadSegments() {
+		if(compacting) {
+			return;
+		}
+		while(!segments.isEmpty()) {
+			Segment oldest = segments.firstEntry().getValue();
+			if(oldest == active || oldest.liveCount > 0) {
+				return;
+			}
+			dropSegment(oldest);
+			delete(oldest.file);
+		}
+	}
+
+	@LockedBy("journalLock")
+	private void dropSegment(@NotNull Segment segment) {
+		segments.remove(segment.number);
+		if(segment.count > 0 && segmentsByFirstId.get(segment.ids[0]) == segment) {
+			segmentsByFirstId.remove(segment.ids[0]);
+		}
+		unflushed.remove(segment);
+		closeQuietly(segment.channel);
+	}
+
+	/**
+	 * Reads every segment in the directory, in order.
+	 */
+	@LockedBy("journalLock")
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		if(files == null) {
+			throw new IOException("Couldn't list journal directory " + directory.getAbsolutePath());
+		}
+
+		SortedMap<Long, File> existing = new TreeMap<Long, File>();
+		for (File file : files) {
+			String name = file.getName();
+			if(name.endsWith(COMPACTION_SUFFIX)) {
+				//Compaction didn't finish. The segments it was replacing are all still there.
+				delete(file);
+			} else if(name.endsWith(SEGMENT_SUFFIX)) {
+				existing.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16), file);
+			}
+		}
+
+		for (Map.Entry<Long, File> entry : existing.entrySet()) {
+			Segment segment = openSegment(entry.getKey(), entry.getValue());
+			segments.put(segment.number, segment);
+			scan(segment);
+			if(segment.count > 0) {
+				segmentsByFirstId.put(segment.ids[0], segment);
+			}
+		}
+		deleteDeadSegments();
+	}
+
+	@LockedBy("journalLock")
+	private void scan(@NotNull Segment segment) {
+		ByteBuffer reader = segment.buffer.duplicate();
+		int limit = reader.capacity();
+		int offset = 0;
+		while(offset + HEADER_SIZE <= limit) {
+			byte type = reader.get(offset);
+			if(type == END) {
+				break;
+			}
+			int length = reader.getInt(offset + 1);
+			int checksum = reader.getInt(offset + 5);
+			long id = reader.getLong(offset + 9);
+			if((type != ENQUEUE && type != DEQUEUE) || length < 0 || length > limit - offset - HEADER_SIZE) {
+				LOGGER.warn("Corrupt record in journal segment " + segment.file.getName() + " at " + offset + ". Ignoring the rest of the segment.");
+				break;
+			}
+
+			reader.limit(offset + HEADER_SIZE + length);
+			reader.position(offset + 9);
+			crc.reset();
+			crc.update(reader);
+			reader.limit(limit);
+			if((int) crc.getValue() != checksum) {
+				LOGGER.warn("Checksum mismatch in journal segment " + segment.file.getName() + " at " + offset + ". Ignoring the rest of the segment.");
+				break;
+			}
+
+			if(type == ENQUEUE) {
+				//A compaction that was cut short leaves copies of tasks in the segments it was replacing. The first one wins.
+				if(id >= nextId) {
+					segment.addEntry(id, offset, HEADER_SIZE + length);
+					nextId = id + 1;
+				}
+			} else {
+				Segment owner = segment.count > 0 && id >= segment.ids[0] ? segment : findSegment(id);
+				if(owner != null) {
+					owner.kill(id);
+				}
+			}
+			offset += HEADER_SIZE + length;
+		}
+		segment.end = offset;
+	}
+
+	/**
+	 * Copies the tasks still queued in every segment but the active one into a new segment,
+	 * 	then swaps it in for the segments it was copied from.
+	 *
+	 * The copy is made without holding the lock. Tasks removed in the meantime are marked removed in the new segment
+	 * 	when it's swapped in, and their dequeue records are in the active segment, which isn't touched.
+	 */
+	private void compact() throws IOException {
+		List<Segment> sources = new ArrayList<Segment>();
+		List<BitSet> liveSnapshots = new ArrayList<BitSet>();
+		synchronized (journalLock) {
+			if(closed || segments.size() < 3) {
+				return;
+			}
+			long liveBytes = 0;
+			long totalBytes = 0;
+			for (Segment segment : segments.values()) {
+				if(segment != active) {
+					sources.add(segment);
+					liveSnapshots.add((BitSet) segment.live.clone());
+					liveBytes += segment.liveBytes;
+					totalBytes += segment.end;
+				}
+			}
+			if(liveBytes >= totalBytes * COMPACTION_THRESHOLD) {
+				return;
+			}
+			compacting = true;
+		}
+
+		try {
+			Segment first = sources.get(0);
+			File temp = new File(directory, segmentName(first.number) + COMPACTION_SUFFIX);
+			List<long[]> copied = new ArrayList<long[]>();
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				long position = 0;
+				for(int s = 0; s < sources.size(); s++) {
+					Segment source = sources.get(s);
+					BitSet live = liveSnapshots.get(s);
+					ByteBuffer reader = source.buffer.duplicate();
+					for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)) {
+						int offset = source.offsets[i];
+						int size = HEADER_SIZE + reader.getInt(offset + 1);
+						reader.limit(offset + size);
+						reader.position(offset);
+						while(reader.hasRemaining()) {
+							channel.write(reader);
+						}
+						reader.limit(reader.capacity());
+						copied.add(new long[] { source.ids[i], position, size });
+						position += size;
+					}
+				}
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+
+			Files.move(temp.toPath(), first.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			synchronized (journalLock) {
+				Segment compacted = openSegment(first.number, first.file);
+				compacted.end = compacted.buffer.capacity();
+				for (long[] entry : copied) {
+					compacted.addEntry(entry[0], (int) entry[1], (int) entry[2]);
+				}
+				for (long[] entry : copied) {
+					Segment source = findSegment(entry[0]);
+					if(source != null && !source.isLive(entry[0])) {
+						compacted.kill(entry[0]);
+					}
+				}
+
+				for (Segment source : sources) {
+					dropSegment(source);
+				}
+				segments.put(compacted.number, compacted);
+				if(compacted.count > 0) {
+					segmentsByFirstId.put(compacted.ids[0], compacted);
+				}
+
+				//In order, so that a crash part way through can't leave a task without the dequeue record that follows it.
+				for(int i = 1; i < sources.size(); i++) {
+					delete(sources.get(i).file);
+				}
+				LOGGER.infop("Compacted %d journal segments into one with %d queued tasks.", sources.size(), compacted.liveCount);
+			}
+		} finally {
+			synchronized (journalLock) {
+				compacting = false;
+				deleteDeadSegments();
+			}
+		}
+	}
+
+	@NotNull
+	private Segment createSegment(long number, int size) throws IOException {
+		File file = new File(directory, segmentName(number) + SEGMENT_SUFFIX);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		FileChannel channel = randomAccessFile.getChannel();
+		Segment segment = new Segment(number, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		segments.put(number, segment);
+		return segment;
+	}
+
+	@NotNull
+	private static Segment openSegment(long number, @NotNull File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		return new Segment(number, file, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	}
+
+	@NotNull
+	private static String segmentName(long number) {
+		return String.format("%016x", number);
+	}
+
+	@NotNull
+	private static byte[] serialize(@NotNull Task<Result> task) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(task);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return Null if the task can't be read back.
+	 */
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private static Task<Result> deserialize(@NotNull Segment segment, int offset) {
+		ByteBuffer reader = segment.buffer.duplicate();
+		byte[] payload = new byte[reader.getInt(offset + 1)];
+		reader.position(offset + HEADER_SIZE);
+		reader.get(payload);
+		try {
+			return (Task<Result>) new ObjectInputStream(new ByteArrayInputStream(payload)).readObject();
+		} catch (Exception e) {
+			LOGGER.error("Couldn't read queued task from journal segment " + segment.file.getName() + " at " + offset + ". Dropping it.", e);
+			return null;
+		}
+	}
+
+	private static void delete(@NotNull File file) {
+		if(!file.delete() && file.exists()) {
+			LOGGER.warn("Couldn't delete journal file " + file.getAbsolutePath());
+		}
+	}
+
+	private static void closeQuietly(@NotNull Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			LOGGER.warn(e);
+		}
+	}
+
+	/**
+	 * Forces writes to disk every flush interval, or sooner if someone's waiting in {@link #sync()},
+	 * 	and compacts the journal when it's worth it.
+	 */
+	private class Flusher implements Runnable {
+		@Override
+		public void run() {
+			while(true) {
+				List<Segment> toForce;
+				long target;
+				synchronized (journalLock) {
+					if(!closed && !syncRequested) {
+						try {
+							journalLock.wait(flushMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if(closed) {
+						return;
+					}
+					syncRequested = false;
+					target = appendCount;
+					if(target == flushedCount && unflushed.isEmpty()) {
+						continue;
+					}
+					toForce = new ArrayList<Segment>(unflushed);
+					toForce.add(active);
+					unflushed.clear();
+				}
+
+				for (Segment segment : toForce) {
+					segment.buffer.force();
+				}
+
+				synchronized (journalLock) {
+					flushedCount = Math.max(flushedCount, target);
+					journalLock.notifyAll();
+				}
+
+				try {
+					compact();
+				} catch (IOException e) {
+					LOGGER.error("Couldn't compact journal in " + directory.getAbsolutePath(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One segment file, and where the enqueue records in it are.
+	 * Ids are in ascending order within a segment, and every segment's ids are above the ones before it.
+	 */
+	private static final class Segment {
+		final long number;
+		@NotNull final File file;
+		@NotNull final FileChannel channel;
+		@NotNull final MappedByteBuffer buffer;
+		@NotNull final ByteBuffer writer;
+
+		int end;
+		@NotNull long[] ids = new long[16];
+		@NotNull int[] offsets = new int[16];
+		int count;
+		@NotNull final BitSet live = new BitSet();
+		int liveCount;
+		long liveBytes;
+
+		Segment(long number, @NotNull File file, @NotNull FileChannel channel, @NotNull MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.writer = buffer.duplicate();
+		}
+
+		void addEntry(long id, int offset, int size) {
+			if(count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			ids[count] = id;
+			offsets[count] = offset;
+			live.set(count);
+			count++;
+			liveCount++;
+			liveBytes += size;
+		}
+
+		boolean isLive(long id) {
+			int index = Arrays.binarySearch(ids, 0, count, id);
+			return index >= 0 && live.get(index);
+		}
+
+		/**
+		 * @return False if the id isn't in this segment, or was already removed.
+		 */
+		boolean kill(long id) {
+			int index = Arrays.binarySearch(ids, 0, count, id);
+			if(index < 0 || !live.get(index)) {
+				return false;
+			}
+			live.clear(index);
+			liveCount--;
+			liveBytes -= HEADER_SIZE + buffer.getInt(offsets[index] + 1);
+			return true;
+		}
+	}
+}
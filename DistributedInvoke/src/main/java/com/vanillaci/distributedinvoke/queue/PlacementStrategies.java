@@ -0,0 +1,81 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The built in {@link PlacementStrategy}s.
+ */
+public final class PlacementStrategies {
+	private PlacementStrategies() {}
+
+	/**
+	 * The first machine that fits, in the order machines were added.
+	 */
+	@NotNull
+	public static PlacementStrategy firstFit() {
+		return FirstFit.INSTANCE;
+	}
+
+	/**
+	 * The machine that will have the fewest free executors left over.
+	 * Packs tasks tightly, which keeps whole machines free for heavy tasks.
+	 */
+	@NotNull
+	public static PlacementStrategy bestFit() {
+		return BestFit.INSTANCE;
+	}
+
+	/**
+	 * The machine that will have the most free executors left over.
+	 */
+	@NotNull
+	public static PlacementStrategy worstFit() {
+		return WorstFit.INSTANCE;
+	}
+
+	/**
+	 * The machine that is least busy relative to its size, which spreads load evenly across machines of different sizes.
+	 */
+	@NotNull
+	public static PlacementStrategy spread() {
+		return Spread.INSTANCE;
+	}
+
+	private static class FirstFit implements PlacementStrategy {
+		private static final FirstFit INSTANCE = new FirstFit();
+
+		@Override
+		public double score(@NotNull Machine machine, int weight) {
+			return 0;
+		}
+	}
+
+	private static class BestFit implements PlacementStrategy {
+		private static final BestFit INSTANCE = new BestFit();
+
+		@Override
+		public double score(@NotNull Machine machine, int weight) {
+			return machine.getAvailableExecutorCount() - weight;
+		}
+	}
+
+	private static class WorstFit implements PlacementStrategy {
+		private static final WorstFit INSTANCE = new WorstFit();
+
+		@Override
+		public double score(@NotNull Machine machine, int weight) {
+			return weight - machine.getAvailableExecutorCount();
+		}
+	}
+
+	private static class Spread implements PlacementStrategy {
+		private static final Spread INSTANCE = new Spread();
+
+		@Override
+		public double score(@NotNull Machine machine, int weight) {
+			int total = machine.getTotalExecutorCount();
+			return total <= 0 ? Double.MAX_VALUE : (double) (machine.getBusyExecutorCount() + weight) / total;
+		}
+	}
+}
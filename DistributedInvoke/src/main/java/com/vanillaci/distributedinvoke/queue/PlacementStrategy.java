@@ -0,0 +1,22 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Plugin endpoint.
+ *
+ * Decides which machine a task runs on when more than one could take it.
+ * 	The queue only asks about machines with enough free executors that the {@link DequeueWatch} plugins allow,
+ * 	and picks the one with the lowest score. Ties go to the machine that was added first.
+ *
+ * @see PlacementStrategies
+ */
+public interface PlacementStrategy {
+	/**
+	 * @param machine A machine with at least {@code weight} free executors.
+	 * @param weight The number of executors the task needs.
+	 * @return How good a fit the machine is. Lower is better.
+	 */
+	double score(@NotNull Machine machine, int weight);
+}
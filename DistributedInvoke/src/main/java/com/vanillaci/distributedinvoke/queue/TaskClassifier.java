@@ -0,0 +1,51 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.jobs.Task;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Plugin endpoint.
+ *
+ * Decides the order queued tasks run in. Tasks in a higher priority class always go first.
+ * 	Within a priority class, executors are shared between tenants (teams, projects, queues...)
+ * 	in proportion to their shares, so a tenant that queues thousands of tasks can't starve the rest.
+ * 	Tasks from the same tenant and priority run in the order they were queued.
+ */
+public interface TaskClassifier {
+	/**
+	 * Puts every task in the same priority class and tenant, which makes the queue first-in-first-out.
+	 */
+	public static final TaskClassifier SINGLE_TENANT = new TaskClassifier() {
+		@Override
+		public int getPriority(@NotNull Task<?> task) {
+			return 0;
+		}
+
+		@NotNull
+		@Override
+		public String getTenant(@NotNull Task<?> task) {
+			return "";
+		}
+
+		@Override
+		public int getShare(@NotNull String tenant) {
+			return 1;
+		}
+	};
+
+	/**
+	 * @return The priority class of the task. Higher runs first.
+	 */
+	int getPriority(@NotNull Task<?> task);
+
+	/**
+	 * @return Who the task belongs to. Cannot be null.
+	 */
+	@NotNull
+	String getTenant(@NotNull Task<?> task);
+
+	/**
+	 * @return How big a slice of the executors the tenant gets relative to the other tenants. Must be positive.
+	 */
+	int getShare(@NotNull String tenant);
+}
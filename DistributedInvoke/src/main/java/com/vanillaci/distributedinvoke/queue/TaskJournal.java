@@ -0,0 +1,63 @@
+package com.vanillaci.distributedinvoke.queue;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Plugin endpoint.
+ *
+ * Keeps a durable record of the tasks waiting in a {@link TaskQueue}, so the queue survives a restart.
+ * 	Every task is appended when it's queued and removed once it's handed to a machine.
+ * 	Whatever was appended and never removed is replayed into the queue when it's created.
+ *
+ * Only waiting tasks are recorded. A task is removed as soon as it's dispatched, so one that was running when the master went down
+ * 	is not queued again on restart; it's up to whoever enqueued it to notice it never finished.
+ * 	How soon an appended task is safe from the machine going down depends on the journal (see {@link MappedTaskJournal}).
+ */
+public interface TaskJournal extends Closeable {
+	/**
+	 * Doesn't record anything. The queue is lost on restart.
+	 */
+	public static final TaskJournal NONE = new TaskJournal() {
+		@Override
+		public long append(@NotNull Task<Result> task) {
+			return 0;
+		}
+
+		@Override
+		public void remove(long id) {
+		}
+
+		@Override
+		public void replay(@NotNull Visitor visitor) {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	/**
+	 * Records a newly queued task.
+	 * @return The id to pass to {@link #remove(long)} once the task leaves the queue.
+	 */
+	long append(@NotNull Task<Result> task) throws IOException;
+
+	/**
+	 * Records that the task with the given id left the queue. Does nothing if the id isn't in the journal.
+	 */
+	void remove(long id) throws IOException;
+
+	/**
+	 * Calls the visitor with every task that was appended and never removed, in the order they were appended.
+	 */
+	void replay(@NotNull Visitor visitor) throws IOException;
+
+	public static interface Visitor {
+		void visit(long id, @NotNull Task<Result> task);
+	}
+}
@@ -1,105 +1,399 @@
 package com.vanillaci.distributedinvoke.queue;
 
 import com.vanillaci.distributedinvoke.Lock;
+import com.vanillaci.distributedinvoke.annotations.LockedBy;
+import com.vanillaci.distributedinvoke.cache.ResultCache;
 import com.vanillaci.distributedinvoke.channels.ResultFuture;
-import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
+import com.vanillaci.distributedinvoke.exceptions.MachineUnavailableException;
+import com.vanillaci.distributedinvoke.jobs.CacheableTask;
+import com.vanillaci.distributedinvoke.jobs.LabeledTask;
 import com.vanillaci.distributedinvoke.jobs.Result;
 import com.vanillaci.distributedinvoke.jobs.Task;
 import com.vanillaci.distributedinvoke.logging.Logger;
 import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.labels.LabelIndex;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
 /**
+ * Hands queued tasks out to machines with enough free executors.
+ *
+ * The dispatcher thread ({@link #run()}) sleeps until something happens that could let a task run:
+ * 	a task is enqueued, a machine is added, or a machine frees up executors.
+ * 	It then makes one pass over the queue, and anything that still can't run waits for the next change.
+ * 	Being told about a change never waits for a pass to finish, since that happens on response readers and the heartbeat timer,
+ * 	which are shared by every machine. Tasks picked in a pass are only sent to their machines once the pass has let go of the queue.
+ * 	The order tasks are offered to machines in is decided by a {@link TaskClassifier}; see {@link FairShareQueue}.
+ *
+ * Tasks that were running on a machine that stops answering heartbeats are queued again.
+ *
+ * With a {@link TaskJournal}, queued tasks are recorded as they come and go, and whatever was still queued
+ * 	when the last queue went away is queued again when this one is created. Tasks leave the journal when they're dispatched,
+ * 	so tasks that were running when the last queue went away are not run again. {@link #enqueueTask(Task)} returns once the journal has
+ * 	the task, which may be before it's on disk; see {@link MappedTaskJournal} for waiting on that.
+ *
+ * With a {@link ResultCache}, a {@link CacheableTask} whose result is already cached is answered when it's enqueued:
+ * 	it never enters the queue or the journal and takes no executors. The results of cacheable tasks that do run are offered to the cache.
+ *
  * User: Joel Johnson
  * Date: 3/4/13
  * Time: 9:16 PM
  */
-public class TaskQueue implements Runnable {
+public class TaskQueue implements Runnable, Machine.CapacityListener {
 	private static final Logger LOGGER = Logger.forClass(TaskQueue.class);
 
+	private static final Counter DEPTH = MetricsRegistry.getDefault().counter("queue.depth");
+	private static final Counter ENQUEUED = MetricsRegistry.getDefault().counter("queue.enqueued");
+	private static final Counter DISPATCHED = MetricsRegistry.getDefault().counter("queue.dispatched");
+	private static final Histogram WAIT_NANOS = MetricsRegistry.getDefault().histogram("queue.waitNanos");
+	private static final Counter RESUBMITTED = MetricsRegistry.getDefault().counter("queue.resubmitted");
+	private static final Counter CACHED = MetricsRegistry.getDefault().counter("queue.cached");
+
 	@Nullable private static volatile TaskQueue $_instance;
 	@NotNull private static final Lock $_instance_lock = new Lock();
 
-	private static final int SECONDS = 1000;
-	@NotNull private final List<Task<Result>> taskQueue;
+	private final Lock queueLock = new Lock();
+	@LockedBy("queueLock") @NotNull private final FairShareQueue<Task<Result>> taskQueue;
+	@LockedBy("queueLock") @NotNull private final Map<Task<Result>, Deque<QueuedTask>> queuedTasks = new IdentityHashMap<Task<Result>, Deque<QueuedTask>>();
+
+	/**
+	 * Only ever held for a moment, so signalling a change never waits on a dispatch pass.
+	 */
+	private final Lock signalLock = new Lock();
+	@LockedBy("signalLock") private boolean changed;
+
+	/**
+	 * Tasks to queue again because their machine went away. Handed over to the dispatcher rather than queued by the thread
+	 * 	that found out, since that's the heartbeat timer and it shouldn't wait on a dispatch pass.
+	 */
+	@NotNull private final ConcurrentLinkedQueue<Task<Result>> resubmitted = new ConcurrentLinkedQueue<Task<Result>>();
+
 	@NotNull private final List<Machine> machines;
+	@NotNull private final LabelIndex labelIndex;
 	@NotNull private final List<QueueWatch> queueWatchPlugins;
 	@NotNull private final List<DequeueWatch> dequeueWatchPlugins;
+	@NotNull private final PlacementStrategy placementStrategy;
+	@NotNull private final TaskJournal journal;
+	@NotNull private final ResultCache resultCache;
+
+	/**
+	 * Creates a queue. Nothing is dispatched until {@link #run()} is called, typically on a dedicated thread.
+	 * @param machines The machines to start with. More can be added with {@link #addMachine(Machine)}. Cannot be null.
+	 */
+	@NotNull
+	public static TaskQueue create(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins) {
+		return create(machines, queueWatchPlugins, dequeueWatchPlugins, TaskClassifier.SINGLE_TENANT);
+	}
+
+	/**
+	 * Creates a queue. Nothing is dispatched until {@link #run()} is called, typically on a dedicated thread.
+	 * @param machines The machines to start with. More can be added with {@link #addMachine(Machine)}. Cannot be null.
+	 * @param classifier Decides the priority and tenant of each task. Cannot be null.
+	 */
+	@NotNull
+	public static TaskQueue create(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins, @NotNull TaskClassifier classifier) {
+		return create(machines, queueWatchPlugins, dequeueWatchPlugins, classifier, PlacementStrategies.bestFit());
+	}
+
+	/**
+	 * Creates a queue. Nothing is dispatched until {@link #run()} is called, typically on a dedicated thread.
+	 * @param machines The machines to start with. More can be added with {@link #addMachine(Machine)}. Cannot be null.
+	 * @param classifier Decides the priority and tenant of each task. Cannot be null.
+	 * @param placementStrategy Decides which machine each task runs on. Cannot be null.
+	 */
+	@NotNull
+	public static TaskQueue create(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins, @NotNull TaskClassifier classifier, @NotNull PlacementStrategy placementStrategy) {
+		TaskQueue taskQueue = new TaskQueue(queueWatchPlugins, dequeueWatchPlugins, classifier, placementStrategy, TaskJournal.NONE, ResultCache.NONE);
+		for (Machine machine : machines) {
+			taskQueue.addMachine(machine);
+		}
+		return taskQueue;
+	}
+
+	/**
+	 * Creates a queue, starting with every task still in the journal. Nothing is dispatched until {@link #run()} is called, typically on a dedicated thread.
+	 * @param machines The machines to start with. More can be added with {@link #addMachine(Machine)}. Cannot be null.
+	 * @param classifier Decides the priority and tenant of each task. Cannot be null.
+	 * @param placementStrategy Decides which machine each task runs on. Cannot be null.
+	 * @param journal Records the queue so it survives a restart. The caller is responsible for closing it. Cannot be null.
+	 * @throws IOException If the journal couldn't be read.
+	 */
+	@NotNull
+	public static TaskQueue create(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins, @NotNull TaskClassifier classifier, @NotNull PlacementStrategy placementStrategy, @NotNull TaskJournal journal) throws IOException {
+		return create(machines, queueWatchPlugins, dequeueWatchPlugins, classifier, placementStrategy, journal, ResultCache.NONE);
+	}
 
-	private TaskQueue(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins) {
-		this.taskQueue = Collections.synchronizedList(new LinkedList<Task<Result>>());
-		this.machines = machines;
+	/**
+	 * Creates a queue, starting with every task still in the journal. Nothing is dispatched until {@link #run()} is called, typically on a dedicated thread.
+	 * @param machines The machines to start with. More can be added with {@link #addMachine(Machine)}. Cannot be null.
+	 * @param classifier Decides the priority and tenant of each task. Cannot be null.
+	 * @param placementStrategy Decides which machine each task runs on. Cannot be null.
+	 * @param journal Records the queue so it survives a restart. The caller is responsible for closing it. Cannot be null.
+	 * @param resultCache Answers {@link CacheableTask}s that have already run. Cannot be null.
+	 * @throws IOException If the journal couldn't be read.
+	 */
+	@NotNull
+	public static TaskQueue create(@NotNull List<Machine> machines, @NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins, @NotNull TaskClassifier classifier, @NotNull PlacementStrategy placementStrategy, @NotNull TaskJournal journal, @NotNull ResultCache resultCache) throws IOException {
+		final TaskQueue taskQueue = new TaskQueue(queueWatchPlugins, dequeueWatchPlugins, classifier, placementStrategy, journal, resultCache);
+		journal.replay(new TaskJournal.Visitor() {
+			@Override
+			public void visit(long id, @NotNull Task<Result> task) {
+				synchronized (taskQueue.queueLock) {
+					taskQueue.queue(task, id);
+				}
+			}
+		});
+		if(taskQueue.size() > 0) {
+			LOGGER.infop("Recovered %d queued tasks from the journal.", taskQueue.size());
+		}
+		for (Machine machine : machines) {
+			taskQueue.addMachine(machine);
+		}
+		return taskQueue;
+	}
+
+	private TaskQueue(@NotNull List<QueueWatch> queueWatchPlugins, @NotNull List<DequeueWatch> dequeueWatchPlugins, @NotNull TaskClassifier classifier, @NotNull PlacementStrategy placementStrategy, @NotNull TaskJournal journal, @NotNull ResultCache resultCache) {
+		this.taskQueue = new FairShareQueue<Task<Result>>(classifier);
+		this.machines = new CopyOnWriteArrayList<Machine>();
+		this.labelIndex = new LabelIndex();
 		this.queueWatchPlugins = queueWatchPlugins;
 		this.dequeueWatchPlugins = dequeueWatchPlugins;
+		this.placementStrategy = placementStrategy;
+		this.journal = journal;
+		this.resultCache = resultCache;
 	}
 
 	@Override
 	public void run() {
-		while(!Thread.interrupted()) {
-			if(taskQueue.size() > 0) {
-				Iterator<Task<Result>> iterator = taskQueue.iterator();
-				while(iterator.hasNext()) {
-					Task<Result> next = iterator.next();
-
-					LOGGER.infop("Checking to run: %s", next);
-
-					Machine machineToRunOn = checkDequeueItem(next);
-					if(machineToRunOn != null) {
-						iterator.remove();
-						boolean interrupted = invokeTask(next, machineToRunOn);
-						if(interrupted) {
-							Thread.currentThread().interrupt();
-							break;
-						}
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				synchronized (signalLock) {
+					while(!changed) {
+						signalLock.wait();
 					}
+					changed = false;
+				}
+
+				Task<Result> task;
+				while((task = resubmitted.poll()) != null) {
+					RESUBMITTED.increment();
+					enqueueTask(task);
 				}
-			} else {
-				try {
-					LOGGER.infop("Nothing in queue. Sleeping for a 5 seconds.");
-					Thread.sleep(5 * SECONDS);
-				} catch (InterruptedException e) {
-					LOGGER.info("Interrupted queue. Attempting clean exit.");
-					break;
+
+				List<Dispatch> dispatched;
+				synchronized (queueLock) {
+					dispatched = dispatch();
+				}
+				for(int i = 0; i < dispatched.size(); i++) {
+					try {
+						invokeTask(dispatched.get(i).task, dispatched.get(i).reservation);
+					} catch (InterruptedException e) {
+						//Whatever wasn't sent yet goes back in the queue, and into the journal, for next time.
+						for(int j = i; j < dispatched.size(); j++) {
+							dispatched.get(j).reservation.release();
+							enqueueTask(dispatched.get(j).task);
+						}
+						throw e;
+					}
 				}
 			}
+		} catch (InterruptedException e) {
+			LOGGER.info("Interrupted queue. Attempting clean exit.");
 		}
 
 		LOGGER.warn("Queue thread has died.");
 	}
 
+	/**
+	 * Takes everything in the queue that can run right now out of it, and reserves executors for them.
+	 * @return The tasks to send, with their reservations. Never null.
+	 */
+	@NotNull
+	@LockedBy("queueLock")
+	private List<Dispatch> dispatch() throws InterruptedException {
+		final List<Dispatch> dispatched = new ArrayList<Dispatch>();
+		taskQueue.dispatch(new FairShareQueue.Dispatcher<Task<Result>>() {
+			@Override
+			public int getCapacity() {
+				int capacity = 0;
+				for (Machine machine : machines) {
+					capacity = Math.max(capacity, machine.getAvailableExecutorCount());
+				}
+				return capacity;
+			}
+
+			@Override
+			public boolean tryDispatch(@NotNull Task<Result> task) throws InterruptedException {
+				LOGGER.infop("Checking to run: %s", task);
+
+				Machine machineToRunOn = checkDequeueItem(task);
+				if(machineToRunOn == null) {
+					return false;
+				}
+
+				Machine.Reservation reservation = machineToRunOn.tryReserve(task.getWeight());
+				if(reservation == null) {
+					//Someone else took the executors. Leave it queued until more free up.
+					return false;
+				}
+				dequeued(task);
+				dispatched.add(new Dispatch(task, reservation));
+				return true;
+			}
+		});
+		return dispatched;
+	}
+
+	/**
+	 * @return True if the task was queued, or didn't need to be because its result was cached.
+	 * 	Only as durable as the journal's {@link TaskJournal#append(Task)} makes it.
+	 */
 	public boolean enqueueTask(@NotNull Task<Result> task) {
 		LOGGER.infop("Asked to be queued: %s", task);
 		if(checkEnqueueItem(task)) {
+			if(task instanceof CacheableTask) {
+				Result cached = resultCache.get((CacheableTask<Result>) task);
+				if(cached != null) {
+					CACHED.increment();
+					LOGGER.infop("Already ran, so not queued: %s (%s)", task, cached);
+					return true;
+				}
+			}
+
+			long id;
+			try {
+				id = journal.append(task);
+			} catch (IOException e) {
+				LOGGER.error("Couldn't write task to the journal, so it wasn't queued: " + task, e);
+				return false;
+			}
+
 			LOGGER.infop("Queued: %s", task);
-			taskQueue.add(task);
+			synchronized (queueLock) {
+				queue(task, id);
+			}
+			signal();
 			return true;
 		}
 
 		return false;
 	}
 
-	private boolean invokeTask(@NotNull Task<Result> task, @NotNull Machine machineToRunOn) {
+	/**
+	 * Makes the given machine available to run tasks.
+	 */
+	public void addMachine(@NotNull Machine machine) {
+		machines.add(machine);
+		labelIndex.add(machine);
+		machine.addCapacityListener(this);
+		capacityFreed(machine);
+	}
+
+	public void removeMachine(@NotNull Machine machine) {
+		machine.removeCapacityListener(this);
+		labelIndex.remove(machine);
+		machines.remove(machine);
+	}
+
+	/**
+	 * @return The number of tasks waiting for a machine, including any waiting to be queued again.
+	 */
+	public int size() {
+		synchronized (queueLock) {
+			return taskQueue.size() + resubmitted.size();
+		}
+	}
+
+	/**
+	 * Can be called on any thread, and only waits for as long as it takes to set a flag.
+	 */
+	@Override
+	public void capacityFreed(@NotNull Machine machine) {
+		signal();
+	}
+
+	@LockedBy("queueLock")
+	private void queue(@NotNull Task<Result> task, long journalId) {
+		Deque<QueuedTask> entries = queuedTasks.get(task);
+		if(entries == null) {
+			entries = new ArrayDeque<QueuedTask>(1);
+			queuedTasks.put(task, entries);
+		}
+		entries.add(new QueuedTask(journalId, System.nanoTime()));
+		taskQueue.add(task);
+		ENQUEUED.increment();
+		DEPTH.increment();
+	}
+
+	/**
+	 * Records a task leaving the queue, and removes it from the journal.
+	 */
+	@LockedBy("queueLock")
+	private void dequeued(@NotNull Task<Result> task) {
+		Deque<QueuedTask> entries = queuedTasks.get(task);
+		if(entries == null) {
+			return;
+		}
+		QueuedTask entry = entries.remove();
+		if(entries.isEmpty()) {
+			queuedTasks.remove(task);
+		}
+
+		DISPATCHED.increment();
+		DEPTH.decrement();
+		WAIT_NANOS.recordSince(entry.enqueuedAt);
+		try {
+			journal.remove(entry.journalId);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't remove task from the journal. It will be queued again after a restart: " + task, e);
+		}
+	}
+
+	private void signal() {
+		synchronized (signalLock) {
+			changed = true;
+			signalLock.notifyAll();
+		}
+	}
+
+	/**
+	 * If the machine goes away while the task is running, the task is queued again to run somewhere else.
+	 */
+	private void invokeTask(@NotNull final Task<Result> task, @NotNull final Machine.Reservation reservation) throws InterruptedException {
+		assert !Thread.holdsLock(queueLock) : "Sending a task can block on the network";
 		LOGGER.infop("Invoking: %s", task);
 		try {
-			ResultFuture<Result> resultFuture = machineToRunOn.invokeAsync(task, task.getWeight());
+			ResultFuture<Result> resultFuture = reservation.getMachine().invokeAsync(task, reservation);
 			LOGGER.infop("Running task %s and got %s.", task, resultFuture); //TODO: do something useful with the future.
+			resultFuture.whenComplete(new BiConsumer<Result, Throwable>() {
+				@Override
+				public void accept(Result result, Throwable throwable) {
+					if(throwable == null && task instanceof CacheableTask) {
+						resultCache.put((CacheableTask<Result>) task, result);
+					} else if(throwable instanceof MachineUnavailableException) {
+						LOGGER.warn(reservation.getMachine().getName() + " went away while running " + task + ". Queueing it again.");
+						resubmitted.add(task);
+						signal();
+					}
+				}
+			});
 		} catch (IOException e) {
 			LOGGER.error("Error occurred when trying to invoke task.", e);
-		} catch (InterruptedException e) {
-			LOGGER.info("Interrupted queue. Attempting clean exit.");
-			return false;
-		} catch (NotEnoughExecutorsException e) {
-			LOGGER.warn(e);
 		}
-
-		return true;
 	}
 
 	private boolean checkEnqueueItem(@NotNull Task<Result> task) {
@@ -115,23 +409,66 @@ public class TaskQueue implements Runnable {
 		}
 	}
 
+	/**
+	 * Only machines whose labels match are considered for a {@link LabeledTask}.
+	 * @return Of the machines with enough free executors that a plugin allows the task to run on,
+	 * 	the one the {@link PlacementStrategy} likes best. Null if there aren't any.
+	 */
 	@Nullable
 	private Machine checkDequeueItem(@NotNull Task<Result> task) {
-		if(dequeueWatchPlugins.isEmpty()) {
-			if(machines.isEmpty()) {
-				return null;
-			} else {
-				return machines.get(0);
+		int weight = task.getWeight() > 0 ? task.getWeight() : 1;
+		List<Machine> candidates = task instanceof LabeledTask ? labelIndex.candidates(((LabeledTask) task).getLabelExpression()) : machines;
+
+		Machine best = null;
+		double bestScore = 0;
+		for (Machine machine : candidates) {
+			if(machine.getAvailableExecutorCount() < weight || !checkDequeueWatches(task, machine)) {
+				continue;
 			}
-		} else {
-			for (Machine machine : machines) {
-				for (DequeueWatch dequeueWatchPlugin : dequeueWatchPlugins) {
-					if(dequeueWatchPlugin.check(task, machine)) {
-						return machine;
-					}
-				}
+			double score = placementStrategy.score(machine, weight);
+			if(best == null || score < bestScore) {
+				best = machine;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private boolean checkDequeueWatches(@NotNull Task<Result> task, @NotNull Machine machine) {
+		if(dequeueWatchPlugins.isEmpty()) {
+			return true;
+		}
+		for (DequeueWatch dequeueWatchPlugin : dequeueWatchPlugins) {
+			if(dequeueWatchPlugin.check(task, machine)) {
+				return true;
 			}
-			return null;
+		}
+		return false;
+	}
+
+	/**
+	 * A task taken out of the queue in a dispatch pass, waiting to be sent.
+	 */
+	private static class Dispatch {
+		@NotNull private final Task<Result> task;
+		@NotNull private final Machine.Reservation reservation;
+
+		public Dispatch(@NotNull Task<Result> task, @NotNull Machine.Reservation reservation) {
+			this.task = task;
+			this.reservation = reservation;
+		}
+	}
+
+	/**
+	 * Bookkeeping for one time a task was queued. The same task can be queued more than once.
+	 */
+	private static class QueuedTask {
+		private final long journalId;
+		private final long enqueuedAt;
+
+		public QueuedTask(long journalId, long enqueuedAt) {
+			this.journalId = journalId;
+			this.enqueuedAt = enqueuedAt;
 		}
 	}
 }
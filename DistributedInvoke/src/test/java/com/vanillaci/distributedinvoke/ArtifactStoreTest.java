@@ -0,0 +1,294 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.artifacts.Artifact;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactServer;
+import com.vanillaci.distributedinvoke.artifacts.ArtifactStore;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class ArtifactStoreTest {
+	private static final int LISTENING_PORT = 9091;
+
+	private static final Counter FETCHED = MetricsRegistry.getDefault().counter("artifacts.fetched");
+	private static final Counter ALREADY_PRESENT = MetricsRegistry.getDefault().counter("artifacts.alreadyPresent");
+	private static final Counter BYTES_RECEIVED = MetricsRegistry.getDefault().counter("artifacts.bytesReceived");
+	private static final Counter RESUMED = MetricsRegistry.getDefault().counter("artifacts.resumed");
+
+	private File directory;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("artifacts").toFile();
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testSameContentsStoredOnce() throws Exception {
+		ArtifactStore store = ArtifactStore.open(directory);
+		Artifact first = store.put(new ByteArrayInputStream(bytes(100, 'a')), "first.jar");
+		Artifact second = store.put(new ByteArrayInputStream(bytes(100, 'a')), "second.jar");
+
+		assertEquals(first.getDigest(), second.getDigest());
+		assertEquals(first.getSize(), 100);
+		assertEquals(store.getCount(), 1);
+		assertEquals(store.getUsedBytes(), 100);
+		File file = store.get(first.getDigest());
+		assertNotNull(file);
+		assertEquals(Files.readAllBytes(file.toPath()), bytes(100, 'a'));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		ArtifactStore store = ArtifactStore.open(directory, 250);
+		Artifact a = store.put(new ByteArrayInputStream(bytes(100, 'a')), "a");
+		Artifact b = store.put(new ByteArrayInputStream(bytes(100, 'b')), "b");
+		assertNotNull(store.get(a.getDigest()));
+		Artifact c = store.put(new ByteArrayInputStream(bytes(100, 'c')), "c");
+
+		assertEquals(store.getUsedBytes(), 200);
+		assertNull(store.get(b.getDigest()), "b was the least recently used");
+		assertNotNull(store.get(a.getDigest()));
+		assertNotNull(store.get(c.getDigest()));
+
+		try {
+			store.put(new ByteArrayInputStream(bytes(300, 'd')), "d");
+			fail("Shouldn't store something bigger than the store");
+		} catch (IOException expected) {
+		}
+		assertEquals(store.getCount(), 2);
+	}
+
+	@Test
+	public void testReopenedStoreKeepsArtifacts() throws Exception {
+		Artifact artifact = ArtifactStore.open(directory).put(new ByteArrayInputStream(bytes(10, 'a')), "a");
+
+		ArtifactStore reopened = ArtifactStore.open(directory);
+		assertTrue(reopened.contains(artifact.getDigest()));
+		assertEquals(reopened.getUsedBytes(), 10);
+		assertNull(reopened.get("../../etc/passwd"));
+	}
+
+	@Test
+	public void testReceiveChecksDigest() throws Exception {
+		ArtifactStore source = ArtifactStore.open(new File(directory, "source"));
+		ArtifactStore destination = ArtifactStore.open(new File(directory, "destination"));
+		Artifact artifact = source.put(new ByteArrayInputStream(bytes(10, 'a')), "a");
+
+		try {
+			destination.receive(artifact.getDigest(), 10, new ByteArrayInputStream(bytes(10, 'b')));
+			fail("Shouldn't accept bytes that don't match the digest");
+		} catch (IOException expected) {
+		}
+		assertFalse(destination.contains(artifact.getDigest()));
+
+		destination.receive(artifact.getDigest(), 10, new ByteArrayInputStream(bytes(10, 'a')));
+		assertTrue(destination.contains(artifact.getDigest()));
+	}
+
+	@Test(timeOut = 30000)
+	public void testMasterFetchesArtifactOnce() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		ArtifactStore agentStore = ArtifactStore.open(new File(directory, "agent"));
+		ArtifactStore masterStore = ArtifactStore.open(new File(directory, "master"));
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, null, agentStore);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			Artifact artifact = machine.invoke(new BuildArtifact(), 1);
+			assertNotNull(artifact);
+			assertEquals(artifact.getName(), "build.jar");
+			assertTrue(agentStore.contains(artifact.getDigest()));
+
+			long fetchedBefore = FETCHED.get();
+			long presentBefore = ALREADY_PRESENT.get();
+			File fetched = machine.fetchArtifact(artifact, masterStore);
+			assertEquals(Files.readAllBytes(fetched.toPath()), BuildArtifact.contents());
+			assertEquals(FETCHED.get() - fetchedBefore, 1);
+
+			assertEquals(machine.fetchArtifact(artifact, masterStore), fetched);
+			assertEquals(FETCHED.get() - fetchedBefore, 1, "The master already had it");
+			assertEquals(ALREADY_PRESENT.get() - presentBefore, 1);
+
+			try {
+				machine.fetchArtifact(new Artifact(Digests.sha256(new byte[] { 1 }), 1, "missing"), masterStore);
+				fail("The agent never had it");
+			} catch (FileNotFoundException expected) {
+			}
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testFetchResumesFromPartialFile() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		ArtifactStore agentStore = ArtifactStore.open(new File(directory, "agent"));
+		ArtifactStore masterStore = ArtifactStore.open(new File(directory, "master"));
+		byte[] contents = bytes(ArtifactServer.CHUNK_SIZE * 2 + 123, 'x');
+		contents[ArtifactServer.CHUNK_SIZE + 5] = 'y';
+		Artifact artifact = agentStore.put(new ByteArrayInputStream(contents), "workspace.zip");
+
+		//As if an earlier fetch was cut off partway through the second chunk.
+		int alreadyThere = ArtifactServer.CHUNK_SIZE + 10;
+		Files.write(masterStore.partial(artifact.getDigest()).toPath(), Arrays.copyOf(contents, alreadyThere));
+
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, null, agentStore);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			long receivedBefore = BYTES_RECEIVED.get();
+			File fetched = machine.fetchArtifact(artifact, masterStore);
+			assertEquals(Files.readAllBytes(fetched.toPath()), contents);
+			assertEquals(BYTES_RECEIVED.get() - receivedBefore, contents.length - alreadyThere, "Only what was missing should have been sent");
+			assertFalse(masterStore.partial(artifact.getDigest()).exists());
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testBadPartialFileIsFetchedAgain() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		ArtifactStore agentStore = ArtifactStore.open(new File(directory, "agent"));
+		ArtifactStore masterStore = ArtifactStore.open(new File(directory, "master"));
+		byte[] contents = bytes(1000, 'x');
+		Artifact artifact = agentStore.put(new ByteArrayInputStream(contents), "a");
+		Files.write(masterStore.partial(artifact.getDigest()).toPath(), bytes(500, 'z'));
+
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, null, agentStore);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			long resumedBefore = RESUMED.get();
+			File fetched = machine.fetchArtifact(artifact, masterStore);
+			assertEquals(Files.readAllBytes(fetched.toPath()), contents);
+			assertEquals(RESUMED.get() - resumedBefore, 1, "The first try should have failed the digest check");
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testPushOnlySendsWhatAgentDoesNotHave() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		ArtifactStore agentStore = ArtifactStore.open(new File(directory, "agent"));
+		ArtifactStore masterStore = ArtifactStore.open(new File(directory, "master"));
+		byte[] contents = bytes(ArtifactServer.CHUNK_SIZE + 1, 'w');
+		Artifact workspace = masterStore.put(new ByteArrayInputStream(contents), "workspace.zip");
+
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, null, agentStore);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			assertTrue(machine.pushArtifact(workspace, masterStore));
+			File pushed = agentStore.get(workspace.getDigest());
+			assertNotNull(pushed);
+			assertEquals(Files.readAllBytes(pushed.toPath()), contents);
+
+			assertFalse(machine.pushArtifact(workspace, masterStore), "The agent already had it");
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testTransferOnlyWaitsForSameArtifact() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		final ArtifactStore agentStore = ArtifactStore.open(new File(directory, "agent"));
+		final ArtifactStore masterStore = ArtifactStore.open(new File(directory, "master"));
+		final Artifact busy = masterStore.put(new ByteArrayInputStream(bytes(1000, 'b')), "busy.zip");
+		Artifact other = masterStore.put(new ByteArrayInputStream(bytes(1000, 'o')), "other.zip");
+
+		final ArtifactServer server = ArtifactServer.start(agentStore, localHost);
+		try {
+			agentStore.beginReceive(busy.getDigest()); //As if another transfer of it were stuck.
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				Future<?> waiting = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						ArtifactServer.push(Inet4Address.getLocalHost(), server.getPort(), busy, masterStore);
+						return null;
+					}
+				});
+
+				ArtifactServer.push(localHost, server.getPort(), other, masterStore);
+				assertTrue(agentStore.contains(other.getDigest()), "A different artifact shouldn't have waited");
+				Thread.sleep(200);
+				assertFalse(waiting.isDone(), "The same artifact should wait for the transfer in progress");
+
+				agentStore.endReceive(busy.getDigest());
+				waiting.get(10, TimeUnit.SECONDS);
+				assertTrue(agentStore.contains(busy.getDigest()));
+			} finally {
+				executor.shutdownNow();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testListenersDoNotShareDefaultStore() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener first = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		try {
+			RemoteMachineListener second = RemoteMachineListener.start(localHost, LISTENING_PORT + 1);
+			try {
+				assertEquals(first.getArtifactStore().getDirectory(), RemoteMachineListener.defaultArtifactDirectory(LISTENING_PORT));
+				assertFalse(first.getArtifactStore().getDirectory().equals(second.getArtifactStore().getDirectory()));
+			} finally {
+				second.close();
+			}
+		} finally {
+			first.close();
+		}
+	}
+
+	private static byte[] bytes(int length, char fill) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) fill);
+		return bytes;
+	}
+
+	public static class BuildArtifact implements Callable<Artifact>, java.io.Serializable {
+		static byte[] contents() {
+			return bytes(256 * 1024 + 7, 'x');
+		}
+
+		@Override
+		public Artifact call() throws Exception {
+			ArtifactStore store = ArtifactStore.current();
+			if(store == null) {
+				throw new IllegalStateException("Not running on an agent");
+			}
+			return store.put(new ByteArrayInputStream(contents()), "build.jar");
+		}
+	}
+}
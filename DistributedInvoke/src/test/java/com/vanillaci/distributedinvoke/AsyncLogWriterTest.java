@@ -0,0 +1,185 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.logging.AsyncLogWriter;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.testng.Assert.*;
+
+public class AsyncLogWriterTest {
+	@Test(timeOut = 30000)
+	public void testRecordsArriveInOrderOffTheCallingThread() throws Exception {
+		final Logger logger = Logger.forClass(Ordered.class);
+		RecordingHandler handler = RecordingHandler.attach(Ordered.class, null);
+
+		AsyncLogWriter writer = Logger.startAsync(64, AsyncLogWriter.OverflowPolicy.BLOCK);
+		try {
+			Thread[] threads = new Thread[4];
+			for(int i = 0; i < threads.length; i++) {
+				final int thread = i;
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for(int j = 0; j < 10000; j++) {
+							logger.infop("%d %d", thread, j);
+						}
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+
+		assertEquals(handler.messages.size(), 40000, "Nothing should be lost when blocking");
+		assertEquals(writer.getDroppedCount(), 0);
+		int[] next = new int[4];
+		for (String message : handler.messages) {
+			String[] parts = message.split(" ");
+			int thread = Integer.parseInt(parts[0]);
+			assertEquals(Integer.parseInt(parts[1]), next[thread]++, "Records from one thread should stay in order");
+		}
+		assertFalse(handler.threads.contains(Thread.currentThread().getName()));
+		assertEquals(handler.sourceClasses, Collections.singleton(Ordered.class.getCanonicalName()));
+	}
+
+	@Test(timeOut = 30000)
+	public void testDropPolicyNeverBlocksTheCaller() throws Exception {
+		Logger logger = Logger.forClass(Dropped.class);
+		CountDownLatch stuck = new CountDownLatch(1);
+		RecordingHandler handler = RecordingHandler.attach(Dropped.class, stuck);
+
+		AsyncLogWriter writer = Logger.startAsync(8, AsyncLogWriter.OverflowPolicy.DROP);
+		try {
+			//The handler is stuck until after the loop, so if the caller blocked this would never finish.
+			for(int i = 0; i < 1000; i++) {
+				logger.info("record " + i);
+			}
+			assertTrue(writer.getDroppedCount() >= 1000 - 8 - 1, "Only " + writer.getDroppedCount() + " dropped");
+
+			stuck.countDown();
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+		assertEquals(handler.messages.size() + writer.getDroppedCount(), 1000);
+		assertEquals(handler.messages.get(0), "record 0");
+	}
+
+	@Test
+	public void testDisabledLevelsDoNoWork() throws Exception {
+		Logger logger = Logger.forClass(Disabled.class);
+		RecordingHandler handler = RecordingHandler.attach(Disabled.class, null);
+		java.util.logging.Logger.getLogger(Disabled.class.getCanonicalName()).setLevel(Level.WARNING);
+
+		final AtomicInteger evaluated = new AtomicInteger();
+		Object argument = new Object() {
+			@Override
+			public String toString() {
+				evaluated.incrementAndGet();
+				return "argument";
+			}
+		};
+		Supplier<String> supplier = new Supplier<String>() {
+			@Override
+			public String get() {
+				evaluated.incrementAndGet();
+				return "supplied";
+			}
+		};
+
+		AsyncLogWriter writer = Logger.startAsync(64, AsyncLogWriter.OverflowPolicy.BLOCK);
+		try {
+			assertFalse(logger.isInfoEnabled());
+			logger.info(supplier);
+			logger.infop("%s", argument);
+			logger.infop("%s %s", argument, argument);
+			logger.infop("%s %s %s", argument, argument, argument);
+			logger.warn(supplier);
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+
+		assertEquals(evaluated.get(), 1, "Only the warning should have been evaluated");
+		assertEquals(handler.messages, Collections.singletonList("supplied"));
+	}
+
+	@Test
+	public void testWritesSynchronouslyOnceClosed() throws Exception {
+		Logger logger = Logger.forClass(Closed.class);
+		RecordingHandler handler = RecordingHandler.attach(Closed.class, null);
+
+		AsyncLogWriter writer = Logger.startAsync(64, AsyncLogWriter.OverflowPolicy.BLOCK);
+		logger.info("before");
+		writer.close();
+		logger.info("after");
+
+		assertEquals(handler.messages, Arrays.asList("before", "after"));
+		assertEquals(handler.threads.get(1), Thread.currentThread().getName());
+		Logger.startAsync(64, AsyncLogWriter.OverflowPolicy.BLOCK).close(); //Closing unregistered it.
+	}
+
+	private static class Ordered {}
+	private static class Dropped {}
+	private static class Disabled {}
+	private static class Closed {}
+}
+
+class RecordingHandler extends Handler {
+	final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+	final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+	final Set<String> sourceClasses = Collections.synchronizedSet(new HashSet<String>());
+	private final CountDownLatch gate;
+
+	static RecordingHandler attach(Class<?> cls, CountDownLatch gate) {
+		RecordingHandler handler = new RecordingHandler(gate);
+		java.util.logging.Logger logger = java.util.logging.Logger.getLogger(cls.getCanonicalName());
+		logger.setUseParentHandlers(false);
+		logger.addHandler(handler);
+		return handler;
+	}
+
+	private RecordingHandler(CountDownLatch gate) {
+		this.gate = gate;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if(gate != null) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		messages.add(record.getMessage());
+		threads.add(Thread.currentThread().getName());
+		sourceClasses.add(record.getSourceClassName());
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,110 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+/**
+ * Makes sure channels to different machines don't wait on each other.
+ * A request that can't finish being written to one machine mustn't hold up requests to another.
+ * How throughput grows with machines is measured by MachineScalingBenchmark in the benchmarks module.
+ */
+public class ChannelThroughputTest {
+	private static final int FIRST_PORT = 9291;
+
+	private final List<RemoteMachineListener> listeners = new ArrayList<RemoteMachineListener>();
+	private final List<Machine> machines = new ArrayList<Machine>();
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		BlockedWriteCallable.RELEASE.countDown();
+		for (Machine machine : machines) {
+			machine.close();
+		}
+		machines.clear();
+
+		for (RemoteMachineListener listener : listeners) {
+			listener.close();
+		}
+		listeners.clear();
+	}
+
+	@Test(timeOut = 60000)
+	public void testBlockedWriteDoesNotHoldUpOtherMachines() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		for(int i = 0; i < 2; i++) {
+			listeners.add(RemoteMachineListener.start(localHost, FIRST_PORT + i));
+			machines.add(RemoteMachine.connectToMachine("Machine " + i, localHost, FIRST_PORT + i, 4, ""));
+		}
+		final Machine blocked = machines.get(0);
+		Machine other = machines.get(1);
+
+		//Submitted from a thread of its own, in case the request is serialized by the caller.
+		final AtomicReference<ResultFuture<String>> blockedFuture = new AtomicReference<ResultFuture<String>>();
+		Thread submitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					blockedFuture.set(blocked.invokeAsync(new BlockedWriteCallable("blocked"), 1));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "Blocked submitter");
+		submitter.start();
+		BlockedWriteCallable.WRITING.await();
+
+		for(int i = 0; i < 20; i++) {
+			assertEquals(other.invoke(new MyCallable("request " + i), 1), "request " + i, "The other machine should answer while the first one's write is stuck");
+		}
+
+		BlockedWriteCallable.RELEASE.countDown();
+		submitter.join();
+		assertEquals(blockedFuture.get().waitForResult(), "blocked");
+	}
+}
+
+/**
+ * Can't finish being written until {@link #RELEASE} counts down.
+ */
+class BlockedWriteCallable implements Callable<String>, Serializable {
+	static final CountDownLatch WRITING = new CountDownLatch(1);
+	static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+	private final String returnValue;
+
+	public BlockedWriteCallable(String returnValue) {
+		this.returnValue = returnValue;
+	}
+
+	@Override
+	public String call() throws Exception {
+		return returnValue;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		WRITING.countDown();
+		try {
+			RELEASE.await();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		out.defaultWriteObject();
+	}
+}
@@ -0,0 +1,187 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.classloading.ClassServer;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * The task classes are compiled while the test runs and only the master's class loader can see them,
+ * 	so the agent has to be sent them.
+ */
+public class ClassShippingTest {
+	private static final int LISTENING_PORT = 9791;
+
+	private static final Counter FETCHED = MetricsRegistry.getDefault().counter("classloader.fetched");
+	private static final Counter CACHE_HITS = MetricsRegistry.getDefault().counter("classloader.cacheHits");
+
+	private File directory;
+	private File classCache;
+	private URLClassLoader masterClassLoader;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("class-shipping").toFile();
+		classCache = new File(directory, "cache");
+		masterClassLoader = compile("build1", "Hello");
+	}
+
+	/**
+	 * Compiles the task classes into a directory of their own, greeting with the given word.
+	 */
+	private URLClassLoader compile(String build, String greeting) throws Exception {
+		File sources = new File(directory, build + "/src/shipped");
+		assertTrue(sources.mkdirs());
+		File task = new File(sources, "ShippedTask.java");
+		Files.write(task.toPath(), (
+				"package shipped;\n" +
+				"public class ShippedTask implements java.util.concurrent.Callable<String>, java.io.Serializable {\n" +
+				"	public String call() { return Greeting.greet(\"agent\"); }\n" +
+				"}\n" +
+				"class Greeting {\n" +
+				"	static String greet(String who) { return \"" + greeting + " \" + who; }\n" +
+				"}\n").getBytes(Charset.forName("UTF-8")));
+
+		File classes = new File(directory, build + "/classes");
+		assertTrue(classes.mkdirs());
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(compiler.run(null, null, null, "-d", classes.getPath(), task.getPath()), 0);
+		return new URLClassLoader(new URL[] { classes.toURI().toURL() }, getClass().getClassLoader());
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		masterClassLoader.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test(timeOut = 30000)
+	public void testTaskClassesAreShippedOnce() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, classCache);
+		Machine machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			long fetchedBefore = FETCHED.get();
+			assertEquals(machine.invoke(newTask(), 1), "Hello agent");
+			assertEquals(FETCHED.get() - fetchedBefore, 2, "The task and the class it uses should have been sent");
+
+			assertEquals(machine.invoke(newTask(), 1), "Hello agent");
+			assertEquals(FETCHED.get() - fetchedBefore, 2, "The classes were already defined");
+
+			assertEquals(machine.invoke(new MyCallable("local"), 1), "local", "Classes the agent has shouldn't be shipped");
+			assertEquals(FETCHED.get() - fetchedBefore, 2);
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testConnectionsShareOneClassLoader() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, classCache);
+		Machine machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 4, "", 4, 1, TimeUnit.SECONDS);
+		try {
+			long fetchedBefore = FETCHED.get();
+			for(int i = 0; i < 8; i++) {
+				assertEquals(machine.invoke(newTask(), 1), "Hello agent");
+			}
+			assertEquals(listener.getSessionCount(), 4, "Each connection is a session of its own");
+			assertEquals(listener.getMasterCount(), 1);
+			assertEquals(FETCHED.get() - fetchedBefore, 2, "The classes should only be sent once, whichever connection the request came in on");
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@Test
+	public void testNewerBuildGetsItsOwnDigests() throws Exception {
+		ClassServer classServer = new ClassServer();
+		classServer.addClassLoader(masterClassLoader);
+		String first = classServer.define(new Transport.ClassRequest("shipped.Greeting", false)).getDigest();
+		assertNotNull(first);
+
+		URLClassLoader rebuilt = compile("build2", "Goodbye");
+		try {
+			classServer.addClassLoader(rebuilt);
+			Transport.ClassDefinition definition = classServer.define(new Transport.ClassRequest("shipped.Greeting", true));
+			assertFalse(first.equals(definition.getDigest()), "The class file has changed, so its digest should have too");
+			assertEquals(definition.getDigest(), Digests.sha256(definition.getBytes()));
+			assertEquals(classServer.define(new Transport.ClassRequest("shipped.Greeting", false)).getDigest(), definition.getDigest());
+		} finally {
+			rebuilt.close();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testClassLoadersCanBeCollected() throws Exception {
+		ClassServer classServer = new ClassServer();
+		URLClassLoader rebuilt = compile("build2", "Goodbye");
+		classServer.addClassLoader(rebuilt);
+		assertNotNull(classServer.define(new Transport.ClassRequest("shipped.Greeting", false)).getDigest());
+		assertEquals(classServer.getClassLoaderCount(), 1);
+
+		rebuilt.close();
+		rebuilt = null;
+		while(classServer.getClassLoaderCount() > 0) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(classServer.define(new Transport.ClassRequest("shipped.Greeting", false)).getDigest(), "Nothing that can see the class is left");
+	}
+
+	@Test(timeOut = 30000)
+	public void testCachedClassesSurviveRestart() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, classCache);
+		Machine machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			assertEquals(machine.invoke(newTask(), 1), "Hello agent");
+		} finally {
+			machine.close();
+			listener.close();
+		}
+
+		long fetchedBefore = FETCHED.get();
+		long hitsBefore = CACHE_HITS.get();
+		listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, classCache);
+		machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			assertEquals(machine.invoke(newTask(), 1), "Hello agent");
+			assertEquals(FETCHED.get() - fetchedBefore, 0, "The restarted agent should have used its cache");
+			assertEquals(CACHE_HITS.get() - hitsBefore, 2);
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Callable<String> & Serializable> T newTask() throws Exception {
+		return (T) masterClassLoader.loadClass("shipped.ShippedTask").newInstance();
+	}
+}
@@ -1,18 +1,28 @@
 package com.vanillaci.distributedinvoke;
 
+import com.vanillaci.distributedinvoke.channels.RemoteChannel;
 import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.SelectorServerChannel;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.channels.TransportCodecs;
 import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
 import com.vanillaci.distributedinvoke.machines.Machine;
 import com.vanillaci.distributedinvoke.machines.RemoteMachine;
 import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
 import org.testng.annotations.AfterMethod;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.testng.Assert.*;
 
@@ -75,6 +85,105 @@ public class CommunicationTest {
 
 		assertEquals(result, "Hello There");
 	}
+
+	@Test(timeOut = 30000)
+	public void testMultipleMasters() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		int listeningPort = 9191;
+
+		listener = RemoteMachineListener.start(localHost, listeningPort);
+
+		List<Machine> masters = new ArrayList<Machine>();
+		try {
+			for(int i = 0; i < 5; i++) {
+				masters.add(RemoteMachine.connectToMachine("Test Machine " + i, localHost, listeningPort, 1, ""));
+			}
+
+			List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+			for(int i = 0; i < masters.size(); i++) {
+				futures.add(masters.get(i).invokeAsync(new SlowCallable("Master " + i, 100), 1));
+			}
+
+			for(int i = 0; i < futures.size(); i++) {
+				assertEquals(futures.get(i).waitForResult(), "Master " + i);
+			}
+		} finally {
+			for (Machine master : masters) {
+				master.close();
+			}
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testMultipleConnections() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		int listeningPort = 9191;
+
+		listener = RemoteMachineListener.start(localHost, listeningPort);
+		machine = RemoteMachine.connectToMachine("Test Machine", localHost, listeningPort, 8, "", 3);
+		assertEquals(((RemoteMachine) machine).getConnectionCount(), 3);
+
+		List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+		futures.add(machine.invokeAsync(new MyCallable(new String(new char[4 * 1024 * 1024]).replace('\0', 'x')), 1));
+		for(int i = 0; i < 7; i++) {
+			futures.add(machine.invokeAsync(new SlowCallable("Request " + i, 100), 1));
+		}
+
+		assertEquals(futures.get(0).waitForResult().length(), 4 * 1024 * 1024);
+		for(int i = 1; i < futures.size(); i++) {
+			assertEquals(futures.get(i).waitForResult(), "Request " + (i - 1));
+		}
+		assertEquals(listener.getSessionCount(), 3, "Every connection should have been used");
+		assertEquals(machine.getAvailableExecutorCount(), 8);
+	}
+
+	/**
+	 * The client never reads, so everything sent to it piles up in the server's write queue until the connection is dropped.
+	 */
+	@Test(timeOut = 30000)
+	public void testSlowClientIsDisconnected() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		int listeningPort = 9191;
+		final int frameSize = 64 * 1024;
+
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicReference<IOException> overflow = new AtomicReference<IOException>();
+		final AtomicReference<SelectorServerChannel.Connection> flooded = new AtomicReference<SelectorServerChannel.Connection>();
+		final CountDownLatch done = new CountDownLatch(1);
+		SelectorServerChannel server = SelectorServerChannel.open(localHost, listeningPort, TransportCodecs.defaults(), 1, new SelectorServerChannel.Handler() {
+			@Override
+			public void connected(@NotNull SelectorServerChannel.Connection connection) {
+			}
+
+			@Override
+			public void received(@NotNull SelectorServerChannel.Connection connection, @NotNull Transport<?> transport) {
+				//Nothing is written while the I/O thread is in here, so the queue only grows.
+				flooded.set(connection);
+				try {
+					for(int i = 0; i < 1000; i++) {
+						connection.send(Transport.wrapWithId(new byte[frameSize], i));
+						queued.incrementAndGet();
+					}
+				} catch (IOException e) {
+					overflow.set(e);
+				}
+				done.countDown();
+			}
+		}, 1024 * 1024);
+		RemoteChannel client = RemoteChannel.create("Slow Machine", localHost, listeningPort);
+		try {
+			client.sendHeartbeat();
+			done.await();
+
+			assertNotNull(overflow.get(), "The queue should have filled up");
+			assertTrue(queued.get() > 0 && queued.get() < 1024 * 1024 / frameSize, "Only a queue's worth should have been accepted, but was " + queued.get());
+			assertFalse(flooded.get().isOpen(), "The connection should have been closed");
+			assertEquals(flooded.get().getQueuedBytes(), 0);
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
 }
 
 class MyCallable implements Callable<String>, Serializable {
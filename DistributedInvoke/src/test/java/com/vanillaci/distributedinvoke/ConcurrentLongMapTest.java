@@ -0,0 +1,112 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ConcurrentLongMap;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class ConcurrentLongMapTest {
+	/**
+	 * Random puts and removes over a small key range, so runs of colliding keys form, grow and get shifted back on removal.
+	 */
+	@Test
+	public void testMatchesHashMap() throws Exception {
+		ConcurrentLongMap<String> map = ConcurrentLongMap.create(1);
+		Map<Long, String> expected = new HashMap<Long, String>();
+		Random random = new Random(7);
+		for(int i = 0; i < 200000; i++) {
+			long key = random.nextInt(500) + 1;
+			if(random.nextInt(3) == 0) {
+				assertEquals(map.remove(key), expected.remove(key), "remove " + key);
+			} else {
+				String value = "value " + i;
+				assertEquals(map.put(key, value), expected.put(key, value), "put " + key);
+			}
+			assertEquals(map.size(), expected.size());
+		}
+		for(long key = 1; key <= 500; key++) {
+			assertEquals(map.get(key), expected.get(key), "get " + key);
+		}
+
+		List<String> values = map.values();
+		List<String> expectedValues = new ArrayList<String>(expected.values());
+		Collections.sort(values);
+		Collections.sort(expectedValues);
+		assertEquals(values, expectedValues);
+	}
+
+	@Test
+	public void testRemoveOnlyIfSameValue() throws Exception {
+		ConcurrentLongMap<String> map = ConcurrentLongMap.create();
+		String value = new String("value");
+		map.put(Long.MIN_VALUE, value);
+
+		assertFalse(map.remove(Long.MIN_VALUE, new String("value")), "Compared by identity");
+		assertTrue(map.remove(Long.MIN_VALUE, value));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testZeroKey() throws Exception {
+		ConcurrentLongMap.<String>create().put(0, "zero");
+	}
+
+	/**
+	 * Each thread counts up its own keys like a channel does, and a reader removes them like responses coming back.
+	 */
+	@Test(timeOut = 30000)
+	public void testConcurrentPutAndRemove() throws Exception {
+		final ConcurrentLongMap<Long> map = ConcurrentLongMap.create();
+		final int threadCount = 4;
+		final int perThread = 100000;
+		final AtomicInteger removed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threadCount);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < threadCount; t++) {
+			final long base = (long) t * perThread;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(long key = base + 1; key <= base + perThread; key++) {
+						map.put(key, key);
+					}
+					done.countDown();
+				}
+			}));
+		}
+		Thread remover = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long total = (long) threadCount * perThread;
+				while(removed.get() < total) {
+					for(long key = 1; key <= total; key++) {
+						Long value = map.remove(key);
+						if(value != null) {
+							assertEquals(value.longValue(), key);
+							removed.incrementAndGet();
+						}
+					}
+				}
+			}
+		});
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		remover.start();
+		done.await();
+		remover.join();
+
+		assertEquals(removed.get(), threadCount * perThread, "Every key should have been removed exactly once");
+		assertTrue(map.isEmpty());
+	}
+}
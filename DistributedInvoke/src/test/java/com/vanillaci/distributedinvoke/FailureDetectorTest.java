@@ -0,0 +1,202 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.exceptions.MachineUnavailableException;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.PhiAccrualFailureDetector;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import com.vanillaci.distributedinvoke.queue.DequeueWatch;
+import com.vanillaci.distributedinvoke.queue.QueueWatch;
+import com.vanillaci.distributedinvoke.queue.TaskQueue;
+import org.testng.annotations.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class FailureDetectorTest {
+	private static final int LISTENING_PORT = 9891;
+	private static final int RELAY_PORT = 9892;
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testPhiRisesTheLongerTheMachineIsSilent() throws Exception {
+		PhiAccrualFailureDetector detector = PhiAccrualFailureDetector.create(100, TimeUnit.MILLISECONDS);
+		long now = 0;
+		for(int i = 0; i < 100; i++) {
+			now += 100 * MILLIS;
+			detector.heartbeat(now);
+		}
+
+		assertTrue(detector.phi(now + 100 * MILLIS) < 1, "On time shouldn't be suspicious");
+		assertTrue(detector.isAvailable(now + 300 * MILLIS), "Within the acceptable pause");
+		double previous = 0;
+		for(long silence = 100; silence <= 1000; silence += 100) {
+			double phi = detector.phi(now + silence * MILLIS);
+			assertTrue(phi >= previous, "phi should never go down while nothing arrives");
+			previous = phi;
+		}
+		assertFalse(detector.isAvailable(now + 1000 * MILLIS), "Ten intervals of silence, phi " + detector.phi(now + 1000 * MILLIS));
+	}
+
+	@Test
+	public void testJitteryMachinesGetMoreSlack() throws Exception {
+		PhiAccrualFailureDetector steady = PhiAccrualFailureDetector.create(100, TimeUnit.MILLISECONDS);
+		PhiAccrualFailureDetector jittery = PhiAccrualFailureDetector.create(100, TimeUnit.MILLISECONDS);
+		Random random = new Random(5);
+		long steadyNow = 0;
+		long jitteryNow = 0;
+		for(int i = 0; i < 200; i++) {
+			steadyNow += 100 * MILLIS;
+			steady.heartbeat(steadyNow);
+			jitteryNow += (20 + random.nextInt(161)) * MILLIS; //Same mean, much wider spread.
+			jittery.heartbeat(jitteryNow);
+		}
+
+		long silence = 550 * MILLIS;
+		assertTrue(jittery.phi(jitteryNow + silence) < steady.phi(steadyNow + silence),
+				"jittery " + jittery.phi(jitteryNow + silence) + ", steady " + steady.phi(steadyNow + silence));
+	}
+
+	@Test
+	public void testNeverHearingBackIsCaught() throws Exception {
+		PhiAccrualFailureDetector detector = PhiAccrualFailureDetector.create(100, TimeUnit.MILLISECONDS);
+		detector.reset(0);
+		assertTrue(detector.isAvailable(100 * MILLIS));
+		assertFalse(detector.isAvailable(2000 * MILLIS));
+	}
+
+	/**
+	 * The agent goes away in the middle of a task. Once it has been gone for the failover timeout, the task's future fails
+	 * 	and its executors are freed (or the test times out), and once the agent is back, the queue runs the task again.
+	 */
+	@Test(timeOut = 60000)
+	public void testLostMachineFailsInFlightTasksAndComesBack() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 2, "", 1, 50, 500, TimeUnit.MILLISECONDS);
+		List<Machine> machines = new ArrayList<Machine>();
+		machines.add(machine);
+		TaskQueue queue = TaskQueue.create(machines, Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList());
+		Thread dispatcher = new Thread(queue);
+		dispatcher.start();
+		try {
+			Machine.Reservation reservation = machine.tryReserve(1);
+			assertNotNull(reservation);
+			ResultFuture<Result> direct = machine.invokeAsync(new HangsOnceTask(), reservation);
+			HangsOnceTask.awaitRuns(1);
+			queue.enqueueTask(new HangsOnceTask());
+			HangsOnceTask.awaitRuns(2);
+			assertEquals(machine.getBusyExecutorCount(), 2);
+
+			listener.close();
+			try {
+				direct.get(10, TimeUnit.SECONDS);
+				fail("Should have failed once the machine stopped answering heartbeats");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof MachineUnavailableException, String.valueOf(e.getCause()));
+			}
+			assertFalse(machine.isAvailable());
+			while(machine.getBusyExecutorCount() > 0) {
+				Thread.sleep(10); //The other task is failed right after, and executors are given back in a callback.
+			}
+			assertEquals(machine.getAvailableExecutorCount(), 0, "Nothing new should be sent to it");
+			assertNull(machine.tryReserve(1));
+			waitFor(queue, 1);
+
+			listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+			HangsOnceTask.awaitRuns(3);
+			assertTrue(machine.isAvailable());
+			waitFor(queue, 0);
+		} finally {
+			dispatcher.interrupt();
+			dispatcher.join();
+			machine.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * The agent can't be reached for a while, but comes back before the failover timeout. Nothing new goes to it in the meantime,
+	 * 	but the request in flight keeps its executor instead of being run again somewhere else, and its response still arrives.
+	 */
+	@Test(timeOut = 60000)
+	public void testShortOutageKeepsRequestsInFlight() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		Relay relay = Relay.start(localHost, RELAY_PORT, LISTENING_PORT);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, RELAY_PORT, 2, "", 1, 50, 30000, TimeUnit.MILLISECONDS);
+		try {
+			int runsBefore = CountingCallable.RUNS.get();
+			ResultFuture<String> future = machine.invokeAsync(new CountingCallable("Hello There", 1500), 1);
+			while(CountingCallable.RUNS.get() == runsBefore) {
+				Thread.sleep(10);
+			}
+
+			relay.close();
+			while(machine.isAvailable()) {
+				Thread.sleep(10);
+			}
+			assertFalse(future.isDone(), "Being unavailable for a moment shouldn't fail what's in flight");
+			assertEquals(machine.getBusyExecutorCount(), 1, "The request's executor should still be held");
+			assertNull(machine.tryReserve(1));
+
+			relay = Relay.start(localHost, RELAY_PORT, LISTENING_PORT);
+			assertEquals(future.get(30, TimeUnit.SECONDS), "Hello There");
+			assertEquals(CountingCallable.RUNS.get(), runsBefore + 1);
+			while(!machine.isAvailable()) {
+				Thread.sleep(10);
+			}
+			while(machine.getBusyExecutorCount() > 0) {
+				Thread.sleep(10);
+			}
+		} finally {
+			machine.close();
+			relay.close();
+			listener.close();
+		}
+	}
+
+	private static void waitFor(TaskQueue queue, int size) throws InterruptedException {
+		while(queue.size() != size) {
+			Thread.sleep(10);
+		}
+	}
+}
+
+/**
+ * The first two runs hang, as if the agent had frozen. Any later run finishes straight away.
+ */
+class HangsOnceTask implements Task<Result> {
+	private static final AtomicInteger RUNS = new AtomicInteger();
+
+	static void awaitRuns(int runs) throws InterruptedException {
+		while(RUNS.get() < runs) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Override
+	public Result call() throws Exception {
+		if(RUNS.incrementAndGet() <= 2) {
+			Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+		}
+		return Result.SUCCESS;
+	}
+
+	@Override
+	public int getWeight() {
+		return 1;
+	}
+}
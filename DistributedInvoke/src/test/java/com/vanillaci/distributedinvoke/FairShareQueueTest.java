@@ -0,0 +1,286 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.queue.FairShareQueue;
+import com.vanillaci.distributedinvoke.queue.TaskClassifier;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+public class FairShareQueueTest {
+	private static final TaskClassifier BY_TENANT = new TaskClassifier() {
+		@Override
+		public int getPriority(@NotNull Task<?> task) {
+			return ((SimulatedTask) task).priority;
+		}
+
+		@NotNull
+		@Override
+		public String getTenant(@NotNull Task<?> task) {
+			return ((SimulatedTask) task).tenant;
+		}
+
+		@Override
+		public int getShare(@NotNull String tenant) {
+			return tenant.equals("heavy") ? 3 : 1;
+		}
+	};
+
+	@Test
+	public void testSingleTenantIsFifo() throws Exception {
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(TaskClassifier.SINGLE_TENANT);
+		for(int i = 0; i < 5; i++) {
+			queue.add(new SimulatedTask("t", 0, 0, i));
+		}
+
+		final List<Integer> order = new ArrayList<Integer>();
+		queue.dispatch(new TakeAll(order));
+		assertEquals(order, Arrays.asList(0, 1, 2, 3, 4));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testHigherPriorityGoesFirst() throws Exception {
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(BY_TENANT);
+		queue.add(new SimulatedTask("a", 0, 0, 0));
+		queue.add(new SimulatedTask("a", 0, 0, 1));
+		queue.add(new SimulatedTask("b", 5, 0, 2));
+
+		List<Integer> order = new ArrayList<Integer>();
+		queue.dispatch(new TakeAll(order));
+		assertEquals(order, Arrays.asList(2, 0, 1));
+	}
+
+	@Test
+	public void testTenantsShareByWeight() throws Exception {
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(BY_TENANT);
+		for(int i = 0; i < 100; i++) {
+			queue.add(new SimulatedTask("light", 0, 0, i));
+			queue.add(new SimulatedTask("heavy", 0, 0, i));
+		}
+
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		queue.dispatch(new FairShareQueue.Dispatcher<SimulatedTask>() {
+			private int remaining = 80;
+
+			@Override
+			public int getCapacity() {
+				return remaining;
+			}
+
+			@Override
+			public boolean tryDispatch(@NotNull SimulatedTask task) {
+				remaining--;
+				Integer count = counts.get(task.tenant);
+				counts.put(task.tenant, count == null ? 1 : count + 1);
+				return true;
+			}
+		});
+		assertEquals(counts.get("heavy"), Integer.valueOf(60), counts.toString());
+		assertEquals(counts.get("light"), Integer.valueOf(20), counts.toString());
+	}
+
+	@Test
+	public void testRefusedTaskDoesNotBlockOthers() throws Exception {
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(TaskClassifier.SINGLE_TENANT);
+		queue.add(new SimulatedTask("t", 0, 0, 0));
+		queue.add(new SimulatedTask("t", 0, 0, 1));
+
+		final List<Integer> order = new ArrayList<Integer>();
+		queue.dispatch(new FairShareQueue.Dispatcher<SimulatedTask>() {
+			@Override
+			public int getCapacity() {
+				return Integer.MAX_VALUE;
+			}
+
+			@Override
+			public boolean tryDispatch(@NotNull SimulatedTask task) {
+				if(task.id == 0) {
+					return false;
+				}
+				order.add(task.id);
+				return true;
+			}
+		});
+		assertEquals(order, Arrays.asList(1));
+		assertEquals(queue.size(), 1);
+	}
+
+	@Test
+	public void testHeavyTaskIsPassedOverUntilItFits() throws Exception {
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(TaskClassifier.SINGLE_TENANT);
+		queue.add(new SimulatedTask("t", 0, 0, 0, 10, 4));
+		for(int i = 1; i <= 1000; i++) {
+			queue.add(new SimulatedTask("t", 0, 0, i));
+		}
+
+		final int[] free = { 2 };
+		final int[] offered = { 0 };
+		final List<Integer> order = new ArrayList<Integer>();
+		FairShareQueue.Dispatcher<SimulatedTask> dispatcher = new FairShareQueue.Dispatcher<SimulatedTask>() {
+			@Override
+			public int getCapacity() {
+				return free[0];
+			}
+
+			@Override
+			public boolean tryDispatch(@NotNull SimulatedTask task) {
+				offered[0]++;
+				if(task.getWeight() > free[0]) {
+					return false;
+				}
+				free[0] -= task.getWeight();
+				order.add(task.id);
+				return true;
+			}
+		};
+
+		//The heavy task at the front doesn't fit, and isn't even offered.
+		queue.dispatch(dispatcher);
+		assertEquals(order, Arrays.asList(1, 2));
+		assertEquals(offered[0], 2);
+
+		//Once it fits, it goes ahead of the tasks queued after it.
+		free[0] = 10;
+		queue.dispatch(dispatcher);
+		assertEquals(order, Arrays.asList(1, 2, 0, 3, 4, 5, 6, 7, 8));
+		assertEquals(offered[0], order.size());
+		assertEquals(queue.size(), 1000 - 8);
+	}
+
+	/**
+	 * One tenant floods the queue with 5,000 tasks. The p99 wait of the small tenants should stay about where it is without the flood,
+	 * 	and shouldn't grow as the flood goes on. Time is simulated in ticks, so this doesn't depend on how fast the machine is.
+	 * 	How long dispatching takes with a flood queued is measured by FairShareQueueBenchmark in the benchmarks module.
+	 */
+	@Test
+	public void testSmallTenantsStayFastUnderFlood() throws Exception {
+		long[] quiet = simulate(false);
+		long[] flooded = simulate(true);
+		for(int window = 0; window < flooded.length; window++) {
+			//A small task may have to wait for one flood task to finish, but no more.
+			assertTrue(flooded[window] <= quiet[window] + SimulatedTask.MAX_DURATION, "Window " + window + ": " + flooded[window] + " ticks");
+		}
+	}
+
+	/**
+	 * 10 executors. Three small tenants each queue a 10 tick task every 20 ticks. Flood tasks take anywhere from 5 to 15 ticks.
+	 * @return The p99 wait of the small tenants' tasks in each of 4 windows of 500 ticks.
+	 */
+	private static long[] simulate(boolean flood) throws InterruptedException {
+		final int executors = 10;
+		final int ticks = 2000;
+		final int windows = 4;
+
+		FairShareQueue<SimulatedTask> queue = new FairShareQueue<SimulatedTask>(BY_TENANT);
+		if(flood) {
+			for(int i = 0; i < 5000; i++) {
+				queue.add(new SimulatedTask("flood", 0, 0, i, 5 + i % 11));
+			}
+		}
+
+		final int[] free = { executors };
+		final int[] now = { 0 };
+		final int[] finishing = new int[ticks + SimulatedTask.MAX_DURATION + 1];
+		final List<List<Long>> waits = new ArrayList<List<Long>>();
+		for(int i = 0; i < windows; i++) {
+			waits.add(new ArrayList<Long>());
+		}
+
+		FairShareQueue.Dispatcher<SimulatedTask> dispatcher = new FairShareQueue.Dispatcher<SimulatedTask>() {
+			@Override
+			public int getCapacity() {
+				return free[0];
+			}
+
+			@Override
+			public boolean tryDispatch(@NotNull SimulatedTask task) {
+				free[0]--;
+				finishing[now[0] + task.duration]++;
+				if(!task.tenant.equals("flood")) {
+					waits.get(task.enqueuedAt * windows / ticks).add((long) (now[0] - task.enqueuedAt));
+				}
+				return true;
+			}
+		};
+
+		for(; now[0] < ticks; now[0]++) {
+			free[0] += finishing[now[0]];
+			if(now[0] % 20 == 0) {
+				for (String tenant : new String[] { "a", "b", "c" }) {
+					queue.add(new SimulatedTask(tenant, 0, now[0], now[0]));
+				}
+			}
+			queue.dispatch(dispatcher);
+		}
+
+		long[] p99 = new long[windows];
+		for(int i = 0; i < windows; i++) {
+			List<Long> window = waits.get(i);
+			Collections.sort(window);
+			p99[i] = window.isEmpty() ? 0 : window.get((int) Math.ceil(window.size() * 0.99) - 1);
+		}
+		return p99;
+	}
+
+	private static class TakeAll implements FairShareQueue.Dispatcher<SimulatedTask> {
+		private final List<Integer> order;
+
+		public TakeAll(List<Integer> order) {
+			this.order = order;
+		}
+
+		@Override
+		public int getCapacity() {
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		public boolean tryDispatch(@NotNull SimulatedTask task) {
+			order.add(task.id);
+			return true;
+		}
+	}
+}
+
+class SimulatedTask implements Task<Result> {
+	static final int MAX_DURATION = 15;
+
+	final String tenant;
+	final int priority;
+	final int enqueuedAt;
+	final int id;
+	final int duration;
+	final int weight;
+
+	SimulatedTask(String tenant, int priority, int enqueuedAt, int id) {
+		this(tenant, priority, enqueuedAt, id, 10);
+	}
+
+	SimulatedTask(String tenant, int priority, int enqueuedAt, int id, int duration) {
+		this(tenant, priority, enqueuedAt, id, duration, 1);
+	}
+
+	SimulatedTask(String tenant, int priority, int enqueuedAt, int id, int duration, int weight) {
+		this.tenant = tenant;
+		this.priority = priority;
+		this.enqueuedAt = enqueuedAt;
+		this.id = id;
+		this.duration = duration;
+		this.weight = weight;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		return Result.SUCCESS;
+	}
+
+	@Override
+	public int getWeight() {
+		return weight;
+	}
+}
@@ -0,0 +1,102 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.HashedWheelTimer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.*;
+
+public class HashedWheelTimerTest {
+	private HashedWheelTimer timer;
+
+	@BeforeMethod
+	public void setUp() {
+		timer = HashedWheelTimer.start("Test timer", 10, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		timer.close();
+	}
+
+	@Test(timeOut = 10000)
+	public void testExpiresNoEarlierThanTheDelay() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		//Longer than one turn of the wheel, so the timeout has to wait out a round.
+		HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 150, TimeUnit.MILLISECONDS);
+		assertEquals(timer.getPendingCount(), 1);
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsedMillis >= 150, "Expired after " + elapsedMillis + "ms");
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel(), "Can't cancel something that already ran");
+		assertEquals(timer.getPendingCount(), 0);
+	}
+
+	@Test(timeOut = 10000)
+	public void testCancelledTimeoutsNeverRun() throws Exception {
+		final AtomicBoolean ran = new AtomicBoolean();
+		HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ran.set(true);
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertEquals(timer.getPendingCount(), 0);
+
+		Thread.sleep(150);
+		assertFalse(ran.get());
+		assertTrue(timeout.isCancelled());
+	}
+
+	/**
+	 * Pending counts stay right with a million timeouts spread across the wheel.
+	 * What scheduling and cancelling cost at that size is measured by HashedWheelTimerBenchmark in the benchmarks module.
+	 */
+	@Test(timeOut = 60000)
+	public void testMillionPendingTimeouts() throws Exception {
+		HashedWheelTimer timer = HashedWheelTimer.start("Many timeouts timer");
+		try {
+			Runnable noop = new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+
+			List<HashedWheelTimer.Timeout> background = new ArrayList<HashedWheelTimer.Timeout>();
+			for(int i = 0; i < 1000000; i++) {
+				background.add(timer.schedule(noop, 1 + (i % 3600), TimeUnit.SECONDS));
+			}
+			assertEquals(timer.getPendingCount(), background.size());
+
+			HashedWheelTimer.Timeout extra = timer.schedule(noop, 30, TimeUnit.SECONDS);
+			assertEquals(timer.getPendingCount(), background.size() + 1);
+			assertTrue(extra.cancel());
+			assertEquals(timer.getPendingCount(), background.size());
+
+			for (HashedWheelTimer.Timeout timeout : background) {
+				assertTrue(timeout.cancel());
+			}
+			assertEquals(timer.getPendingCount(), 0);
+		} finally {
+			timer.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import com.vanillaci.distributedinvoke.machines.labels.LabelIndex;
+import com.vanillaci.distributedinvoke.machines.labels.LabelSet;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+public class LabelIndexTest {
+	@Test
+	public void testCandidates() throws Exception {
+		Machine linux = new StubMachine("linux", 0, "linux x64");
+		Machine windows = new StubMachine("windows", 0, "windows x64");
+		Machine arm = new StubMachine("arm", 0, "linux arm");
+		Machine bare = new StubMachine("bare", 0, "");
+
+		LabelIndex index = new LabelIndex();
+		for (Machine machine : Arrays.asList(linux, windows, arm, bare)) {
+			index.add(machine);
+		}
+
+		assertEquals(new HashSet<Machine>(index.candidates(Label.parse("linux"))), new HashSet<Machine>(Arrays.asList(linux, arm)));
+		assertEquals(new HashSet<Machine>(index.candidates(Label.parse("x64 !windows"))), Collections.singleton(linux));
+		assertEquals(new HashSet<Machine>(index.candidates(Label.parse("!linux"))), new HashSet<Machine>(Arrays.asList(windows, bare)));
+		assertEquals(index.candidates(Label.parse("")).size(), 4);
+		assertTrue(index.candidates(Label.parse("solaris")).isEmpty());
+
+		index.remove(arm);
+		assertEquals(index.candidates(Label.parse("linux")), Collections.singletonList(linux));
+
+		Machine replacement = new StubMachine("replacement", 0, "linux");
+		index.add(replacement);
+		assertEquals(new HashSet<Machine>(index.candidates(Label.parse("linux"))), new HashSet<Machine>(Arrays.asList(linux, replacement)));
+	}
+
+	@Test
+	public void testExpressionMatchesLabelSet() throws Exception {
+		LabelSet machine = Label.parse("linux x64").getIncludeSet();
+
+		assertTrue(Label.parse("linux").matches(machine));
+		assertTrue(Label.parse("windows linux").matches(machine));
+		assertFalse(Label.parse("windows").matches(machine));
+		assertFalse(Label.parse("linux !x64").matches(machine));
+		assertTrue(Label.parse("!windows").matches(machine));
+	}
+
+	/**
+	 * 5,000 machines with 10 of 200 labels each, matched against 1,000 expressions.
+	 * How much faster the index is is measured by LabelIndexBenchmark in the benchmarks module.
+	 */
+	@Test(timeOut = 120000)
+	public void testIndexAgreesWithStringMatching() throws Exception {
+		Random random = new Random(42);
+		List<Machine> machines = new ArrayList<Machine>();
+		LabelIndex index = new LabelIndex();
+		for(int i = 0; i < 5000; i++) {
+			StringBuilder labels = new StringBuilder();
+			for(int j = 0; j < 10; j++) {
+				labels.append(" bench-label-").append(random.nextInt(200));
+			}
+			Machine machine = new StubMachine("machine " + i, 0, labels.toString());
+			machines.add(machine);
+			index.add(machine);
+		}
+
+		List<Label.Expression> expressions = new ArrayList<Label.Expression>();
+		for(int i = 0; i < 1000; i++) {
+			String expression = "bench-label-" + random.nextInt(200) + " bench-label-" + random.nextInt(200);
+			if(random.nextBoolean()) {
+				expression += " !bench-label-" + random.nextInt(200);
+			}
+			expressions.add(Label.parse(expression));
+		}
+
+		for (Label.Expression expression : expressions) {
+			assertEquals(new HashSet<Machine>(index.candidates(expression)), new HashSet<Machine>(scanByName(machines, expression)), expression.toString());
+		}
+	}
+
+	/**
+	 * How matching worked before labels were compiled into bitsets: a string comparison per label pair.
+	 */
+	private static List<Machine> scanByName(List<Machine> machines, Label.Expression expression) {
+		List<Machine> result = new ArrayList<Machine>();
+		for (Machine machine : machines) {
+			boolean excluded = false;
+			boolean included = expression.getIncludes().isEmpty();
+			for (Label label : machine.getLabels().getIncludes()) {
+				for (Label exclude : expression.getExcludes()) {
+					excluded |= exclude.getName().equals(label.getName());
+				}
+				for (Label include : expression.getIncludes()) {
+					included |= include.getName().equals(label.getName());
+				}
+			}
+			if(included && !excluded) {
+				result.add(machine);
+			}
+		}
+		return result;
+	}
+}
@@ -1,9 +1,16 @@
 package com.vanillaci.distributedinvoke;
 
 import com.vanillaci.distributedinvoke.machines.labels.Label;
+import com.vanillaci.distributedinvoke.machines.labels.LabelSet;
 import static org.testng.Assert.*;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
 /**
  * User: Joel Johnson
  * Date: 3/4/13
@@ -113,4 +120,21 @@ public class LabelTest {
 		assertTrue(parse.matches("Label"));
 		assertFalse(parse.matches("ThisShouldNotMatchAnythingElse"));
 	}
+
+	@Test
+	public void testExpressionSerialization() throws Exception {
+		Label.Expression expression = Label.parse("linux x64 !windows");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(expression);
+		out.close();
+		Label.Expression read = (Label.Expression) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		assertSame(read.getIncludes().get(0), Label.intern("linux"), "Labels should be re-interned");
+		assertSame(read.getExcludes().get(0), Label.intern("windows"));
+		assertTrue(read.getIncludeSet().contains(Label.intern("x64")), "The label sets should be rebuilt");
+		assertTrue(read.matches(LabelSet.of(Arrays.asList(Label.intern("linux")))));
+		assertFalse(read.matches(LabelSet.of(Arrays.asList(Label.intern("linux"), Label.intern("windows")))));
+	}
 }
@@ -0,0 +1,212 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.queue.MappedTaskJournal;
+import com.vanillaci.distributedinvoke.queue.TaskJournal;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class MappedTaskJournalTest {
+	private static final int SMALL_SEGMENT = 4096;
+
+	private File directory;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("task-journal").toFile();
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws Exception {
+		MappedTaskJournal journal = open();
+		List<Long> ids = new ArrayList<Long>();
+		for(int i = 0; i < 100; i++) {
+			ids.add(journal.append(new JournaledTask(i)));
+		}
+		for(int i = 0; i < 100; i += 2) {
+			journal.remove(ids.get(i));
+		}
+		journal.remove(ids.get(0)); //Removing twice does nothing.
+		assertEquals(journal.size(), 50);
+		journal.close();
+
+		journal = open();
+		List<Integer> expected = new ArrayList<Integer>();
+		for(int i = 1; i < 100; i += 2) {
+			expected.add(i);
+		}
+		assertEquals(replay(journal), expected);
+
+		long id = journal.append(new JournaledTask(100));
+		assertTrue(id > ids.get(99), "Ids should keep going up after a restart");
+		journal.close();
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws Exception {
+		MappedTaskJournal journal = open();
+		for(int i = 0; i < 10; i++) {
+			journal.append(new JournaledTask(i));
+		}
+		journal.close();
+
+		//Flip the last byte written, which is inside the last record.
+		File[] segments = directory.listFiles();
+		assertNotNull(segments);
+		Arrays.sort(segments);
+		RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw");
+		try {
+			long position = file.length() - 1;
+			file.seek(position);
+			while(file.read() == 0) {
+				file.seek(--position);
+			}
+			file.seek(position);
+			int last = file.read();
+			file.seek(position);
+			file.write(last ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		journal = open();
+		assertEquals(replay(journal), Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8));
+		journal.close();
+	}
+
+	@Test(timeOut = 30000)
+	public void testCompactionReclaimsSegments() throws Exception {
+		MappedTaskJournal journal = open();
+		List<Long> ids = new ArrayList<Long>();
+		for(int i = 0; i < 1000; i++) {
+			ids.add(journal.append(new JournaledTask(i)));
+		}
+		assertTrue(journal.getSegmentCount() > 2);
+
+		List<Integer> survivors = new ArrayList<Integer>();
+		for(int i = 0; i < ids.size(); i++) {
+			if(i % 100 == 50) {
+				survivors.add(i);
+			} else {
+				journal.remove(ids.get(i));
+			}
+		}
+		journal.sync();
+		while(journal.getSegmentCount() > 2) {
+			Thread.sleep(10);
+		}
+
+		String[] files = directory.list();
+		assertNotNull(files);
+		assertEquals(files.length, journal.getSegmentCount(), "Replaced segments should be deleted");
+		assertEquals(replay(journal), survivors);
+		journal.close();
+
+		journal = open();
+		assertEquals(replay(journal), survivors);
+		journal.close();
+	}
+
+	@Test(timeOut = 30000)
+	public void testSyncWaitsForFlush() throws Exception {
+		MappedTaskJournal journal = MappedTaskJournal.open(directory, SMALL_SEGMENT, 1, TimeUnit.HOURS);
+		journal.append(new JournaledTask(0));
+
+		journal.sync(); //The timeout fails the test if this waits for the next scheduled flush, an hour away.
+		assertEquals(journal.getUnsyncedCount(), 0);
+		journal.close();
+	}
+
+	@Test(timeOut = 30000)
+	public void testSyncedAppendsWaitForFlush() throws Exception {
+		MappedTaskJournal journal = MappedTaskJournal.open(directory, SMALL_SEGMENT, 1, TimeUnit.HOURS);
+		journal.append(new JournaledTask(0));
+		assertEquals(journal.getUnsyncedCount(), 1, "Nothing should have been forced yet");
+		journal.close();
+
+		journal = MappedTaskJournal.open(directory, SMALL_SEGMENT, 1, TimeUnit.HOURS, true);
+		journal.append(new JournaledTask(1));
+		assertEquals(journal.getUnsyncedCount(), 0, "The append should have waited for the fsync");
+		journal.remove(journal.append(new JournaledTask(2)));
+		assertEquals(journal.getUnsyncedCount(), 1, "Removals aren't waited for");
+		journal.close();
+	}
+
+	/**
+	 * Enough tasks to fill many segments. How fast appending and recovery are is measured by TaskJournalBenchmark in the benchmarks module.
+	 */
+	@Test(timeOut = 60000)
+	public void testRecoversEveryAppend() throws Exception {
+		final int count = 10000;
+		MappedTaskJournal journal = open();
+		for(int i = 0; i < count; i++) {
+			journal.append(new JournaledTask(i));
+		}
+		assertTrue(journal.getSegmentCount() > 1, "The tasks should have spread over several segments");
+		journal.sync();
+		journal.close();
+
+		journal = open();
+		List<Integer> replayed = replay(journal);
+		journal.close();
+		assertEquals(replayed.size(), count);
+		for(int i = 0; i < count; i++) {
+			assertEquals(replayed.get(i).intValue(), i);
+		}
+	}
+
+	@NotNull
+	private MappedTaskJournal open() throws IOException {
+		return MappedTaskJournal.open(directory, SMALL_SEGMENT, 5, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	private static List<Integer> replay(@NotNull TaskJournal journal) throws IOException {
+		final List<Integer> numbers = new ArrayList<Integer>();
+		journal.replay(new TaskJournal.Visitor() {
+			@Override
+			public void visit(long id, @NotNull Task<Result> task) {
+				numbers.add(((JournaledTask) task).number);
+			}
+		});
+		return numbers;
+	}
+}
+
+class JournaledTask implements Task<Result> {
+	final int number;
+
+	JournaledTask(int number) {
+		this.number = number;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		return Result.SUCCESS;
+	}
+
+	@Override
+	public int getWeight() {
+		return 1;
+	}
+}
@@ -0,0 +1,176 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.logging.AsyncLogWriter;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import com.vanillaci.distributedinvoke.metrics.*;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class MetricsTest {
+	private static final int LISTENING_PORT = 9691;
+
+	@Test
+	public void testPercentilesWithinBucketError() throws Exception {
+		Histogram histogram = new MetricsRegistry().histogram("test");
+		List<Long> values = new ArrayList<Long>();
+		Random random = new Random(3);
+		for(int i = 0; i < 100000; i++) {
+			long value = (long) Math.exp(random.nextDouble() * 25); //Spread over many orders of magnitude.
+			values.add(value);
+			histogram.record(value);
+		}
+		Collections.sort(values);
+
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(snapshot.getCount(), values.size());
+		assertEquals(snapshot.getMax(), (long) values.get(values.size() - 1));
+		for (double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+			long exact = values.get((int) Math.ceil(values.size() * percentile / 100) - 1);
+			long estimate = snapshot.getPercentile(percentile);
+			assertTrue(estimate >= exact && estimate <= exact + exact / 8 + 1, "p" + percentile + " was " + estimate + ", exact value " + exact);
+		}
+	}
+
+	@Test
+	public void testCountersAreExactUnderContention() throws Exception {
+		final Counter counter = new MetricsRegistry().counter("test");
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 100000; j++) {
+						counter.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(counter.get(), threads.length * 100000L);
+	}
+
+	@Test
+	public void testRecordingDoesNotAllocate() throws Exception {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if(!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram histogram = registry.histogram("test.histogram");
+		Counter counter = registry.counter("test.counter");
+		for(int i = 0; i < 100000; i++) { //Warm up.
+			histogram.record(i);
+			counter.increment();
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < 1000000; i++) {
+			histogram.record(i);
+			histogram.recordSince(System.nanoTime());
+			counter.add(i);
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+		assertTrue(allocated < 4096, "Recording 3 million values allocated " + allocated + " bytes");
+	}
+
+	@Test
+	public void testPublishedOverJmx() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test.counter").add(42);
+		registry.histogram("test.latency").record(1000);
+		registry.gauge("test.gauge", new Gauge() {
+			@Override
+			public long getValue() {
+				return 7;
+			}
+		});
+
+		ObjectName name = new ObjectName("com.vanillaci.distributedinvoke:type=Metrics,name=MetricsTest");
+		registry.registerMBean(name);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(server.getAttribute(name, "test.counter"), 42L);
+			assertEquals(server.getAttribute(name, "test.gauge"), 7L);
+			assertEquals(server.getAttribute(name, "test.latency.count"), 1L);
+			assertEquals(server.getAttribute(name, "test.latency.max"), 1000L);
+			assertTrue(server.getMBeanInfo(name).getAttributes().length >= 9);
+		} finally {
+			registry.unregisterMBean(name);
+		}
+
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(MetricsRegistry.DEFAULT_OBJECT_NAME)), "The default registry should always be published");
+	}
+
+	@Test
+	public void testLoadsWhenAnotherCopyIsPublished() throws Exception {
+		MetricsRegistry.getDefault();
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(MetricsRegistry.DEFAULT_OBJECT_NAME)));
+
+		//A second copy of the library, the way another application in the same container would load it.
+		List<URL> classPath = new ArrayList<URL>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.add(new File(entry).toURI().toURL());
+		}
+		URLClassLoader copy = new URLClassLoader(classPath.toArray(new URL[classPath.size()]), ClassLoader.getSystemClassLoader().getParent());
+		try {
+			Class<?> registry = Class.forName(MetricsRegistry.class.getName(), true, copy);
+			assertNotSame(registry, MetricsRegistry.class);
+			assertNotNull(registry.getMethod("getDefault").invoke(null));
+			Class.forName(AsyncLogWriter.class.getName(), true, copy);
+		} finally {
+			copy.close();
+		}
+	}
+
+	@Test(timeOut = 10000)
+	public void testInvocationsAreMeasured() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		Machine machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		try {
+			MetricsSnapshot before = MetricsRegistry.getDefault().snapshot();
+			for(int i = 0; i < 5; i++) {
+				machine.invoke(new MyCallable("Measured " + i), 1);
+			}
+			MetricsSnapshot after = MetricsRegistry.getDefault().snapshot();
+
+			assertTrue(after.getCounter("channel.requests") - before.getCounter("channel.requests") >= 5);
+			assertTrue(after.getCounter("channel.bytesWritten") > before.getCounter("channel.bytesWritten"));
+			assertTrue(after.getCounter("channel.bytesRead") > before.getCounter("channel.bytesRead"));
+			assertTrue(countDelta(before, after, "channel.roundTripNanos") >= 5);
+			assertTrue(countDelta(before, after, "channel.serializeNanos") >= 5);
+			assertTrue(countDelta(before, after, "listener.executionNanos") >= 5);
+		} finally {
+			machine.close();
+			listener.close();
+		}
+	}
+
+	private static long countDelta(MetricsSnapshot before, MetricsSnapshot after, String histogram) {
+		HistogramSnapshot previous = before.getHistogram(histogram);
+		return after.getHistogram(histogram).getCount() - (previous == null ? 0 : previous.getCount());
+	}
+}
@@ -0,0 +1,164 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.queue.PlacementStrategies;
+import com.vanillaci.distributedinvoke.queue.PlacementStrategy;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+public class PlacementStrategyTest {
+	private static final int MACHINES = 50;
+	private static final int EXECUTORS_PER_MACHINE = 8;
+	private static final int TICKS = 5000;
+
+	@Test
+	public void testStrategiesPickTheExpectedMachine() throws Exception {
+		Machine almostFull = machine("almost full", 8, 6);
+		Machine halfFull = machine("half full", 8, 4);
+		Machine big = machine("big", 32, 8);
+		List<Machine> machines = Arrays.asList(almostFull, halfFull, big);
+
+		assertSame(place(PlacementStrategies.firstFit(), machines, 2), almostFull);
+		assertSame(place(PlacementStrategies.bestFit(), machines, 2), almostFull);
+		assertSame(place(PlacementStrategies.worstFit(), machines, 2), big);
+		assertSame(place(PlacementStrategies.spread(), machines, 2), big);
+		assertSame(place(PlacementStrategies.bestFit(), machines, 3), halfFull, "Only machines that fit should be considered");
+	}
+
+	/**
+	 * Replays the same stream of tasks of weight 1, 2, 4 and 8 against a fleet of 50 machines with 8 executors each,
+	 * 	once per strategy, plus once the way placement worked before: always the first machine.
+	 * 	A task that can't be placed when it arrives counts as a failed placement.
+	 * 	The stream is seeded and time is simulated in ticks, so the outcome is the same on every run.
+	 * 	How long placement takes with each strategy is measured by TaskQueueBenchmark in the benchmarks module.
+	 */
+	@Test
+	public void testBestFitFragmentsLess() throws Exception {
+		List<int[]> arrivals = generateArrivals(new Random(7));
+
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		results.put("first machine (old)", simulate(null, arrivals));
+		results.put("first fit", simulate(PlacementStrategies.firstFit(), arrivals));
+		results.put("best fit", simulate(PlacementStrategies.bestFit(), arrivals));
+		results.put("worst fit", simulate(PlacementStrategies.worstFit(), arrivals));
+		results.put("spread", simulate(PlacementStrategies.spread(), arrivals));
+
+		double[] old = results.get("first machine (old)");
+		double[] bestFit = results.get("best fit");
+		double[] worstFit = results.get("worst fit");
+		double[] spread = results.get("spread");
+		assertTrue(bestFit[0] < old[0] / 10, "Best fit should fail far less often than always using the first machine");
+		assertTrue(bestFit[0] < worstFit[0], "Best fit should fail less often than worst fit");
+		assertTrue(bestFit[0] < spread[0], "Best fit should fail less often than spread");
+		assertTrue(bestFit[2] < worstFit[2], "Best fit should leave less fragmented free space than worst fit");
+		assertTrue(bestFit[2] < spread[2], "Best fit should leave less fragmented free space than spread");
+	}
+
+	/**
+	 * @return {weight, duration} for every task, in arrival order, with the tick it arrives on in between as {-1, tick}.
+	 */
+	private static List<int[]> generateArrivals(Random random) {
+		int[] weights = { 1, 1, 1, 1, 2, 2, 4, 8 };
+		List<int[]> arrivals = new ArrayList<int[]>();
+		for(int tick = 0; tick < TICKS; tick++) {
+			arrivals.add(new int[] { -1, tick });
+			int count = random.nextInt(4);
+			for(int i = 0; i < count; i++) {
+				arrivals.add(new int[] { weights[random.nextInt(weights.length)], 20 + random.nextInt(120) });
+			}
+		}
+		return arrivals;
+	}
+
+	/**
+	 * @param strategy Null to always use the first machine, whether or not it fits.
+	 * @return {failed placements, average utilization, average fragmentation}.
+	 * 	Fragmentation is the fraction of free executors that are on a machine too full to take a weight 8 task.
+	 */
+	private static double[] simulate(PlacementStrategy strategy, List<int[]> arrivals) {
+		List<Machine> machines = new ArrayList<Machine>();
+		for(int i = 0; i < MACHINES; i++) {
+			machines.add(new StubMachine("machine " + i, EXECUTORS_PER_MACHINE));
+		}
+		PriorityQueue<Running> running = new PriorityQueue<Running>();
+
+		int failed = 0;
+		double utilization = 0;
+		double fragmentation = 0;
+		int tick = 0;
+		for (int[] arrival : arrivals) {
+			if(arrival[0] < 0) {
+				tick = arrival[1];
+				while(!running.isEmpty() && running.peek().until <= tick) {
+					running.poll().reservation.release();
+				}
+
+				int free = 0;
+				int stranded = 0;
+				for (Machine machine : machines) {
+					free += machine.getAvailableExecutorCount();
+					stranded += machine.getAvailableExecutorCount() < EXECUTORS_PER_MACHINE ? machine.getAvailableExecutorCount() : 0;
+				}
+				utilization += 1 - (double) free / (MACHINES * EXECUTORS_PER_MACHINE);
+				fragmentation += free == 0 ? 0 : (double) stranded / free;
+				continue;
+			}
+
+			int weight = arrival[0];
+			Machine machine = strategy == null ? machines.get(0) : place(strategy, machines, weight);
+			Machine.Reservation reservation = machine == null ? null : machine.tryReserve(weight);
+			if(reservation == null) {
+				failed++;
+				continue;
+			}
+			running.add(new Running(tick + arrival[1], reservation));
+		}
+		return new double[] { failed, utilization / TICKS, fragmentation / TICKS };
+	}
+
+	/**
+	 * Picks a machine the same way TaskQueue does.
+	 */
+	private static Machine place(PlacementStrategy strategy, List<Machine> machines, int weight) {
+		Machine best = null;
+		double bestScore = 0;
+		for (Machine machine : machines) {
+			if(machine.getAvailableExecutorCount() < weight) {
+				continue;
+			}
+			double score = strategy.score(machine, weight);
+			if(best == null || score < bestScore) {
+				best = machine;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return A machine with the given number of its executors already taken.
+	 */
+	private static Machine machine(String name, int total, int busy) {
+		Machine machine = new StubMachine(name, total);
+		assertNotNull(machine.tryReserve(busy));
+		return machine;
+	}
+
+	private static class Running implements Comparable<Running> {
+		final int until;
+		final Machine.Reservation reservation;
+
+		Running(int until, Machine.Reservation reservation) {
+			this.until = until;
+			this.reservation = reservation;
+		}
+
+		@Override
+		public int compareTo(Running other) {
+			return Integer.compare(until, other.until);
+		}
+	}
+}
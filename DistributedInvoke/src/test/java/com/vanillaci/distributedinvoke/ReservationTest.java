@@ -0,0 +1,191 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class ReservationTest {
+	private static final int LISTENING_PORT = 9591;
+	private static final int EXECUTORS = 4;
+	private static final int THREADS = 16;
+
+	private RemoteMachineListener listener;
+	private Machine machine;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, EXECUTORS, "");
+		ConcurrencyTrackingCallable.reset();
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		machine.close();
+		listener.close();
+	}
+
+	@Test
+	public void testReservationLifecycle() throws Exception {
+		Machine.Reservation reservation = machine.tryReserve(3);
+		assertNotNull(reservation);
+		assertEquals(machine.getAvailableExecutorCount(), 1);
+		assertNull(machine.tryReserve(2), "Only one executor is left");
+
+		assertTrue(reservation.release());
+		assertFalse(reservation.release(), "Releasing twice shouldn't give back the executors twice");
+		assertEquals(machine.getAvailableExecutorCount(), EXECUTORS);
+
+		try {
+			machine.invokeAsync(new MyCallable("Released"), reservation);
+			fail("Should throw " + IllegalArgumentException.class.getCanonicalName());
+		} catch (IllegalArgumentException ignore) {}
+	}
+
+	@Test(timeOut = 10000)
+	public void testCancelReleasesReservation() throws Exception {
+		Machine.Reservation reservation = machine.tryReserve(EXECUTORS);
+		assertNotNull(reservation);
+		ResultFuture<String> future = machine.invokeAsync(new SlowCallable("Cancelled", 200), reservation);
+		assertEquals(machine.getAvailableExecutorCount(), 0);
+
+		future.cancel(true);
+		assertEquals(machine.getAvailableExecutorCount(), EXECUTORS);
+	}
+
+	/**
+	 * Many threads reserve and release as fast as they can. The busy count must never go over the total.
+	 * How many reservations a second that gets through is measured by ReservationBenchmark in the benchmarks module.
+	 */
+	@Test(timeOut = 30000)
+	public void testReservationsNeverOverbook() throws Exception {
+		final AtomicInteger held = new AtomicInteger();
+		final AtomicInteger maxHeld = new AtomicInteger();
+		final AtomicInteger overbooked = new AtomicInteger();
+		final AtomicInteger reservations = new AtomicInteger();
+
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for(int i = 0; i < 100000; i++) {
+					int weight = 1 + random.nextInt(2);
+					Machine.Reservation reservation = machine.tryReserve(weight);
+					if(reservation == null) {
+						continue;
+					}
+					reservations.incrementAndGet();
+					int now = held.addAndGet(weight);
+					updateMax(maxHeld, now);
+					if(now > EXECUTORS || machine.getBusyExecutorCount() > EXECUTORS) {
+						overbooked.incrementAndGet();
+					}
+					held.addAndGet(-weight);
+					reservation.release();
+				}
+				return null;
+			}
+		});
+
+		assertTrue(reservations.get() > 0);
+		assertEquals(overbooked.get(), 0);
+		assertTrue(maxHeld.get() <= EXECUTORS);
+		assertEquals(machine.getBusyExecutorCount(), 0);
+	}
+
+	/**
+	 * Many threads invoke at once. No more callables may ever run on the remote side than there are executors.
+	 */
+	@Test(timeOut = 30000)
+	public void testConcurrentInvokesNeverOverbook() throws Exception {
+		final AtomicInteger accepted = new AtomicInteger();
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+				for(int i = 0; i < 50; i++) {
+					try {
+						futures.add(machine.invokeAsync(new ConcurrencyTrackingCallable(), 1));
+						accepted.incrementAndGet();
+					} catch (NotEnoughExecutorsException ignore) {
+						Thread.yield();
+					}
+				}
+				for (ResultFuture<String> future : futures) {
+					future.waitForResult();
+				}
+				return null;
+			}
+		});
+
+		assertTrue(accepted.get() > 0);
+		assertTrue(ConcurrencyTrackingCallable.maxRunning.get() <= EXECUTORS, "Ran " + ConcurrencyTrackingCallable.maxRunning.get() + " at once");
+		//Executors are given back by a completion callback, which can run just after a waiter sees the result.
+		while(machine.getBusyExecutorCount() > 0) {
+			Thread.sleep(1);
+		}
+	}
+
+	private static void runConcurrently(Callable<Void> work) throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(int i = 0; i < THREADS; i++) {
+				results.add(threads.submit(work));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	static void updateMax(AtomicInteger max, int value) {
+		int current;
+		while((current = max.get()) < value && !max.compareAndSet(current, value)) {
+			//Try again.
+		}
+	}
+}
+
+/**
+ * Runs in the same JVM as the test, so it can report back through static fields.
+ */
+class ConcurrencyTrackingCallable implements Callable<String>, Serializable {
+	static final AtomicInteger running = new AtomicInteger();
+	static final AtomicInteger maxRunning = new AtomicInteger();
+
+	static void reset() {
+		running.set(0);
+		maxRunning.set(0);
+	}
+
+	@Override
+	public String call() throws Exception {
+		ReservationTest.updateMax(maxRunning, running.incrementAndGet());
+		try {
+			Thread.sleep(1);
+			return "done";
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+}
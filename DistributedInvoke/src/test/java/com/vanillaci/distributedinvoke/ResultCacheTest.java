@@ -0,0 +1,168 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.cache.TieredResultCache;
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.jobs.CacheableTask;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.machines.CachingMachine;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.queue.*;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class ResultCacheTest {
+	private File directory;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("result-cache").toFile();
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		TieredResultCache cache = TieredResultCache.inMemory(1024 * 1024);
+		assertNull(cache.get(new CachedBuild("abc123")));
+
+		ArrayList<String> artifacts = new ArrayList<String>(Collections.singletonList("app.jar"));
+		cache.put(new CachedList("abc123"), artifacts);
+		List<String> cached = cache.get(new CachedList("abc123"));
+		assertEquals(cached, artifacts);
+		assertNotSame(cached, artifacts, "Every hit should be a fresh copy");
+		assertNull(cache.get(new CachedBuild("abc123")), "Tasks of different classes shouldn't share results");
+		assertNull(cache.get(new CachedList("def456")));
+
+		assertEquals(cache.getHitCount(), 1);
+		assertEquals(cache.getMissCount(), 3);
+		assertEquals(cache.getHitRate(), 0.25, 0.0001);
+	}
+
+	@Test
+	public void testOnlySuccessIsCached() throws Exception {
+		TieredResultCache cache = TieredResultCache.inMemory(1024 * 1024);
+		cache.put(new CachedBuild("failed"), Result.FAILURE);
+		cache.put(new CachedBuild("null"), null);
+		cache.put(new CachedBuild("passed"), Result.SUCCESS);
+
+		assertNull(cache.get(new CachedBuild("failed")), "A failed build should run again");
+		assertNull(cache.get(new CachedBuild("null")));
+		assertEquals(cache.get(new CachedBuild("passed")), Result.SUCCESS);
+	}
+
+	@Test
+	public void testDiskSurvivesReopen() throws Exception {
+		TieredResultCache cache = TieredResultCache.open(directory);
+		cache.put(new CachedBuild("abc123"), Result.SUCCESS);
+
+		TieredResultCache reopened = TieredResultCache.open(directory);
+		assertEquals(reopened.get(new CachedBuild("abc123")), Result.SUCCESS);
+		assertEquals(reopened.getMemoryCount(), 1, "A disk hit should be kept in memory too");
+	}
+
+	@Test
+	public void testDiskEvictsLeastRecentlyUsed() throws Exception {
+		//Nothing in memory, and room on disk for two results.
+		File sized = new File(directory, "sized");
+		TieredResultCache.open(sized).put(new CachedBuild("size"), Result.SUCCESS);
+		long resultBytes = FileUtils.sizeOfDirectory(sized);
+		TieredResultCache cache = TieredResultCache.open(directory, 0, resultBytes * 2);
+
+		cache.put(new CachedBuild("a"), Result.SUCCESS);
+		cache.put(new CachedBuild("b"), Result.SUCCESS);
+		assertEquals(cache.get(new CachedBuild("a")), Result.SUCCESS);
+		cache.put(new CachedBuild("c"), Result.SUCCESS);
+
+		assertEquals(cache.getDiskBytes(), resultBytes * 2);
+		assertNull(cache.get(new CachedBuild("b")), "b was the least recently used");
+		assertEquals(cache.get(new CachedBuild("a")), Result.SUCCESS);
+		assertEquals(cache.get(new CachedBuild("c")), Result.SUCCESS);
+	}
+
+	@Test
+	public void testCachingMachineHitTakesNoExecutors() throws Exception {
+		TieredResultCache cache = TieredResultCache.inMemory(1024 * 1024);
+		cache.put(new CachedBuild("abc123"), Result.SUCCESS);
+
+		//No executors, so running anything on it would throw.
+		Machine machine = new CachingMachine(new StubMachine("booked", 0), cache);
+		ResultFuture<Result> future = machine.invokeAsync(new CachedBuild("abc123"), 1);
+		assertTrue(future.isDone());
+		assertEquals(future.waitForResult(), Result.SUCCESS);
+	}
+
+	@Test
+	public void testQueueSkipsCachedTasks() throws Exception {
+		TieredResultCache cache = TieredResultCache.inMemory(1024 * 1024);
+		cache.put(new CachedBuild("abc123"), Result.SUCCESS);
+		TaskQueue queue = TaskQueue.create(Collections.<Machine>emptyList(), Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList(), TaskClassifier.SINGLE_TENANT, PlacementStrategies.bestFit(), TaskJournal.NONE, cache);
+
+		assertTrue(queue.enqueueTask(new CachedBuild("abc123")));
+		assertEquals(queue.size(), 0, "The cached task shouldn't have been queued");
+		assertTrue(queue.enqueueTask(new CachedBuild("def456")));
+		assertEquals(queue.size(), 1);
+	}
+}
+
+class CachedBuild implements CacheableTask<Result> {
+	private final String commit;
+
+	CachedBuild(String commit) {
+		this.commit = commit;
+	}
+
+	@NotNull
+	@Override
+	public String getCacheKey() {
+		return commit;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		return Result.SUCCESS;
+	}
+
+	@Override
+	public int getWeight() {
+		return 1;
+	}
+}
+
+class CachedList implements CacheableTask<ArrayList<String>> {
+	private final String commit;
+
+	CachedList(String commit) {
+		this.commit = commit;
+	}
+
+	@NotNull
+	@Override
+	public String getCacheKey() {
+		return commit;
+	}
+
+	@Override
+	public ArrayList<String> call() throws Exception {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public int getWeight() {
+		return 1;
+	}
+}
@@ -0,0 +1,145 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.RemoteChannel;
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.exceptions.RemoteInvocationException;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import static org.testng.Assert.*;
+
+public class ResultFutureTest {
+	private static final int LISTENING_PORT = 9391;
+
+	private RemoteMachineListener listener;
+	private RemoteChannel channel;
+	private Thread reader;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		channel = RemoteChannel.create("Test Machine", localHost, LISTENING_PORT);
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						channel.readResponse();
+					}
+				} catch (Exception ignore) {
+					//Closed at the end of the test.
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		reader.interrupt();
+		channel.close();
+		listener.close();
+	}
+
+	@Test(timeOut = 10000)
+	public void testWaitWithTimeout() throws Exception {
+		ResultFuture<String> future = channel.writeRequest(new SlowCallable("Slow", 500));
+		try {
+			future.waitForResult(10, TimeUnit.MILLISECONDS);
+			fail("Should throw " + TimeoutException.class.getCanonicalName());
+		} catch (TimeoutException ignore) {}
+
+		assertEquals(future.waitForResult(5, TimeUnit.SECONDS), "Slow", "Giving up on waiting shouldn't give up on the request");
+		assertEquals(channel.getPendingRequestCount(), 0);
+	}
+
+	@Test(timeOut = 10000)
+	public void testExpiry() throws Exception {
+		ResultFuture<String> future = channel.writeRequest(new SlowCallable("Too Slow", 500), 50, TimeUnit.MILLISECONDS);
+		try {
+			future.waitForResult();
+			fail("Should throw " + RemoteInvocationException.class.getCanonicalName());
+		} catch (RemoteInvocationException e) {
+			assertTrue(e.getCause() instanceof TimeoutException, String.valueOf(e.getCause()));
+		}
+		assertEquals(channel.getPendingRequestCount(), 0, "Expired requests should be forgotten");
+
+		//The late response should be dropped without breaking the channel.
+		assertEquals(channel.writeRequest(new MyCallable("Still Working")).waitForResult(), "Still Working");
+	}
+
+	@Test(timeOut = 10000)
+	public void testCancel() throws Exception {
+		ResultFuture<String> future = channel.writeRequest(new SlowCallable("Cancelled", 500));
+		assertEquals(channel.getPendingRequestCount(), 1);
+
+		assertTrue(future.cancel(true));
+		assertEquals(channel.getPendingRequestCount(), 0, "Cancelled requests should be forgotten");
+		try {
+			future.waitForResult();
+			fail("Should throw " + CancellationException.class.getCanonicalName());
+		} catch (CancellationException ignore) {}
+	}
+
+	@Test(timeOut = 10000)
+	public void testRemoteFailure() throws Exception {
+		ResultFuture<String> future = channel.writeRequest(new FailingCallable());
+		try {
+			future.waitForResult();
+			fail("Should throw " + RemoteInvocationException.class.getCanonicalName());
+		} catch (RemoteInvocationException e) {
+			assertTrue(e.getMessage().contains("Failing on purpose"), e.getMessage());
+		}
+		assertEquals(channel.getPendingRequestCount(), 0);
+	}
+
+	@Test(timeOut = 10000)
+	public void testComposition() throws Exception {
+		CompletableFuture<Integer> length = channel.writeRequest(new MyCallable("Hello There")).thenApply(new Function<String, Integer>() {
+			@Override
+			public Integer apply(String result) {
+				return result.length();
+			}
+		});
+		assertEquals(length.get(5, TimeUnit.SECONDS), Integer.valueOf(11));
+	}
+
+	@Test(timeOut = 10000)
+	public void testExecutorsReleasedOnTimeout() throws Exception {
+		reader.interrupt();
+		channel.close();
+
+		Machine machine = RemoteMachine.connectToMachine("Test Machine", Inet4Address.getLocalHost(), LISTENING_PORT, 1, "");
+		try {
+			ResultFuture<String> future = machine.invokeAsync(new SlowCallable("Too Slow", 500), 1, 50, TimeUnit.MILLISECONDS);
+			assertEquals(machine.getAvailableExecutorCount(), 0);
+			try {
+				future.waitForResult();
+				fail("Should throw " + RemoteInvocationException.class.getCanonicalName());
+			} catch (RemoteInvocationException ignore) {}
+			assertEquals(machine.getAvailableExecutorCount(), 1, "Available executor count should've been reset.");
+		} finally {
+			machine.close();
+		}
+	}
+}
+
+class FailingCallable implements Callable<String>, Serializable {
+	@Override
+	public String call() throws Exception {
+		throw new IllegalStateException("Failing on purpose");
+	}
+}
@@ -0,0 +1,168 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ChunkIterator;
+import com.vanillaci.distributedinvoke.channels.ChunkSubscriber;
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.jobs.TaskOutput;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class ResultStreamingTest {
+	private static final int LISTENING_PORT = 8991;
+
+	private static final AtomicInteger EMITTED = new AtomicInteger();
+	private static volatile CountDownLatch subscribed = new CountDownLatch(0);
+
+	private RemoteMachineListener listener;
+	private RemoteMachine machine;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		EMITTED.set(0);
+		subscribed = new CountDownLatch(0);
+
+		InetAddress localHost = Inet4Address.getLocalHost();
+		listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		machine.close();
+		listener.close();
+	}
+
+	@Test(timeOut = 30000)
+	public void testChunksArriveInOrderBeforeResult() throws Exception {
+		ResultFuture<String> future = machine.invokeAsync(new EmitLines(500), 1);
+
+		List<Object> lines = new ArrayList<Object>();
+		ChunkIterator chunks = future.chunks();
+		while(chunks.hasNext()) {
+			lines.add(chunks.next());
+		}
+
+		assertEquals(lines.size(), 500, "Many more than a window, so the master had to keep crediting them back");
+		for(int i = 0; i < lines.size(); i++) {
+			assertEquals(lines.get(i), "line " + i);
+		}
+		assertEquals(future.get(), "done");
+	}
+
+	@Test(timeOut = 30000)
+	public void testSlowSubscriberHoldsTaskUp() throws Exception {
+		subscribed = new CountDownLatch(1);
+		ResultFuture<String> future = machine.invokeAsync(new EmitLines(1000), 1);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		future.subscribe(subscriber);
+		subscribed.countDown();
+
+		Thread.sleep(500);
+		assertTrue(EMITTED.get() <= Transport.Chunk.WINDOW, "Nothing was requested, so the task should be a window ahead at most: " + EMITTED.get());
+		assertFalse(future.isDone());
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertEquals(future.get(10, TimeUnit.SECONDS), "done");
+		assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+		assertEquals(subscriber.chunks.size(), 1000);
+		for(int i = 0; i < subscriber.chunks.size(); i++) {
+			assertEquals(subscriber.chunks.get(i), "line " + i);
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testUnwatchedTaskIsNotHeldUp() throws Exception {
+		ResultFuture<String> future = machine.invokeAsync(new EmitLines(1000), 1);
+		assertEquals(future.get(10, TimeUnit.SECONDS), "done");
+		assertEquals(EMITTED.get(), 1000);
+
+		List<Object> tail = new ArrayList<Object>();
+		ChunkIterator chunks = future.chunks();
+		while(chunks.hasNext()) {
+			tail.add(chunks.next());
+		}
+		assertEquals(tail.size(), Transport.Chunk.WINDOW, "Only the latest chunks should have been kept");
+		assertEquals(tail.get(tail.size() - 1), "line 999");
+		assertEquals(tail.get(0), "line " + (1000 - Transport.Chunk.WINDOW));
+	}
+
+	@Test(timeOut = 30000)
+	public void testClosedIteratorLetsTaskFinish() throws Exception {
+		subscribed = new CountDownLatch(1);
+		ResultFuture<String> future = machine.invokeAsync(new EmitLines(1000), 1);
+		ChunkIterator chunks = future.chunks();
+		subscribed.countDown();
+
+		assertEquals(chunks.next(), "line 0");
+		chunks.close();
+		assertFalse(chunks.hasNext());
+		assertEquals(future.get(10, TimeUnit.SECONDS), "done");
+	}
+
+	@Test
+	public void testLocalFutureHasNoChunks() throws Exception {
+		assertFalse(ResultFuture.completed(1, "done").chunks().hasNext());
+		assertSame(TaskOutput.current(), TaskOutput.NONE);
+	}
+
+	public static class EmitLines implements Callable<String>, Serializable {
+		private final int count;
+
+		public EmitLines(int count) {
+			this.count = count;
+		}
+
+		@Override
+		public String call() throws Exception {
+			subscribed.await();
+			TaskOutput output = TaskOutput.current();
+			for(int i = 0; i < count; i++) {
+				output.log("line " + i);
+				EMITTED.incrementAndGet();
+			}
+			return "done";
+		}
+	}
+
+	private static class RecordingSubscriber implements ChunkSubscriber {
+		private final List<Object> chunks = new ArrayList<Object>();
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private volatile Subscription subscription;
+
+		@Override
+		public void onSubscribe(@NotNull Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(@Nullable Object chunk) {
+			synchronized (chunks) {
+				chunks.add(chunk);
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.artifacts.ArtifactStore;
+import com.vanillaci.distributedinvoke.channels.AutoReconnectingChannel;
+import com.vanillaci.distributedinvoke.channels.ChunkIterator;
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.TransportCodec;
+import com.vanillaci.distributedinvoke.channels.TransportCodecs;
+import com.vanillaci.distributedinvoke.jobs.TaskOutput;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.testng.annotations.Test;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SessionResumptionTest {
+	private static final int RELAY_PORT = 9991;
+	private static final int LISTENING_PORT = 9992;
+
+	/**
+	 * The connection drops while the agent is still working on a request. The master replays the request when it reconnects,
+	 * 	and the agent replays the response it couldn't deliver. The request runs once and the answer still arrives.
+	 */
+	@Test(timeOut = 60000)
+	public void testResponseSurvivesDroppedConnection() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		Relay relay = Relay.start(localHost, RELAY_PORT, LISTENING_PORT);
+		//Heartbeats slow enough that the drop doesn't get the machine declared unavailable.
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, RELAY_PORT, 2, "", 10, TimeUnit.SECONDS);
+		try {
+			assertEquals(machine.invoke(new CountingCallable("warm up", 0), 1), "warm up");
+			int runsBefore = CountingCallable.RUNS.get();
+
+			ResultFuture<String> future = machine.invokeAsync(new CountingCallable("Hello There", 500), 1);
+			while(CountingCallable.RUNS.get() == runsBefore) {
+				Thread.sleep(10);
+			}
+			relay.cut();
+
+			assertEquals(future.get(30, TimeUnit.SECONDS), "Hello There");
+			assertEquals(CountingCallable.RUNS.get(), runsBefore + 1, "The replayed request shouldn't have run again");
+			assertEquals(listener.getSessionCount(), 1, "The reconnect should have resumed the same session");
+
+			assertEquals(machine.invoke(new CountingCallable("after", 0), 1), "after", "Numbering should carry on after the resume");
+		} finally {
+			machine.close();
+			relay.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * The connection drops while a request is emitting chunks. The ones caught in the drop are replayed from the session,
+	 * 	in order with the response, so the master sees every chunk once and still gets the answer.
+	 */
+	@Test(timeOut = 60000)
+	public void testChunksSurviveDroppedConnection() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		Relay relay = Relay.start(localHost, RELAY_PORT, LISTENING_PORT);
+		RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, RELAY_PORT, 2, "", 10, TimeUnit.SECONDS);
+		try {
+			ResultFuture<String> future = machine.invokeAsync(new ChattyCallable(300), 1);
+			ChunkIterator chunks = future.chunks();
+			List<Object> lines = new ArrayList<Object>();
+			while(chunks.hasNext()) {
+				lines.add(chunks.next());
+				if(lines.size() == 20) {
+					relay.cut();
+				}
+			}
+
+			assertEquals(future.get(30, TimeUnit.SECONDS), "done");
+			assertEquals(lines.size(), 300);
+			for(int i = 0; i < lines.size(); i++) {
+				assertEquals(lines.get(i), "line " + i);
+			}
+		} finally {
+			machine.close();
+			relay.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * A master that goes away for good has its session forgotten once the timeout is up, without anyone connecting again.
+	 */
+	@Test(timeOut = 30000)
+	public void testAbandonedSessionExpires() throws Exception {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		ArtifactStore artifactStore = ArtifactStore.open(RemoteMachineListener.defaultArtifactDirectory(LISTENING_PORT));
+		RemoteMachineListener listener = RemoteMachineListener.start(localHost, LISTENING_PORT, 1, null, artifactStore, 200, TimeUnit.MILLISECONDS);
+		try {
+			RemoteMachine machine = (RemoteMachine) RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+			try {
+				assertEquals(machine.invoke(new CountingCallable("Hello There", 0), 1), "Hello There");
+				assertEquals(listener.getSessionCount(), 1);
+			} finally {
+				machine.close();
+			}
+
+			while(listener.getSessionCount() > 0) {
+				Thread.sleep(50);
+			}
+			assertEquals(listener.getMasterCount(), 0, "The master's classes should go with its last session");
+		} finally {
+			listener.close();
+		}
+	}
+
+	/**
+	 * A reconnect that hangs mustn't hold up closing the channel. Once the hung connect finishes, the new socket is thrown away.
+	 */
+	@Test(timeOut = 30000)
+	public void testCloseDoesNotWaitForReconnect() throws Exception {
+		final InetAddress localHost = Inet4Address.getLocalHost();
+		final ServerSocket serverSocket = new ServerSocket(RELAY_PORT, 50, localHost);
+		final CountDownLatch reconnecting = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<Socket> connected = new AtomicReference<Socket>();
+		final AutoReconnectingChannel channel = new AutoReconnectingChannel("Hung Machine", null, TransportCodecs.defaults()) {
+			@Override
+			protected Socket reconnect() throws IOException {
+				reconnecting.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				Socket socket = new Socket(localHost, RELAY_PORT);
+				connected.set(socket);
+				return socket;
+			}
+
+			@Override
+			protected TransportCodec negotiateCodec(List<TransportCodec> codecs, DataInputStream in, DataOutputStream out) {
+				return codecs.get(0);
+			}
+		};
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.readTransport();
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		}, "Hung reader");
+		reader.start();
+		try {
+			reconnecting.await();
+			assertNull(channel.getCodec(), "Asking for the codec shouldn't wait on the connect");
+			channel.close();
+
+			release.countDown();
+			reader.join();
+			assertTrue(failure.get() instanceof IOException, "The reader should have been told the channel is closed, but got " + failure.get());
+			assertTrue(connected.get().isClosed(), "The connection made after closing should have been closed");
+			assertNull(channel.getCodec());
+		} finally {
+			release.countDown();
+			serverSocket.close();
+		}
+	}
+}
+
+class ChattyCallable implements Callable<String>, Serializable {
+	private final int lines;
+
+	ChattyCallable(int lines) {
+		this.lines = lines;
+	}
+
+	@Override
+	public String call() throws Exception {
+		for(int i = 0; i < lines; i++) {
+			TaskOutput.current().log("line " + i);
+			Thread.sleep(2);
+		}
+		return "done";
+	}
+}
+
+class CountingCallable implements Callable<String>, Serializable {
+	static final AtomicInteger RUNS = new AtomicInteger();
+
+	private final String result;
+	private final long sleepMillis;
+
+	CountingCallable(String result, long sleepMillis) {
+		this.result = result;
+		this.sleepMillis = sleepMillis;
+	}
+
+	@Override
+	public String call() throws Exception {
+		RUNS.incrementAndGet();
+		Thread.sleep(sleepMillis);
+		return result;
+	}
+}
+
+/**
+ * Forwards connections to a local port, and can drop all of them at once to simulate a network failure.
+ */
+class Relay implements Closeable {
+	private final ServerSocket serverSocket;
+	private final InetAddress address;
+	private final int targetPort;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	static Relay start(InetAddress address, int port, int targetPort) throws IOException {
+		final Relay relay = new Relay(address, port, targetPort);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				relay.acceptLoop();
+			}
+		}, "Relay");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return relay;
+	}
+
+	private Relay(InetAddress address, int port, int targetPort) throws IOException {
+		this.serverSocket = new ServerSocket(port, 50, address);
+		this.address = address;
+		this.targetPort = targetPort;
+	}
+
+	private void acceptLoop() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				Socket target = new Socket(address, targetPort);
+				synchronized (sockets) {
+					sockets.add(client);
+					sockets.add(target);
+				}
+				pipe(client, target);
+				pipe(target, client);
+			} catch (IOException ignore) {
+				//Closed.
+			}
+		}
+	}
+
+	private static void pipe(final Socket from, final Socket to) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[8192];
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int read;
+					while((read = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				} catch (IOException ignore) {
+					//Cut.
+				}
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		}, "Relay pipe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Drops every connection made so far. New ones are still accepted.
+	 */
+	void cut() {
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+			sockets.clear();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		cut();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignore) {
+		}
+	}
+}
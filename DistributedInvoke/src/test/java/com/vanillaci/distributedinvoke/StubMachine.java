@@ -0,0 +1,177 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.ResultFuture;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.exceptions.NotEnoughExecutorsException;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A machine with a name, labels and a number of executors, and nothing remote about it.
+ * 	Executors are reserved and released like on a real machine, and whatever it's given runs on the calling thread,
+ * 	with the executors given back as soon as it's done.
+ *
+ * Shared by the tests and the benchmarks module, which gets it from this module's test jar.
+ */
+public class StubMachine implements Machine {
+	@NotNull private final String name;
+	private final int total;
+	@NotNull private final Label.Expression labels;
+	@NotNull private final AtomicInteger busy = new AtomicInteger();
+	@NotNull private final List<CapacityListener> capacityListeners = new CopyOnWriteArrayList<CapacityListener>();
+
+	public StubMachine(@NotNull String name, int total) {
+		this(name, total, "");
+	}
+
+	public StubMachine(@NotNull String name, int total, @NotNull String labels) {
+		this.name = name;
+		this.total = total;
+		this.labels = Label.parse(labels);
+	}
+
+	@NotNull
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@NotNull
+	@Override
+	public InetAddress getAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Nullable
+	@Override
+	public <T extends Serializable> T invoke(@NotNull Callable<T> callable, int weight) throws InterruptedException, NotEnoughExecutorsException {
+		return invokeAsync(callable, weight).waitForResult();
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight) throws NotEnoughExecutorsException {
+		return invokeAsync(callable, weight, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, int weight, long timeout, @NotNull TimeUnit unit) throws NotEnoughExecutorsException {
+		Reservation reservation = tryReserve(weight);
+		if(reservation == null) {
+			throw new NotEnoughExecutorsException(this);
+		}
+		return invokeAsync(callable, reservation);
+	}
+
+	@Nullable
+	@Override
+	public Reservation tryReserve(final int weight) {
+		while(true) {
+			int current = busy.get();
+			if(current + weight > total) {
+				return null;
+			}
+			if(busy.compareAndSet(current, current + weight)) {
+				return new Reservation() {
+					private final AtomicInteger released = new AtomicInteger();
+
+					@NotNull
+					@Override
+					public Machine getMachine() {
+						return StubMachine.this;
+					}
+
+					@Override
+					public int getWeight() {
+						return weight;
+					}
+
+					@Override
+					public boolean release() {
+						if(released.getAndSet(1) != 0) {
+							return false;
+						}
+						busy.addAndGet(-weight);
+						for (CapacityListener capacityListener : capacityListeners) {
+							capacityListener.capacityFreed(StubMachine.this);
+						}
+						return true;
+					}
+				};
+			}
+		}
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation) {
+		return invokeAsync(callable, reservation, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@NotNull
+	@Override
+	public <T extends Serializable> ResultFuture<T> invokeAsync(@NotNull Callable<T> callable, @NotNull Reservation reservation, long timeout, @NotNull TimeUnit unit) {
+		try {
+			return ResultFuture.completed(Transport.NO_ID, callable.call());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		} finally {
+			reservation.release();
+		}
+	}
+
+	@Override
+	public int getTotalExecutorCount() {
+		return total;
+	}
+
+	@Override
+	public int getAvailableExecutorCount() {
+		return total - busy.get();
+	}
+
+	@Override
+	public int getBusyExecutorCount() {
+		return busy.get();
+	}
+
+	@Override
+	public void addCapacityListener(@NotNull CapacityListener listener) {
+		capacityListeners.add(listener);
+	}
+
+	@Override
+	public void removeCapacityListener(@NotNull CapacityListener listener) {
+		capacityListeners.remove(listener);
+	}
+
+	@Override
+	public Label.Expression getLabels() {
+		return labels;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
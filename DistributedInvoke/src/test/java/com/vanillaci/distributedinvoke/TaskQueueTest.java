@@ -0,0 +1,156 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import com.vanillaci.distributedinvoke.queue.*;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class TaskQueueTest {
+	private static final int LISTENING_PORT = 9491;
+
+	private RemoteMachineListener listener;
+	private Machine machine;
+	private Thread dispatcher;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		InetAddress localHost = Inet4Address.getLocalHost();
+		listener = RemoteMachineListener.start(localHost, LISTENING_PORT);
+		machine = RemoteMachine.connectToMachine("Test Machine", localHost, LISTENING_PORT, 1, "");
+		RecordingTask.reset(0);
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		if(dispatcher != null) {
+			dispatcher.interrupt();
+			dispatcher.join(5000);
+		}
+		machine.close();
+		listener.close();
+	}
+
+	@Test(timeOut = 10000)
+	public void testTasksWaitForFreeExecutors() throws Exception {
+		TaskQueue queue = startQueue(machine);
+		RecordingTask.reset(5);
+		for(int i = 0; i < 5; i++) {
+			assertTrue(queue.enqueueTask(new RecordingTask(20)));
+		}
+
+		assertTrue(RecordingTask.done.await(5, TimeUnit.SECONDS), "Every task should eventually run on the single executor");
+		assertEquals(queue.size(), 0);
+	}
+
+	@Test(timeOut = 10000)
+	public void testIdleDispatcherBlocks() throws Exception {
+		startQueue(machine);
+		Thread.sleep(100);
+		assertEquals(dispatcher.getState(), Thread.State.WAITING, "An idle dispatcher shouldn't spin or poll");
+	}
+
+	@Test(timeOut = 10000)
+	public void testIdleDispatcherWakesForNewTask() throws Exception {
+		TaskQueue queue = startQueue(machine);
+		Thread.sleep(100); //Let the dispatcher go idle first.
+
+		RecordingTask.reset(1);
+		queue.enqueueTask(new RecordingTask(0));
+		assertTrue(RecordingTask.done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(timeOut = 10000)
+	public void testMachineAddedLater() throws Exception {
+		TaskQueue queue = startQueue();
+		RecordingTask.reset(1);
+		queue.enqueueTask(new RecordingTask(0));
+		Thread.sleep(50);
+		assertEquals(queue.size(), 1, "Nowhere to run yet");
+
+		queue.addMachine(machine);
+		assertTrue(RecordingTask.done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(timeOut = 10000)
+	public void testJournaledQueueSurvivesRestart() throws Exception {
+		File directory = Files.createTempDirectory("task-journal").toFile();
+		try {
+			MappedTaskJournal journal = MappedTaskJournal.open(directory);
+			TaskQueue queue = TaskQueue.create(Collections.<Machine>emptyList(), Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList(), TaskClassifier.SINGLE_TENANT, PlacementStrategies.bestFit(), journal);
+			for(int i = 0; i < 3; i++) {
+				assertTrue(queue.enqueueTask(new RecordingTask(0)));
+			}
+			journal.close();
+
+			journal = MappedTaskJournal.open(directory);
+			RecordingTask.reset(3);
+			queue = TaskQueue.create(Collections.singletonList(machine), Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList(), TaskClassifier.SINGLE_TENANT, PlacementStrategies.bestFit(), journal);
+			assertEquals(queue.size(), 3);
+			assertEquals(journal.size(), 3, "Recovered tasks should stay in the journal until they run");
+			dispatcher = new Thread(queue, "Test dispatcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+
+			assertTrue(RecordingTask.done.await(5, TimeUnit.SECONDS), "The tasks queued before the restart should run");
+			assertEquals(journal.size(), 0, "Tasks should leave the journal once they're dispatched");
+			journal.close();
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	private TaskQueue startQueue(Machine... machines) {
+		TaskQueue queue = TaskQueue.create(Arrays.asList(machines), Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList());
+		dispatcher = new Thread(queue, "Test dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		return queue;
+	}
+}
+
+/**
+ * Runs in the same JVM as the test, so it can report back through static fields.
+ */
+class RecordingTask implements Task<Result> {
+	static volatile CountDownLatch done;
+
+	private final int sleepMillis;
+
+	RecordingTask(int sleepMillis) {
+		this.sleepMillis = sleepMillis;
+	}
+
+	static void reset(int count) {
+		done = new CountDownLatch(count);
+	}
+
+	@Override
+	public Result call() throws Exception {
+		Thread.sleep(sleepMillis);
+		done.countDown();
+		return Result.SUCCESS;
+	}
+
+	@Override
+	public int getWeight() {
+		return 1;
+	}
+}
@@ -0,0 +1,165 @@
+package com.vanillaci.distributedinvoke;
+
+import com.vanillaci.distributedinvoke.channels.BinaryTransportCodec;
+import com.vanillaci.distributedinvoke.channels.JavaSerializationCodec;
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.channels.TransportCodec;
+import com.vanillaci.distributedinvoke.classloading.ShippedCallable;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class TransportCodecTest {
+	@DataProvider(name = "codecs")
+	public Object[][] codecs() {
+		return new Object[][] {
+				{ new BinaryTransportCodec() },
+				{ new JavaSerializationCodec() },
+				{ new JavaSerializationCodec(2) },
+		};
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testRoundTrip(TransportCodec codec) throws Exception {
+		Object[] values = { null, "Hello There", "", Result.FAILURE, 42, Long.MAX_VALUE, true, 1.5, new MyCallable("callable") };
+
+		List<byte[]> frames = new ArrayList<byte[]>();
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		for (Object value : values) {
+			frames.add(encode(encoder, Transport.wrapWithId(value, frames.size() + 1)));
+		}
+
+		TransportCodec.Decoder decoder = codec.newDecoder();
+		for(int i = 0; i < values.length; i++) {
+			Transport<?> transport = decode(decoder, frames.get(i));
+			assertEquals(transport.getId(), i + 1);
+			if(values[i] instanceof MyCallable) {
+				assertEquals(((MyCallable) transport.getObject()).call(), "callable");
+			} else {
+				assertEquals(transport.getObject(), values[i]);
+			}
+		}
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testTransportError(TransportCodec codec) throws Exception {
+		byte[] frame = encode(codec.newEncoder(), Transport.wrapWithId(new Transport.TransportError("Broken"), 1));
+		Transport<?> transport = decode(codec.newDecoder(), frame);
+
+		assertTrue(transport.getObject() instanceof Transport.TransportError);
+		assertEquals(((Transport.TransportError) transport.getObject()).getMessage(), "Broken");
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testSequenceAndAck(TransportCodec codec) throws Exception {
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		TransportCodec.Decoder decoder = codec.newDecoder();
+
+		Transport<?> sequenced = decode(decoder, encode(encoder, Transport.sequenced("numbered", Long.MAX_VALUE, Long.MAX_VALUE - 1)));
+		assertEquals(sequenced.getId(), Long.MAX_VALUE);
+		assertEquals(sequenced.getSequence(), Long.MAX_VALUE - 1);
+		assertEquals(decode(decoder, encode(encoder, Transport.wrapWithId("plain", 2))).getSequence(), 0);
+
+		Transport<?> ack = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.Ack(12345678901L), Transport.NO_ID)));
+		assertEquals(((Transport.Ack) ack.getObject()).getAcknowledged(), 12345678901L);
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testClassShipping(TransportCodec codec) throws Exception {
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		TransportCodec.Decoder decoder = codec.newDecoder();
+
+		Transport<?> shipped = decode(decoder, encode(encoder, Transport.sequenced(ShippedCallable.wrap(new MyCallable("shipped")), 1, 1)));
+		assertEquals(((ShippedCallable) shipped.getObject()).resolve(getClass().getClassLoader()).call(), "shipped");
+
+		Transport<?> request = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ClassRequest("a.b.C", true), 2)));
+		assertEquals(((Transport.ClassRequest) request.getObject()).getClassName(), "a.b.C");
+		assertTrue(((Transport.ClassRequest) request.getObject()).isBytesWanted());
+
+		Transport<?> definition = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ClassDefinition("a.b.C", "abc", new byte[] { 1, 2, 3 }), 2)));
+		assertEquals(((Transport.ClassDefinition) definition.getObject()).getDigest(), "abc");
+		assertEquals(((Transport.ClassDefinition) definition.getObject()).getBytes(), new byte[] { 1, 2, 3 });
+
+		Transport<?> missing = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ClassDefinition("a.b.D", null, null), 3)));
+		assertNull(((Transport.ClassDefinition) missing.getObject()).getDigest());
+		assertNull(((Transport.ClassDefinition) missing.getObject()).getBytes());
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testArtifactLookup(TransportCodec codec) throws Exception {
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		TransportCodec.Decoder decoder = codec.newDecoder();
+
+		Transport<?> request = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ArtifactRequest("abc"), 4)));
+		assertEquals(request.getId(), 4);
+		assertEquals(((Transport.ArtifactRequest) request.getObject()).getDigest(), "abc");
+
+		Transport<?> location = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ArtifactLocation("abc", 5000000000L, 9091), 4)));
+		assertEquals(((Transport.ArtifactLocation) location.getObject()).getSize(), 5000000000L);
+		assertEquals(((Transport.ArtifactLocation) location.getObject()).getPort(), 9091);
+
+		Transport<?> missing = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ArtifactLocation("def", -1, 9091), 5)));
+		assertFalse(((Transport.ArtifactLocation) missing.getObject()).isFound());
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testChunks(TransportCodec codec) throws Exception {
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		TransportCodec.Decoder decoder = codec.newDecoder();
+
+		Transport<?> line = decode(decoder, encode(encoder, Transport.sequenced(new Transport.Chunk("Compiling 12 files"), 6, 40)));
+		assertEquals(line.getId(), 6);
+		assertEquals(line.getSequence(), 40);
+		assertEquals(((Transport.Chunk) line.getObject()).getValue(), "Compiling 12 files");
+
+		Transport<?> partial = decode(decoder, encode(encoder, Transport.sequenced(new Transport.Chunk(Arrays.asList(1, 2, 3)), 6, 41)));
+		assertEquals(((Transport.Chunk) partial.getObject()).getValue(), Arrays.asList(1, 2, 3));
+		Transport<?> empty = decode(decoder, encode(encoder, Transport.sequenced(new Transport.Chunk(null), 6, 42)));
+		assertNull(((Transport.Chunk) empty.getObject()).getValue());
+
+		Transport<?> credit = decode(decoder, encode(encoder, Transport.wrapWithId(new Transport.ChunkCredit(32), 6)));
+		assertEquals(credit.getId(), 6);
+		assertEquals(((Transport.ChunkCredit) credit.getObject()).getCredits(), 32);
+	}
+
+	@Test(dataProvider = "codecs")
+	public void testUnserializableObjectDoesNotBreakConnection(TransportCodec codec) throws Exception {
+		TransportCodec.Encoder encoder = codec.newEncoder();
+		TransportCodec.Decoder decoder = codec.newDecoder();
+
+		assertEquals(decode(decoder, encode(encoder, Transport.wrapWithId("first", 1))).getObject(), "first");
+		try {
+			encode(encoder, Transport.wrapWithId(new Object(), 2));
+			fail("Should throw " + NotSerializableException.class.getCanonicalName());
+		} catch (NotSerializableException ignore) {}
+		assertEquals(decode(decoder, encode(encoder, Transport.wrapWithId("third", 3))).getObject(), "third");
+	}
+
+	@Test
+	public void testBinaryIsSmallerForResults() throws Exception {
+		Transport<Result> transport = Transport.wrap(Result.SUCCESS);
+		int binary = encode(new BinaryTransportCodec().newEncoder(), transport).length;
+		int java = encode(new JavaSerializationCodec().newEncoder(), transport).length;
+
+		assertTrue(binary * 4 < java, "binary: " + binary + " bytes, java: " + java + " bytes");
+	}
+
+	private static byte[] encode(TransportCodec.Encoder encoder, Transport<?> transport) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		encoder.encode(transport, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Transport<?> decode(TransportCodec.Decoder decoder, byte[] frame) throws IOException, ClassNotFoundException {
+		return decoder.decode(new DataInputStream(new ByteArrayInputStream(frame)));
+	}
+}
@@ -0,0 +1,220 @@
+package com.vanillaci.ezasync;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The built in {@link ExecutionStrategy}s.
+ */
+public final class ExecutionStrategies {
+	private ExecutionStrategies() {}
+
+	/**
+	 * What a bounded pool does with a task when all of its threads are busy and its queue is full.
+	 */
+	public static enum RejectionPolicy {
+		/**
+		 * The task is refused and its error callback is told why.
+		 */
+		REJECT,
+
+		/**
+		 * The task is run on the thread that submitted it, which slows the submitter down.
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * The submitting thread waits until there is room in the queue.
+		 */
+		BLOCK
+	}
+
+	/**
+	 * Starts a new platform thread for every task. Nothing bounds the number of threads.
+	 */
+	@NotNull
+	public static ExecutionStrategy threadPerTask(@NotNull String threadName) {
+		return new ThreadPerTask(threadName);
+	}
+
+	/**
+	 * Runs tasks on a fixed number of threads, queueing up to {@code queueCapacity} tasks when they're all busy.
+	 *
+	 * @param threadCount The number of threads. Must be positive.
+	 * @param queueCapacity The number of tasks that can wait for a thread. Must be positive.
+	 * @param rejectionPolicy What to do with tasks that don't fit.
+	 * @param threadName Prefix for the names of the threads.
+	 */
+	@NotNull
+	public static ExecutionStrategy boundedPool(int threadCount, int queueCapacity, @NotNull RejectionPolicy rejectionPolicy, @NotNull String threadName) {
+		if(threadCount <= 0) {
+			throw new IllegalArgumentException("'threadCount' must be a positive integer");
+		}
+		if(queueCapacity <= 0) {
+			throw new IllegalArgumentException("'queueCapacity' must be a positive integer");
+		}
+		return new BoundedPool(threadCount, queueCapacity, rejectionPolicy, threadName);
+	}
+
+	/**
+	 * Starts a new virtual thread for every task.
+	 * Falls back to {@link #threadPerTask(String)} when the JVM doesn't support virtual threads.
+	 * @see #isVirtualThreadsSupported()
+	 */
+	@NotNull
+	public static ExecutionStrategy virtualThreadPerTask(@NotNull String threadName) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if(executor == null) {
+			return threadPerTask(threadName);
+		}
+		return new ExecutorServiceStrategy(executor);
+	}
+
+	/**
+	 * Runs every task directly on the thread that submitted it.
+	 */
+	@NotNull
+	public static ExecutionStrategy callerRuns() {
+		return CallerRuns.INSTANCE;
+	}
+
+	/**
+	 * @return True if {@link #virtualThreadPerTask(String)} will actually use virtual threads.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if(executor == null) {
+			return false;
+		}
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * Looked up reflectively so this still compiles and runs on JVMs without virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			//Either the method doesn't exist, or virtual threads are a preview feature that isn't enabled.
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	private static class ThreadPerTask implements ExecutionStrategy {
+		@NotNull private final String threadName;
+		private volatile boolean shutdown;
+
+		public ThreadPerTask(@NotNull String threadName) {
+			this.threadName = threadName;
+		}
+
+		@Override
+		public void execute(@NotNull Runnable task) {
+			if(shutdown) {
+				throw new RejectedExecutionException("Shut down.");
+			}
+			Thread thread = new Thread(task, threadName);
+			thread.start();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+	}
+
+	private static class BoundedPool extends ExecutorServiceStrategy {
+		public BoundedPool(int threadCount, int queueCapacity, @NotNull RejectionPolicy rejectionPolicy, @NotNull String threadName) {
+			super(new ThreadPoolExecutor(
+					threadCount, threadCount,
+					0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity),
+					new NamedThreadFactory(threadName),
+					toHandler(rejectionPolicy)
+			));
+		}
+
+		@NotNull
+		private static RejectedExecutionHandler toHandler(@NotNull RejectionPolicy rejectionPolicy) {
+			switch (rejectionPolicy) {
+				case CALLER_RUNS:
+					return new ThreadPoolExecutor.CallerRunsPolicy();
+				case BLOCK:
+					return new BlockPolicy();
+				case REJECT:
+				default:
+					return new ThreadPoolExecutor.AbortPolicy();
+			}
+		}
+	}
+
+	private static class BlockPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if(executor.isShutdown()) {
+				throw new RejectedExecutionException("Shut down.");
+			}
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for room in the queue.", e);
+			}
+		}
+	}
+
+	private static class ExecutorServiceStrategy implements ExecutionStrategy {
+		@NotNull private final ExecutorService executor;
+
+		public ExecutorServiceStrategy(@NotNull ExecutorService executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(@NotNull Runnable task) {
+			executor.execute(task);
+		}
+
+		@Override
+		public void shutdown() {
+			executor.shutdown();
+		}
+	}
+
+	private static class CallerRuns implements ExecutionStrategy {
+		private static final CallerRuns INSTANCE = new CallerRuns();
+
+		@Override
+		public void execute(@NotNull Runnable task) {
+			task.run();
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		@NotNull private final String threadName;
+		@NotNull private final AtomicInteger count = new AtomicInteger();
+
+		public NamedThreadFactory(@NotNull String threadName) {
+			this.threadName = threadName;
+		}
+
+		@Override
+		public Thread newThread(@NotNull Runnable task) {
+			Thread thread = new Thread(task, threadName + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.vanillaci.ezasync;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides which thread runs the tasks given to {@link EzAsync}.
+ * See {@link ExecutionStrategies} for the built in strategies.
+ */
+public interface ExecutionStrategy {
+	/**
+	 * Runs the task, or arranges for it to be run.
+	 * @throws RejectedExecutionException If the strategy has no room for the task. The task will never run.
+	 */
+	void execute(@NotNull Runnable task) throws RejectedExecutionException;
+
+	/**
+	 * Stops accepting new tasks. Tasks that were already accepted are still run.
+	 */
+	void shutdown();
+}
@@ -6,28 +6,77 @@ import org.jetbrains.annotations.Nullable;
 import java.util.concurrent.*;
 
 /**
+ * Runs tasks asynchronously and calls back when they're done.
+ * Which thread runs the tasks is up to the {@link ExecutionStrategy} given to {@link #create(ExecutionStrategy)}.
+ *
  * User: Joel Johnson
  * Date: 3/1/13
  * Time: 8:37 PM
  */
 public class EzAsync {
+	@NotNull private final ExecutionStrategy strategy;
+	@NotNull private final ErrorCallback defaultErrorCallback;
+
+	/**
+	 * Creates an instance that starts a new thread for every task.
+	 */
 	@NotNull
 	public static EzAsync create() {
-		return new EzAsync();
+		return create(ExecutionStrategies.threadPerTask(EzAsync.class.getSimpleName()));
 	}
 
-	private EzAsync() {
+	/**
+	 * @param strategy Decides which thread runs each task. Cannot be null.
+	 */
+	@NotNull
+	public static EzAsync create(@NotNull ExecutionStrategy strategy) {
+		return create(strategy, UncaughtErrorCallback.INSTANCE);
+	}
 
+	/**
+	 * @param strategy Decides which thread runs each task. Cannot be null.
+	 * @param defaultErrorCallback Told about any task that fails or is rejected and wasn't given its own error callback.
+	 */
+	@NotNull
+	public static EzAsync create(@NotNull ExecutionStrategy strategy, @NotNull ErrorCallback defaultErrorCallback) {
+		return new EzAsync(strategy, defaultErrorCallback);
+	}
+
+	private EzAsync(@NotNull ExecutionStrategy strategy, @NotNull ErrorCallback defaultErrorCallback) {
+		this.strategy = strategy;
+		this.defaultErrorCallback = defaultErrorCallback;
 	}
 
 	/**
-	 * Executes the given task in it's own thread and calls the callback when that task is done.
-	 * @param task Invoked in it's own thread.
+	 * Executes the given task according to the strategy and calls the callback when that task is done.
+	 * @param task Invoked by the strategy.
 	 * @param callback Invoked in the same thread that the task is invoked by.
 	 */
 	public <T> void execute(@NotNull Callable<T> task, @Nullable Callback<T> callback) {
-		Thread thread = new Thread(new CallbackWrapper<T>(task, callback), this.toString());
-		thread.start();
+		execute(task, callback, null);
+	}
+
+	/**
+	 * Executes the given task according to the strategy and calls the callback when that task is done.
+	 * @param task Invoked by the strategy.
+	 * @param callback Invoked in the same thread that the task is invoked by.
+	 * @param errorCallback Invoked instead of the callback if the task (or the callback) throws, or if the strategy rejects the task.
+	 * 		If null, the error callback given to {@link #create(ExecutionStrategy, ErrorCallback)} is used.
+	 */
+	public <T> void execute(@NotNull Callable<T> task, @Nullable Callback<T> callback, @Nullable ErrorCallback errorCallback) {
+		ErrorCallback onError = errorCallback == null ? defaultErrorCallback : errorCallback;
+		try {
+			strategy.execute(new CallbackWrapper<T>(task, callback, onError));
+		} catch (RejectedExecutionException e) {
+			onError.failed(e);
+		}
+	}
+
+	/**
+	 * Stops accepting new tasks. Tasks that were already accepted are still run.
+	 */
+	public void shutdown() {
+		strategy.shutdown();
 	}
 
 	public static interface Callback<T> {
@@ -38,13 +87,36 @@ public class EzAsync {
 		void done(@Nullable T result);
 	}
 
+	public static interface ErrorCallback {
+		/**
+		 * Called when a task couldn't be completed.
+		 * @param e What the task threw, or a {@link RejectedExecutionException} if the task was never run.
+		 */
+		void failed(@NotNull Throwable e);
+	}
+
+	/**
+	 * Hands errors to the thread's uncaught exception handler, without killing the thread.
+	 */
+	private static class UncaughtErrorCallback implements ErrorCallback {
+		private static final UncaughtErrorCallback INSTANCE = new UncaughtErrorCallback();
+
+		@Override
+		public void failed(@NotNull Throwable e) {
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+	}
+
 	private static class CallbackWrapper<T> implements Runnable {
 		@NotNull private final Callable<T> task;
 		@Nullable private final Callback<T> callback;
+		@NotNull private final ErrorCallback errorCallback;
 
-		public CallbackWrapper(@NotNull Callable<T> task, @Nullable Callback<T> callback) {
+		public CallbackWrapper(@NotNull Callable<T> task, @Nullable Callback<T> callback, @NotNull ErrorCallback errorCallback) {
 			this.task = task;
 			this.callback = callback;
+			this.errorCallback = errorCallback;
 		}
 
 		@Override
@@ -55,7 +127,10 @@ public class EzAsync {
 					callback.done(result);
 				}
 			} catch (Exception e) {
-				throw new RuntimeException(e);
+				errorCallback.failed(e);
+			} catch (Error e) {
+				errorCallback.failed(e);
+				throw e;
 			}
 		}
 	}
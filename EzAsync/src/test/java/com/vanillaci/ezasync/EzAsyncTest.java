@@ -1,10 +1,12 @@
 package com.vanillaci.ezasync;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: Joel Johnson
@@ -43,4 +45,104 @@ public class EzAsyncTest {
 
 		Assert.assertTrue(called[0]);
 	}
+
+	@Test(timeOut = 10000)
+	public void testErrorCallback() throws InterruptedException {
+		final CountDownLatch failed = new CountDownLatch(1);
+		final Throwable[] error = new Throwable[1];
+
+		EzAsync async = EzAsync.create(ExecutionStrategies.boundedPool(1, 1, ExecutionStrategies.RejectionPolicy.REJECT, "test"));
+		async.execute(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				throw new IllegalStateException("Task failed");
+			}
+		}, new EzAsync.Callback<String>() {
+			@Override
+			public void done(@Nullable String result) {
+				Assert.fail("Callback shouldn't be called when the task fails");
+			}
+		}, new EzAsync.ErrorCallback() {
+			@Override
+			public void failed(@NotNull Throwable e) {
+				error[0] = e;
+				failed.countDown();
+			}
+		});
+
+		failed.await();
+		Assert.assertTrue(error[0] instanceof IllegalStateException);
+		async.shutdown();
+	}
+
+	@Test(timeOut = 10000)
+	public void testBoundedPoolRejects() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger rejected = new AtomicInteger();
+		EzAsync async = EzAsync.create(ExecutionStrategies.boundedPool(1, 1, ExecutionStrategies.RejectionPolicy.REJECT, "test"), new EzAsync.ErrorCallback() {
+			@Override
+			public void failed(@NotNull Throwable e) {
+				if(e instanceof RejectedExecutionException) {
+					rejected.incrementAndGet();
+				}
+			}
+		});
+
+		Callable<String> blocking = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				release.await();
+				return "done";
+			}
+		};
+		for(int i = 0; i < 5; i++) {
+			async.execute(blocking, null);
+		}
+
+		//One running, one queued, the rest rejected.
+		Assert.assertEquals(rejected.get(), 3);
+		release.countDown();
+		async.shutdown();
+	}
+
+	@Test(timeOut = 10000)
+	public void testCallerRuns() {
+		final Thread caller = Thread.currentThread();
+		final Thread[] ranOn = new Thread[1];
+
+		EzAsync async = EzAsync.create(ExecutionStrategies.callerRuns());
+		async.execute(new Callable<Thread>() {
+			@Override
+			public Thread call() throws Exception {
+				return Thread.currentThread();
+			}
+		}, new EzAsync.Callback<Thread>() {
+			@Override
+			public void done(@Nullable Thread result) {
+				ranOn[0] = result;
+			}
+		});
+
+		Assert.assertSame(ranOn[0], caller);
+	}
+
+	@Test(timeOut = 10000)
+	public void testVirtualThreadsFallBack() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		EzAsync async = EzAsync.create(ExecutionStrategies.virtualThreadPerTask("test"));
+		async.execute(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return "ran";
+			}
+		}, new EzAsync.Callback<String>() {
+			@Override
+			public void done(@Nullable String result) {
+				done.countDown();
+			}
+		});
+
+		done.await();
+		async.shutdown();
+	}
 }
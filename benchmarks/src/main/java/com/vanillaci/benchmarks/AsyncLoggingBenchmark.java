@@ -0,0 +1,73 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.logging.AsyncLogWriter;
+import com.vanillaci.distributedinvoke.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * What a log call costs the thread making it, with a handler that formats every record.
+ * 	Synchronously the caller pays for the formatting; asynchronously it only pays for queueing the record,
+ * 	or for dropping it when the writer thread has fallen behind.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncLoggingBenchmark {
+	@Param({ "synchronous", "asynchronous" })
+	public String mode;
+
+	private Logger logger;
+	private AsyncLogWriter writer;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		java.util.logging.Logger target = java.util.logging.Logger.getLogger(AsyncLoggingBenchmark.class.getCanonicalName());
+		target.setLevel(java.util.logging.Level.INFO);
+		target.setUseParentHandlers(false);
+		target.addHandler(new FormattingHandler());
+		logger = Logger.forClass(AsyncLoggingBenchmark.class);
+
+		if("asynchronous".equals(mode)) {
+			writer = Logger.startAsync(AsyncLogWriter.DEFAULT_CAPACITY, AsyncLogWriter.OverflowPolicy.DROP);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if(writer != null) {
+			writer.close();
+		}
+	}
+
+	@Benchmark
+	public void infop() {
+		logger.infop("Checking to run: %s", next++);
+	}
+
+	private static class FormattingHandler extends Handler {
+		private final SimpleFormatter formatter = new SimpleFormatter();
+		private long length;
+
+		@Override
+		public void publish(LogRecord record) {
+			length += formatter.format(record).length();
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
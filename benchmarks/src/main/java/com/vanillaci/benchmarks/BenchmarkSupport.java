@@ -0,0 +1,54 @@
+package com.vanillaci.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Things shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+	private BenchmarkSupport() {}
+
+	/**
+	 * The library logs at INFO for every request, which would otherwise be most of what gets measured.
+	 */
+	static void quietLogging() {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		Logger.getLogger("com.vanillaci").setLevel(Level.WARNING);
+	}
+
+	/**
+	 * Sent as the request in the transport and channel benchmarks.
+	 */
+	static class EchoCallable implements Callable<String>, Serializable {
+		@NotNull private final String message;
+
+		EchoCallable(@NotNull String message) {
+			this.message = message;
+		}
+
+		@Override
+		public String call() {
+			return message;
+		}
+	}
+
+	/**
+	 * A {@link ByteArrayOutputStream} that can be read without copying.
+	 */
+	static class Frame extends ByteArrayOutputStream {
+		Frame(int size) {
+			super(size);
+		}
+
+		@NotNull
+		byte[] buffer() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.vanillaci.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, benchmark by benchmark.
+ *
+ * A change is only called out when the two scores are further apart than their combined error,
+ * 	since anything inside that is noise. See README.md for how to produce the files.
+ *
+ * Usage: {@code java -cp target/benchmarks.jar com.vanillaci.benchmarks.CompareResults baseline.json candidate.json}
+ */
+public class CompareResults {
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.err.println("Usage: CompareResults <baseline.json> <candidate.json>");
+			System.exit(2);
+		}
+
+		Map<String, Score> baseline = read(args[0]);
+		Map<String, Score> candidate = read(args[1]);
+
+		System.out.printf("%-80s %14s %14s %9s%n", "Benchmark", "Baseline", "Candidate", "Change");
+		for (Map.Entry<String, Score> entry : candidate.entrySet()) {
+			Score before = baseline.get(entry.getKey());
+			Score after = entry.getValue();
+			if(before == null) {
+				System.out.printf("%-80s %14s %14s %9s%n", entry.getKey(), "-", after, "new");
+				continue;
+			}
+
+			double change = (after.score - before.score) / before.score * 100;
+			boolean significant = Math.abs(after.score - before.score) > before.error + after.error;
+			String verdict = !significant ? "" : (after.isBetterThan(before) ? "  better" : "  WORSE");
+			System.out.printf("%-80s %14s %14s %+8.1f%%%s%n", entry.getKey(), before, after, change, verdict);
+		}
+		for (String name : baseline.keySet()) {
+			if(!candidate.containsKey(name)) {
+				System.out.printf("%-80s %14s %14s %9s%n", name, baseline.get(name), "-", "removed");
+			}
+		}
+	}
+
+	/**
+	 * @return Scores keyed by benchmark name and parameters.
+	 */
+	@NotNull
+	private static Map<String, Score> read(@NotNull String file) throws IOException {
+		Map<String, Score> scores = new LinkedHashMap<String, Score>();
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			JsonArray results = JsonParser.parseReader(reader).getAsJsonArray();
+			for (JsonElement element : results) {
+				JsonObject result = element.getAsJsonObject();
+				StringBuilder name = new StringBuilder(result.get("benchmark").getAsString().replace("com.vanillaci.benchmarks.", ""));
+				if(result.has("params")) {
+					for (Map.Entry<String, JsonElement> param : result.getAsJsonObject("params").entrySet()) {
+						name.append(' ').append(param.getKey()).append('=').append(param.getValue().getAsString());
+					}
+				}
+
+				JsonObject metric = result.getAsJsonObject("primaryMetric");
+				double error = metric.get("scoreError").isJsonPrimitive() && !"NaN".equals(metric.get("scoreError").getAsString()) ? metric.get("scoreError").getAsDouble() : 0;
+				scores.put(name.toString(), new Score(metric.get("score").getAsDouble(), error, metric.get("scoreUnit").getAsString()));
+			}
+		} finally {
+			reader.close();
+		}
+		return scores;
+	}
+
+	private static class Score {
+		private final double score;
+		private final double error;
+		@NotNull private final String unit;
+
+		public Score(double score, double error, @NotNull String unit) {
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+
+		/**
+		 * Throughput is better higher, everything else (time per operation) is better lower.
+		 */
+		public boolean isBetterThan(@NotNull Score other) {
+			return unit.endsWith("/s") || unit.startsWith("ops/") ? score > other.score : score < other.score;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f %s", score, unit);
+		}
+	}
+}
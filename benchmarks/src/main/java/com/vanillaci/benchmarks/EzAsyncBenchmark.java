@@ -0,0 +1,69 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.ezasync.EzAsync;
+import com.vanillaci.ezasync.ExecutionStrategies;
+import com.vanillaci.ezasync.ExecutionStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link EzAsync#execute} costs on top of the task itself: a batch of empty tasks, waiting for every callback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EzAsyncBenchmark {
+	private static final int BATCH = 1000;
+
+	private static final Callable<Integer> EMPTY_TASK = new Callable<Integer>() {
+		@Override
+		public Integer call() {
+			return 0;
+		}
+	};
+
+	@Param({ "callerRuns", "boundedPool", "threadPerTask" })
+	public String strategy;
+
+	private EzAsync ezAsync;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		ExecutionStrategy executionStrategy;
+		if("callerRuns".equals(strategy)) {
+			executionStrategy = ExecutionStrategies.callerRuns();
+		} else if("boundedPool".equals(strategy)) {
+			executionStrategy = ExecutionStrategies.boundedPool(8, BATCH, ExecutionStrategies.RejectionPolicy.BLOCK, "benchmark");
+		} else {
+			executionStrategy = ExecutionStrategies.threadPerTask("benchmark");
+		}
+		ezAsync = EzAsync.create(executionStrategy);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		ezAsync.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void execute() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(BATCH);
+		EzAsync.Callback<Integer> callback = new EzAsync.Callback<Integer>() {
+			@Override
+			public void done(Integer result) {
+				done.countDown();
+			}
+		};
+		for(int i = 0; i < BATCH; i++) {
+			ezAsync.execute(EMPTY_TASK, callback);
+		}
+		done.await();
+	}
+}
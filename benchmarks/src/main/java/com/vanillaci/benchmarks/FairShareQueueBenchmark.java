@@ -0,0 +1,112 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.queue.FairShareQueue;
+import com.vanillaci.distributedinvoke.queue.TaskClassifier;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds a task from one of the small tenants and one from a tenant that has flooded the queue, then dispatches two tasks,
+ * 	so the backlog stays the same size. What's measured is picking the fairest task with that backlog queued.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FairShareQueueBenchmark {
+	private static final String FLOOD = "flood";
+
+	private static final TaskClassifier BY_TENANT = new TaskClassifier() {
+		@Override
+		public int getPriority(@NotNull Task<?> task) {
+			return 0;
+		}
+
+		@NotNull
+		@Override
+		public String getTenant(@NotNull Task<?> task) {
+			return ((TenantTask) task).tenant;
+		}
+
+		@Override
+		public int getShare(@NotNull String tenant) {
+			return 1;
+		}
+	};
+
+	/**
+	 * The number of tenants besides the one flooding the queue.
+	 */
+	@Param({ "3", "100" })
+	public int tenantCount;
+
+	@Param({ "5000" })
+	public int backlog;
+
+	private FairShareQueue<TenantTask> queue;
+	private TenantTask[] small;
+	private TenantTask flood;
+	private TakeTwo dispatcher;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		queue = new FairShareQueue<TenantTask>(BY_TENANT);
+		flood = new TenantTask(FLOOD);
+		for(int i = 0; i < backlog; i++) {
+			queue.add(flood);
+		}
+		small = new TenantTask[tenantCount];
+		for(int i = 0; i < tenantCount; i++) {
+			small[i] = new TenantTask("tenant " + i);
+		}
+		dispatcher = new TakeTwo();
+	}
+
+	@Benchmark
+	public int addAndDispatch() throws InterruptedException {
+		queue.add(small[next++ % small.length]);
+		queue.add(flood);
+		dispatcher.remaining = 2;
+		return queue.dispatch(dispatcher);
+	}
+
+	private static class TakeTwo implements FairShareQueue.Dispatcher<TenantTask> {
+		private int remaining;
+
+		@Override
+		public int getCapacity() {
+			return remaining;
+		}
+
+		@Override
+		public boolean tryDispatch(@NotNull TenantTask task) {
+			remaining--;
+			return true;
+		}
+	}
+
+	static class TenantTask implements Task<Result> {
+		@NotNull private final String tenant;
+
+		TenantTask(@NotNull String tenant) {
+			this.tenant = tenant;
+		}
+
+		@Override
+		public Result call() {
+			return Result.SUCCESS;
+		}
+
+		@Override
+		public int getWeight() {
+			return 1;
+		}
+	}
+}
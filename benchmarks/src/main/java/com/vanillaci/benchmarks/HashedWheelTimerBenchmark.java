@@ -0,0 +1,51 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.channels.HashedWheelTimer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules a timeout and cancels it again, the way every request's deadline is handled when the response arrives in time.
+ * 	The cost should stay the same however many other timeouts are pending.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashedWheelTimerBenchmark {
+	@Param({ "1000", "1000000" })
+	public int pending;
+
+	private HashedWheelTimer timer;
+	private Runnable noop;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		timer = HashedWheelTimer.start("benchmark timer");
+		noop = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		//An hour or more away, so none of them expire during the run.
+		for(int i = 0; i < pending; i++) {
+			timer.schedule(noop, 3600 + i % 3600, TimeUnit.SECONDS);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		timer.close();
+	}
+
+	@Benchmark
+	public boolean scheduleAndCancel() {
+		HashedWheelTimer.Timeout timeout = timer.schedule(noop, 30 + (next++ % 60), TimeUnit.SECONDS);
+		return timeout.cancel();
+	}
+}
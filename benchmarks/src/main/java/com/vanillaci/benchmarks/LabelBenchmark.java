@@ -0,0 +1,45 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import com.vanillaci.distributedinvoke.machines.labels.LabelSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing label expressions and matching them against a machine's labels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelBenchmark {
+	private static final String MACHINE_LABELS = "linux x64 docker jdk17 jdk21 gradle maven large-disk us-east";
+	private static final String TASK_EXPRESSION = "jdk21 jdk17 !windows !arm";
+
+	private Label.Expression expression;
+	private LabelSet machineLabels;
+
+	@Setup
+	public void setUp() {
+		expression = Label.parse(TASK_EXPRESSION);
+		machineLabels = Label.parse(MACHINE_LABELS).getIncludeSet();
+	}
+
+	@Benchmark
+	public Label.Expression parse() {
+		return Label.parse(TASK_EXPRESSION);
+	}
+
+	@Benchmark
+	public boolean matchesString() {
+		return expression.matches(MACHINE_LABELS);
+	}
+
+	@Benchmark
+	public boolean matchesLabelSet() {
+		return expression.matches(machineLabels);
+	}
+}
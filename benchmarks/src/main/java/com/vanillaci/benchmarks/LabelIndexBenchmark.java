@@ -0,0 +1,94 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.StubMachine;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.labels.Label;
+import com.vanillaci.distributedinvoke.machines.labels.LabelIndex;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the machines that match a label expression among 5,000 machines with 10 of 200 labels each,
+ * 	with the {@link LabelIndex} and by comparing label names machine by machine, the way it was done before labels were compiled into bitsets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelIndexBenchmark {
+	private static final int MACHINES = 5000;
+	private static final int LABELS = 200;
+	private static final int LABELS_PER_MACHINE = 10;
+	private static final int EXPRESSIONS = 1000;
+
+	private List<Machine> machines;
+	private LabelIndex index;
+	private Label.Expression[] expressions;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		machines = new ArrayList<Machine>();
+		index = new LabelIndex();
+		for(int i = 0; i < MACHINES; i++) {
+			StringBuilder labels = new StringBuilder();
+			for(int j = 0; j < LABELS_PER_MACHINE; j++) {
+				labels.append(" bench-label-").append(random.nextInt(LABELS));
+			}
+			Machine machine = new StubMachine("machine " + i, 1, labels.toString());
+			machines.add(machine);
+			index.add(machine);
+		}
+
+		expressions = new Label.Expression[EXPRESSIONS];
+		for(int i = 0; i < EXPRESSIONS; i++) {
+			String expression = "bench-label-" + random.nextInt(LABELS) + " bench-label-" + random.nextInt(LABELS);
+			if(random.nextBoolean()) {
+				expression += " !bench-label-" + random.nextInt(LABELS);
+			}
+			expressions[i] = Label.parse(expression);
+		}
+	}
+
+	@Benchmark
+	public List<Machine> index() {
+		return index.candidates(nextExpression());
+	}
+
+	@Benchmark
+	public List<Machine> scanByName() {
+		Label.Expression expression = nextExpression();
+		List<Machine> result = new ArrayList<Machine>();
+		for (Machine machine : machines) {
+			boolean excluded = false;
+			boolean included = expression.getIncludes().isEmpty();
+			for (Label label : machine.getLabels().getIncludes()) {
+				for (Label exclude : expression.getExcludes()) {
+					excluded |= exclude.getName().equals(label.getName());
+				}
+				for (Label include : expression.getIncludes()) {
+					included |= include.getName().equals(label.getName());
+				}
+			}
+			if(included && !excluded) {
+				result.add(machine);
+			}
+		}
+		return result;
+	}
+
+	@NotNull
+	private Label.Expression nextExpression() {
+		Label.Expression expression = expressions[next];
+		next = (next + 1) % expressions.length;
+		return expression;
+	}
+}
@@ -0,0 +1,94 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests spread over one or more {@link RemoteMachine}s over loopback, each request taking {@link #WRITE_DELAY} milliseconds to write.
+ * 	Channels to different machines shouldn't wait on each other, so throughput should grow with the number of machines.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MachineScalingBenchmark {
+	private static final int FIRST_PORT = 9793;
+	private static final int WRITE_DELAY = 10;
+
+	@Param({"1", "4"})
+	public int machineCount;
+
+	private final List<RemoteMachineListener> listeners = new ArrayList<RemoteMachineListener>();
+	private final List<Machine> machines = new ArrayList<Machine>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.quietLogging();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		for(int i = 0; i < machineCount; i++) {
+			listeners.add(RemoteMachineListener.start(loopback, FIRST_PORT + i));
+			machines.add(RemoteMachine.connectToMachine("benchmark " + i, loopback, FIRST_PORT + i, 64, ""));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for (Machine machine : machines) {
+			machine.close();
+		}
+		machines.clear();
+		for (RemoteMachineListener listener : listeners) {
+			listener.close();
+		}
+		listeners.clear();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(16)
+	public String slowToWrite() throws Exception {
+		Machine machine = machines.get(ThreadLocalRandom.current().nextInt(machines.size()));
+		return machine.invoke(new SlowToWriteCallable("ping", WRITE_DELAY), 1);
+	}
+
+	/**
+	 * Takes a while to serialize, standing in for a request with a lot to write.
+	 */
+	static class SlowToWriteCallable implements Callable<String>, Serializable {
+		@NotNull private final String returnValue;
+		private final int writeDelay;
+
+		SlowToWriteCallable(@NotNull String returnValue, int writeDelay) {
+			this.returnValue = returnValue;
+			this.writeDelay = writeDelay;
+		}
+
+		@Override
+		public String call() {
+			return returnValue;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			try {
+				Thread.sleep(writeDelay);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			out.defaultWriteObject();
+		}
+	}
+}
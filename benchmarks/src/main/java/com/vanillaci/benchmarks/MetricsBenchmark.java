@@ -0,0 +1,58 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.metrics.Counter;
+import com.vanillaci.distributedinvoke.metrics.Histogram;
+import com.vanillaci.distributedinvoke.metrics.HistogramSnapshot;
+import com.vanillaci.distributedinvoke.metrics.MetricsRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording into the counters and histograms that sit on every request's path, from one thread and from many at once.
+ * 	Run with {@code -prof gc} to see that recording doesn't allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+	private Counter counter;
+	private Histogram histogram;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		MetricsRegistry registry = new MetricsRegistry();
+		counter = registry.counter("benchmark.counter");
+		histogram = registry.histogram("benchmark.histogram");
+	}
+
+	@Benchmark
+	public void increment() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void incrementContended() {
+		counter.increment();
+	}
+
+	@Benchmark
+	public void recordSince() {
+		histogram.recordSince(System.nanoTime() - 1000);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void recordSinceContended() {
+		histogram.recordSince(System.nanoTime() - 1000);
+	}
+
+	@Benchmark
+	public HistogramSnapshot snapshot() {
+		return histogram.snapshot();
+	}
+}
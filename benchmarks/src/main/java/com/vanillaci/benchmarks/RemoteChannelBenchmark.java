@@ -0,0 +1,70 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.channels.RemoteChannel;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests from a {@link RemoteChannel} to a {@link RemoteMachineListener} in the same JVM over loopback,
+ * 	each waiting for its response. Latency is one request at a time; throughput has many threads sharing the channel.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoteChannelBenchmark {
+	private static final int PORT = 9791;
+
+	private RemoteMachineListener listener;
+	private RemoteChannel channel;
+	private Thread reader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.quietLogging();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		listener = RemoteMachineListener.start(loopback, PORT);
+		channel = RemoteChannel.create("benchmark", loopback, PORT);
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						channel.readResponse();
+					}
+				} catch (Exception e) {
+					//The channel was closed at the end of the trial.
+				}
+			}
+		}, "benchmark reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.interrupt();
+		channel.close();
+		listener.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String latency() throws Exception {
+		return channel.writeRequest(new BenchmarkSupport.EchoCallable("ping")).waitForResult();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(16)
+	public String throughput() throws Exception {
+		return channel.writeRequest(new BenchmarkSupport.EchoCallable("ping")).waitForResult();
+	}
+}
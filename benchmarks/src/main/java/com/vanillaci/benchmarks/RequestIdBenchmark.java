@@ -0,0 +1,79 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.channels.ConcurrentLongMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What it costs a channel to give a request an ID, track it, and find it again when the response arrives:
+ * 	a random UUID string in a {@link ConcurrentHashMap} (how requests used to be tracked),
+ * 	a counter in a {@link ConcurrentHashMap} with boxed keys, and a counter in a {@link ConcurrentLongMap}.
+ * 	Each map already holds {@link #outstanding} other requests, as a busy channel's would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestIdBenchmark {
+	private static final Object FUTURE = new Object();
+
+	@Param({"1000"})
+	public int outstanding;
+
+	private ConcurrentHashMap<String, Object> uuidMap;
+	private ConcurrentHashMap<Long, Object> boxedMap;
+	private ConcurrentLongMap<Object> longMap;
+	private final AtomicLong nextId = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		uuidMap = new ConcurrentHashMap<String, Object>();
+		boxedMap = new ConcurrentHashMap<Long, Object>();
+		longMap = ConcurrentLongMap.create();
+		for(int i = 0; i < outstanding; i++) {
+			uuidMap.put(UUID.randomUUID().toString(), FUTURE);
+			long id = nextId.incrementAndGet();
+			boxedMap.put(id, FUTURE);
+			longMap.put(id, FUTURE);
+		}
+	}
+
+	@Benchmark
+	public Object uuid() {
+		String id = UUID.randomUUID().toString();
+		uuidMap.put(id, FUTURE);
+		return uuidMap.remove(id);
+	}
+
+	@Benchmark
+	public Object boxedLong() {
+		long id = nextId.incrementAndGet();
+		boxedMap.put(id, FUTURE);
+		return boxedMap.remove(id);
+	}
+
+	@Benchmark
+	public Object primitiveLong() {
+		long id = nextId.incrementAndGet();
+		longMap.put(id, FUTURE);
+		return longMap.remove(id);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object uuidContended() {
+		return uuid();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object primitiveLongContended() {
+		return primitiveLong();
+	}
+}
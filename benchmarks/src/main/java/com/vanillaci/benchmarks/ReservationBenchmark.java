@@ -0,0 +1,49 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads reserving executors on one {@link RemoteMachine} and releasing them straight away, without running anything.
+ * 	There are fewer executors than threads, so some of the attempts find the machine full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReservationBenchmark {
+	private static final int PORT = 9797;
+	private static final int EXECUTORS = 4;
+
+	private RemoteMachineListener listener;
+	private Machine machine;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.quietLogging();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		listener = RemoteMachineListener.start(loopback, PORT);
+		machine = RemoteMachine.connectToMachine("benchmark", loopback, PORT, EXECUTORS, "");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		machine.close();
+		listener.close();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean reserveAndRelease() {
+		Machine.Reservation reservation = machine.tryReserve(1);
+		return reservation != null && reservation.release();
+	}
+}
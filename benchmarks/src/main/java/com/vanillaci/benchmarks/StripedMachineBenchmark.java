@@ -0,0 +1,80 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachine;
+import com.vanillaci.distributedinvoke.machines.RemoteMachineListener;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads invoking small and large requests on one {@link RemoteMachine} over loopback,
+ * 	with the machine's requests spread across one or more connections.
+ * 	One request in {@link #LARGE_EVERY} carries a large payload there and back, which holds up everything behind it on its connection.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StripedMachineBenchmark {
+	private static final int PORT = 9792;
+	private static final int LARGE_EVERY = 16;
+
+	@Param({"1", "2", "4"})
+	public int connections;
+
+	@Param({"262144"})
+	public int largePayloadBytes;
+
+	private RemoteMachineListener listener;
+	private Machine machine;
+	private byte[] small;
+	private byte[] large;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.quietLogging();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		listener = RemoteMachineListener.start(loopback, PORT);
+		machine = RemoteMachine.connectToMachine("benchmark", loopback, PORT, 1024, "", connections);
+		small = new byte[64];
+		large = new byte[largePayloadBytes];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		machine.close();
+		listener.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(16)
+	public byte[] mixedPayloads() throws Exception {
+		byte[] payload = ThreadLocalRandom.current().nextInt(LARGE_EVERY) == 0 ? large : small;
+		return machine.invoke(new PayloadCallable(payload), 1);
+	}
+
+	/**
+	 * Sends its payload to the agent and gets it back.
+	 */
+	static class PayloadCallable implements Callable<byte[]>, Serializable {
+		@NotNull private final byte[] payload;
+
+		PayloadCallable(@NotNull byte[] payload) {
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] call() {
+			return payload;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.queue.MappedTaskJournal;
+import com.vanillaci.distributedinvoke.queue.TaskJournal;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing tasks to a {@link MappedTaskJournal} and reading them back after a restart.
+ * 	Appends are removed again straight away, the way the queue removes a task once it's dispatched, so the journal stays small.
+ * 	Recovery opens a journal of {@link Recovering#TASKS} tasks and replays every one of them.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskJournalBenchmark {
+	@State(Scope.Benchmark)
+	public static class Appending {
+		/**
+		 * Whether each append waits for the group fsync.
+		 */
+		@Param({ "false", "true" })
+		public boolean syncAppends;
+
+		private File directory;
+		private MappedTaskJournal journal;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			directory = Files.createTempDirectory("journal-benchmark").toFile();
+			journal = MappedTaskJournal.open(directory, MappedTaskJournal.DEFAULT_SEGMENT_SIZE, MappedTaskJournal.DEFAULT_FLUSH_MILLIS, TimeUnit.MILLISECONDS, syncAppends);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			journal.close();
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Recovering {
+		static final int TASKS = 1000000;
+
+		private File directory;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			directory = Files.createTempDirectory("journal-benchmark").toFile();
+			MappedTaskJournal journal = MappedTaskJournal.open(directory);
+			try {
+				for(int i = 0; i < TASKS; i++) {
+					journal.append(new JournaledTask(i));
+				}
+				journal.sync();
+			} finally {
+				journal.close();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public long appendAndRemove(Appending state) throws IOException {
+		long id = state.journal.append(new JournaledTask(state.next++));
+		state.journal.remove(id);
+		return id;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public int recover(Recovering state) throws IOException {
+		MappedTaskJournal journal = MappedTaskJournal.open(state.directory);
+		try {
+			final int[] replayed = new int[1];
+			journal.replay(new TaskJournal.Visitor() {
+				@Override
+				public void visit(long id, @NotNull Task<Result> task) {
+					replayed[0]++;
+				}
+			});
+			if(replayed[0] != Recovering.TASKS) {
+				throw new IllegalStateException("Replayed " + replayed[0] + " of " + Recovering.TASKS + " tasks");
+			}
+			return replayed[0];
+		} finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * About as small as a task gets, so what's measured is the journal rather than serialization.
+	 */
+	static class JournaledTask implements Task<Result> {
+		private final int number;
+
+		JournaledTask(int number) {
+			this.number = number;
+		}
+
+		@Override
+		public Result call() {
+			return Result.SUCCESS;
+		}
+
+		@Override
+		public int getWeight() {
+			return 1;
+		}
+	}
+}
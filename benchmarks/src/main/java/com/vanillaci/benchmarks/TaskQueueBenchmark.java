@@ -0,0 +1,107 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.StubMachine;
+import com.vanillaci.distributedinvoke.jobs.Result;
+import com.vanillaci.distributedinvoke.jobs.Task;
+import com.vanillaci.distributedinvoke.machines.Machine;
+import com.vanillaci.distributedinvoke.queue.DequeueWatch;
+import com.vanillaci.distributedinvoke.queue.PlacementStrategies;
+import com.vanillaci.distributedinvoke.queue.PlacementStrategy;
+import com.vanillaci.distributedinvoke.queue.QueueWatch;
+import com.vanillaci.distributedinvoke.queue.TaskClassifier;
+import com.vanillaci.distributedinvoke.queue.TaskQueue;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueues a batch of tasks and waits for the dispatcher to hand every one of them to a machine.
+ * 	The machines are stand-ins that run the task on the dispatcher thread and free the executors straight away,
+ * 	so what's measured is the queue: scheduling, placement, reservation and the dispatcher's wake-ups.
+ * 	Every placement strategy scores every machine that fits, so the strategy matters more the more machines there are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+	private static final int BATCH = 1000;
+
+	@Param({ "1", "50" })
+	public int machineCount;
+
+	@Param({ "firstFit", "bestFit", "worstFit", "spread" })
+	public String strategy;
+
+	private TaskQueue queue;
+	private Thread dispatcher;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkSupport.quietLogging();
+		List<Machine> machines = new ArrayList<Machine>();
+		for(int i = 0; i < machineCount; i++) {
+			machines.add(new StubMachine("stub " + i, 8));
+		}
+		queue = TaskQueue.create(machines, Collections.<QueueWatch>emptyList(), Collections.<DequeueWatch>emptyList(), TaskClassifier.SINGLE_TENANT, placementStrategy(strategy));
+		dispatcher = new Thread(queue, "benchmark dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		dispatcher.interrupt();
+		dispatcher.join();
+	}
+
+	@NotNull
+	private static PlacementStrategy placementStrategy(@NotNull String name) {
+		if("firstFit".equals(name)) {
+			return PlacementStrategies.firstFit();
+		} else if("bestFit".equals(name)) {
+			return PlacementStrategies.bestFit();
+		} else if("worstFit".equals(name)) {
+			return PlacementStrategies.worstFit();
+		} else if("spread".equals(name)) {
+			return PlacementStrategies.spread();
+		}
+		throw new IllegalArgumentException("No placement strategy named " + name);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void enqueueToDispatch() throws InterruptedException {
+		CountDownLatch dispatched = new CountDownLatch(BATCH);
+		for(int i = 0; i < BATCH; i++) {
+			queue.enqueueTask(new StubTask(dispatched));
+		}
+		dispatched.await();
+	}
+
+	static class StubTask implements Task<Result> {
+		@NotNull private final transient CountDownLatch dispatched;
+
+		StubTask(@NotNull CountDownLatch dispatched) {
+			this.dispatched = dispatched;
+		}
+
+		@Override
+		public Result call() {
+			dispatched.countDown();
+			return Result.SUCCESS;
+		}
+
+		@Override
+		public int getWeight() {
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.vanillaci.benchmarks;
+
+import com.vanillaci.distributedinvoke.channels.Transport;
+import com.vanillaci.distributedinvoke.channels.TransportCodec;
+import com.vanillaci.distributedinvoke.channels.TransportCodecs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a transport and decodes it again with the same codec, the way the two ends of a connection do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+	@Param({ "binary", "java" })
+	public String codec;
+
+	/**
+	 * string: a typical response. callable: a typical request. bytes: a 64KB array.
+	 */
+	@Param({ "string", "callable", "bytes" })
+	public String payload;
+
+	private TransportCodec.Encoder encoder;
+	private TransportCodec.Decoder decoder;
+	private Transport<?> transport;
+	private BenchmarkSupport.Frame frame;
+	private DataOutputStream frameData;
+
+	@Setup
+	public void setUp() throws IOException {
+		TransportCodec transportCodec = TransportCodecs.find(TransportCodecs.defaults(), codec);
+		if(transportCodec == null) {
+			throw new IllegalArgumentException("No codec named " + codec);
+		}
+		encoder = transportCodec.newEncoder();
+		decoder = transportCodec.newDecoder();
+
+		Object object;
+		if("string".equals(payload)) {
+			object = "Build #1234 finished: SUCCESS";
+		} else if("callable".equals(payload)) {
+			object = new BenchmarkSupport.EchoCallable("Build #1234");
+		} else {
+			byte[] bytes = new byte[64 * 1024];
+			Arrays.fill(bytes, (byte) 7);
+			object = bytes;
+		}
+		transport = Transport.wrap(object);
+		frame = new BenchmarkSupport.Frame(128 * 1024);
+		frameData = new DataOutputStream(frame);
+	}
+
+	@Benchmark
+	public Transport<?> roundTrip() throws IOException, ClassNotFoundException {
+		frame.reset();
+		encoder.encode(transport, frameData);
+		frameData.flush();
+		return decoder.decode(new DataInputStream(new ByteArrayInputStream(frame.buffer(), 0, frame.size())));
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		frame.reset();
+		encoder.encode(transport, frameData);
+		frameData.flush();
+		return frame.size();
+	}
+}